@@ -634,7 +634,7 @@ public class DFSClient {
 
             String diskSpace = formatFileSize(node.getAvailableDiskSpace());
             String lastHeartbeat = node.getLastHeartbeat() > 0 ? dateFormat.format(node.getLastHeartbeat()) : "N/A";
-            int fileCount = node.getHostedFiles() != null ? node.getHostedFiles().size() : 0;
+            int fileCount = node.getHostedFileCount();
 
             System.out.printf("%-20s %-15s %-10s %-20s %-10d%n", node.getNodeId(), status, diskSpace, lastHeartbeat, fileCount);
         }
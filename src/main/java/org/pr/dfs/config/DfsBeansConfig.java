@@ -1,16 +1,35 @@
 package org.pr.dfs.config;
 
 import lombok.RequiredArgsConstructor;
+import org.pr.dfs.dto.FileMetadata;
+import org.pr.dfs.membership.GossipMembership;
+import org.pr.dfs.membership.Member;
 import org.pr.dfs.replication.FaultToleranceManager;
 import org.pr.dfs.model.Node;
+import org.pr.dfs.namespace.NamespaceTree;
 import org.pr.dfs.replication.NodeManager;
+import org.pr.dfs.replication.ReplicaCopier;
 import org.pr.dfs.replication.ReplicationManager;
+import org.pr.dfs.replication.ReplicationWorkQueue;
+import org.pr.dfs.search.SearchIndex;
+import org.pr.dfs.search.SuggestionIndex;
+import org.pr.dfs.security.ClusterAuth;
+import org.pr.dfs.security.CryptoEngine;
+import org.pr.dfs.security.KeyCache;
+import org.pr.dfs.server.DirectoryIndex;
+import org.pr.dfs.service.SimpleNodeService;
+import org.pr.dfs.utils.BoundedTtlCache;
 import org.pr.dfs.utils.MetricsCollector;
+import org.pr.dfs.versioning.SnapshotManager;
 import org.pr.dfs.versioning.VersionManager;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 @Configuration
 @RequiredArgsConstructor
 public class DfsBeansConfig {
@@ -21,11 +40,35 @@ public class DfsBeansConfig {
     @Bean
     public NodeManager getNodeManager() {
         NodeManager nodeManager = new NodeManager();
-        // Initialize with default nodes based on your storage structure
-        initializeDefaultNodes(nodeManager);
+        // With gossip enabled the storage nodes announce themselves
+        if (!dfsConfig.getGossip().isEnabled()) {
+            initializeDefaultNodes(nodeManager);
+        }
         return nodeManager;
     }
 
+    @Bean(destroyMethod = "close")
+    public GossipMembership gossipMembership(NodeManager nodeManager, @Value("${server.port:8080}") int serverPort)
+            throws IOException {
+        DfsConfig.Gossip gossip = dfsConfig.getGossip();
+        GossipMembership membership = new GossipMembership("coordinator_" + gossip.getHost() + "_" + gossip.getPort(),
+                gossip.getHost(), serverPort, gossip.getPort(), Member.Role.COORDINATOR, gossip.getSeeds());
+        if (gossip.isEnabled()) {
+            membership.addListener(nodeManager);
+            membership.start();
+        }
+        return membership;
+    }
+
+    @Bean
+    public ClusterAuth clusterAuth() {
+        ClusterAuth clusterAuth = new ClusterAuth(dfsConfig.getCluster().getSecret());
+        if (!clusterAuth.isConfigured()) {
+            System.err.println("dfs.cluster.secret is not set, block reports and heartbeats from storage nodes will be refused");
+        }
+        return clusterAuth;
+    }
+
     private void initializeDefaultNodes(NodeManager nodeManager) {
         try {
             // Register localhost nodes on different ports for realistic testing
@@ -48,9 +91,31 @@ public class DfsBeansConfig {
         }
     }
 
+    @Bean(destroyMethod = "close")
+    public NamespaceTree namespaceTree() {
+        return new NamespaceTree(dfsConfig.getStorage().getPath());
+    }
+
     @Bean
-    public ReplicationManager replicationManager(NodeManager nodeManager) {
-        return new ReplicationManager(dfsConfig.getReplication().getFactor(), nodeManager);
+    public ReplicationManager replicationManager(NodeManager nodeManager, NamespaceTree namespaceTree) {
+        return new ReplicationManager(dfsConfig.getReplication().getFactor(), nodeManager, namespaceTree,
+                dfsConfig.getStorage().getPath());
+    }
+
+    @Bean(destroyMethod = "close")
+    public ReplicationWorkQueue replicationWorkQueue(ReplicationManager replicationManager, NodeManager nodeManager,
+                                                     NamespaceTree namespaceTree, SimpleNodeService simpleNodeService)
+            throws IOException {
+        DfsConfig.Replication replication = dfsConfig.getReplication();
+        // Sources push copies straight to the targets
+        ReplicaCopier copier = (path, source, target) -> simpleNodeService.replicateBetweenNodes(source, target, path);
+        ReplicationWorkQueue queue = new ReplicationWorkQueue(Paths.get(dfsConfig.getStorage().getPath()),
+                replicationManager, nodeManager, namespaceTree, copier, replication.getMaxConcurrentCopies(),
+                replication.getMaxCopiesPerNode(), replication.getBandwidthBytesPerSecond());
+        replicationManager.setReplicaCopier(copier);
+        replicationManager.setWorkQueue(queue);
+        queue.start();
+        return queue;
     }
 
     @Bean
@@ -63,6 +128,46 @@ public class DfsBeansConfig {
         return new VersionManager(dfsConfig.getStorage().getPath());
     }
 
+    @Bean(destroyMethod = "close")
+    public SnapshotManager snapshotManager() {
+        return new SnapshotManager(dfsConfig.getStorage().getPath());
+    }
+
+    @Bean
+    public DirectoryIndex directoryIndex() {
+        return new DirectoryIndex(dfsConfig.getStorage().getPath());
+    }
+
+    @Bean(destroyMethod = "close")
+    public SearchIndex searchIndex() throws IOException {
+        DfsConfig.Search search = dfsConfig.getSearch();
+        return new SearchIndex(Paths.get(dfsConfig.getStorage().getPath(), ".search"), search.getFlushDocs(),
+                search.getMergeFactor());
+    }
+
+    @Bean
+    public SuggestionIndex suggestionIndex() {
+        DfsConfig.Search search = dfsConfig.getSearch();
+        return new SuggestionIndex(search.getSuggestionNamesPerUser(), search.getSuggestionUsers());
+    }
+
+    @Bean
+    public BoundedTtlCache<String, FileMetadata> metadataCache() {
+        DfsConfig.MetadataCache cache = dfsConfig.getMetadataCache();
+        return new BoundedTtlCache<>(cache.getMaxEntries(), cache.getTtlMs(), cache.getNegativeTtlMs());
+    }
+
+    @Bean
+    public CryptoEngine cryptoEngine() {
+        return new CryptoEngine();
+    }
+
+    @Bean(destroyMethod = "clear")
+    public KeyCache keyCache() {
+        DfsConfig.Encryption encryption = dfsConfig.getEncryption();
+        return new KeyCache(encryption.getKeyCacheSize(), encryption.getKeyIdleMs());
+    }
+
     @Bean
     public MetricsCollector metricsCollector() {
         return new MetricsCollector();
@@ -4,6 +4,9 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
 @Configuration
 @ConfigurationProperties(prefix = "dfs")
@@ -11,6 +14,13 @@ public class DfsConfig {
     private Storage storage = new Storage();
     private Server server = new Server();
     private Replication replication = new Replication();
+    private Gossip gossip = new Gossip();
+    private Cluster cluster = new Cluster();
+    private Rebalancer rebalancer = new Rebalancer();
+    private Search search = new Search();
+    private MetadataCache metadataCache = new MetadataCache();
+    private Session session = new Session();
+    private Encryption encryption = new Encryption();
 
     @Data
     public static class Storage {
@@ -26,5 +36,62 @@ public class DfsConfig {
     @Data
     public static class Replication {
         private int factor = 3;
+        private int maxConcurrentCopies = 8;
+        private int maxCopiesPerNode = 2; // Copies a single node takes part in at once, as source or target
+        private long bandwidthBytesPerSecond = 50 * 1024 * 1024;
+    }
+
+    @Data
+    public static class Gossip {
+        private boolean enabled = false; // Replaces the fixed node list when on
+        private String host = "localhost";
+        private int port = 7946;
+        private List<String> seeds = new ArrayList<>(); // host:port of gossip members to join through
+    }
+
+    @Data
+    public static class Cluster {
+        private String secret = ""; // Base64, shared with the storage nodes (-Dcluster.secret); node calls are refused if empty
+    }
+
+    @Data
+    public static class Rebalancer {
+        private boolean enabled = true;
+        private long intervalMs = 60000;
+        private int thresholdPercent = 10; // Allowed distance of a node's utilization from the cluster average
+        private long bandwidthBytesPerSecond = 10 * 1024 * 1024;
+        private int maxMovesPerRun = 500;
+    }
+
+    @Data
+    public static class Search {
+        private int flushDocs = 10000; // Buffered documents written out as one segment file
+        private int mergeFactor = 8; // Segment files allowed before the smallest are merged
+        private int suggestionNamesPerUser = 5000; // Most accessed file names kept for autocomplete
+        private int suggestionUsers = 500; // Users whose names stay loaded, least recently used dropped
+        private long accessFlushMs = 5000; // How often buffered access counts are written to the database
+    }
+
+    @Data
+    public static class MetadataCache {
+        private int maxEntries = 10000;
+        private long ttlMs = 30000;
+        private long negativeTtlMs = 5000; // Paths without metadata, 0 to always ask the database
+    }
+
+    @Data
+    public static class Session {
+        private long timeoutMs = 30 * 60 * 1000;
+        private int maxSessions = 100000; // Server side sessions kept, the closest to expiring replaced past that
+        private boolean stateless = false; // Signed tokens instead of server side sessions
+        private long tokenTtlMs = 15 * 60 * 1000;
+        private long maxLifetimeMs = 12 * 60 * 60 * 1000; // From login, tokens are not renewed past it
+        private String tokenSecret = ""; // Base64, shared by all API instances; random per process if empty
+    }
+
+    @Data
+    public static class Encryption {
+        private int keyCacheSize = 1000; // User keys kept in memory
+        private long keyIdleMs = 10 * 60 * 1000; // A key unused this long is dropped and zeroed
     }
 }
@@ -17,8 +17,16 @@ public class NodeConfiguration {
     @Autowired
     private NodeManager nodeManager;
 
+    @Autowired
+    private DfsConfig dfsConfig;
+
     @EventListener(ApplicationReadyEvent.class)
     public void registerNodes() {
+        if (dfsConfig.getGossip().isEnabled()) {
+            LOGGER.info("Gossip membership enabled - storage nodes register themselves when they join");
+            return;
+        }
+
         LOGGER.info("Registering distributed nodes with NodeManager...");
 
         // Register the simple HTTP nodes - fix constructor to match Node model
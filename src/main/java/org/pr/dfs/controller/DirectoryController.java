@@ -7,6 +7,7 @@ import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.pr.dfs.dto.ApiResponse;
+import org.pr.dfs.dto.DirectoryPage;
 import org.pr.dfs.dto.DirectoryRequest;
 import org.pr.dfs.dto.FileMetaDataDto;
 import org.pr.dfs.dto.MoveRequest;
@@ -46,6 +47,32 @@ public class DirectoryController {
         }
     }
 
+    @GetMapping("/paged")
+    @Operation(summary = "List directory content page by page",
+            description = "Get one sorted page of a directory's contents; pass nextCursor back to get the following page")
+    public ResponseEntity<ApiResponse<DirectoryPage>> listDirectoryPage(
+            @RequestParam(defaultValue = "/") String path,
+            @RequestParam(defaultValue = "name") String sortBy,
+            @RequestParam(defaultValue = "asc") String direction,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String cursor) {
+        try {
+            User currentUser = validateUser();
+            log.info("User {} listing directory page: {} (sort: {} {}, limit: {})",
+                    currentUser.getUsername(), path, sortBy, direction, limit);
+
+            DirectoryPage page = directoryService.listDirectoryPage(path, sortBy, direction, limit, cursor);
+            return ResponseEntity.ok(ApiResponse.success("Directory listed successfully", page));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication required"));
+        } catch (Exception e) {
+            log.error("Error listing directory page: {}", path, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to list directory: " + e.getMessage()));
+        }
+    }
+
     @GetMapping("/{path}")
     @Operation(summary = "List directory content", description = "Get the contents of a directory")
     public ResponseEntity<ApiResponse<List<FileMetaDataDto>>> listDirectory(@PathVariable String path) {
@@ -26,15 +26,17 @@ public class SearchController {
     private final SearchService searchService;
 
     @GetMapping("/files")
-    @Operation(summary = "Search files", description = "Search files using various criteria")
+    @Operation(summary = "Search files",
+            description = "Search files using various criteria; pass nextCursor back to get the following page")
     public ResponseEntity<ApiResponse<SearchResult>> searchFiles(
             @RequestParam(required = false) String query,
             @RequestParam(required = false) String fileName,
             @RequestParam(required = false) String contentType,
-            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(required = false) String cursor,
             @RequestParam(defaultValue = "20") int size,
             @RequestParam(defaultValue = "uploadTime") String sortBy,
-            @RequestParam(defaultValue = "desc") String sortDirection) {
+            @RequestParam(defaultValue = "desc") String sortDirection,
+            @RequestParam(defaultValue = "false") boolean withTotal) {
         try {
             User currentUser = validateUser();
             log.info("User {} searching files with query: '{}', fileName: '{}', contentType: '{}'", 
@@ -44,15 +46,16 @@ public class SearchController {
             request.setQuery(query);
             request.setFileName(fileName);
             request.setContentType(contentType);
-            request.setPage(page);
+            request.setCursor(cursor);
             request.setSize(size);
             request.setSortBy(sortBy);
             request.setSortDirection(sortDirection);
+            request.setWithTotal(withTotal);
 
             SearchResult result = searchService.searchFiles(request);
             
-            log.info("Search completed for user {}: {} results found", 
-                    currentUser.getUsername(), result.getTotalElements());
+            log.info("Search completed for user {}: {} results returned",
+                    currentUser.getUsername(), result.getFiles().size());
 
             return ResponseEntity.ok(ApiResponse.success("Search completed successfully", result));
         } catch (IllegalStateException e) {
@@ -90,14 +93,15 @@ public class SearchController {
     @GetMapping("/recent")
     @Operation(summary = "Get recent files", description = "Get recent accessed files")
     public ResponseEntity<ApiResponse<SearchResult>> getRecentFiles(
-            @Parameter(description = "Page number") @RequestParam(defaultValue = "0") int page,
-            @Parameter(description = "Page size") @RequestParam(defaultValue = "20") int size) {
+            @Parameter(description = "nextCursor of the previous page") @RequestParam(required = false) String cursor,
+            @Parameter(description = "Page size") @RequestParam(defaultValue = "20") int size,
+            @Parameter(description = "Count all matches") @RequestParam(defaultValue = "false") boolean withTotal) {
         try {
             User currentUser = validateUser();
-            log.info("User {} getting recent files (page: {}, size: {})", 
-                    currentUser.getUsername(), page, size);
+            log.info("User {} getting recent files (cursor: {}, size: {})",
+                    currentUser.getUsername(), cursor, size);
 
-            SearchResult result = searchService.getRecentFiles(currentUser.getUserId(), page, size);
+            SearchResult result = searchService.getRecentFiles(currentUser.getUserId(), cursor, size, withTotal);
 
             return ResponseEntity.ok(ApiResponse.success("Recent files retrieved successfully", result));
         } catch (IllegalStateException e) {
@@ -113,14 +117,15 @@ public class SearchController {
     @GetMapping("/popular")
     @Operation(summary = "Get popular files", description = "Get most accessed files")
     public ResponseEntity<ApiResponse<SearchResult>> getPopularFiles(
-            @Parameter(description = "Page number") @RequestParam(defaultValue = "0") int page,
-            @Parameter(description = "Page size") @RequestParam(defaultValue = "20") int size) {
+            @Parameter(description = "nextCursor of the previous page") @RequestParam(required = false) String cursor,
+            @Parameter(description = "Page size") @RequestParam(defaultValue = "20") int size,
+            @Parameter(description = "Count all matches") @RequestParam(defaultValue = "false") boolean withTotal) {
         try {
             User currentUser = validateUser();
-            log.info("User {} getting popular files (page: {}, size: {})", 
-                    currentUser.getUsername(), page, size);
+            log.info("User {} getting popular files (cursor: {}, size: {})",
+                    currentUser.getUsername(), cursor, size);
 
-            SearchResult result = searchService.getPopularFiles(currentUser.getUserId(), page, size);
+            SearchResult result = searchService.getPopularFiles(currentUser.getUserId(), cursor, size, withTotal);
 
             return ResponseEntity.ok(ApiResponse.success("Popular files retrieved successfully", result));
         } catch (IllegalStateException e) {
@@ -137,14 +142,15 @@ public class SearchController {
     @Operation(summary = "Search by tag", description = "Search files by specific tag")
     public ResponseEntity<ApiResponse<SearchResult>> searchByTag(
             @Parameter(description = "Tag to search for") @PathVariable String tag,
-            @Parameter(description = "Page number") @RequestParam(defaultValue = "0") int page,
-            @Parameter(description = "Page size") @RequestParam(defaultValue = "20") int size) {
+            @Parameter(description = "nextCursor of the previous page") @RequestParam(required = false) String cursor,
+            @Parameter(description = "Page size") @RequestParam(defaultValue = "20") int size,
+            @Parameter(description = "Count all matches") @RequestParam(defaultValue = "false") boolean withTotal) {
         try {
             User currentUser = validateUser();
-            log.info("User {} searching files by tag: '{}' (page: {}, size: {})", 
-                    currentUser.getUsername(), tag, page, size);
+            log.info("User {} searching files by tag: '{}' (cursor: {}, size: {})",
+                    currentUser.getUsername(), tag, cursor, size);
 
-            SearchResult result = searchService.searchByTag(currentUser.getUserId(), tag, page, size);
+            SearchResult result = searchService.searchByTag(currentUser.getUserId(), tag, cursor, size, withTotal);
 
             return ResponseEntity.ok(ApiResponse.success("Search completed successfully", result));
         } catch (IllegalStateException e) {
@@ -0,0 +1,151 @@
+package org.pr.dfs.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.dto.ApiResponse;
+import org.pr.dfs.dto.SnapshotDto;
+import org.pr.dfs.model.SnapshotEntry;
+import org.pr.dfs.model.User;
+import org.pr.dfs.model.UserContext;
+import org.pr.dfs.service.SnapshotService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.FileNotFoundException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+@Slf4j
+@RestController
+@RequestMapping("/snapshots")
+@RequiredArgsConstructor
+@Tag(name = "Snapshot Operations", description = "APIs for point-in-time snapshots of the user's namespace")
+public class SnapshotController {
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private final SnapshotService snapshotService;
+    private final ObjectMapper objectMapper;
+
+    @PostMapping
+    @Operation(summary = "Create snapshot", description = "Take a snapshot of the user's whole directory tree")
+    public ResponseEntity<ApiResponse<SnapshotDto>> createSnapshot(@RequestParam String name) {
+        try {
+            User currentUser = validateUser();
+            log.info("User {} creating snapshot: {}", currentUser.getUsername(), name);
+
+            SnapshotDto snapshot = snapshotService.createSnapshot(name);
+            return ResponseEntity.ok(ApiResponse.success("Snapshot created successfully", snapshot));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication required"));
+        } catch (Exception e) {
+            log.error("Error creating snapshot: {}", name, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to create snapshot: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping
+    @Operation(summary = "List snapshots", description = "List the user's snapshots, oldest first")
+    public ResponseEntity<ApiResponse<List<SnapshotDto>>> listSnapshots() {
+        try {
+            validateUser();
+            List<SnapshotDto> snapshots = snapshotService.listSnapshots();
+            return ResponseEntity.ok(ApiResponse.success("Snapshots retrieved successfully", snapshots));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication required"));
+        } catch (Exception e) {
+            log.error("Error listing snapshots", e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to list snapshots: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{snapshotId}/entries")
+    @Operation(summary = "List snapshot contents",
+            description = "Stream every file and directory in the snapshot as newline-delimited JSON")
+    public ResponseEntity<StreamingResponseBody> listSnapshotContents(@PathVariable String snapshotId) {
+        Stream<SnapshotEntry> entries;
+        try {
+            User currentUser = validateUser();
+            log.info("User {} listing snapshot {}", currentUser.getUsername(), snapshotId);
+            entries = snapshotService.listSnapshotContents(snapshotId);
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(401).build();
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (Exception e) {
+            log.error("Error listing snapshot {}", snapshotId, e);
+            return ResponseEntity.badRequest().build();
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try (entries) {
+                Iterator<SnapshotEntry> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    outputStream.write(objectMapper.writeValueAsBytes(iterator.next()));
+                    outputStream.write('\n');
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
+    }
+
+    @PostMapping("/{snapshotId}/restore")
+    @Operation(summary = "Restore snapshot", description = "Roll the user's directory tree back to the snapshot")
+    public ResponseEntity<ApiResponse<Integer>> restoreSnapshot(@PathVariable String snapshotId) {
+        try {
+            User currentUser = validateUser();
+            log.info("User {} restoring snapshot {}", currentUser.getUsername(), snapshotId);
+
+            int changed = snapshotService.restoreSnapshot(snapshotId);
+            return ResponseEntity.ok(ApiResponse.success("Snapshot restored successfully", changed));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication required"));
+        } catch (Exception e) {
+            log.error("Error restoring snapshot {}", snapshotId, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to restore snapshot: " + e.getMessage()));
+        }
+    }
+
+    @DeleteMapping("/{snapshotId}")
+    @Operation(summary = "Delete snapshot", description = "Delete a snapshot and release blocks no other snapshot uses")
+    public ResponseEntity<ApiResponse<String>> deleteSnapshot(@PathVariable String snapshotId) {
+        try {
+            User currentUser = validateUser();
+            log.info("User {} deleting snapshot {}", currentUser.getUsername(), snapshotId);
+
+            if (snapshotService.deleteSnapshot(snapshotId)) {
+                return ResponseEntity.ok(ApiResponse.success("Snapshot deleted successfully"));
+            } else {
+                return ResponseEntity.badRequest()
+                        .body(ApiResponse.error("Snapshot not found"));
+            }
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication required"));
+        } catch (Exception e) {
+            log.error("Error deleting snapshot {}", snapshotId, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to delete snapshot: " + e.getMessage()));
+        }
+    }
+
+    private User validateUser() {
+        User currentUser = UserContext.getCurrentUser();
+        if (currentUser == null) {
+            throw new IllegalStateException("No authenticated user found");
+        }
+        return currentUser;
+    }
+}
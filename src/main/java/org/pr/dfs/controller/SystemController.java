@@ -5,15 +5,25 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.pr.dfs.dto.ApiResponse;
+import org.pr.dfs.membership.GossipMembership;
+import org.pr.dfs.membership.Member;
 import org.pr.dfs.model.Node;
 import org.pr.dfs.replication.NodeManager;
+import org.pr.dfs.replication.ReplicationManager;
+import org.pr.dfs.replication.ReplicationWorkQueue;
+import org.pr.dfs.security.ClusterAuth;
+import org.pr.dfs.service.BlockReportService;
+import org.pr.dfs.service.HeartbeatService;
 import org.pr.dfs.service.HealthMonitoringService;
+import org.pr.dfs.service.RebalancerService;
 import org.pr.dfs.service.SystemService;
 import org.pr.dfs.service.SimpleNodeService;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -27,6 +37,13 @@ public class SystemController {
     private final NodeManager nodeManager;
     private final HealthMonitoringService healthMonitoringService;
     private final SimpleNodeService simpleNodeService; // Added missing dependency
+    private final BlockReportService blockReportService;
+    private final HeartbeatService heartbeatService;
+    private final GossipMembership gossipMembership;
+    private final RebalancerService rebalancerService;
+    private final ReplicationWorkQueue replicationWorkQueue;
+    private final ReplicationManager replicationManager;
+    private final ClusterAuth clusterAuth;
 
     // ===========================================
     // SYSTEM HEALTH & METRICS
@@ -101,6 +118,35 @@ public class SystemController {
         }
     }
 
+    @GetMapping("/membership")
+    @Operation(summary = "Get gossip membership", description = "Get the cluster membership as converged by gossip")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getMembership() {
+        try {
+            List<Map<String, Object>> members = new ArrayList<>();
+            for (Member member : gossipMembership.getMembers()) {
+                Map<String, Object> details = new LinkedHashMap<>();
+                details.put("id", member.getId());
+                details.put("host", member.getHost());
+                details.put("httpPort", member.getHttpPort());
+                details.put("gossipPort", member.getGossipPort());
+                details.put("role", member.getRole());
+                details.put("state", member.getState());
+                details.put("incarnation", member.getIncarnation());
+                members.add(details);
+            }
+
+            Map<String, Object> result = new HashMap<>();
+            result.put("enabled", gossipMembership.isRunning());
+            result.put("members", members);
+            return ResponseEntity.ok(ApiResponse.success("Membership retrieved successfully", result));
+
+        } catch (Exception e) {
+            log.error("Error getting membership: {}", e.getMessage(), e);
+            return ResponseEntity.status(500)
+                    .body(ApiResponse.error("Failed to get membership: " + e.getMessage()));
+        }
+    }
+
     @GetMapping("/nodes/healthy")
     @Operation(summary = "Get healthy nodes", description = "Get only healthy nodes in the system")
     public ResponseEntity<ApiResponse<List<Map<String, Object>>>> getHealthyNodes() {
@@ -224,6 +270,85 @@ public class SystemController {
         }
     }
 
+    // ===========================================
+    // BLOCK REPORTS
+    // ===========================================
+
+    @PostMapping(value = "/nodes/block-report", consumes = "text/plain")
+    @Operation(summary = "Full block report", description = "Called by storage nodes with the inventory of every file they hold")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> receiveBlockReport(
+            @RequestParam String nodeId, @RequestParam String host, @RequestParam int port,
+            @RequestHeader(value = ClusterAuth.TIMESTAMP_HEADER, required = false) String timestamp,
+            @RequestHeader(value = ClusterAuth.SIGNATURE_HEADER, required = false) String signature,
+            InputStream body) {
+        if (!clusterAuth.verify("/system/nodes/block-report", nodeId, host, port, timestamp, signature,
+                System.currentTimeMillis())) {
+            log.warn("Refused unsigned block report claiming to be node {} at {}:{}", nodeId, host, port);
+            return ResponseEntity.status(401).body(ApiResponse.error("Missing or invalid cluster signature"));
+        }
+        try {
+            Map<String, Object> result = blockReportService.processFullReport(nodeId, host, port, body);
+
+            return ResponseEntity.ok(ApiResponse.success("Block report processed", result));
+
+        } catch (BlockReportService.UnknownNodeException e) {
+            return ResponseEntity.status(403).body(ApiResponse.error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error processing block report from node {}: {}", nodeId, e.getMessage(), e);
+            return ResponseEntity.status(500)
+                    .body(ApiResponse.error("Failed to process block report: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping(value = "/nodes/heartbeat", consumes = "text/plain")
+    @Operation(summary = "Node heartbeat", description = "Pushed by storage nodes every few seconds with their load and block report deltas")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> receiveHeartbeat(
+            @RequestParam String nodeId, @RequestParam String host, @RequestParam int port,
+            @RequestParam(defaultValue = "-1") long freeSpace,
+            @RequestParam(defaultValue = "0") int inFlight,
+            @RequestParam(defaultValue = "0") int queueDepth,
+            @RequestParam(defaultValue = "0") long readLatencyUs,
+            @RequestParam(defaultValue = "0") long writeLatencyUs,
+            @RequestHeader(value = ClusterAuth.TIMESTAMP_HEADER, required = false) String timestamp,
+            @RequestHeader(value = ClusterAuth.SIGNATURE_HEADER, required = false) String signature,
+            InputStream body) {
+        if (!clusterAuth.verify("/system/nodes/heartbeat", nodeId, host, port, timestamp, signature,
+                System.currentTimeMillis())) {
+            log.warn("Refused unsigned heartbeat claiming to be node {} at {}:{}", nodeId, host, port);
+            return ResponseEntity.status(401).body(ApiResponse.error("Missing or invalid cluster signature"));
+        }
+        try {
+            Map<String, Object> result = heartbeatService.processHeartbeat(nodeId, host, port, freeSpace,
+                    inFlight, queueDepth, readLatencyUs, writeLatencyUs, body);
+
+            return ResponseEntity.ok(ApiResponse.success("Heartbeat processed", result));
+
+        } catch (BlockReportService.FullReportRequiredException e) {
+            return ResponseEntity.status(409).body(ApiResponse.error(e.getMessage()));
+        } catch (BlockReportService.UnknownNodeException e) {
+            return ResponseEntity.status(403).body(ApiResponse.error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("Error processing heartbeat from node {}: {}", nodeId, e.getMessage(), e);
+            return ResponseEntity.status(500)
+                    .body(ApiResponse.error("Failed to process heartbeat: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/nodes/block-report/refresh")
+    @Operation(summary = "Pull block reports", description = "Request a full block report from every node and rebuild replica locations")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> refreshBlockReports() {
+        try {
+            Map<String, Object> result = blockReportService.requestFullReports().get(60, TimeUnit.SECONDS);
+
+            return ResponseEntity.ok(ApiResponse.success("Block reports refreshed", result));
+
+        } catch (Exception e) {
+            log.error("Error refreshing block reports: {}", e.getMessage(), e);
+            return ResponseEntity.status(500)
+                    .body(ApiResponse.error("Failed to refresh block reports: " + e.getMessage()));
+        }
+    }
+
     // ===========================================
     // ADMIN OPERATIONS
     // ===========================================
@@ -280,6 +405,8 @@ public class SystemController {
             replicationInfo.put("healthyNodes", nodeManager.getHealthyNodes().size());
             replicationInfo.put("totalNodes", nodeManager.getAllNodes().size());
             replicationInfo.put("replicationHealthy", nodeManager.getHealthyNodes().size() >= 2);
+            replicationInfo.put("recoveryQueue", replicationWorkQueue.getStatus());
+            replicationInfo.put("fileLocks", replicationManager.getFileLockStats());
 
             return ResponseEntity.ok(ApiResponse.success("Replication status retrieved", replicationInfo));
 
@@ -310,11 +437,11 @@ public class SystemController {
                 nodeInfo.put("address", node.getAddress());
                 nodeInfo.put("port", node.getPort());
                 nodeInfo.put("healthy", node.isHealthy());
-                nodeInfo.put("fileCount", node.getHostedFiles().size());
+                nodeInfo.put("fileCount", node.getHostedFileCount());
                 nodeInfo.put("hostedFiles", new ArrayList<>(node.getHostedFiles()));
 
                 nodeDistribution.put(node.getNodeId(), nodeInfo);
-                totalFiles += node.getHostedFiles().size();
+                totalFiles += node.getHostedFileCount();
             }
 
             distribution.put("nodes", nodeDistribution);
@@ -341,7 +468,7 @@ public class SystemController {
             List<Map<String, Object>> locations = new ArrayList<>();
 
             for (Node node : allNodes) {
-                if (node.getHostedFiles().contains(filePath)) {
+                if (node.hostsFile(filePath)) {
                     Map<String, Object> location = new HashMap<>();
                     location.put("nodeId", node.getNodeId());
                     location.put("address", node.getAddress());
@@ -381,7 +508,7 @@ public class SystemController {
             result.put("address", node.getAddress());
             result.put("port", node.getPort());
             result.put("healthy", node.isHealthy());
-            result.put("fileCount", node.getHostedFiles().size());
+            result.put("fileCount", node.getHostedFileCount());
             result.put("hostedFiles", new ArrayList<>(node.getHostedFiles()));
             result.put("lastHeartbeat", node.getLastHeartbeat());
 
@@ -420,7 +547,7 @@ public class SystemController {
             Map<String, Integer> fileReplicationCount = new HashMap<>();
 
             for (Node node : allNodes) {
-                totalFileInstances += node.getHostedFiles().size();
+                totalFileInstances += node.getHostedFileCount();
                 for (String filePath : node.getHostedFiles()) {
                     uniqueFiles.add(filePath);
                     fileReplicationCount.merge(filePath, 1, Integer::sum);
@@ -448,6 +575,7 @@ public class SystemController {
             summary.put("underReplicatedFiles", underReplicatedFiles);
             summary.put("underReplicatedCount", underReplicatedFiles.size());
             summary.put("storageHealthy", underReplicatedFiles.isEmpty() && healthyNodes.size() >= 2);
+            summary.put("rebalancer", rebalancerService.getStatus());
 
             return ResponseEntity.ok(ApiResponse.success("Storage summary retrieved successfully", summary));
 
@@ -458,6 +586,21 @@ public class SystemController {
         }
     }
 
+    @PostMapping("/storage/rebalance")
+    @Operation(summary = "Rebalance storage", description = "Start moving replicas so all nodes fill evenly")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> rebalanceStorage() {
+        try {
+            boolean started = rebalancerService.startRebalance();
+            return ResponseEntity.ok(ApiResponse.success(
+                    started ? "Rebalancing started" : "Rebalancing already in progress", rebalancerService.getStatus()));
+
+        } catch (Exception e) {
+            log.error("Error starting rebalancer: {}", e.getMessage(), e);
+            return ResponseEntity.status(500)
+                    .body(ApiResponse.error("Failed to start rebalancer: " + e.getMessage()));
+        }
+    }
+
     // ===========================================
     // HELPER METHODS
     // ===========================================
@@ -470,9 +613,16 @@ public class SystemController {
         details.put("healthy", node.isHealthy());
         details.put("lastHeartbeat", node.getLastHeartbeat());
         details.put("timeSinceLastHeartbeat", System.currentTimeMillis() - node.getLastHeartbeat());
-        details.put("hostedFiles", node.getHostedFiles().size());
+        details.put("state", nodeManager.getNodeState(node.getNodeId()));
+        details.put("phi", nodeManager.getNodePhi(node.getNodeId()));
+        details.put("hostedFiles", node.getHostedFileCount());
         details.put("hostedFilesList", node.getHostedFiles());
         details.put("availableDiskSpace", node.getAvailableDiskSpace());
+        details.put("pushingHeartbeats", node.isPushingHeartbeats());
+        details.put("inFlightTransfers", node.getInFlightTransfers());
+        details.put("queueDepth", node.getQueueDepth());
+        details.put("readLatencyMicros", node.getReadLatencyMicros());
+        details.put("writeLatencyMicros", node.getWriteLatencyMicros());
         return details;
     }
 }
@@ -60,7 +60,7 @@ public class UserController {
                 Cookie sessionCookie = new Cookie("SESSION-ID", sessionId);
                 sessionCookie.setHttpOnly(true);
                 sessionCookie.setPath("/");
-                sessionCookie.setMaxAge(30 * 60); // 30 minutes
+                sessionCookie.setMaxAge(sessionManager.getCookieMaxAgeSeconds());
                 response.addCookie(sessionCookie);
 
                 Map<String, Object> result = new HashMap<>();
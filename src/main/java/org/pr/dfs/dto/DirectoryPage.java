@@ -0,0 +1,19 @@
+package org.pr.dfs.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class DirectoryPage {
+    private List<FileMetaDataDto> entries;
+    private String nextCursor;
+    private boolean hasMore;
+    private int totalEntries;
+}
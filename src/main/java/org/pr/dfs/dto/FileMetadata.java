@@ -14,7 +14,12 @@ import java.util.Set;
 @AllArgsConstructor
 @Builder
 @Entity
-@Table(name = "file_metadata")
+@Table(name = "file_metadata", indexes = {
+        // Keyset pagination: the user, then the sort column and fileId of each listing order
+        @Index(name = "idx_file_metadata_upload_time", columnList = "userId, uploadTime, fileId"),
+        @Index(name = "idx_file_metadata_last_accessed", columnList = "userId, lastAccessed, fileId"),
+        @Index(name = "idx_file_metadata_access_count", columnList = "userId, accessCount, fileId")
+})
 public class FileMetadata {
 
     @Id
@@ -25,6 +25,7 @@ public class SearchRequest {
     private String sortBy = "uploadTime";
     private String sortDirection = "desc";
 
-    private int page = 0;
+    private String cursor; // nextCursor of the previous page, null for the first
     private int size = 20;
+    private boolean withTotal; // Counting every match costs as much as reading them, so only on request
 }
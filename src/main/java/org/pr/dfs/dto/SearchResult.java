@@ -15,12 +15,11 @@ import java.util.Set;
 @Builder
 public class SearchResult {
     private List<FileSearchResultDto> files;
-    private long totalElements;
-    private int totalPages;
-    private int currentPage;
+    private long totalElements; // -1 unless requested with withTotal
+    private int totalPages; // -1 unless requested with withTotal
     private int pageSize;
     private boolean hasNext;
-    private boolean hasPrevious;
+    private String nextCursor;
 
     @Data
     @Builder
@@ -0,0 +1,20 @@
+package org.pr.dfs.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SnapshotDto {
+    private String snapshotId;
+    private String name;
+    private String root;
+    private LocalDateTime createdAt;
+    private int changedPaths;
+}
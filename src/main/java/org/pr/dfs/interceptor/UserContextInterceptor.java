@@ -8,68 +8,50 @@ import org.pr.dfs.security.SessionManager;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
 
+import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class UserContextInterceptor implements HandlerInterceptor {
 
+    // With debug logging on, one request in this many is logged, so the log keeps up with the traffic
+    private static final int DEBUG_SAMPLE_RATE = 100;
+
     private final SessionManager sessionManager;
+    private final AtomicLong requestCount = new AtomicLong();
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
-        String requestPath = request.getRequestURI();
-        String method = request.getMethod();
-
-        log.info("=== INTERCEPTOR DEBUG ===");
-        log.info("Request URI: {}", requestPath);
-        log.info("Request Method: {}", method);
-        log.info("Request URL: {}", request.getRequestURL());
-        log.info("Context Path: {}", request.getContextPath());
-        log.info("Servlet Path: {}", request.getServletPath());
-
-        if ("OPTIONS".equalsIgnoreCase(method)) {
-            log.info("CORS preflight request (OPTIONS), allowing access: {}", requestPath);
-            return true;
+        if ("OPTIONS".equalsIgnoreCase(request.getMethod())) {
+            return true; // CORS preflight
         }
 
+        String requestPath = request.getRequestURI();
         if (isPublicEndpoint(requestPath)) {
-            log.info("PUBLIC endpoint, allowing access: {}", requestPath);
             return true;
         }
 
         String sessionId = getSessionId(request);
-        log.info("Session ID extracted: {}", sessionId);
-
-        User user = null;
-        if (sessionId != null) {
-            user = sessionManager.getUserBySession(sessionId);
-            log.info("User found for session: {}", user != null ? user.getUsername() : "NULL");
-        } else {
-            log.warn("NO SESSION ID FOUND!");
-        }
+        User user = sessionId != null ? sessionManager.getUserBySession(sessionId) : null;
 
-        boolean requiresAuth = requiresAuthentication(requestPath);
-        log.info("Path {} requires authentication: {}", requestPath, requiresAuth);
+        if (log.isDebugEnabled() && requestCount.getAndIncrement() % DEBUG_SAMPLE_RATE == 0) {
+            log.debug("{} {} session: {}, user: {}", request.getMethod(), requestPath,
+                    sessionId != null ? "present" : "none", user != null ? user.getUsername() : "none");
+        }
 
-        if (requiresAuth) {
+        if (requiresAuthentication(requestPath)) {
             if (user == null) {
-                log.error("UNAUTHORIZED: No user found for path: {}", requestPath);
+                log.warn("Unauthorized request: {} {}", request.getMethod(), requestPath);
                 sendUnauthorizedResponse(response);
                 return false;
             }
-
             UserContext.setCurrentUser(user);
-            log.info("SUCCESS: User context set for user: {} accessing: {}", user.getUsername(), requestPath);
-
-            User verifyUser = UserContext.getCurrentUser();
-            log.info("VERIFY: Immediately after setting - User context contains: {}",
-                    verifyUser != null ? verifyUser.getUsername() : "NULL");
+            renewToken(sessionId, response);
         }
-
-        log.info("=== END INTERCEPTOR DEBUG ===");
         return true;
     }
 
@@ -79,65 +61,58 @@ public class UserContextInterceptor implements HandlerInterceptor {
     }
 
     private boolean isPublicEndpoint(String requestPath) {
-        boolean isPublic = requestPath.contains("/user/") ||
+        return requestPath.contains("/user/") ||
                 requestPath.contains("/system/health") ||
                 requestPath.contains("/swagger") ||
                 requestPath.contains("/api-docs") ||
                 requestPath.contains("/v3/api-docs") ||
                 requestPath.contains("/swagger-ui") ||
                 requestPath.contains("/share/download");
-
-        log.info("Is public endpoint check: {} -> {}", requestPath, isPublic);
-        return isPublic;
     }
 
     private boolean requiresAuthentication(String requestPath) {
-        boolean requires = requestPath.contains("/files") ||
+        return requestPath.contains("/files") ||
                 requestPath.contains("/directories") ||
                 requestPath.contains("/versions") ||
+                requestPath.contains("/snapshots") ||
                 requestPath.contains("/search") ||
                 requestPath.contains("/share/create") ||
                 requestPath.contains("/share/my-shares") ||
                 requestPath.contains("/share/info") ||
                 requestPath.startsWith("/share/") && !requestPath.contains("/share/download");
-        log.info("Requires auth check: {} -> {}", requestPath, requires);
-        return requires;
     }
 
     private String getSessionId(HttpServletRequest request) {
-        log.info("=== HEADERS ===");
-        java.util.Enumeration<String> headerNames = request.getHeaderNames();
-        while (headerNames.hasMoreElements()) {
-            String headerName = headerNames.nextElement();
-            log.info("Header: {} = {}", headerName, request.getHeader(headerName));
-        }
-
         String sessionId = request.getHeader("X-Session-ID");
-        log.info("Session ID from X-Session-ID header: {}", sessionId);
-
-        if (sessionId == null) {
-            sessionId = getSessionIdFromCookies(request);
-            log.info("Session ID from cookies: {}", sessionId);
-        }
-
-        return sessionId;
+        return sessionId != null ? sessionId : getSessionIdFromCookies(request);
     }
 
     private String getSessionIdFromCookies(HttpServletRequest request) {
-        log.info("=== COOKIES ===");
         if (request.getCookies() != null) {
             for (var cookie : request.getCookies()) {
-                log.info("Cookie: {} = {}", cookie.getName(), cookie.getValue());
                 if ("SESSION-ID".equals(cookie.getName())) {
                     return cookie.getValue();
                 }
             }
-        } else {
-            log.info("NO COOKIES FOUND");
         }
         return null;
     }
 
+    /**
+     * Hands out a fresh token when a stateless session's token is getting old, by header and cookie.
+     */
+    private void renewToken(String sessionId, HttpServletResponse response) {
+        String renewed = sessionManager.renewToken(sessionId);
+        if (renewed != null) {
+            response.setHeader("X-Session-ID", renewed);
+            Cookie sessionCookie = new Cookie("SESSION-ID", renewed);
+            sessionCookie.setHttpOnly(true);
+            sessionCookie.setPath("/");
+            sessionCookie.setMaxAge(sessionManager.getCookieMaxAgeSeconds());
+            response.addCookie(sessionCookie);
+        }
+    }
+
     private void sendUnauthorizedResponse(HttpServletResponse response) {
         response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
         response.setContentType("application/json");
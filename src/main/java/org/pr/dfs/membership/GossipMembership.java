@@ -0,0 +1,468 @@
+package org.pr.dfs.membership;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SWIM-style gossip membership (Das, Gupta, Motivala) over UDP.
+ *
+ * Every protocol period each member pings one other member, chosen round-robin from a shuffled list. If no ack
+ * arrives in time it asks a few random members to ping the target on its behalf; if those fail too the target
+ * becomes SUSPECT, and DEAD once the suspicion has not been refuted within a timeout that grows with log(n).
+ * A suspected member refutes by gossiping ALIVE with a higher incarnation number.
+ *
+ * Membership changes are not sent separately: each ping and ack carries a few recent updates, and each update
+ * is retransmitted about log(n) times, which spreads it to the whole cluster epidemically. So every member sends
+ * a constant number of small messages per period however large the cluster gets.
+ *
+ * A member joins by sending JOIN to its seeds, which answer with their full view.
+ */
+public class GossipMembership implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(GossipMembership.class.getName());
+
+    private static final long PROTOCOL_PERIOD_MS = 1000;
+    private static final long PING_TIMEOUT_MS = 300;
+    private static final int INDIRECT_PROBES = 3;
+    private static final int SUSPICION_MULTIPLIER = 5;  // Suspicion timeout in protocol periods, scaled by log10(n)
+    private static final int RETRANSMIT_MULTIPLIER = 4; // Times each update is piggybacked, scaled by log10(n)
+    private static final int MAX_PIGGYBACK = 8;
+    private static final int SYNC_BATCH = 16;
+    private static final int MAX_DATAGRAM_BYTES = 1400;
+    private static final long DEAD_RETENTION_MS = 60000; // Dead members are forgotten once the news has spread
+
+    public interface MembershipListener {
+        void onMemberUpdate(Member member);
+    }
+
+    private static class Broadcast {
+        private final Member update;
+        private int remaining;
+
+        Broadcast(Member update, int remaining) {
+            this.update = update;
+            this.remaining = remaining;
+        }
+    }
+
+    private volatile Member local;
+    private final List<InetSocketAddress> seeds;
+    private final Map<String, Member> members = new ConcurrentHashMap<>(); // Everyone but the local member
+    private final Map<String, Long> stateChangedAt = new ConcurrentHashMap<>();
+    private final Map<String, Broadcast> broadcasts = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<Void>> pendingAcks = new ConcurrentHashMap<>();
+    private final List<MembershipListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<String> probeOrder = new ArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private int probeIndex;
+
+    private DatagramSocket socket;
+    private ScheduledExecutorService scheduler;
+    private Thread receiver;
+    private volatile boolean running;
+
+    public GossipMembership(String id, String host, int httpPort, int gossipPort, Member.Role role, List<String> seeds) {
+        this.local = new Member(id, host, httpPort, gossipPort, role, 0, Member.State.ALIVE);
+        this.seeds = new ArrayList<>();
+        for(String seed : seeds) {
+            String trimmed = seed.trim();
+            int colon = trimmed.lastIndexOf(':');
+            if(colon <= 0) {
+                continue;
+            }
+            String seedHost = trimmed.substring(0, colon);
+            int seedPort = Integer.parseInt(trimmed.substring(colon + 1));
+            if(seedPort != gossipPort || !seedHost.equalsIgnoreCase(host)) {
+                this.seeds.add(new InetSocketAddress(seedHost, seedPort));
+            }
+        }
+    }
+
+    public void addListener(MembershipListener listener) {
+        listeners.add(listener);
+    }
+
+    public void start() throws IOException {
+        socket = new DatagramSocket(local.getGossipPort());
+        running = true;
+
+        receiver = new Thread(this::receiveLoop, "gossip-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gossip-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::protocolPeriod, 0, PROTOCOL_PERIOD_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info("Gossip membership started for " + local.getId() + " on UDP port " + local.getGossipPort() +
+                ", seeds " + seeds);
+    }
+
+    /**
+     * Leaves the cluster: a few members are told directly and spread the news from there.
+     */
+    @Override
+    public void close() {
+        if(!running) {
+            return;
+        }
+        local = local.withState(local.getIncarnation(), Member.State.LEFT);
+        List<Member> targets = randomReachableMembers(INDIRECT_PROBES, null);
+        for(Member target : targets) {
+            send("SYNC", 0, null, address(target), List.of(local), false);
+        }
+
+        running = false;
+        scheduler.shutdownNow();
+        socket.close();
+        LOGGER.info("Gossip membership stopped for " + local.getId());
+    }
+
+    /**
+     * @return the current view, including the local member
+     */
+    public List<Member> getMembers() {
+        List<Member> view = new ArrayList<>(members.values());
+        view.add(local);
+        view.sort(Comparator.comparing(Member::getId));
+        return view;
+    }
+
+    public Member getLocalMember() {
+        return local;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // ---- Failure detection ----
+
+    private void protocolPeriod() {
+        try {
+            if(randomReachableMembers(1, null).isEmpty()) {
+                join();
+            }
+            expireSuspicions();
+            probe(nextProbeTarget());
+        } catch(Exception e) {
+            LOGGER.log(Level.WARNING, "Gossip protocol period failed", e);
+        }
+    }
+
+    private void join() {
+        for(InetSocketAddress seed : seeds) {
+            send("JOIN", 0, null, seed, List.of(local), false);
+        }
+    }
+
+    private void probe(Member target) throws InterruptedException {
+        if(target == null) {
+            return;
+        }
+
+        long seq = sequence.incrementAndGet();
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        pendingAcks.put(seq, ack);
+        try {
+            send("PING", seq, null, address(target), List.of(local), true);
+            if(awaitAck(ack, PING_TIMEOUT_MS)) {
+                return;
+            }
+
+            // No direct ack: ask others to ping it, in case only the path between us and the target is broken
+            for(Member helper : randomReachableMembers(INDIRECT_PROBES, target.getId())) {
+                send("PING_REQ", seq, target.getId(), address(helper), List.of(local), true);
+            }
+            if(awaitAck(ack, PROTOCOL_PERIOD_MS - PING_TIMEOUT_MS)) {
+                return;
+            }
+
+            Member current = members.get(target.getId());
+            if(current != null && current.getState() == Member.State.ALIVE) {
+                LOGGER.info("Gossip: no ack from " + current.getId() + ", suspecting it");
+                applyUpdate(current.withState(current.getIncarnation(), Member.State.SUSPECT));
+            }
+        } finally {
+            pendingAcks.remove(seq);
+        }
+    }
+
+    private boolean awaitAck(CompletableFuture<Void> ack, long timeoutMs) throws InterruptedException {
+        try {
+            ack.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch(TimeoutException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    private void expireSuspicions() {
+        long now = System.currentTimeMillis();
+        long suspicionTimeout = (long) (SUSPICION_MULTIPLIER * scale() * PROTOCOL_PERIOD_MS);
+
+        for(Member member : members.values()) {
+            long since = stateChangedAt.getOrDefault(member.getId(), now);
+            if(member.getState() == Member.State.SUSPECT && now - since > suspicionTimeout) {
+                LOGGER.warning("Gossip: " + member.getId() + " did not refute suspicion, declaring it dead");
+                applyUpdate(member.withState(member.getIncarnation(), Member.State.DEAD));
+            } else if(!member.isReachable() && now - since > DEAD_RETENTION_MS) {
+                members.remove(member.getId());
+                stateChangedAt.remove(member.getId());
+            }
+        }
+    }
+
+    private synchronized Member nextProbeTarget() {
+        for(int checked = 0; checked < probeOrder.size(); checked++) {
+            if(probeIndex >= probeOrder.size()) {
+                Collections.shuffle(probeOrder);
+                probeIndex = 0;
+            }
+            Member member = members.get(probeOrder.get(probeIndex));
+            if(member == null) {
+                probeOrder.remove(probeIndex);
+                checked--;
+                continue;
+            }
+            probeIndex++;
+            if(member.isReachable()) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private List<Member> randomReachableMembers(int count, String excludedId) {
+        List<Member> candidates = new ArrayList<>();
+        for(Member member : members.values()) {
+            if(member.isReachable() && !member.getId().equals(excludedId)) {
+                candidates.add(member);
+            }
+        }
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+
+    // ---- Dissemination ----
+
+    private synchronized void applyUpdate(Member update) {
+        if(update.getId().equals(local.getId())) {
+            if(update.overrides(local) && local.getState() == Member.State.ALIVE) {
+                // Someone suspects us, or remembers us from before a restart: refute with a higher incarnation
+                local = local.withState(update.getIncarnation() + 1, Member.State.ALIVE);
+                enqueueBroadcast(local);
+            }
+            return;
+        }
+
+        Member current = members.get(update.getId());
+        if(!update.overrides(current)) {
+            return;
+        }
+
+        members.put(update.getId(), update);
+        enqueueBroadcast(update);
+        if(current == null && !probeOrder.contains(update.getId())) {
+            // New members go to a random position, so they are probed within one round
+            probeOrder.add(ThreadLocalRandom.current().nextInt(probeOrder.size() + 1), update.getId());
+        }
+        if(current == null || current.getState() != update.getState()) {
+            stateChangedAt.put(update.getId(), System.currentTimeMillis());
+            LOGGER.info("Gossip: " + update);
+            for(MembershipListener listener : listeners) {
+                try {
+                    listener.onMemberUpdate(update);
+                } catch(Exception e) {
+                    LOGGER.log(Level.WARNING, "Membership listener failed for " + update.getId(), e);
+                }
+            }
+        }
+    }
+
+    private void enqueueBroadcast(Member update) {
+        // A newer update about a member replaces the one still being spread
+        broadcasts.put(update.getId(), new Broadcast(update, (int) Math.ceil(RETRANSMIT_MULTIPLIER * scale())));
+    }
+
+    private synchronized List<Member> takePiggyback() {
+        List<Broadcast> pending = new ArrayList<>(broadcasts.values());
+        // Least transmitted first, so fresh news overtakes old news
+        pending.sort(Comparator.comparingInt((Broadcast b) -> b.remaining).reversed());
+
+        List<Member> updates = new ArrayList<>();
+        for(Broadcast broadcast : pending.subList(0, Math.min(MAX_PIGGYBACK, pending.size()))) {
+            updates.add(broadcast.update);
+            if(--broadcast.remaining <= 0) {
+                broadcasts.remove(broadcast.update.getId(), broadcast);
+            }
+        }
+        return updates;
+    }
+
+    private double scale() {
+        return Math.max(1.0, Math.log10(members.size() + 1));
+    }
+
+    // ---- Wire format ----
+    // One datagram is a header line "TYPE seq sender [target]" followed by one line per member update:
+    // "id host httpPort gossipPort role incarnation state", with ids and hosts URL-encoded. Pings always
+    // carry the sender's own entry, so a member that missed a join learns of the joiner when probed by it.
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[65507];
+        while(running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                handle(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8),
+                        (InetSocketAddress) packet.getSocketAddress());
+            } catch(SocketException e) {
+                if(running) {
+                    LOGGER.log(Level.WARNING, "Gossip socket failed", e);
+                }
+                return;
+            } catch(Exception e) {
+                LOGGER.log(Level.FINE, "Dropped malformed gossip message", e);
+            }
+        }
+    }
+
+    private void handle(String message, InetSocketAddress sender) {
+        String[] lines = message.split("\n");
+        String[] header = lines[0].split(" ");
+        String type = header[0];
+        long seq = Long.parseLong(header[1]);
+
+        List<Member> updates = new ArrayList<>();
+        for(int i = 1; i < lines.length; i++) {
+            if(!lines[i].isEmpty()) {
+                updates.add(decode(lines[i]));
+            }
+        }
+        for(Member update : updates) {
+            applyUpdate(update);
+        }
+
+        switch(type) {
+            case "PING" -> send("ACK", seq, null, sender, List.of(), true);
+            case "ACK" -> {
+                CompletableFuture<Void> ack = pendingAcks.get(seq);
+                if(ack != null) {
+                    ack.complete(null);
+                }
+            }
+            case "PING_REQ" -> relayPing(seq, decodeText(header[3]), sender);
+            case "JOIN" -> sendView(sender);
+            default -> { } // SYNC only carries updates
+        }
+    }
+
+    private void relayPing(long requesterSeq, String targetId, InetSocketAddress requester) {
+        Member target = members.get(targetId);
+        if(target == null) {
+            return;
+        }
+
+        long seq = sequence.incrementAndGet();
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        pendingAcks.put(seq, ack);
+        ack.orTimeout(PROTOCOL_PERIOD_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((ignored, error) -> {
+                    pendingAcks.remove(seq);
+                    if(error == null) {
+                        send("ACK", requesterSeq, null, requester, List.of(), true);
+                    }
+                });
+        send("PING", seq, null, address(target), List.of(local), true);
+    }
+
+    private void sendView(InetSocketAddress joiner) {
+        // Dead members are included too, so a restarted member learns it must refute its old death
+        List<Member> view = getMembers();
+        for(int from = 0; from < view.size(); from += SYNC_BATCH) {
+            send("SYNC", 0, null, joiner, view.subList(from, Math.min(from + SYNC_BATCH, view.size())), false);
+        }
+    }
+
+    private void send(String type, long seq, String targetId, InetSocketAddress to, List<Member> updates, boolean piggyback) {
+        if(!running) {
+            return;
+        }
+
+        StringBuilder message = new StringBuilder()
+                .append(type).append(' ').append(seq).append(' ').append(encodeText(local.getId()));
+        if(targetId != null) {
+            message.append(' ').append(encodeText(targetId));
+        }
+        message.append('\n');
+        for(Member update : updates) {
+            message.append(encode(update)).append('\n');
+        }
+        if(piggyback) {
+            for(Member update : takePiggyback()) {
+                String line = encode(update);
+                if(message.length() + line.length() + 1 > MAX_DATAGRAM_BYTES) {
+                    break;
+                }
+                message.append(line).append('\n');
+            }
+        }
+
+        byte[] bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(bytes, bytes.length, to));
+        } catch(IOException e) {
+            LOGGER.fine("Gossip send to " + to + " failed: " + e.getMessage());
+        }
+    }
+
+    private static InetSocketAddress address(Member member) {
+        return new InetSocketAddress(member.getHost(), member.getGossipPort());
+    }
+
+    private static String encode(Member member) {
+        return encodeText(member.getId()) + ' ' + encodeText(member.getHost()) + ' ' + member.getHttpPort() + ' ' +
+                member.getGossipPort() + ' ' + member.getRole() + ' ' + member.getIncarnation() + ' ' + member.getState();
+    }
+
+    private static Member decode(String line) {
+        String[] fields = line.split(" ");
+        return new Member(decodeText(fields[0]), decodeText(fields[1]), Integer.parseInt(fields[2]),
+                Integer.parseInt(fields[3]), Member.Role.valueOf(fields[4]), Long.parseLong(fields[5]),
+                Member.State.valueOf(fields[6]));
+    }
+
+    private static String encodeText(String text) {
+        return URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    private static String decodeText(String text) {
+        return URLDecoder.decode(text, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package org.pr.dfs.membership;
+
+/**
+ * One entry of the gossiped membership view. Instances are immutable; every state change produces a new one.
+ *
+ * The incarnation number is only ever raised by the member itself, to refute suspicion about it. Updates about
+ * a member are ordered by incarnation first and state second, so stale rumours cannot override fresh ones.
+ */
+public class Member {
+
+    public enum State { ALIVE, SUSPECT, DEAD, LEFT }
+
+    public enum Role { STORAGE, COORDINATOR }
+
+    private final String id;
+    private final String host;
+    private final int httpPort;
+    private final int gossipPort;
+    private final Role role;
+    private final long incarnation;
+    private final State state;
+
+    public Member(String id, String host, int httpPort, int gossipPort, Role role, long incarnation, State state) {
+        this.id = id;
+        this.host = host;
+        this.httpPort = httpPort;
+        this.gossipPort = gossipPort;
+        this.role = role;
+        this.incarnation = incarnation;
+        this.state = state;
+    }
+
+    public Member withState(long incarnation, State state) {
+        return new Member(id, host, httpPort, gossipPort, role, incarnation, state);
+    }
+
+    /**
+     * SWIM precedence: a higher incarnation always wins; within the same incarnation SUSPECT beats ALIVE,
+     * and DEAD or LEFT beat both. Only the member itself can come back from DEAD, by gossiping a higher incarnation.
+     */
+    public boolean overrides(Member current) {
+        if(current == null) {
+            return true;
+        }
+        if(incarnation != current.incarnation) {
+            return incarnation > current.incarnation;
+        }
+        return rank(state) > rank(current.state);
+    }
+
+    private static int rank(State state) {
+        return switch(state) {
+            case ALIVE -> 0;
+            case SUSPECT -> 1;
+            case DEAD, LEFT -> 2;
+        };
+    }
+
+    public boolean isReachable() {
+        return state == State.ALIVE || state == State.SUSPECT;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    public int getGossipPort() {
+        return gossipPort;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return id + "@" + host + ":" + gossipPort + " " + state + "#" + incarnation;
+    }
+}
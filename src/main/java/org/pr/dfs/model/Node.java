@@ -1,19 +1,27 @@
 package org.pr.dfs.model;
 
+import org.pr.dfs.utils.PathDictionary;
+import org.pr.dfs.utils.RoaringBitmap;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Node implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     private static final Logger LOGGER = Logger.getLogger(Node.class.getName());
 
     private String nodeId;
@@ -22,15 +30,22 @@ public class Node implements Serializable {
     private boolean isHealthy;
     private long availableDiskSpace;
     private long lastHeartbeat;
-    private Set<String> hostedFiles;
+    private transient RoaringBitmap hostedFileIds; // Ids in PathDictionary.shared(), guarded by itself
     private String storagePath;
     private  long startTime;
 
+    // Load telemetry pushed by the node with each heartbeat
+    private volatile long lastPushedHeartbeat; // 0 until the node pushes its first heartbeat
+    private volatile int inFlightTransfers;
+    private volatile int queueDepth;
+    private volatile long readLatencyMicros;
+    private volatile long writeLatencyMicros;
+
     public Node(String address, int port) {
         this.address = address;
         this.port = port;
         this.isHealthy = true;
-        this.hostedFiles = new HashSet<>();
+        this.hostedFileIds = new RoaringBitmap();
         this.lastHeartbeat = System.currentTimeMillis();
     }
 
@@ -82,24 +97,72 @@ public class Node implements Serializable {
         this.lastHeartbeat = System.currentTimeMillis();
     }
 
+    /**
+     * @return a snapshot of the paths of the files on this node, normalized by {@link PathDictionary}
+     */
     public Set<String> getHostedFiles() {
-        return hostedFiles;
+        PathDictionary paths = PathDictionary.shared();
+        synchronized (hostedFileIds) {
+            Set<String> files = new HashSet<>(hostedFileIds.getCardinality() * 2);
+            hostedFileIds.forEach(id -> files.add(paths.path(id)));
+            return files;
+        }
+    }
+
+    public int getHostedFileCount() {
+        synchronized (hostedFileIds) {
+            return hostedFileIds.getCardinality();
+        }
     }
 
-    public void setHostedFiles(Set<String> hostedFiles) {
-        this.hostedFiles = hostedFiles;
+    public boolean hostsFile(String filePath) {
+        synchronized (hostedFileIds) {
+            int id = PathDictionary.shared().find(filePath);
+            return id != PathDictionary.NO_ID && hostedFileIds.contains(id);
+        }
+    }
+
+    public void setHostedFiles(Collection<String> hostedFiles) {
+        PathDictionary paths = PathDictionary.shared();
+        RoaringBitmap replacement = new RoaringBitmap();
+        for (String filePath : hostedFiles) {
+            int id = paths.intern(filePath);
+            if (!replacement.add(id)) {
+                paths.release(id);
+            }
+        }
+
+        int[] previous;
+        synchronized (hostedFileIds) {
+            previous = hostedFileIds.toArray();
+            hostedFileIds.clear();
+            replacement.forEach(hostedFileIds::add);
+        }
+        for (int id : previous) {
+            paths.release(id);
+        }
     }
 
     public void addHostedFile(String filePath) {
-        if (this.hostedFiles == null) {
-            this.hostedFiles = new HashSet<>();
+        PathDictionary paths = PathDictionary.shared();
+        int id = paths.intern(filePath);
+        boolean added;
+        synchronized (hostedFileIds) {
+            added = hostedFileIds.add(id);
+        }
+        if (!added) {
+            paths.release(id);
         }
-        this.hostedFiles.add(filePath);
     }
 
     public void removeHostedFile(String filePath) {
-        if (this.hostedFiles != null) {
-            this.hostedFiles.remove(filePath);
+        PathDictionary paths = PathDictionary.shared();
+        // Looked up under the lock: while the set holds an id, the id cannot be recycled for another path
+        synchronized (hostedFileIds) {
+            int id = paths.find(filePath);
+            if (id != PathDictionary.NO_ID && hostedFileIds.remove(id)) {
+                paths.release(id);
+            }
         }
     }
 
@@ -119,6 +182,56 @@ public class Node implements Serializable {
         this.startTime = startTime;
     }
 
+    public long getLastPushedHeartbeat() {
+        return lastPushedHeartbeat;
+    }
+
+    public boolean isPushingHeartbeats() {
+        return lastPushedHeartbeat > 0;
+    }
+
+    public int getInFlightTransfers() {
+        return inFlightTransfers;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getReadLatencyMicros() {
+        return readLatencyMicros;
+    }
+
+    public long getWriteLatencyMicros() {
+        return writeLatencyMicros;
+    }
+
+    /**
+     * Records a pushed heartbeat together with the load it reported.
+     */
+    public void updateLoad(long availableDiskSpace, int inFlightTransfers, int queueDepth,
+                           long readLatencyMicros, long writeLatencyMicros) {
+        this.availableDiskSpace = availableDiskSpace;
+        this.inFlightTransfers = inFlightTransfers;
+        this.queueDepth = queueDepth;
+        this.readLatencyMicros = readLatencyMicros;
+        this.writeLatencyMicros = writeLatencyMicros;
+        this.lastPushedHeartbeat = System.currentTimeMillis();
+        this.lastHeartbeat = lastPushedHeartbeat;
+    }
+
+    /**
+     * Estimated time before a new read would complete: every queued or running request ahead of it
+     * plus this one, at the node's recent read latency. Zero for nodes that report no telemetry.
+     */
+    public long estimatedReadWaitMicros() {
+        return (long) (inFlightTransfers + queueDepth + 1) * readLatencyMicros;
+    }
+
+    public long estimatedWriteWaitMicros() {
+        return (long) (inFlightTransfers + queueDepth + 1) * writeLatencyMicros;
+    }
+
     /**
      * Transfer file to this node's storage
      * @param filePath relative file path
@@ -190,6 +303,21 @@ public class Node implements Serializable {
         }
     }
 
+    // Path ids are local to this process, so the hosted files travel as paths
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(new ArrayList<>(getHostedFiles()));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        hostedFileIds = new RoaringBitmap();
+        @SuppressWarnings("unchecked")
+        List<String> hostedFiles = (List<String>) in.readObject();
+        setHostedFiles(hostedFiles);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -211,7 +339,7 @@ public class Node implements Serializable {
                 ", address='" + address + '\'' +
                 ", port=" + port +
                 ", healthy=" + isHealthy +
-                ", files=" + (hostedFiles != null ? hostedFiles.size() : 0) +
+                ", files=" + getHostedFileCount() +
                 '}';
     }
 
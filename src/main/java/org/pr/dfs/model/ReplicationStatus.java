@@ -1,30 +1,36 @@
 package org.pr.dfs.model;
 
 import java.io.Serializable;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class ReplicationStatus implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final String[] NO_NODES = new String[0];
 
     private final String filePath;
-    private final Set<String> nodeIds;
+    // Copy-on-write: the ids are the Node objects' own strings, so a replica costs one reference instead of
+    // a set entry. There is one status per file, and files have only a handful of replicas.
+    private volatile String[] nodeIds;
     private String primaryNodeId;
     private int replicationFactor;
     private long lastUpdated;
 
     public ReplicationStatus(String filePath, int replicationFactor) {
         this.filePath = filePath;
-        this.nodeIds = ConcurrentHashMap.newKeySet();
+        this.nodeIds = NO_NODES;
         this.replicationFactor = replicationFactor;
         this.lastUpdated = System.currentTimeMillis();
     }
 
-    public void addNode(Node node) {
+    public synchronized void addNode(Node node) {
         if(node == null) return;
 
-        nodeIds.add(node.getNodeId());
+        if(indexOf(node.getNodeId()) < 0) {
+            String[] grown = Arrays.copyOf(nodeIds, nodeIds.length + 1);
+            grown[nodeIds.length] = node.getNodeId();
+            nodeIds = grown;
+        }
 
         // Set as primary node if none exists
         if(primaryNodeId == null) {
@@ -34,11 +40,19 @@ public class ReplicationStatus implements Serializable {
         lastUpdated = System.currentTimeMillis();
     }
 
-    private boolean removeNode(String nodeId) {
-        boolean removed = nodeIds.remove(nodeId);
+    public synchronized boolean removeNode(String nodeId) {
+        int position = indexOf(nodeId);
+        boolean removed = position >= 0;
+        if(removed) {
+            String[] shrunk = Arrays.copyOf(nodeIds, nodeIds.length - 1);
+            if(position < shrunk.length) {
+                shrunk[position] = nodeIds[nodeIds.length - 1];
+            }
+            nodeIds = shrunk;
+        }
 
-        if(removed && nodeId.equals(primaryNodeId) && !nodeIds.isEmpty()) {
-            primaryNodeId = nodeIds.iterator().next();
+        if(removed && nodeId.equals(primaryNodeId) && nodeIds.length > 0) {
+            primaryNodeId = nodeIds[0];
         }
 
         if(removed) {
@@ -49,7 +63,7 @@ public class ReplicationStatus implements Serializable {
     }
 
     public Set<String> getNodeIds() {
-        return Collections.unmodifiableSet(nodeIds);
+        return Set.of(nodeIds);
     }
 
     public String getFilePath() {
@@ -57,7 +71,7 @@ public class ReplicationStatus implements Serializable {
     }
 
     public int getCurrentReplicas() {
-        return nodeIds.size();
+        return nodeIds.length;
     }
 
     public int getReplicationFactor() {
@@ -81,4 +95,14 @@ public class ReplicationStatus implements Serializable {
     public long getLastUpdated() {
         return lastUpdated;
     }
+
+    private int indexOf(String nodeId) {
+        String[] current = nodeIds;
+        for(int i = 0; i < current.length; i++) {
+            if(current[i].equals(nodeId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,34 @@
+package org.pr.dfs.model;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.Objects;
+
+@Getter
+public class Snapshot {
+    private final String snapshotId;
+    private final String name;
+    private final String root;
+    private final Instant createdAt;
+
+    public Snapshot(String snapshotId, String name, String root, Instant createdAt) {
+        this.snapshotId = snapshotId;
+        this.name = name;
+        this.root = root;
+        this.createdAt = createdAt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(o == null || getClass() != o.getClass()) return false;
+        Snapshot snapshot = (Snapshot) o;
+        return Objects.equals(snapshotId, snapshot.snapshotId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(snapshotId);
+    }
+}
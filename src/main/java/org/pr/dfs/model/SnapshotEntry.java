@@ -0,0 +1,23 @@
+package org.pr.dfs.model;
+
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * A file or directory as it existed when a snapshot was taken.
+ */
+@Getter
+public class SnapshotEntry {
+    private final String path;
+    private final boolean directory;
+    private final long size;
+    private final Instant lastModified;
+
+    public SnapshotEntry(String path, boolean directory, long size, Instant lastModified) {
+        this.path = path;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+}
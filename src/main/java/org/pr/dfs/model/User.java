@@ -1,11 +1,13 @@
 package org.pr.dfs.model;
 
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.ColumnDefault;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
@@ -29,4 +31,7 @@ public class User implements Serializable {
     private String userDirectory;
     private long quotaLimit;
     private long currentUsage;
+    @Column(nullable = false)
+    @ColumnDefault("0")
+    private long tokenEpoch; // Bumped to end every session token issued before
 }
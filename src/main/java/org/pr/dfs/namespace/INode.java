@@ -0,0 +1,44 @@
+package org.pr.dfs.namespace;
+
+import java.util.TreeMap;
+
+/**
+ * Node of the in-memory namespace tree. Directories hold their children sorted by name; files hold their id
+ * in the {@link ReplicaLocationIndex}. Not thread-safe, guarded by NamespaceTree's lock.
+ */
+final class INode {
+    String name;
+    INode parent;
+    final boolean directory;
+    long size;
+    long modificationTime;
+    final TreeMap<String, INode> children;
+    int fileId = -1; // Assigned while the file is attached to the tree
+
+    private INode(String name, boolean directory, long size, long modificationTime) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.modificationTime = modificationTime;
+        this.children = directory ? new TreeMap<>() : null;
+    }
+
+    static INode directory(String name, long modificationTime) {
+        return new INode(name, true, 0, modificationTime);
+    }
+
+    static INode file(String name, long size, long modificationTime) {
+        return new INode(name, false, size, modificationTime);
+    }
+
+    String getPath() {
+        if(parent == null) {
+            return "";
+        }
+        StringBuilder path = new StringBuilder(name);
+        for(INode p = parent; p.parent != null; p = p.parent) {
+            path.insert(0, '/').insert(0, p.name);
+        }
+        return path.toString();
+    }
+}
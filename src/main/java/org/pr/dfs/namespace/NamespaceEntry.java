@@ -0,0 +1,27 @@
+package org.pr.dfs.namespace;
+
+import lombok.Getter;
+
+import java.util.Set;
+
+/**
+ * Immutable view of a namespace entry, safe to use outside the namespace lock.
+ */
+@Getter
+public class NamespaceEntry {
+    private final String path;
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long modificationTime;
+    private final Set<String> replicas;
+
+    public NamespaceEntry(String path, String name, boolean directory, long size, long modificationTime, Set<String> replicas) {
+        this.path = path;
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.modificationTime = modificationTime;
+        this.replicas = replicas;
+    }
+}
@@ -0,0 +1,825 @@
+package org.pr.dfs.namespace;
+
+import org.pr.dfs.utils.AppendOnlyLog;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.pr.dfs.utils.RecordStrings.readString;
+import static org.pr.dfs.utils.RecordStrings.writeString;
+
+/**
+ * Authoritative in-memory namespace: every directory, file and replica location in the storage tree.
+ *
+ * Mutations are written to an edit log before they are applied and synced once the lock is released,
+ * so a burst of mutations shares an fsync and reads never wait for one. The whole tree is periodically
+ * checkpointed into an fsimage so the log stays short. Each edit carries a transaction id; on startup the
+ * fsimage is loaded and only edits newer than it are replayed. If neither exists yet, the tree is
+ * bootstrapped by scanning the storage directory once.
+ */
+public class NamespaceTree implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(NamespaceTree.class.getName());
+    private static final String NAMESPACE_DIR = ".namespace";
+    private static final String EDIT_LOG = "edits.log";
+    private static final String FSIMAGE = "fsimage";
+    private static final int CHECKPOINT_THRESHOLD = 50000; // Edits before writing a new fsimage
+
+    private static final byte OP_MKDIR = 1;
+    private static final byte OP_ADD_FILE = 2;
+    private static final byte OP_DELETE = 3;
+    private static final byte OP_RENAME = 4;
+    private static final byte OP_ADD_REPLICA = 5;
+    private static final byte OP_REMOVE_REPLICA = 6;
+    private static final byte OP_REMOVE_NODE = 7;
+    private static final byte OP_IMAGE_HEADER = 8;
+
+    private final Path storageRoot;
+    private final Path imageFile;
+    private final AppendOnlyLog editLog;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private final INode root = INode.directory("", 0);
+    private final ReplicaLocationIndex replicaIndex = new ReplicaLocationIndex();
+    private INode[] filesById = new INode[1024]; // File inodes by their replica index id
+    private long lastTxId;
+    private int fileCount;
+    private int directoryCount;
+
+    public NamespaceTree(String storagePath) {
+        this.storageRoot = Paths.get(storagePath);
+        Path namespaceDir = storageRoot.resolve(NAMESPACE_DIR);
+        this.imageFile = namespaceDir.resolve(FSIMAGE);
+        try {
+            Files.createDirectories(namespaceDir);
+            this.editLog = new AppendOnlyLog(namespaceDir.resolve(EDIT_LOG));
+            load();
+        } catch(IOException e) {
+            LOGGER.severe("Failed to initialize namespace: " + e.getMessage());
+            throw new RuntimeException("Namespace initialization failed", e);
+        }
+    }
+
+    private void load() throws IOException {
+        lock.writeLock().lock();
+        try {
+            boolean hasImage = AppendOnlyLog.readCheckpoint(imageFile, record -> applyRecord(record, true));
+            editLog.replay(record -> applyRecord(record, false));
+
+            if(!hasImage && editLog.getRecordCount() == 0) {
+                bootstrapFromStorage();
+                saveNamespace();
+            }
+            LOGGER.info("Loaded namespace with " + fileCount + " files and " + directoryCount +
+                    " directories (last txid " + lastTxId + ")");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Queries
+
+    public boolean exists(String path) {
+        lock.readLock().lock();
+        try {
+            return resolve(path) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isDirectory(String path) {
+        lock.readLock().lock();
+        try {
+            INode inode = resolve(path);
+            return inode != null && inode.directory;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public NamespaceEntry getEntry(String path) {
+        lock.readLock().lock();
+        try {
+            INode inode = resolve(path);
+            return inode != null ? toEntry(inode) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the children of a directory sorted by name, or null if the path is not a directory
+     */
+    public List<NamespaceEntry> list(String path) {
+        lock.readLock().lock();
+        try {
+            INode inode = resolve(path);
+            if(inode == null || !inode.directory) {
+                return null;
+            }
+            List<NamespaceEntry> entries = new ArrayList<>(inode.children.size());
+            for(INode child : inode.children.values()) {
+                entries.add(toEntry(child));
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getReplicaLocations(String path) {
+        lock.readLock().lock();
+        try {
+            INode inode = resolve(path);
+            return inode != null && !inode.directory ? replicaIndex.getNodes(inode.fileId) : Collections.emptySet();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getFilesOnNode(String nodeId) {
+        lock.readLock().lock();
+        try {
+            Set<String> paths = new HashSet<>(replicaIndex.countFilesOn(nodeId) * 2);
+            replicaIndex.forEachFileOn(nodeId, fileId -> paths.add(filesById[fileId].getPath()));
+            return paths;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return path to size of every file with a replica on the node
+     */
+    public Map<String, Long> getFileSizesOnNode(String nodeId) {
+        lock.readLock().lock();
+        try {
+            Map<String, Long> sizes = new HashMap<>(replicaIndex.countFilesOn(nodeId) * 2);
+            replicaIndex.forEachFileOn(nodeId, fileId -> {
+                INode inode = filesById[fileId];
+                sizes.put(inode.getPath(), inode.size);
+            });
+            return sizes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int countFilesOnNode(String nodeId) {
+        lock.readLock().lock();
+        try {
+            return replicaIndex.countFilesOn(nodeId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Approximate heap used by the replica location index.
+     */
+    public long getReplicaIndexBytes() {
+        lock.readLock().lock();
+        try {
+            return replicaIndex.estimatedBytes() + filesById.length * 8L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getFileCount() {
+        lock.readLock().lock();
+        try {
+            return fileCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDirectoryCount() {
+        lock.readLock().lock();
+        try {
+            return directoryCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Mutations
+
+    /**
+     * Creates a directory and any missing parents.
+     * @return false if the path or one of its parents is a file
+     */
+    public boolean mkdirs(String path) throws IOException {
+        String normalized = normalize(path);
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            INode existing = resolve(normalized);
+            if(existing != null) {
+                return existing.directory;
+            }
+            if(hasFileAncestor(normalized)) {
+                return false;
+            }
+            logEdit(OP_MKDIR, dos -> {
+                writeString(dos, normalized);
+                dos.writeLong(now);
+            });
+            applyMkdirs(normalized, now);
+            maybeCheckpoint();
+            return true;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    /**
+     * Adds a file, creating missing parent directories. An existing file is replaced and loses its replicas.
+     */
+    public boolean addFile(String path, long size) throws IOException {
+        String normalized = normalize(path);
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            INode existing = resolve(normalized);
+            if(normalized.isEmpty() || (existing != null && existing.directory) || hasFileAncestor(normalized)) {
+                return false;
+            }
+            logEdit(OP_ADD_FILE, dos -> {
+                writeString(dos, normalized);
+                dos.writeLong(size);
+                dos.writeLong(now);
+            });
+            applyAddFile(normalized, size, now);
+            maybeCheckpoint();
+            return true;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    /**
+     * Deletes a file or a directory with everything below it.
+     */
+    public boolean delete(String path) throws IOException {
+        String normalized = normalize(path);
+        lock.writeLock().lock();
+        try {
+            if(normalized.isEmpty() || resolve(normalized) == null) {
+                return false;
+            }
+            logEdit(OP_DELETE, dos -> writeString(dos, normalized));
+            applyDelete(normalized);
+            maybeCheckpoint();
+            return true;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    /**
+     * Moves a file or directory, replacing whatever is at the destination.
+     */
+    public boolean rename(String source, String destination) throws IOException {
+        String src = normalize(source);
+        String dst = normalize(destination);
+        lock.writeLock().lock();
+        try {
+            if(src.isEmpty() || dst.isEmpty() || resolve(src) == null || dst.equals(src) ||
+                    dst.startsWith(src + "/") || hasFileAncestor(dst)) {
+                return false;
+            }
+            logEdit(OP_RENAME, dos -> {
+                writeString(dos, src);
+                writeString(dos, dst);
+            });
+            applyRename(src, dst);
+            maybeCheckpoint();
+            return true;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    public boolean addReplica(String path, String nodeId) throws IOException {
+        String normalized = normalize(path);
+        lock.writeLock().lock();
+        try {
+            INode inode = resolve(normalized);
+            if(inode == null || inode.directory || replicaIndex.contains(inode.fileId, nodeId)) {
+                return false;
+            }
+            logEdit(OP_ADD_REPLICA, dos -> {
+                writeString(dos, normalized);
+                writeString(dos, nodeId);
+            });
+            applyAddReplica(inode, nodeId);
+            maybeCheckpoint();
+            return true;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    public boolean removeReplica(String path, String nodeId) throws IOException {
+        String normalized = normalize(path);
+        lock.writeLock().lock();
+        try {
+            INode inode = resolve(normalized);
+            if(inode == null || inode.directory || !replicaIndex.contains(inode.fileId, nodeId)) {
+                return false;
+            }
+            logEdit(OP_REMOVE_REPLICA, dos -> {
+                writeString(dos, normalized);
+                writeString(dos, nodeId);
+            });
+            applyRemoveReplica(inode, nodeId);
+            maybeCheckpoint();
+            return true;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    /**
+     * Forgets every replica held by a storage node.
+     * @return the files that lost a replica
+     */
+    public Set<String> removeNode(String nodeId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Set<String> affected = getFilesOnNode(nodeId);
+            if(!affected.isEmpty()) {
+                logEdit(OP_REMOVE_NODE, dos -> writeString(dos, nodeId));
+                applyRemoveNode(nodeId);
+                maybeCheckpoint();
+            }
+            return affected;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    /**
+     * Outcome of applying a block report to the replica map.
+     */
+    public static class ReplicaChanges {
+        private final List<String> added = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+        private int unknown;
+        private int sizeMismatches;
+
+        public List<String> getAdded() {
+            return added;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /** Reported files the namespace has no entry for. */
+        public int getUnknown() {
+            return unknown;
+        }
+
+        /** Reported files whose size differs from the namespace, treated as invalid replicas. */
+        public int getSizeMismatches() {
+            return sizeMismatches;
+        }
+    }
+
+    /**
+     * Replaces the replicas recorded for a node with the files it reports holding (a full block report).
+     * Only files the namespace knows with a matching size are accepted. All resulting edits are logged
+     * as one batch, so a report that matches the current state costs no disk writes at all.
+     * @param reportedSizes path to size of every file held by the node
+     */
+    public ReplicaChanges applyFullReport(String nodeId, Map<String, Long> reportedSizes) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ReplicaChanges changes = new ReplicaChanges();
+            List<INode> toAdd = new ArrayList<>();
+            Set<INode> accepted = new HashSet<>(reportedSizes.size() * 2);
+            for(Map.Entry<String, Long> reported : reportedSizes.entrySet()) {
+                INode inode = acceptReplica(reported.getKey(), reported.getValue(), changes);
+                if(inode != null) {
+                    accepted.add(inode);
+                    if(!replicaIndex.contains(inode.fileId, nodeId)) {
+                        toAdd.add(inode);
+                    }
+                }
+            }
+            List<INode> toRemove = new ArrayList<>();
+            replicaIndex.forEachFileOn(nodeId, fileId -> {
+                INode inode = filesById[fileId];
+                if(!accepted.contains(inode)) {
+                    toRemove.add(inode);
+                }
+            });
+            applyReplicaChanges(nodeId, toAdd, toRemove, changes);
+            return changes;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    /**
+     * Applies the files a node gained and lost since its last report (an incremental block report).
+     */
+    public ReplicaChanges applyIncrementalReport(String nodeId, Map<String, Long> addedSizes,
+                                                 Collection<String> removedPaths) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ReplicaChanges changes = new ReplicaChanges();
+            List<INode> toAdd = new ArrayList<>();
+            for(Map.Entry<String, Long> reported : addedSizes.entrySet()) {
+                INode inode = acceptReplica(reported.getKey(), reported.getValue(), changes);
+                if(inode != null && !replicaIndex.contains(inode.fileId, nodeId)) {
+                    toAdd.add(inode);
+                }
+            }
+            List<INode> toRemove = new ArrayList<>();
+            for(String path : removedPaths) {
+                INode inode = resolve(path);
+                if(inode != null && !inode.directory && replicaIndex.contains(inode.fileId, nodeId)) {
+                    toRemove.add(inode);
+                }
+            }
+            applyReplicaChanges(nodeId, toAdd, toRemove, changes);
+            return changes;
+        } finally {
+            unlockAndSync();
+        }
+    }
+
+    private INode acceptReplica(String path, long size, ReplicaChanges changes) {
+        INode inode = resolve(path);
+        if(inode == null || inode.directory) {
+            changes.unknown++;
+            return null;
+        }
+        if(inode.size != size) {
+            changes.sizeMismatches++;
+            return null;
+        }
+        return inode;
+    }
+
+    private void applyReplicaChanges(String nodeId, List<INode> toAdd, List<INode> toRemove,
+                                     ReplicaChanges changes) throws IOException {
+        if(toAdd.isEmpty() && toRemove.isEmpty()) {
+            return;
+        }
+        List<byte[]> records = new ArrayList<>(toAdd.size() + toRemove.size());
+        long txId = lastTxId;
+        for(INode inode : toAdd) {
+            String path = inode.getPath();
+            records.add(encode(OP_ADD_REPLICA, ++txId, dos -> {
+                writeString(dos, path);
+                writeString(dos, nodeId);
+            }));
+            changes.added.add(path);
+        }
+        for(INode inode : toRemove) {
+            String path = inode.getPath();
+            records.add(encode(OP_REMOVE_REPLICA, ++txId, dos -> {
+                writeString(dos, path);
+                writeString(dos, nodeId);
+            }));
+            changes.removed.add(path);
+        }
+        editLog.writeAll(records);
+        lastTxId = txId;
+
+        toAdd.forEach(inode -> applyAddReplica(inode, nodeId));
+        toRemove.forEach(inode -> applyRemoveReplica(inode, nodeId));
+        maybeCheckpoint();
+    }
+
+    /**
+     * Writes the whole namespace to a new fsimage and truncates the edit log.
+     */
+    public void saveNamespace() throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<byte[]> records = new ArrayList<>(fileCount + directoryCount + 1);
+            records.add(encode(OP_IMAGE_HEADER, lastTxId, dos -> {}));
+            Deque<INode> stack = new ArrayDeque<>();
+            stack.push(root);
+            while(!stack.isEmpty()) {
+                INode inode = stack.pop();
+                if(inode != root) {
+                    String path = inode.getPath();
+                    if(inode.directory) {
+                        records.add(encode(OP_MKDIR, lastTxId, dos -> {
+                            writeString(dos, path);
+                            dos.writeLong(inode.modificationTime);
+                        }));
+                    } else {
+                        records.add(encode(OP_ADD_FILE, lastTxId, dos -> {
+                            writeString(dos, path);
+                            dos.writeLong(inode.size);
+                            dos.writeLong(inode.modificationTime);
+                        }));
+                        for(String nodeId : replicaIndex.getNodes(inode.fileId)) {
+                            records.add(encode(OP_ADD_REPLICA, lastTxId, dos -> {
+                                writeString(dos, path);
+                                writeString(dos, nodeId);
+                            }));
+                        }
+                    }
+                }
+                if(inode.directory) {
+                    inode.children.descendingMap().values().forEach(stack::push);
+                }
+            }
+
+            AppendOnlyLog.writeCheckpoint(imageFile, records);
+            editLog.truncate();
+            LOGGER.info("Saved namespace image at txid " + lastTxId + " (" + records.size() + " records)");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        editLog.close();
+    }
+
+    // Edit log
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    /**
+     * Writes an edit to the log without waiting for the disk, called with the write lock held.
+     */
+    private void logEdit(byte op, RecordWriter body) throws IOException {
+        long txId = lastTxId + 1;
+        editLog.write(encode(op, txId, body));
+        lastTxId = txId;
+    }
+
+    /**
+     * Releases the write lock and then waits until the edits logged under it are on disk, so readers do not
+     * queue behind the fsync and concurrent mutations share one. Edits are applied in memory before they are
+     * durable, but the log keeps their order, so a crash only loses a suffix no caller was answered for.
+     */
+    private void unlockAndSync() throws IOException {
+        long sequence = editLog.getSequence();
+        lock.writeLock().unlock();
+        editLog.sync(sequence);
+    }
+
+    private static byte[] encode(byte op, long txId, RecordWriter body) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(op);
+        dos.writeLong(txId);
+        body.write(dos);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private void applyRecord(byte[] record, boolean fromImage) {
+        try(DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte op = dis.readByte();
+            long txId = dis.readLong();
+            if(op == OP_IMAGE_HEADER) {
+                lastTxId = txId;
+                return;
+            }
+            // Edits already captured by the image are skipped
+            if(!fromImage && txId <= lastTxId) {
+                return;
+            }
+
+            switch(op) {
+                case OP_MKDIR -> applyMkdirs(readString(dis), dis.readLong());
+                case OP_ADD_FILE -> applyAddFile(readString(dis), dis.readLong(), dis.readLong());
+                case OP_DELETE -> applyDelete(readString(dis));
+                case OP_RENAME -> applyRename(readString(dis), readString(dis));
+                case OP_ADD_REPLICA -> {
+                    INode inode = resolve(readString(dis));
+                    if(inode != null && !inode.directory) {
+                        applyAddReplica(inode, readString(dis));
+                    }
+                }
+                case OP_REMOVE_REPLICA -> {
+                    INode inode = resolve(readString(dis));
+                    if(inode != null && !inode.directory) {
+                        applyRemoveReplica(inode, readString(dis));
+                    }
+                }
+                case OP_REMOVE_NODE -> applyRemoveNode(readString(dis));
+                default -> throw new IOException("Unknown namespace edit op: " + op);
+            }
+            lastTxId = txId;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Called after an edit has been applied, with the write lock held.
+     */
+    private void maybeCheckpoint() throws IOException {
+        if(editLog.getRecordCount() >= CHECKPOINT_THRESHOLD) {
+            saveNamespace();
+        }
+    }
+
+    // Tree operations, called with the write lock held
+
+    private INode applyMkdirs(String path, long modificationTime) {
+        INode current = root;
+        for(String component : split(path)) {
+            INode child = current.children.get(component);
+            if(child == null) {
+                child = INode.directory(component, modificationTime);
+                attach(current, child);
+            }
+            current = child;
+        }
+        return current;
+    }
+
+    private void applyAddFile(String path, long size, long modificationTime) {
+        INode parent = applyMkdirs(parentOf(path), modificationTime);
+        String name = fileNameOf(path);
+        INode existing = parent.children.get(name);
+        if(existing != null) {
+            detach(existing);
+        }
+        attach(parent, INode.file(name, size, modificationTime));
+        parent.modificationTime = modificationTime;
+    }
+
+    private void applyDelete(String path) {
+        INode inode = resolve(path);
+        if(inode != null && inode != root) {
+            detach(inode);
+        }
+    }
+
+    private void applyRename(String source, String destination) {
+        INode inode = resolve(source);
+        if(inode == null) {
+            return;
+        }
+        INode newParent = applyMkdirs(parentOf(destination), inode.modificationTime);
+        String newName = fileNameOf(destination);
+        INode existing = newParent.children.get(newName);
+        if(existing != null) {
+            detach(existing);
+        }
+
+        // Move without touching the replica index, which refers to file ids rather than paths
+        inode.parent.children.remove(inode.name);
+        inode.name = newName;
+        inode.parent = newParent;
+        newParent.children.put(newName, inode);
+    }
+
+    private void applyAddReplica(INode inode, String nodeId) {
+        replicaIndex.add(inode.fileId, nodeId);
+    }
+
+    private void applyRemoveReplica(INode inode, String nodeId) {
+        replicaIndex.remove(inode.fileId, nodeId);
+    }
+
+    private void applyRemoveNode(String nodeId) {
+        replicaIndex.removeNode(nodeId);
+    }
+
+    private void attach(INode parent, INode child) {
+        child.parent = parent;
+        parent.children.put(child.name, child);
+        if(child.directory) {
+            directoryCount++;
+        } else {
+            fileCount++;
+            child.fileId = replicaIndex.addFile();
+            if(child.fileId >= filesById.length) {
+                filesById = Arrays.copyOf(filesById, Math.max(child.fileId + 1, filesById.length + (filesById.length >> 1)));
+            }
+            filesById[child.fileId] = child;
+        }
+    }
+
+    private void detach(INode inode) {
+        inode.parent.children.remove(inode.name);
+        Deque<INode> stack = new ArrayDeque<>();
+        stack.push(inode);
+        while(!stack.isEmpty()) {
+            INode current = stack.pop();
+            if(current.directory) {
+                directoryCount--;
+                current.children.values().forEach(stack::push);
+            } else {
+                fileCount--;
+                replicaIndex.removeFile(current.fileId);
+                filesById[current.fileId] = null;
+                current.fileId = -1;
+            }
+        }
+    }
+
+    private INode resolve(String path) {
+        INode current = root;
+        for(String component : split(normalize(path))) {
+            if(!current.directory) {
+                return null;
+            }
+            current = current.children.get(component);
+            if(current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    private boolean hasFileAncestor(String path) {
+        INode current = root;
+        String[] components = split(path);
+        for(int i = 0; i < components.length - 1; i++) {
+            current = current.children.get(components[i]);
+            if(current == null) {
+                return false;
+            }
+            if(!current.directory) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private NamespaceEntry toEntry(INode inode) {
+        return new NamespaceEntry(inode.getPath(), inode.name, inode.directory, inode.size,
+                inode.modificationTime, inode.directory ? Collections.emptySet() : replicaIndex.getNodes(inode.fileId));
+    }
+
+    /**
+     * Seeds the namespace from the files already in storage, skipping internal dot-directories.
+     */
+    private void bootstrapFromStorage() throws IOException {
+        if(!Files.isDirectory(storageRoot)) {
+            return;
+        }
+        try(Stream<Path> walk = Files.walk(storageRoot)) {
+            walk.filter(p -> !p.equals(storageRoot))
+                    .filter(p -> !storageRoot.relativize(p).getName(0).toString().startsWith("."))
+                    .forEach(p -> {
+                        try {
+                            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                            String path = storageRoot.relativize(p).toString().replace("\\", "/");
+                            if(attrs.isDirectory()) {
+                                applyMkdirs(path, attrs.lastModifiedTime().toMillis());
+                            } else {
+                                applyAddFile(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+                            }
+                        } catch(IOException e) {
+                            LOGGER.warning("Skipping " + p + " during namespace bootstrap: " + e.getMessage());
+                        }
+                    });
+        }
+        LOGGER.info("Bootstrapped namespace from " + storageRoot + ": " + fileCount + " files, " +
+                directoryCount + " directories");
+    }
+
+    private static String normalize(String path) {
+        if(path == null) {
+            return "";
+        }
+        // Fast path for already normalized paths, which is what callers pass almost always
+        if(!path.startsWith("/") && !path.endsWith("/") && path.indexOf('\\') < 0 && !path.contains("//")) {
+            return path;
+        }
+        return path.replace("\\", "/").replaceAll("/{2,}", "/")
+                .replaceAll("^/+", "").replaceAll("/+$", "");
+    }
+
+    private static String[] split(String path) {
+        return path.isEmpty() ? new String[0] : path.split("/");
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static String fileNameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
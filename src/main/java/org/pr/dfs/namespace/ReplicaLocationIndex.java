@@ -0,0 +1,213 @@
+package org.pr.dfs.namespace;
+
+import org.pr.dfs.utils.RoaringBitmap;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Replica locations for every file, kept in primitive arrays instead of per-file string sets.
+ *
+ * Files are identified by small int ids, reused after deletion, and storage nodes by interned indexes. Each
+ * file owns {@value #INLINE_SLOTS} char slots holding node index + 1 (0 marks a free slot), so a file at the
+ * usual replication factor costs 8 bytes here; the rare file with more replicas spills the rest into an
+ * overflow map. The reverse direction, the files on a node, is one roaring bitmap of file ids per node.
+ *
+ * Not thread-safe, guarded by NamespaceTree's lock.
+ */
+final class ReplicaLocationIndex {
+    private static final int INLINE_SLOTS = 4;
+    private static final char[] NO_OVERFLOW = new char[0];
+
+    private char[] slots = new char[INLINE_SLOTS * 1024];
+    private final Map<Integer, char[]> overflow = new HashMap<>();
+    private int[] freeIds = new int[64];
+    private int freeCount;
+    private int nextId;
+
+    private final Map<String, Integer> nodeIndexes = new HashMap<>();
+    private final List<String> nodeIds = new ArrayList<>();
+    private final List<RoaringBitmap> filesByNode = new ArrayList<>();
+
+    /**
+     * @return the id of a new file without replicas
+     */
+    int addFile() {
+        int fileId = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        int required = (fileId + 1) * INLINE_SLOTS;
+        if(required > slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(required, slots.length + (slots.length >> 1)));
+        }
+        return fileId;
+    }
+
+    /**
+     * Drops a file and its replicas; the id may be handed out again.
+     */
+    void removeFile(int fileId) {
+        int base = fileId * INLINE_SLOTS;
+        for(int i = 0; i < INLINE_SLOTS; i++) {
+            if(slots[base + i] != 0) {
+                filesByNode.get(slots[base + i] - 1).remove(fileId);
+                slots[base + i] = 0;
+            }
+        }
+        for(char slot : overflow.getOrDefault(fileId, NO_OVERFLOW)) {
+            filesByNode.get(slot - 1).remove(fileId);
+        }
+        overflow.remove(fileId);
+
+        if(freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = fileId;
+    }
+
+    boolean add(int fileId, String nodeId) {
+        int node = internNode(nodeId);
+        if(!filesByNode.get(node).add(fileId)) {
+            return false;
+        }
+
+        char slot = (char) (node + 1);
+        int base = fileId * INLINE_SLOTS;
+        for(int i = 0; i < INLINE_SLOTS; i++) {
+            if(slots[base + i] == 0) {
+                slots[base + i] = slot;
+                return true;
+            }
+        }
+        char[] extra = overflow.getOrDefault(fileId, NO_OVERFLOW);
+        extra = Arrays.copyOf(extra, extra.length + 1);
+        extra[extra.length - 1] = slot;
+        overflow.put(fileId, extra);
+        return true;
+    }
+
+    boolean remove(int fileId, String nodeId) {
+        Integer node = nodeIndexes.get(nodeId);
+        if(node == null || !filesByNode.get(node).remove(fileId)) {
+            return false;
+        }
+
+        char slot = (char) (node + 1);
+        char[] extra = overflow.get(fileId);
+        if(extra != null) {
+            // Keep the inline slots full: the last overflow entry takes the freed place
+            int position = indexOf(extra, slot);
+            if(position < 0) {
+                replaceInline(fileId, slot, extra[extra.length - 1]);
+                position = extra.length - 1;
+            }
+            if(extra.length == 1) {
+                overflow.remove(fileId);
+            } else {
+                extra[position] = extra[extra.length - 1];
+                overflow.put(fileId, Arrays.copyOf(extra, extra.length - 1));
+            }
+        } else {
+            replaceInline(fileId, slot, (char) 0);
+        }
+        return true;
+    }
+
+    boolean contains(int fileId, String nodeId) {
+        Integer node = nodeIndexes.get(nodeId);
+        return node != null && filesByNode.get(node).contains(fileId);
+    }
+
+    Set<String> getNodes(int fileId) {
+        int base = fileId * INLINE_SLOTS;
+        if(slots[base] == 0) {
+            return Collections.emptySet();
+        }
+        List<String> nodes = new ArrayList<>(INLINE_SLOTS);
+        for(int i = 0; i < INLINE_SLOTS && slots[base + i] != 0; i++) {
+            nodes.add(nodeIds.get(slots[base + i] - 1));
+        }
+        for(char slot : overflow.getOrDefault(fileId, NO_OVERFLOW)) {
+            nodes.add(nodeIds.get(slot - 1));
+        }
+        return Set.copyOf(nodes);
+    }
+
+    void forEachFileOn(String nodeId, IntConsumer consumer) {
+        Integer node = nodeIndexes.get(nodeId);
+        if(node != null) {
+            filesByNode.get(node).forEach(consumer);
+        }
+    }
+
+    int countFilesOn(String nodeId) {
+        Integer node = nodeIndexes.get(nodeId);
+        return node != null ? filesByNode.get(node).getCardinality() : 0;
+    }
+
+    /**
+     * Drops every replica held by a node.
+     */
+    void removeNode(String nodeId) {
+        Integer node = nodeIndexes.get(nodeId);
+        if(node != null) {
+            for(int fileId : filesByNode.get(node).toArray()) {
+                remove(fileId, nodeId);
+            }
+        }
+    }
+
+    /**
+     * Approximate heap used by the index, for sizing and monitoring.
+     */
+    long estimatedBytes() {
+        long bytes = slots.length * 2L + freeIds.length * 4L + overflow.size() * 64L;
+        for(RoaringBitmap files : filesByNode) {
+            bytes += files.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    private int internNode(String nodeId) {
+        Integer node = nodeIndexes.get(nodeId);
+        if(node == null) {
+            if(nodeIds.size() == Character.MAX_VALUE - 1) {
+                throw new IllegalStateException("Too many storage nodes");
+            }
+            node = nodeIds.size();
+            nodeIndexes.put(nodeId, node);
+            nodeIds.add(nodeId);
+            filesByNode.add(new RoaringBitmap());
+        }
+        return node;
+    }
+
+    /**
+     * Replaces a node in the inline slots, keeping the occupied slots contiguous when a replacement of 0 frees one.
+     */
+    private void replaceInline(int fileId, char slot, char replacement) {
+        int base = fileId * INLINE_SLOTS;
+        int last = INLINE_SLOTS - 1;
+        while(last > 0 && slots[base + last] == 0) {
+            last--;
+        }
+        for(int i = 0; i <= last; i++) {
+            if(slots[base + i] == slot) {
+                if(replacement != 0) {
+                    slots[base + i] = replacement;
+                } else {
+                    slots[base + i] = slots[base + last];
+                    slots[base + last] = 0;
+                }
+                return;
+            }
+        }
+    }
+
+    private static int indexOf(char[] values, char value) {
+        for(int i = 0; i < values.length; i++) {
+            if(values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,194 @@
+package org.pr.dfs.node;
+
+import org.pr.dfs.utils.AppendOnlyLog;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32C;
+
+/**
+ * Inventory of the files held by a storage node, used to answer block reports.
+ *
+ * The storage directory is scanned once at startup. Checksums are cached next to the storage directory
+ * and keyed by size and mtime, so a restart only reads files that changed while the node was down.
+ * Uploads and deletes are recorded as pending deltas until the next incremental report drains them.
+ *
+ * Report lines are tab separated with URL-encoded paths:
+ * full report {@code path size checksum}, delta {@code + path size checksum} or {@code - path}.
+ */
+public class BlockInventory {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static class BlockInfo {
+        final long size;
+        final long lastModified;
+        final String checksum;
+
+        BlockInfo(long size, long lastModified, String checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+    }
+
+    private final Path storagePath;
+    private final Path cacheFile;
+    private final Map<String, BlockInfo> blocks = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> pendingDeltas = new ConcurrentLinkedQueue<>();
+
+    public BlockInventory(Path storagePath) {
+        this.storagePath = storagePath;
+        this.cacheFile = storagePath.resolveSibling(storagePath.getFileName() + ".inventory");
+    }
+
+    /**
+     * Scans the storage directory, reusing cached checksums of unchanged files.
+     * @return the number of files whose checksum had to be computed
+     */
+    public int scan() throws IOException {
+        Map<String, BlockInfo> cached = new ConcurrentHashMap<>();
+        try {
+            AppendOnlyLog.readCheckpoint(cacheFile, record -> {
+                String[] parts = new String(record, StandardCharsets.UTF_8).split("\t");
+                if(parts.length == 4) {
+                    cached.put(decode(parts[0]), new BlockInfo(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                }
+            });
+        } catch(IOException e) {
+            System.err.println("⚠️ Ignoring unreadable inventory cache " + cacheFile + ": " + e.getMessage());
+        }
+
+        int[] hashed = new int[1];
+        blocks.clear();
+        Files.walkFileTree(storagePath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(attrs.isRegularFile()) {
+                    String path = relativePath(file);
+                    long mtime = attrs.lastModifiedTime().toMillis();
+                    BlockInfo info = cached.get(path);
+                    if(info == null || info.size != attrs.size() || info.lastModified != mtime) {
+                        info = new BlockInfo(attrs.size(), mtime, checksum(file));
+                        hashed[0]++;
+                    }
+                    blocks.put(path, info);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        saveCache();
+        return hashed[0];
+    }
+
+    public void recordStored(String filePath, byte[] data, long lastModified) {
+        String path = normalize(filePath);
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        BlockInfo info = new BlockInfo(data.length, lastModified, Long.toHexString(crc.getValue()));
+        blocks.put(path, info);
+        pendingDeltas.add("+\t" + encode(path) + "\t" + info.size + "\t" + info.checksum);
+    }
+
+    public void recordDeleted(String filePath) {
+        String path = normalize(filePath);
+        if(blocks.remove(path) != null) {
+            pendingDeltas.add("-\t" + encode(path));
+        }
+    }
+
+    /**
+     * Streams a full report of every file held by this node.
+     */
+    public void writeFullReport(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+        for(Map.Entry<String, BlockInfo> entry : blocks.entrySet()) {
+            BlockInfo info = entry.getValue();
+            writer.write(encode(entry.getKey()));
+            writer.write('\t');
+            writer.write(Long.toString(info.size));
+            writer.write('\t');
+            writer.write(info.checksum);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Takes every pending delta. Callers hand them back with {@link #requeueDeltas} if sending fails.
+     */
+    public List<String> drainDeltas() {
+        List<String> deltas = new ArrayList<>();
+        String delta;
+        while((delta = pendingDeltas.poll()) != null) {
+            deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    public void requeueDeltas(List<String> deltas) {
+        pendingDeltas.addAll(deltas);
+    }
+
+    /**
+     * Drops pending deltas. Called right before a full report is taken, which supersedes them.
+     */
+    public void clearDeltas() {
+        pendingDeltas.clear();
+    }
+
+    public int getFileCount() {
+        return blocks.size();
+    }
+
+    public void saveCache() throws IOException {
+        List<byte[]> records = new ArrayList<>(blocks.size());
+        for(Map.Entry<String, BlockInfo> entry : blocks.entrySet()) {
+            BlockInfo info = entry.getValue();
+            records.add((encode(entry.getKey()) + "\t" + info.size + "\t" + info.lastModified + "\t" + info.checksum)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        AppendOnlyLog.writeCheckpoint(cacheFile, records);
+    }
+
+    public static String encode(String path) {
+        return URLEncoder.encode(path, StandardCharsets.UTF_8);
+    }
+
+    public static String decode(String path) {
+        return URLDecoder.decode(path, StandardCharsets.UTF_8);
+    }
+
+    private String relativePath(Path file) {
+        return storagePath.relativize(file).toString().replace('\\', '/');
+    }
+
+    private static String normalize(String path) {
+        return Paths.get(path).normalize().toString().replace('\\', '/');
+    }
+
+    private static String checksum(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try(InputStream in = Files.newInputStream(file)) {
+            int read;
+            while((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+}
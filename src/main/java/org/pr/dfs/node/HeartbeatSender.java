@@ -0,0 +1,162 @@
+package org.pr.dfs.node;
+
+import org.pr.dfs.security.ClusterAuth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes heartbeats and block reports from a storage node to the coordinator.
+ *
+ * A full block report is streamed once the node starts (retried until the coordinator is reachable).
+ * After that a heartbeat goes out every few seconds carrying the node's load (free space, transfers in
+ * progress, request queue depth, disk latency) in the query string and the pending block report deltas
+ * in the body. If the coordinator answers 409 it has no baseline for this node, typically because it
+ * restarted, and a full report is sent again. Every call is signed with the cluster secret, see {@link ClusterAuth}.
+ */
+public class HeartbeatSender {
+    private static final long HEARTBEAT_INTERVAL_MS = 3000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String coordinatorUrl;
+    private final String nodeId;
+    private final String host;
+    private final int port;
+    private final Path storagePath;
+    private final BlockInventory inventory;
+    private final NodeLoadTracker loadTracker;
+    private final ClusterAuth clusterAuth;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean fullReportNeeded = true;
+
+    public HeartbeatSender(String coordinatorUrl, String nodeId, String host, int port, Path storagePath,
+                           BlockInventory inventory, NodeLoadTracker loadTracker, ClusterAuth clusterAuth) {
+        this.coordinatorUrl = coordinatorUrl.replaceAll("/+$", "");
+        this.nodeId = nodeId;
+        this.host = host;
+        this.port = port;
+        this.storagePath = storagePath;
+        this.inventory = inventory;
+        this.loadTracker = loadTracker;
+        this.clusterAuth = clusterAuth;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "heartbeat-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::beat, 0, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void beat() {
+        try {
+            if(fullReportNeeded) {
+                sendFullReport();
+            } else {
+                sendHeartbeat();
+            }
+        } catch(IOException e) {
+            System.err.println("⚠️ Heartbeat to " + coordinatorUrl + " failed: " + e.getMessage());
+        }
+    }
+
+    private void sendFullReport() throws IOException {
+        inventory.clearDeltas();
+        int status = post("/system/nodes/block-report", "", inventory::writeFullReport);
+        if(status != 200) {
+            throw new IOException("coordinator answered " + status + " to full report");
+        }
+        fullReportNeeded = false;
+        System.out.println("📋 Full block report sent: " + inventory.getFileCount() + " files");
+    }
+
+    private void sendHeartbeat() throws IOException {
+        String load = "&freeSpace=" + getAvailableStorage() +
+                "&inFlight=" + loadTracker.getInFlightTransfers() +
+                "&queueDepth=" + loadTracker.getQueueDepth() +
+                "&readLatencyUs=" + loadTracker.getReadLatencyMicros() +
+                "&writeLatencyUs=" + loadTracker.getWriteLatencyMicros();
+
+        List<String> deltas = inventory.drainDeltas();
+        int status;
+        try {
+            status = post("/system/nodes/heartbeat", load, out -> {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                for(String delta : deltas) {
+                    writer.write(delta);
+                    writer.write('\n');
+                }
+                writer.flush();
+            });
+        } catch(IOException e) {
+            inventory.requeueDeltas(deltas);
+            throw e;
+        }
+
+        if(status == 409) {
+            // The full report taken next covers these deltas
+            fullReportNeeded = true;
+        } else if(status != 200) {
+            inventory.requeueDeltas(deltas);
+            throw new IOException("coordinator answered " + status + " to heartbeat");
+        }
+    }
+
+    @FunctionalInterface
+    private interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private int post(String endpoint, String extraQuery, BodyWriter body) throws IOException {
+        URL url = new URL(coordinatorUrl + endpoint + "?nodeId=" + BlockInventory.encode(nodeId) +
+                "&host=" + BlockInventory.encode(host) + "&port=" + port + extraQuery);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            if(clusterAuth.isConfigured()) {
+                long timestamp = System.currentTimeMillis();
+                connection.setRequestProperty(ClusterAuth.TIMESTAMP_HEADER, Long.toString(timestamp));
+                connection.setRequestProperty(ClusterAuth.SIGNATURE_HEADER,
+                        clusterAuth.sign(endpoint, nodeId, host, port, timestamp));
+            }
+            try(OutputStream out = connection.getOutputStream()) {
+                body.write(out);
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private long getAvailableStorage() {
+        try {
+            return Files.getFileStore(storagePath).getUsableSpace();
+        } catch(IOException e) {
+            return -1;
+        }
+    }
+}
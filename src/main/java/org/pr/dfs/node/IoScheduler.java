@@ -0,0 +1,221 @@
+package org.pr.dfs.node;
+
+import org.pr.dfs.utils.TokenBucket;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Shares a storage node's disk and network between traffic classes.
+ *
+ * A fixed number of I/O slots is handed out by start-time fair queueing: each request is tagged with the
+ * virtual time at which its class may next start, advanced by its size divided by the class weight, and a
+ * freed slot goes to the waiting request with the smallest tag. Under contention each class therefore gets
+ * a share of the bytes proportional to its weight, and a small foreground request waits behind at most the
+ * transfers already running rather than behind a whole recovery backlog.
+ *
+ * Since a slot is held for a whole transfer, background classes are also kept out of the last
+ * {@code foregroundReserve} slots. A user request then never waits for a long background copy to finish.
+ *
+ * Classes may also have a bandwidth cap. Capped requests are paced before they queue for a slot, so a
+ * throttled transfer never holds a slot while it waits for tokens. Weights and caps can be changed at runtime.
+ */
+public class IoScheduler {
+    private static final long MIN_COST = 4096; // Charged for requests of unknown or tiny size
+
+    private static class ClassState {
+        private volatile int weight;
+        private volatile TokenBucket bandwidth; // null when unlimited
+        private double lastFinish;
+        private int waiting;
+        private long operations;
+        private long bytes;
+        private long waitNanos;
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final TrafficClass trafficClass;
+        private final double startTag;
+        private final long sequence;
+        private boolean granted;
+
+        Waiter(TrafficClass trafficClass, double startTag, long sequence) {
+            this.trafficClass = trafficClass;
+            this.startTag = startTag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byTag = Double.compare(startTag, other.startTag);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * A granted slot, released on close.
+     */
+    public class Permit implements AutoCloseable {
+        private final TrafficClass trafficClass;
+        private boolean released;
+
+        private Permit(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(trafficClass);
+            }
+        }
+    }
+
+    private final int slots;
+    private final int foregroundReserve;
+    private final Map<TrafficClass, ClassState> classes = new EnumMap<>(TrafficClass.class);
+    private final TreeSet<Waiter> waiters = new TreeSet<>();
+    private int busy;
+    private int backgroundBusy;
+    private long nextSequence;
+    private double virtualTime;
+
+    public IoScheduler(int slots, int foregroundReserve) {
+        this.slots = Math.max(1, slots);
+        this.foregroundReserve = Math.max(0, Math.min(foregroundReserve, this.slots - 1));
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            ClassState state = new ClassState();
+            state.weight = trafficClass.getDefaultWeight();
+            state.bandwidth = bucket(trafficClass.getDefaultBandwidth());
+            classes.put(trafficClass, state);
+        }
+    }
+
+    /**
+     * Waits for the class's bandwidth budget and then for an I/O slot.
+     * @param bytes expected transfer size, 0 if unknown
+     */
+    public Permit acquire(TrafficClass trafficClass, long bytes) throws InterruptedException {
+        ClassState state = classes.get(trafficClass);
+        long queuedAt = System.nanoTime();
+        TokenBucket bandwidth = state.bandwidth;
+        if (bandwidth != null && bytes > 0) {
+            bandwidth.acquire(bytes);
+        }
+
+        synchronized (this) {
+            double start = Math.max(virtualTime, state.lastFinish);
+            state.lastFinish = start + (double) Math.max(bytes, MIN_COST) / state.weight;
+            Waiter waiter = new Waiter(trafficClass, start, nextSequence++);
+
+            waiters.add(waiter);
+            dispatch();
+            if (!waiter.granted) {
+                state.waiting++;
+                try {
+                    while (!waiter.granted) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        release(trafficClass);
+                    } else {
+                        waiters.remove(waiter);
+                    }
+                    throw e;
+                } finally {
+                    state.waiting--;
+                }
+            }
+
+            state.operations++;
+            state.bytes += bytes;
+            state.waitNanos += System.nanoTime() - queuedAt;
+        }
+        return new Permit(trafficClass);
+    }
+
+    private boolean canStart(TrafficClass trafficClass) {
+        return busy < slots && (trafficClass == TrafficClass.FOREGROUND || backgroundBusy < slots - foregroundReserve);
+    }
+
+    private void grant(Waiter waiter) {
+        busy++;
+        if (waiter.trafficClass != TrafficClass.FOREGROUND) {
+            backgroundBusy++;
+        }
+        virtualTime = Math.max(virtualTime, waiter.startTag);
+        waiter.granted = true;
+    }
+
+    private synchronized void release(TrafficClass trafficClass) {
+        busy--;
+        if (trafficClass != TrafficClass.FOREGROUND) {
+            backgroundBusy--;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        // Smallest tag first, skipping background requests that would take a reserved slot
+        boolean granted = false;
+        Iterator<Waiter> iterator = waiters.iterator();
+        while (busy < slots && iterator.hasNext()) {
+            Waiter next = iterator.next();
+            if (canStart(next.trafficClass)) {
+                iterator.remove();
+                grant(next);
+                granted = true;
+            }
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Changes a class's weight and bandwidth cap; null leaves a setting unchanged, a bandwidth of 0 removes the cap.
+     */
+    public void configure(TrafficClass trafficClass, Integer weight, Long bandwidthBytesPerSecond) {
+        ClassState state = classes.get(trafficClass);
+        if (weight != null) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight must be positive: " + weight);
+            }
+            state.weight = weight;
+        }
+        if (bandwidthBytesPerSecond != null) {
+            if (bandwidthBytesPerSecond < 0) {
+                throw new IllegalArgumentException("Bandwidth must not be negative: " + bandwidthBytesPerSecond);
+            }
+            state.bandwidth = bucket(bandwidthBytesPerSecond);
+        }
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"slots\":").append(slots).append(",\"foregroundReserve\":").append(foregroundReserve)
+                .append(",\"busy\":").append(busy).append(",\"classes\":{");
+        boolean first = true;
+        for (Map.Entry<TrafficClass, ClassState> entry : classes.entrySet()) {
+            ClassState state = entry.getValue();
+            TokenBucket bandwidth = state.bandwidth;
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append(String.format(
+                "\"%s\":{\"weight\":%d,\"bandwidthBytesPerSecond\":%d,\"waiting\":%d,\"operations\":%d,\"bytes\":%d,\"avgWaitMicros\":%d}",
+                entry.getKey().headerValue(), state.weight, bandwidth != null ? bandwidth.getRate() : 0, state.waiting,
+                state.operations, state.bytes, state.operations > 0 ? state.waitNanos / state.operations / 1000 : 0));
+        }
+        return json.append("}}").toString();
+    }
+
+    private static TokenBucket bucket(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+}
@@ -0,0 +1,57 @@
+package org.pr.dfs.node;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load figures a storage node reports in its heartbeats: transfers in progress, requests waiting for a
+ * worker thread, and disk read/write latency as an exponentially weighted moving average.
+ */
+public class NodeLoadTracker {
+    private static final double LATENCY_WEIGHT = 0.2; // Weight of the newest sample in the moving average
+
+    private final AtomicInteger inFlightTransfers = new AtomicInteger();
+    private final ThreadPoolExecutor requestExecutor;
+    private double readLatencyMicros;
+    private double writeLatencyMicros;
+
+    public NodeLoadTracker(ThreadPoolExecutor requestExecutor) {
+        this.requestExecutor = requestExecutor;
+    }
+
+    public void beginTransfer() {
+        inFlightTransfers.incrementAndGet();
+    }
+
+    public void endTransfer() {
+        inFlightTransfers.decrementAndGet();
+    }
+
+    public synchronized void recordRead(long nanos) {
+        readLatencyMicros = average(readLatencyMicros, nanos / 1000.0);
+    }
+
+    public synchronized void recordWrite(long nanos) {
+        writeLatencyMicros = average(writeLatencyMicros, nanos / 1000.0);
+    }
+
+    public int getInFlightTransfers() {
+        return inFlightTransfers.get();
+    }
+
+    public int getQueueDepth() {
+        return requestExecutor.getQueue().size();
+    }
+
+    public synchronized long getReadLatencyMicros() {
+        return Math.round(readLatencyMicros);
+    }
+
+    public synchronized long getWriteLatencyMicros() {
+        return Math.round(writeLatencyMicros);
+    }
+
+    private static double average(double current, double sample) {
+        return current == 0 ? sample : current + LATENCY_WEIGHT * (sample - current);
+    }
+}
@@ -3,31 +3,99 @@ package org.pr.dfs.node;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import org.pr.dfs.membership.GossipMembership;
+import org.pr.dfs.membership.Member;
+import org.pr.dfs.security.ClusterAuth;
+import org.pr.dfs.utils.StripedLocks;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SimpleHTTPNodeServer {
 
     private final String nodeId;
     private final int port;
     private final Path storagePath;
+    private final Path stagingPath; // Uploads in progress and files being replicated, outside the inventory
+    private final BlockInventory inventory;
+    private final ThreadPoolExecutor requestExecutor;
+    private final NodeLoadTracker loadTracker;
+    private final IoScheduler ioScheduler;
+    private final StripedLocks fileLocks; // Uploads and deletes exclusive, reads of a file shared
+    private final HttpClient peerClient;
+    private final Set<String> replicationPeers; // host:port of the nodes copies may be pushed to, besides gossiped ones
     private HttpServer server;
+    private HeartbeatSender heartbeatSender;
+    private volatile GossipMembership gossip; // Started after the server, read by handlers
 
     public SimpleHTTPNodeServer(String nodeId, int port) {
         this.nodeId = nodeId;
         this.port = port;
         this.storagePath = Paths.get("./storage", nodeId);
+        this.stagingPath = Paths.get("./storage", nodeId + ".staging");
+        this.inventory = new BlockInventory(storagePath);
+
+        int threads = Integer.getInteger("node.threads", 16);
+        this.requestExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.loadTracker = new NodeLoadTracker(requestExecutor);
+
+        // Disk and network shares per traffic class, e.g. -Dqos.rebalance.weight=2 -Dqos.replication.bandwidth=0
+        this.ioScheduler = new IoScheduler(Integer.getInteger("qos.slots", 4), Integer.getInteger("qos.foreground.reserve", 1));
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            ioScheduler.configure(trafficClass, Integer.getInteger("qos." + trafficClass.headerValue() + ".weight"),
+                    Long.getLong("qos." + trafficClass.headerValue() + ".bandwidth"));
+        }
+        this.fileLocks = new StripedLocks(Integer.getInteger("node.lock.stripes", 256));
+        this.peerClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+        // Defaults to the coordinator's fixed node list
+        this.replicationPeers = new HashSet<>();
+        for (String peer : System.getProperty("replication.peers", "localhost:8091,localhost:8092,localhost:8093").split(",")) {
+            if (!peer.isBlank()) {
+                replicationPeers.add(peer.trim().toLowerCase(Locale.ROOT));
+            }
+        }
     }
 
     public void start() throws IOException {
         // Create storage directory
         Files.createDirectories(storagePath);
+        Files.createDirectories(stagingPath);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(stagingPath)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover); // From a previous run that stopped mid-transfer
+            }
+        }
+
+        // Build the block inventory before serving, so the first report is complete
+        long scanStart = System.currentTimeMillis();
+        int hashed = inventory.scan();
+        System.out.println("📋 Inventory: " + inventory.getFileCount() + " files (" + hashed + " checksummed) in " +
+                (System.currentTimeMillis() - scanStart) + "ms");
 
         // Create HTTP server
         server = HttpServer.create(new InetSocketAddress(port), 0);
@@ -36,21 +104,59 @@ public class SimpleHTTPNodeServer {
         server.createContext("/node/health", new HealthHandler());
         server.createContext("/node/files", new FileHandler());
         server.createContext("/node/info", new InfoHandler());
+        server.createContext("/node/block-report", new BlockReportHandler());
+        server.createContext("/node/replicate", new ReplicateHandler());
+        server.createContext("/node/qos", new QosHandler());
 
         // Start server
-        server.setExecutor(null);
+        server.setExecutor(requestExecutor);
         server.start();
 
         System.out.println("✅ Simple Node Server started: " + nodeId + " on port " + port);
         System.out.println("📁 Storage path: " + storagePath.toAbsolutePath());
         System.out.println("🔗 Health check: http://localhost:" + port + "/node/health");
+
+        // Push heartbeats and block reports to the coordinator; an empty coordinator.url disables them
+        String coordinatorUrl = System.getProperty("coordinator.url", "http://localhost:8080/api");
+        if (!coordinatorUrl.isEmpty()) {
+            // Must match dfs.cluster.secret on the coordinator, which refuses unsigned reports
+            ClusterAuth clusterAuth = new ClusterAuth(System.getProperty("cluster.secret", ""));
+            if (!clusterAuth.isConfigured()) {
+                System.err.println("⚠️ No -Dcluster.secret set, the coordinator will refuse this node's reports");
+            }
+            heartbeatSender = new HeartbeatSender(coordinatorUrl, nodeId,
+                    System.getProperty("node.host", "localhost"), port, storagePath, inventory, loadTracker, clusterAuth);
+            heartbeatSender.start();
+        }
+
+        // Join the gossip membership through the seeds, by default the coordinator's gossip port.
+        // Off unless -Dgossip.enabled=true, matching dfs.gossip.enabled on the coordinator
+        if (Boolean.parseBoolean(System.getProperty("gossip.enabled", "false"))) {
+            int gossipPort = Integer.getInteger("gossip.port", port + 1000);
+            gossip = new GossipMembership(nodeId, System.getProperty("node.host", "localhost"), port, gossipPort,
+                    Member.Role.STORAGE, Arrays.asList(System.getProperty("gossip.seeds", "localhost:7946").split(",")));
+            gossip.start();
+            System.out.println("📣 Gossip membership on UDP port " + gossipPort);
+        }
     }
 
     public void stop() {
+        if (gossip != null) {
+            gossip.close();
+        }
+        if (heartbeatSender != null) {
+            heartbeatSender.stop();
+        }
         if (server != null) {
             server.stop(0);
+            requestExecutor.shutdown();
             System.out.println("❌ Node server stopped: " + nodeId);
         }
+        try {
+            inventory.saveCache();
+        } catch (IOException e) {
+            System.err.println("⚠️ Failed to save inventory cache: " + e.getMessage());
+        }
     }
 
     // Health check endpoint
@@ -115,12 +221,35 @@ public class SimpleHTTPNodeServer {
             }
 
             // Read file data from request body
-            byte[] fileData = exchange.getRequestBody().readAllBytes();
-
-            // Save file
+            byte[] fileData;
             Path targetPath = storagePath.resolve(filePath);
-            Files.createDirectories(targetPath.getParent());
-            Files.write(targetPath, fileData);
+            IoScheduler.Permit permit = acquireIo(exchange, TrafficClass.FOREGROUND, getContentLength(exchange));
+            if (permit == null) {
+                return;
+            }
+            loadTracker.beginTransfer();
+            try {
+                fileData = exchange.getRequestBody().readAllBytes();
+
+                // Save file. It is replaced, never rewritten in place, so replications streaming
+                // the old contents keep reading them
+                long writeStart = System.nanoTime();
+                Path temp = Files.createTempFile(stagingPath, "upload-", ".tmp");
+                try {
+                    Files.write(temp, fileData);
+                    try (StripedLocks.Held ignored = fileLocks.write(filePath)) {
+                        Files.createDirectories(targetPath.getParent());
+                        Files.move(temp, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+                loadTracker.recordWrite(System.nanoTime() - writeStart);
+            } finally {
+                loadTracker.endTransfer();
+                permit.close();
+            }
+            inventory.recordStored(filePath, fileData, Files.getLastModifiedTime(targetPath).toMillis());
 
             String response = String.format(
                 "{\"success\":true,\"nodeId\":\"%s\",\"filePath\":\"%s\",\"size\":%d}",
@@ -158,11 +287,26 @@ public class SimpleHTTPNodeServer {
                 return;
             }
 
-            byte[] fileData = Files.readAllBytes(targetPath);
-            exchange.sendResponseHeaders(200, fileData.length);
+            IoScheduler.Permit permit = acquireIo(exchange, TrafficClass.FOREGROUND, Files.size(targetPath));
+            if (permit == null) {
+                return;
+            }
+            loadTracker.beginTransfer();
+            try {
+                long readStart = System.nanoTime();
+                byte[] fileData;
+                try (StripedLocks.Held ignored = fileLocks.read(filePath)) {
+                    fileData = Files.readAllBytes(targetPath);
+                }
+                loadTracker.recordRead(System.nanoTime() - readStart);
+                exchange.sendResponseHeaders(200, fileData.length);
 
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileData);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(fileData);
+                }
+            } finally {
+                loadTracker.endTransfer();
+                permit.close();
             }
 
             System.out.println("📥 File retrieved: " + filePath);
@@ -184,7 +328,13 @@ public class SimpleHTTPNodeServer {
             }
 
             Path targetPath = storagePath.resolve(filePath);
-            boolean deleted = Files.deleteIfExists(targetPath);
+            boolean deleted;
+            try (StripedLocks.Held ignored = fileLocks.write(filePath)) {
+                deleted = Files.deleteIfExists(targetPath);
+            }
+            if (deleted) {
+                inventory.recordDeleted(filePath);
+            }
 
             String response = String.format(
                 "{\"success\":%b,\"nodeId\":\"%s\",\"filePath\":\"%s\"}",
@@ -217,8 +367,13 @@ public class SimpleHTTPNodeServer {
                 }
 
                 String response = String.format(
-                    "{\"nodeId\":\"%s\",\"port\":%d,\"storagePath\":\"%s\",\"availableStorage\":%d,\"hostedFiles\":%d,\"uptime\":%d}",
-                    nodeId, port, storagePath.toString(), getAvailableStorage(), fileCount, System.currentTimeMillis()
+                    "{\"nodeId\":\"%s\",\"port\":%d,\"storagePath\":\"%s\",\"availableStorage\":%d,\"hostedFiles\":%d,\"uptime\":%d," +
+                    "\"inFlightTransfers\":%d,\"queueDepth\":%d,\"readLatencyUs\":%d,\"writeLatencyUs\":%d," +
+                    "\"fileLocksContended\":%d,\"fileLocksWaitMs\":%d}",
+                    nodeId, port, storagePath.toString(), getAvailableStorage(), fileCount, System.currentTimeMillis(),
+                    loadTracker.getInFlightTransfers(), loadTracker.getQueueDepth(),
+                    loadTracker.getReadLatencyMicros(), loadTracker.getWriteLatencyMicros(),
+                    fileLocks.getContended(), fileLocks.getWaitNanos() / 1_000_000
                 );
 
                 exchange.getResponseHeaders().set("Content-Type", "application/json");
@@ -233,6 +388,244 @@ public class SimpleHTTPNodeServer {
         }
     }
 
+    // Full block report, pulled by the coordinator when it starts
+    private class BlockReportHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+
+                try (OutputStream os = exchange.getResponseBody()) {
+                    inventory.writeFullReport(os);
+                }
+
+                System.out.println("📋 Block report served: " + inventory.getFileCount() + " files");
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    // Pushes a local file straight to another node, so recovery copies do not pass through the coordinator
+    private class ReplicateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String query = exchange.getRequestURI().getQuery();
+            String filePath = getQueryParam(query, "filePath");
+            String target = getQueryParam(query, "target");
+            if (filePath == null || target == null) {
+                sendError(exchange, 400, "Missing filePath or target parameter");
+                return;
+            }
+
+            URI targetUri;
+            try {
+                filePath = java.net.URLDecoder.decode(filePath, "UTF-8");
+                target = java.net.URLDecoder.decode(target, "UTF-8");
+                if (!isReplicationPeer(target)) {
+                    sendError(exchange, 403, "Unknown target node");
+                    return;
+                }
+                targetUri = URI.create("http://" + target + "/node/files?filePath=" +
+                        URLEncoder.encode(filePath, StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                sendError(exchange, 400, "Invalid filePath or target");
+                return;
+            }
+
+            Path sourcePath = resolveStored(filePath);
+            if (sourcePath == null) {
+                sendError(exchange, 400, "Invalid filePath");
+                return;
+            }
+            if (!Files.isRegularFile(sourcePath)) {
+                sendError(exchange, 404, "File not found");
+                return;
+            }
+
+            long size = Files.size(sourcePath);
+            TrafficClass trafficClass = TrafficClass.fromHeader(
+                    exchange.getRequestHeaders().getFirst(TrafficClass.HEADER), TrafficClass.REPLICATION);
+
+            // Only taking the snapshot holds a slot here. The target takes its own slot for the write, and a slot
+            // held while waiting on another node could tie up both nodes' background slots in a cycle
+            Path snapshot;
+            IoScheduler.Permit permit = acquireIo(exchange, trafficClass, size);
+            if (permit == null) {
+                return;
+            }
+            loadTracker.beginTransfer();
+            try {
+                long readStart = System.nanoTime();
+                try (StripedLocks.Held ignored = fileLocks.read(filePath)) {
+                    snapshot = snapshot(sourcePath);
+                }
+                loadTracker.recordRead(System.nanoTime() - readStart);
+            } catch (NoSuchFileException e) {
+                sendError(exchange, 404, "File not found"); // Deleted since it was checked
+                return;
+            } finally {
+                loadTracker.endTransfer();
+                permit.close();
+            }
+
+            int status;
+            try {
+                size = Files.size(snapshot);
+                // Streamed from disk with its length up front, instead of buffering the file in memory
+                HttpRequest request = HttpRequest.newBuilder(targetUri)
+                        .header(TrafficClass.HEADER, trafficClass.headerValue())
+                        .POST(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofFile(snapshot), size))
+                        .timeout(Duration.ofSeconds(30 + size / (1024 * 1024)))
+                        .build();
+                status = peerClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendError(exchange, 503, "Interrupted");
+                return;
+            } catch (IOException e) {
+                System.err.println("⚠️ Replication of " + filePath + " to " + target + " failed: " + e);
+                sendError(exchange, 502, "Target unreachable");
+                return;
+            } finally {
+                Files.deleteIfExists(snapshot);
+            }
+
+            if (status != 200) {
+                System.err.println("⚠️ Replication of " + filePath + " to " + target + " rejected: HTTP " + status);
+                sendError(exchange, 502, "Target returned " + status);
+                return;
+            }
+
+            String response = String.format(
+                "{\"success\":true,\"nodeId\":\"%s\",\"filePath\":\"%s\",\"target\":\"%s\",\"size\":%d}",
+                nodeId, filePath, target, size
+            );
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.getBytes().length);
+
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+
+            System.out.println("🔁 File replicated: " + filePath + " -> " + target + " (" + size + " bytes)");
+        }
+    }
+
+    /**
+     * Pins the current contents of a stored file for streaming, called under the file's read lock.
+     * A hard link costs nothing and stays unchanged because uploads replace files instead of rewriting
+     * them; file systems without hard links get a copy.
+     */
+    private Path snapshot(Path source) throws IOException {
+        Path snapshot = stagingPath.resolve("replicate-" + UUID.randomUUID() + ".tmp");
+        try {
+            return Files.createLink(snapshot, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (e instanceof NoSuchFileException) {
+                throw (NoSuchFileException) e;
+            }
+            return Files.copy(source, snapshot);
+        }
+    }
+
+    // Traffic class weights and bandwidth caps: GET to read, POST ?class=..&weight=..&bandwidth=.. to change
+    private class QosHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            if ("POST".equals(method)) {
+                String query = exchange.getRequestURI().getQuery();
+                TrafficClass trafficClass = TrafficClass.fromHeader(getQueryParam(query, "class"), null);
+                if (trafficClass == null) {
+                    sendError(exchange, 400, "Missing or unknown class parameter");
+                    return;
+                }
+                try {
+                    String weight = getQueryParam(query, "weight");
+                    String bandwidth = getQueryParam(query, "bandwidth");
+                    ioScheduler.configure(trafficClass, weight != null ? Integer.valueOf(weight) : null,
+                            bandwidth != null ? Long.valueOf(bandwidth) : null);
+                } catch (IllegalArgumentException e) {
+                    sendError(exchange, 400, "Invalid weight or bandwidth");
+                    return;
+                }
+                System.out.println("🚦 QoS updated for " + trafficClass.headerValue());
+            } else if (!"GET".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String response = ioScheduler.toJson();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.getBytes().length);
+
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+        }
+    }
+
+    /**
+     * Waits for an I/O slot for the request's traffic class, which defaults to the given one.
+     * @return the permit to close when the transfer is done, or null if an error response was sent
+     */
+    /**
+     * @return the file's place in this node's store, or null if the path leads outside it
+     */
+    private Path resolveStored(String filePath) {
+        Path root = storagePath.toAbsolutePath().normalize();
+        Path resolved = root.resolve(filePath).normalize();
+        return resolved.startsWith(root) && !resolved.equals(root) ? resolved : null;
+    }
+
+    /**
+     * Copies only go to the configured peers or to storage nodes known through gossip, so the endpoint
+     * cannot be used to send stored files anywhere else.
+     */
+    private boolean isReplicationPeer(String target) {
+        String normalized = target.trim().toLowerCase(Locale.ROOT);
+        if (replicationPeers.contains(normalized)) {
+            return true;
+        }
+        if (gossip != null) {
+            for (Member member : gossip.getMembers()) {
+                if (member.getRole() == Member.Role.STORAGE && member.isReachable() &&
+                        normalized.equals((member.getHost() + ":" + member.getHttpPort()).toLowerCase(Locale.ROOT))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private IoScheduler.Permit acquireIo(HttpExchange exchange, TrafficClass fallback, long bytes) throws IOException {
+        TrafficClass trafficClass = TrafficClass.fromHeader(exchange.getRequestHeaders().getFirst(TrafficClass.HEADER), fallback);
+        try {
+            return ioScheduler.acquire(trafficClass, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Interrupted");
+            return null;
+        }
+    }
+
+    private long getContentLength(HttpExchange exchange) {
+        try {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            return length != null ? Long.parseLong(length) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private void sendError(HttpExchange exchange, int code, String message) throws IOException {
         String response = String.format("{\"success\":false,\"error\":\"%s\"}", message);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
@@ -274,12 +667,18 @@ public class SimpleHTTPNodeServer {
 
             // Keep running
             System.out.println("Press Enter to stop the server...");
-            System.in.read();
+            if (System.in.read() < 0) {
+                // No console, e.g. started in the background: run until the process is killed
+                Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+                Thread.currentThread().join();
+            }
 
             server.stop();
 
         } catch (IOException e) {
             System.err.println("❌ Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -0,0 +1,50 @@
+package org.pr.dfs.node;
+
+import java.util.Locale;
+
+/**
+ * Kind of traffic a storage node request belongs to, sent by the caller in the {@link #HEADER} header.
+ * Requests without the header are user-facing.
+ */
+public enum TrafficClass {
+    FOREGROUND(16, 0),
+    REPLICATION(4, 50L * 1024 * 1024),
+    REBALANCE(1, 10L * 1024 * 1024),
+    SCRUB(1, 5L * 1024 * 1024);
+
+    public static final String HEADER = "X-DFS-Traffic-Class";
+
+    private final int defaultWeight;
+    private final long defaultBandwidth; // Bytes per second, 0 for unlimited
+
+    TrafficClass(int defaultWeight, long defaultBandwidth) {
+        this.defaultWeight = defaultWeight;
+        this.defaultBandwidth = defaultBandwidth;
+    }
+
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    public long getDefaultBandwidth() {
+        return defaultBandwidth;
+    }
+
+    public String headerValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the class named by a header value, or the fallback if the value is missing or unknown
+     */
+    public static TrafficClass fromHeader(String value, TrafficClass fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -52,13 +52,14 @@ public class FaultToleranceManager implements NodeManager.NodeStatusListener {
     }
 
     public void handleNodeFailure(String nodeId) {
-        NodeStatus status = nodeStatuses.get(nodeId);
-
-        if(status == null) {
-            LOGGER.warning("No information for node: " + nodeId);
+        // A suspected node may just be slow; re-replicating its files is only worth it once it is dead
+        if(nodeManager.getNodeState(nodeId) == PhiAccrualFailureDetector.State.SUSPECT) {
+            LOGGER.info("Node " + nodeId + " is suspected but not dead, deferring recovery");
             return;
         }
 
+        NodeStatus status = nodeStatuses.computeIfAbsent(nodeId, k -> new NodeStatus());
+
         // Mark node as unhealthy
         status.markUnhealthy();
         nodeManager.markNodeUnhealthy(nodeId);  // Fixed: should mark as unhealthy, not healthy
@@ -1,5 +1,7 @@
 package org.pr.dfs.replication;
 
+import org.pr.dfs.membership.GossipMembership;
+import org.pr.dfs.membership.Member;
 import org.pr.dfs.model.Node;
 
 import java.io.IOException;
@@ -8,17 +10,27 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class NodeManager {
+public class NodeManager implements GossipMembership.MembershipListener {
     private static final Logger LOGGER = Logger.getLogger(NodeManager.class.getName());
     private static final int CONNECTION_TIMEOUT_MS = 5000;
     private static final int HEALTH_CHECK_PORT = 8889;
+    private static final int HEALTH_CHECK_THREADS = 16;
+    public static final long POLL_INTERVAL_MS = 30000; // How often nodes that do not push heartbeats are probed
 
     private final Map<String, Node> nodes;
     private final List<NodeStatusListener> listeners;
+    private final ExecutorService healthCheckExecutor;
+    private final PhiAccrualFailureDetector failureDetector;
+    private final Set<String> deadNodes; // Nodes whose failure listeners have been notified
+    private final Map<String, Member.State> gossipStates; // What the storage nodes say about each other
 
     public interface NodeStatusListener {
         void onNodeFailure(String nodeId);
@@ -27,6 +39,14 @@ public class NodeManager {
     public NodeManager() {
         this.nodes = new ConcurrentHashMap<>();
         this.listeners = Collections.synchronizedList(new ArrayList<>());
+        this.failureDetector = new PhiAccrualFailureDetector();
+        this.deadNodes = ConcurrentHashMap.newKeySet();
+        this.gossipStates = new ConcurrentHashMap<>();
+        this.healthCheckExecutor = Executors.newFixedThreadPool(HEALTH_CHECK_THREADS, r -> {
+            Thread thread = new Thread(r, "node-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
         LOGGER.info("NodeManager initialized");
     }
 
@@ -36,12 +56,18 @@ public class NodeManager {
         }
 
         nodes.put(node.getNodeId(), node);
+        // Until it is heard from, a node is expected at the polling rhythm, so one that never answers
+        // is still suspected and declared dead
+        failureDetector.expect(node.getNodeId(), POLL_INTERVAL_MS, System.currentTimeMillis());
         LOGGER.info("Node registered " + node.getNodeId());
         return true;
     }
 
     public boolean unRegisterNode(String nodeId) {
         Node removed = nodes.remove(nodeId);
+        failureDetector.remove(nodeId);
+        deadNodes.remove(nodeId);
+        gossipStates.remove(nodeId);
         if(removed != null) {
             LOGGER.info("Node unregistered " + nodeId);
             return true;
@@ -104,27 +130,139 @@ public class NodeManager {
         }
     }
 
-    public void checkNodeHealth(Node node) {
-        if(node == null) return;
+    /**
+     * Records a sign of life: a pushed heartbeat or a successful probe.
+     * @param expectedIntervalMs how often this node is normally heard from
+     */
+    public void recordHeartbeat(String nodeId, long expectedIntervalMs) {
+        failureDetector.heartbeat(nodeId, expectedIntervalMs, System.currentTimeMillis());
 
-        boolean previousHealth = node.isHealthy();
-        boolean currentHealth = isNodeResponsive(node);
+        Node node = nodes.get(nodeId);
+        if(node != null) {
+            node.updateHeartbeat();
+        }
+        if(getNodeState(nodeId) != PhiAccrualFailureDetector.State.ALIVE) {
+            return; // Its peers still report it as failed
+        }
 
-        if(currentHealth != previousHealth) {
-            node.setHealthy(currentHealth);
+        deadNodes.remove(nodeId);
+        if(node != null && !node.isHealthy()) {
+            node.setHealthy(true);
+            LOGGER.info("Node " + nodeId + " is healthy again");
+        }
+    }
 
-            if(!currentHealth && previousHealth) {
-                LOGGER.warning("Node " + node.getNodeId() + " is now unhealthy");
-                notifyNodeFailure(node.getNodeId());
-            } else if(currentHealth && !previousHealth) {
-                LOGGER.warning("Node " + node.getNodeId() + " is now healthy");
-                node.setLastHeartbeat(System.currentTimeMillis());
+    /**
+     * Combines the local failure detector with the gossiped membership. Peers suspecting a node or declaring
+     * it dead only make it SUSPECT: gossip gives up on a node after a few seconds of silence, well within a
+     * long GC pause, so it is only DEAD once the failure detector agrees. A node that announced it left is
+     * gone for good.
+     */
+    public PhiAccrualFailureDetector.State getNodeState(String nodeId) {
+        PhiAccrualFailureDetector.State state = failureDetector.getState(nodeId, System.currentTimeMillis());
+        Member.State gossipState = gossipStates.get(nodeId);
+        if(gossipState == Member.State.LEFT) {
+            return PhiAccrualFailureDetector.State.DEAD;
+        }
+        if(gossipState != null && gossipState != Member.State.ALIVE && state == PhiAccrualFailureDetector.State.ALIVE) {
+            return PhiAccrualFailureDetector.State.SUSPECT;
+        }
+        return state;
+    }
+
+    /**
+     * Follows the gossiped membership view: storage nodes that join the cluster are registered, and what
+     * their peers say about them is weighed in by {@link #getNodeState}.
+     */
+    @Override
+    public void onMemberUpdate(Member member) {
+        if(member.getRole() != Member.Role.STORAGE) {
+            return;
+        }
+
+        String nodeId = member.getId();
+        Node node = nodes.get(nodeId);
+        if(node == null) {
+            if(member.getState() != Member.State.ALIVE) {
+                return;
             }
+            node = new Node(member.getHost(), member.getHttpPort());
+            node.setNodeId(nodeId);
+            registerNode(node);
         }
 
-        if(currentHealth) {
-            node.setLastHeartbeat(System.currentTimeMillis());
+        gossipStates.put(nodeId, member.getState());
+        if(getNodeState(nodeId) == PhiAccrualFailureDetector.State.ALIVE) {
+            deadNodes.remove(nodeId);
+            if(!node.isHealthy()) {
+                node.setHealthy(true);
+                LOGGER.info("Node " + nodeId + " is alive again according to its peers");
+            }
+        } else {
+            evaluateNode(node);
+        }
+    }
+
+    public double getNodePhi(String nodeId) {
+        return failureDetector.phi(nodeId, System.currentTimeMillis());
+    }
+
+    /**
+     * Applies the failure detector's verdict to a node. A suspected node is only taken out of
+     * placement and reads; failure listeners, which start re-replication, are told once it is dead.
+     */
+    public void evaluateNode(Node node) {
+        String nodeId = node.getNodeId();
+        if(!failureDetector.isTracked(nodeId) && !gossipStates.containsKey(nodeId)) {
+            return;
+        }
+
+        switch(getNodeState(nodeId)) {
+            case SUSPECT -> {
+                if(node.isHealthy()) {
+                    node.setHealthy(false);
+                    LOGGER.warning(String.format("Node %s is suspected (phi %.1f)", nodeId, getNodePhi(nodeId)));
+                }
+            }
+            case DEAD -> {
+                node.setHealthy(false);
+                if(deadNodes.add(nodeId)) {
+                    LOGGER.warning(String.format("Node %s is dead (phi %.1f)", nodeId, getNodePhi(nodeId)));
+                    notifyNodeFailure(nodeId);
+                }
+            }
+            case ALIVE -> { }
+        }
+    }
+
+    public void evaluateNodeStates() {
+        for(Node node : nodes.values()) {
+            evaluateNode(node);
+        }
+    }
+
+    public void checkNodeHealth(Node node) {
+        if(node == null) return;
+
+        if(isNodeResponsive(node)) {
+            recordHeartbeat(node.getNodeId(), POLL_INTERVAL_MS);
+        } else {
+            evaluateNode(node);
+        }
+    }
+
+    /**
+     * Probes nodes concurrently and waits for all of them. Nodes pushing heartbeats are skipped,
+     * their liveness comes from the heartbeats themselves.
+     */
+    public void checkNodesHealth(List<Node> nodesToCheck) {
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+        for(Node node : nodesToCheck) {
+            if(!node.isPushingHeartbeats()) {
+                checks.add(CompletableFuture.runAsync(() -> checkNodeHealth(node), healthCheckExecutor));
+            }
         }
+        CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).join();
     }
 
     private boolean isNodeResponsive(Node node) {
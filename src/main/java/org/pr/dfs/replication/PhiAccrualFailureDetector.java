@@ -0,0 +1,175 @@
+package org.pr.dfs.replication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.), as used by Cassandra and Akka.
+ *
+ * Instead of a yes/no timeout it keeps a window of each node's heartbeat inter-arrival times and turns
+ * the time since the last heartbeat into a suspicion level phi: phi = -log10(P(a heartbeat arrives this
+ * late)), using a normal approximation of the observed intervals. phi 1 means a 10% chance the node is
+ * merely slow, phi 8 a 0.000001% chance. Nodes heartbeating every 3s and nodes polled every 30s are
+ * judged against their own rhythm.
+ *
+ * Two thresholds separate the states: past the suspect threshold a node is avoided for new work; it is
+ * only declared dead, which starts re-replication, once phi stays past the dead threshold even after
+ * allowing an acceptable pause (a long GC or a slow disk flush) on top of the usual interval.
+ */
+public class PhiAccrualFailureDetector {
+
+    public enum State { ALIVE, SUSPECT, DEAD }
+
+    public static final double DEFAULT_SUSPECT_THRESHOLD = 5.0;
+    public static final double DEFAULT_DEAD_THRESHOLD = 12.0;
+    public static final long DEFAULT_MIN_STD_DEV_MS = 500;
+    public static final long DEFAULT_ACCEPTABLE_PAUSE_MS = 20000;
+    private static final int WINDOW_SIZE = 100;
+
+    private static class ArrivalWindow {
+        private final long[] intervals = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private double sum;
+        private double sumOfSquares;
+        private volatile long lastArrival;
+        private boolean assumed; // Seeded by expect(), nothing heard from the node yet
+
+        synchronized void add(long interval) {
+            if(count == WINDOW_SIZE) {
+                long evicted = intervals[next];
+                sum -= evicted;
+                sumOfSquares -= (double) evicted * evicted;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW_SIZE;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+
+        synchronized double mean() {
+            return sum / count;
+        }
+
+        synchronized double standardDeviation() {
+            double mean = sum / count;
+            return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+        }
+    }
+
+    private final double suspectThreshold;
+    private final double deadThreshold;
+    private final long minStdDevMs;
+    private final long acceptablePauseMs;
+    private final Map<String, ArrivalWindow> windows = new ConcurrentHashMap<>();
+
+    public PhiAccrualFailureDetector() {
+        this(DEFAULT_SUSPECT_THRESHOLD, DEFAULT_DEAD_THRESHOLD, DEFAULT_MIN_STD_DEV_MS, DEFAULT_ACCEPTABLE_PAUSE_MS);
+    }
+
+    public PhiAccrualFailureDetector(double suspectThreshold, double deadThreshold, long minStdDevMs, long acceptablePauseMs) {
+        if(deadThreshold < suspectThreshold) {
+            throw new IllegalArgumentException("Dead threshold must not be below the suspect threshold");
+        }
+        this.suspectThreshold = suspectThreshold;
+        this.deadThreshold = deadThreshold;
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+    }
+
+    /**
+     * Records a heartbeat.
+     * @param expectedIntervalMs how often heartbeats are expected, used to seed the window of a new node
+     */
+    public void heartbeat(String nodeId, long expectedIntervalMs, long nowMs) {
+        ArrivalWindow window = windows.get(nodeId);
+        if(window == null || window.assumed) {
+            // The first heartbeat sets the node's own rhythm, replacing the one assumed by expect()
+            ArrivalWindow seeded = seed(expectedIntervalMs, nowMs, false);
+            boolean installed = window == null
+                    ? windows.putIfAbsent(nodeId, seeded) == null
+                    : windows.replace(nodeId, window, seeded);
+            if(installed) {
+                return;
+            }
+            window = windows.get(nodeId);
+            if(window == null) {
+                return; // Removed meanwhile
+            }
+        }
+
+        synchronized(window) {
+            long interval = nowMs - window.lastArrival;
+            if(interval > 0) {
+                window.add(interval);
+            }
+            window.lastArrival = nowMs;
+        }
+    }
+
+    /**
+     * Starts tracking a node nothing was heard from yet, as if it had sent a heartbeat now. A node that stays
+     * silent is then suspected and declared dead like one that stopped sending heartbeats.
+     * @param expectedIntervalMs how often the node is assumed to be heard from until its first heartbeat
+     */
+    public void expect(String nodeId, long expectedIntervalMs, long nowMs) {
+        windows.computeIfAbsent(nodeId, k -> seed(expectedIntervalMs, nowMs, true));
+    }
+
+    /**
+     * A window with two samples around the expected interval, so a node that dies right after its first
+     * heartbeat is still detected.
+     */
+    private static ArrivalWindow seed(long expectedIntervalMs, long nowMs, boolean assumed) {
+        ArrivalWindow seeded = new ArrivalWindow();
+        seeded.add(expectedIntervalMs - expectedIntervalMs / 4);
+        seeded.add(expectedIntervalMs + expectedIntervalMs / 4);
+        seeded.lastArrival = nowMs;
+        seeded.assumed = assumed;
+        return seeded;
+    }
+
+    /**
+     * @return the suspicion level of a node, 0 for nodes that never sent a heartbeat
+     */
+    public double phi(String nodeId, long nowMs) {
+        ArrivalWindow window = windows.get(nodeId);
+        return window == null ? 0.0 : phi(window, nowMs - window.lastArrival);
+    }
+
+    public State getState(String nodeId, long nowMs) {
+        ArrivalWindow window = windows.get(nodeId);
+        if(window == null) {
+            return State.ALIVE;
+        }
+        long elapsed = nowMs - window.lastArrival;
+        if(phi(window, elapsed - acceptablePauseMs) >= deadThreshold) {
+            return State.DEAD;
+        }
+        return phi(window, elapsed) >= suspectThreshold ? State.SUSPECT : State.ALIVE;
+    }
+
+    public boolean isTracked(String nodeId) {
+        return windows.containsKey(nodeId);
+    }
+
+    public void remove(String nodeId) {
+        windows.remove(nodeId);
+    }
+
+    private double phi(ArrivalWindow window, long elapsedMs) {
+        if(elapsedMs <= 0) {
+            return 0.0;
+        }
+        double mean = window.mean();
+        double stdDev = Math.max(window.standardDeviation(), minStdDevMs);
+
+        // Logistic approximation of the normal CDF, accurate to about 1e-4 and cheap to evaluate
+        double y = (elapsedMs - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double pLater = elapsedMs > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+        return -Math.log10(Math.max(pLater, Double.MIN_VALUE));
+    }
+}
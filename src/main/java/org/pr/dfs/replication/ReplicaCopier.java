@@ -0,0 +1,11 @@
+package org.pr.dfs.replication;
+
+import org.pr.dfs.model.Node;
+
+/**
+ * Copies one replica of a file from a node holding it to a node that does not.
+ */
+@FunctionalInterface
+public interface ReplicaCopier {
+    boolean copy(String filePath, Node source, Node target) throws Exception;
+}
@@ -4,6 +4,10 @@ package org.pr.dfs.replication;
 import org.pr.dfs.model.FileOperationResult;
 import org.pr.dfs.model.Node;
 import org.pr.dfs.model.ReplicationStatus;
+import org.pr.dfs.namespace.NamespaceTree;
+import org.pr.dfs.utils.PathDictionary;
+import org.pr.dfs.utils.RoaringBitmap;
+import org.pr.dfs.utils.StripedLocks;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -21,23 +25,40 @@ public class ReplicationManager {
     private static final int REPLICATION_TIMEOUT_MS = 30000;
     private static final int MAX_REPLICATION_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 1000;
+    private static final int FILE_LOCK_STRIPES = 256;
 
     private final ExecutorService replicationExecutor;
 
+    // Keyed by the same string each status carries as its path, so a path id key would not save the string
     private final ConcurrentHashMap<String, ReplicationStatus> fileReplicationStatus;
-    private final ConcurrentHashMap<String, Set<String>> nodeToFilesMap; // Maps files to their replica nodes
-    private final ConcurrentHashMap<String, Object> fileLocks;
+    private final ConcurrentHashMap<String, RoaringBitmap> nodeToFilesMap; // Path ids per node, only without a namespace tree
+    private final StripedLocks fileLocks;
     private final ConcurrentHashMap<String, CompletableFuture<Boolean>> pendingReplications;
 
     private final int defaultReplicationFactor;
     private final NodeManager nodeManager;
+    private final NamespaceTree namespaceTree; // Authoritative replica locations when available, may be null
+    private volatile ReplicationWorkQueue workQueue; // Durable recovery queue when configured, may be null
+    private final Path storageRoot; // Holds each node's store under its node id, read by the default copier
+    private volatile ReplicaCopier replicaCopier = this::copyBetweenLocalStores;
 
     public ReplicationManager(int replicationFactor, NodeManager nodeManager) {
+        this(replicationFactor, nodeManager, null);
+    }
+
+    public ReplicationManager(int replicationFactor, NodeManager nodeManager, NamespaceTree namespaceTree) {
+        this(replicationFactor, nodeManager, namespaceTree, "./storage");
+    }
+
+    public ReplicationManager(int replicationFactor, NodeManager nodeManager, NamespaceTree namespaceTree,
+                              String storagePath) {
         this.defaultReplicationFactor = Math.max(1, replicationFactor);
+        this.storageRoot = Paths.get(storagePath);
         this.nodeManager = nodeManager;
+        this.namespaceTree = namespaceTree;
         this.fileReplicationStatus = new ConcurrentHashMap<>();
         this.nodeToFilesMap = new ConcurrentHashMap<>();
-        this.fileLocks = new ConcurrentHashMap<>();
+        this.fileLocks = new StripedLocks(FILE_LOCK_STRIPES);
         this.pendingReplications = new ConcurrentHashMap<>();
         this.replicationExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
 
@@ -62,16 +83,11 @@ public class ReplicationManager {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
         pendingReplications.put(filePath, future);
 
-        // Get lock for this file
-        Object fileLock = fileLocks.computeIfAbsent(filePath, k -> new Object());
-
         // Submit replication task
         replicationExecutor.submit(() -> {
-            try {
-                synchronized (fileLock) {
-                    boolean success = doReplicateFile(filePath, targetReplicationFactor);
-                    future.complete(success);
-                }
+            try(StripedLocks.Held ignored = lockForReplication(filePath)) {
+                boolean success = doReplicateFile(filePath, targetReplicationFactor);
+                future.complete(success);
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Replication failed for " + filePath, e);
                 future.completeExceptionally(e);
@@ -84,67 +100,76 @@ public class ReplicationManager {
     }
 
     private boolean doReplicateFile(String filePath, int targetReplicationFactor) {
-        try {
-            // Get current replication status
-            ReplicationStatus status = fileReplicationStatus.get(filePath);
-            int currentReplicas = status.getCurrentReplicas();
-            int neededReplicas = Math.max(0, targetReplicationFactor - currentReplicas);
-
-            if(neededReplicas <= 0) {
-                LOGGER.info("File " + filePath + " already has sufficient replicas");
-                return true;
-            }
+        // Get current replication status
+        ReplicationStatus status = getReplicationStatus(filePath);
+        int currentReplicas = status.getCurrentReplicas();
+        int neededReplicas = Math.max(0, targetReplicationFactor - currentReplicas);
 
-            LOGGER.info("Replicating " + filePath + ": need " + neededReplicas + " more replicas to achieve factor " + targetReplicationFactor);
+        if(neededReplicas <= 0) {
+            LOGGER.info("File " + filePath + " already has sufficient replicas");
+            return true;
+        }
 
-            // Get available nodes for replication
-            List<Node> availableNodes = new ArrayList<>(nodeManager.getHealthyNodes());
-            availableNodes.removeIf(node -> status.getNodeIds().contains(node.getNodeId()));
+        LOGGER.info("Replicating " + filePath + ": need " + neededReplicas + " more replicas to achieve factor " + targetReplicationFactor);
 
-            if(availableNodes.isEmpty()) {
-                LOGGER.info("No available nodes for replication of " + filePath);
-                return false;
+        // Surviving replicas stream the file to the new nodes, least loaded first
+        List<Node> sources = new ArrayList<>();
+        for(String nodeId : status.getNodeIds()) {
+            Node node = nodeManager.getNodeById(nodeId);
+            if(node != null && node.isHealthy()) {
+                sources.add(node);
             }
+        }
+        sources.sort(Comparator.comparingLong(Node::estimatedReadWaitMicros));
 
-            // Read files data once
-            byte[] fileData = Files.readAllBytes(Paths.get(filePath));
-            int successCount = 0;
-
-            // Try to replicate to as many as needed
-            for(int i = 0;i< Math.min(neededReplicas, availableNodes.size()); i++) {
-                Node targetNode = availableNodes.get(i);
-                if(replicateToNodeWithRetry(filePath, fileData, targetNode)) {
-                    successCount++;
+        if(sources.isEmpty()) {
+            LOGGER.warning("No live replica of " + filePath + " to replicate from");
+            return false;
+        }
 
-                    // Add node to replication status
-                    status.addNode(targetNode);
+        // Get available nodes for replication
+        List<Node> availableNodes = new ArrayList<>(nodeManager.getHealthyNodes());
+        availableNodes.removeIf(node -> status.getNodeIds().contains(node.getNodeId()));
 
-                    // Update node-to-files mapping
-                    addFileToNodeMapping(filePath, targetNode.getNodeId());
+        if(availableNodes.isEmpty()) {
+            LOGGER.info("No available nodes for replication of " + filePath);
+            return false;
+        }
 
-                    LOGGER.info("Successfully replicated " + filePath + " to " + targetNode.getNodeId());
-                }
-            }
+        int successCount = 0;
 
-            // Update replication status
-            fileReplicationStatus.put(filePath, status);
+        // Try to replicate to as many as needed, spreading the reads over the sources
+        for(int i = 0;i< Math.min(neededReplicas, availableNodes.size()); i++) {
+            Node targetNode = availableNodes.get(i);
+            Node sourceNode = sources.get(i % sources.size());
+            if(replicateToNodeWithRetry(filePath, sourceNode, targetNode)) {
+                successCount++;
 
-            LOGGER.info("Replication completed for " + filePath + ": " + successCount + "/" + neededReplicas + " successful");
+                // Add node to replication status
+                status.addNode(targetNode);
 
-            return successCount >= neededReplicas;
+                // Update node-to-files mapping
+                addFileToNodeMapping(filePath, targetNode.getNodeId());
+                targetNode.addHostedFile(filePath);
 
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error replicating file" + filePath, e);
-            return false;
+                LOGGER.info("Successfully replicated " + filePath + " from " + sourceNode.getNodeId() + " to " + targetNode.getNodeId());
+            }
         }
+
+        // Update replication status
+        fileReplicationStatus.put(filePath, status);
+
+        LOGGER.info("Replication completed for " + filePath + ": " + successCount + "/" + neededReplicas + " successful");
+
+        return successCount >= neededReplicas;
     }
 
-    private boolean replicateToNodeWithRetry(String filePath, byte[] fileData, Node targetNode) {
+    private boolean replicateToNodeWithRetry(String filePath, Node sourceNode, Node targetNode) {
         for(int attempt = 0; attempt < MAX_REPLICATION_RETRIES; attempt++) {
             try {
-                LOGGER.info("Replicating " + filePath + " to node " + targetNode.getNodeId() + " (attempt " + (attempt + 1) + ")");
+                LOGGER.info("Replicating " + filePath + " from node " + sourceNode.getNodeId() + " to node " + targetNode.getNodeId() + " (attempt " + (attempt + 1) + ")");
 
-                boolean success = targetNode.transferFile(filePath, fileData);
+                boolean success = replicaCopier.copy(filePath, sourceNode, targetNode);
 
                 if(success) {
                     return true;
@@ -156,12 +181,15 @@ public class ReplicationManager {
                 if(attempt < MAX_REPLICATION_RETRIES - 1) {
                     Thread.sleep(RETRY_DELAY_MS * (attempt + 1));
                 }
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
             } catch (Exception e) {
                 LOGGER.log(Level.WARNING, "Error in replication attempt " + (attempt + 1 ) + " for " + filePath + " to node " + targetNode.getNodeId(), e);
 
                 // Check of node is still healthy
-                if(!nodeManager.isNodeHealthy(targetNode.getNodeId())) {
-                    LOGGER.warning("Node " + targetNode.getNodeId() + " is unhealthy, aborting replication");
+                if(!nodeManager.isNodeHealthy(targetNode.getNodeId()) || !nodeManager.isNodeHealthy(sourceNode.getNodeId())) {
+                    LOGGER.warning("Node " + sourceNode.getNodeId() + " or " + targetNode.getNodeId() + " is unhealthy, aborting replication");
                     return false;
                 }
 
@@ -180,6 +208,19 @@ public class ReplicationManager {
         return false;
     }
 
+    /**
+     * Default copier for nodes whose storage is on this host's disk, as with the standalone file server.
+     */
+    private boolean copyBetweenLocalStores(String filePath, Node source, Node target) throws IOException {
+        Path sourceRoot = storageRoot.resolve(source.getNodeId()).normalize();
+        Path sourcePath = sourceRoot.resolve(filePath).normalize();
+        if(!sourcePath.startsWith(sourceRoot)) {
+            throw new IOException("Path leaves the store of " + source.getNodeId() + ": " + filePath);
+        }
+        byte[] fileData = Files.readAllBytes(sourcePath);
+        return target.transferFile(filePath, fileData);
+    }
+
     public boolean handleFileDeletion(String filePath) {
         ReplicationStatus status = fileReplicationStatus.get(filePath);
         if(status != null || status.getNodeIds().isEmpty()) {
@@ -221,6 +262,16 @@ public class ReplicationManager {
         return fileReplicationStatus.computeIfAbsent(filePath, path -> {
             ReplicationStatus status = new ReplicationStatus(path, defaultReplicationFactor);
 
+            if(namespaceTree != null && namespaceTree.exists(path)) {
+                for(String nodeId : namespaceTree.getReplicaLocations(path)) {
+                    Node node = nodeManager.getNodeById(nodeId);
+                    if(node != null && node.isHealthy()) {
+                        status.addNode(node);
+                    }
+                }
+                return status;
+            }
+
             for(Node node : nodeManager.getHealthyNodes()) {
                 if(node.hasFile(filePath)) {
                     status.addNode(node);
@@ -231,22 +282,226 @@ public class ReplicationManager {
         });
     }
 
+    /**
+     * Records a replica created outside {@link #replicateFile}, e.g. by the rebalancer.
+     */
+    public void recordReplicaAdded(String filePath, Node node) {
+        addFileToNodeMapping(filePath, node.getNodeId());
+        node.addHostedFile(filePath);
+        ReplicationStatus status = fileReplicationStatus.get(filePath);
+        if(status != null) {
+            status.addNode(node);
+        }
+    }
+
+    public void recordReplicaRemoved(String filePath, Node node) {
+        removeFileFromNodeMapping(filePath, node.getNodeId());
+        node.removeHostedFile(filePath);
+        ReplicationStatus status = fileReplicationStatus.get(filePath);
+        if(status != null) {
+            status.removeNode(node.getNodeId());
+        }
+    }
+
     private void addFileToNodeMapping(String filePath, String nodeId) {
-        nodeToFilesMap.computeIfAbsent(nodeId, k -> ConcurrentHashMap.newKeySet()).add(filePath);
+        if(namespaceTree == null) {
+            addToNodeFiles(nodeToFilesMap.computeIfAbsent(nodeId, k -> new RoaringBitmap()), filePath);
+            return;
+        }
+        try {
+            namespaceTree.addReplica(filePath, nodeId);
+        } catch(IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record replica of " + filePath + " on " + nodeId, e);
+        }
     }
 
     private void removeFileFromNodeMapping(String filePath, String nodeId) {
-        Set<String> files = nodeToFilesMap.get(nodeId);
-        if(files != null) {
-            files.remove(filePath);
+        if(namespaceTree == null) {
+            RoaringBitmap files = nodeToFilesMap.get(nodeId);
+            if(files != null) {
+                removeFromNodeFiles(files, filePath);
+            }
+            return;
+        }
+        try {
+            namespaceTree.removeReplica(filePath, nodeId);
+        } catch(IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove replica of " + filePath + " on " + nodeId, e);
         }
     }
 
+    /**
+     * Rebuilds everything known about a node's replicas from its full block report.
+     * @param reportedSizes path to size of every file the node holds
+     */
+    public NamespaceTree.ReplicaChanges processFullBlockReport(String nodeId, Map<String, Long> reportedSizes) throws IOException {
+        NamespaceTree.ReplicaChanges changes;
+        if(namespaceTree != null) {
+            changes = namespaceTree.applyFullReport(nodeId, reportedSizes);
+        } else {
+            changes = new NamespaceTree.ReplicaChanges();
+            RoaringBitmap files = nodeToFilesMap.computeIfAbsent(nodeId, k -> new RoaringBitmap());
+            Set<String> previous = toPaths(files);
+            for(String path : reportedSizes.keySet()) {
+                if(!previous.remove(PathDictionary.normalize(path))) {
+                    addToNodeFiles(files, path);
+                    changes.getAdded().add(path);
+                }
+            }
+            for(String path : previous) {
+                removeFromNodeFiles(files, path);
+                changes.getRemoved().add(path);
+            }
+        }
+        applyToReplicationStatus(nodeId, changes);
+        return changes;
+    }
+
+    /**
+     * Applies the files a node gained and lost since its previous block report.
+     */
+    public NamespaceTree.ReplicaChanges processIncrementalBlockReport(String nodeId, Map<String, Long> addedSizes,
+                                                                     Collection<String> removedPaths) throws IOException {
+        NamespaceTree.ReplicaChanges changes;
+        if(namespaceTree != null) {
+            changes = namespaceTree.applyIncrementalReport(nodeId, addedSizes, removedPaths);
+        } else {
+            changes = new NamespaceTree.ReplicaChanges();
+            changes.getAdded().addAll(addedSizes.keySet());
+            changes.getRemoved().addAll(removedPaths);
+            RoaringBitmap files = nodeToFilesMap.computeIfAbsent(nodeId, k -> new RoaringBitmap());
+            changes.getAdded().forEach(path -> addToNodeFiles(files, path));
+            changes.getRemoved().forEach(path -> removeFromNodeFiles(files, path));
+        }
+        applyToReplicationStatus(nodeId, changes);
+        return changes;
+    }
+
+    private void applyToReplicationStatus(String nodeId, NamespaceTree.ReplicaChanges changes) {
+        Node node = nodeManager.getNodeById(nodeId);
+        // Statuses not yet cached are built lazily from the updated maps
+        for(String path : changes.getAdded()) {
+            ReplicationStatus status = fileReplicationStatus.get(path);
+            if(status != null && node != null) {
+                status.addNode(node);
+            }
+        }
+        for(String path : changes.getRemoved()) {
+            ReplicationStatus status = fileReplicationStatus.get(path);
+            if(status != null) {
+                status.removeNode(nodeId);
+            }
+        }
+    }
+
+    /**
+     * @return the paths of the replicas on a node; without a namespace tree they are normalized by
+     *         {@link PathDictionary}
+     */
     public Set<String> getFilesOnNode(String nodeId) {
-        return nodeToFilesMap.getOrDefault(nodeId, Collections.emptySet());
+        if(namespaceTree != null) {
+            return namespaceTree.getFilesOnNode(nodeId);
+        }
+        RoaringBitmap files = nodeToFilesMap.get(nodeId);
+        return files != null ? toPaths(files) : Collections.emptySet();
+    }
+
+    private static void addToNodeFiles(RoaringBitmap files, String filePath) {
+        PathDictionary paths = PathDictionary.shared();
+        int id = paths.intern(filePath);
+        boolean added;
+        synchronized(files) {
+            added = files.add(id);
+        }
+        if(!added) {
+            paths.release(id);
+        }
+    }
+
+    private static void removeFromNodeFiles(RoaringBitmap files, String filePath) {
+        PathDictionary paths = PathDictionary.shared();
+        // Looked up under the lock, so the id cannot be recycled for another path in between
+        synchronized(files) {
+            int id = paths.find(filePath);
+            if(id != PathDictionary.NO_ID && files.remove(id)) {
+                paths.release(id);
+            }
+        }
+    }
+
+    private static Set<String> toPaths(RoaringBitmap files) {
+        PathDictionary paths = PathDictionary.shared();
+        synchronized(files) {
+            Set<String> result = new HashSet<>(files.getCardinality() * 2);
+            files.forEach(id -> result.add(paths.path(id)));
+            return result;
+        }
+    }
+
+    /**
+     * Sets how a replica is copied between nodes, e.g. by asking the source node to push it to the target.
+     */
+    public void setReplicaCopier(ReplicaCopier replicaCopier) {
+        this.replicaCopier = replicaCopier;
+    }
+
+    /**
+     * Routes recovery and auto-replication through the given queue instead of replicating everything at once.
+     */
+    public void setWorkQueue(ReplicationWorkQueue workQueue) {
+        this.workQueue = workQueue;
+    }
+
+    public ReplicationWorkQueue getWorkQueue() {
+        return workQueue;
+    }
+
+    /**
+     * Keeps other replication of the same file out until the returned lock is closed.
+     */
+    public StripedLocks.Held lockForReplication(String filePath) {
+        return fileLocks.write(filePath);
+    }
+
+    public Map<String, Object> getFileLockStats() {
+        return fileLocks.getStats();
+    }
+
+    /**
+     * Asks for a file to be brought up to the given replication factor. With a work queue the intent is
+     * journaled before this returns, so callers can acknowledge a write knowing the missing replicas will
+     * be created even across a coordinator restart.
+     */
+    public void requestReplication(String filePath, int replicationFactor) throws IOException {
+        ReplicationWorkQueue queue = workQueue;
+        if(queue == null) {
+            replicateFile(filePath, replicationFactor);
+            return;
+        }
+        getReplicationStatus(filePath).setReplicationFactor(Math.max(1, replicationFactor));
+        queue.enqueue(filePath, replicationFactor);
+    }
+
+    public int getReplicationFactor(String filePath) {
+        ReplicationStatus status = fileReplicationStatus.get(filePath);
+        return status != null ? status.getReplicationFactor() : defaultReplicationFactor;
     }
 
     public CompletableFuture<FileOperationResult> recoverFromNodeFailure(String nodeId) {
+        ReplicationWorkQueue queue = workQueue;
+        if(queue != null) {
+            try {
+                Set<String> filesToRecover = new HashSet<>(getFilesOnNode(nodeId));
+                int queued = queue.enqueueAll(filesToRecover);
+                FileOperationResult result = new FileOperationResult(true, "Queued " + queued + "/" + filesToRecover.size() + " files from failed node " + nodeId + " for re-replication");
+                LOGGER.info(result.getMessage());
+                return CompletableFuture.completedFuture(result);
+            } catch(IOException e) {
+                LOGGER.log(Level.SEVERE, "Error queueing recovery for node " + nodeId, e);
+                return CompletableFuture.completedFuture(new FileOperationResult(false, "Recovery failed for node " + nodeId));
+            }
+        }
+
         CompletableFuture<FileOperationResult> future = new CompletableFuture<>();
 
         replicationExecutor.submit(() -> {
@@ -306,14 +561,31 @@ public class ReplicationManager {
 
     public void checkAndReplicateFiles() {
         Map<String, ReplicationStatus> statusMap = new HashMap<>(fileReplicationStatus);
+        ReplicationWorkQueue queue = workQueue;
+        List<String> underReplicated = new ArrayList<>();
 
         for(Map.Entry<String, ReplicationStatus> entry : statusMap.entrySet()) {
             String filePath = entry.getKey();
             ReplicationStatus status = entry.getValue();
 
             if(status.getCurrentReplicas() < status.getReplicationFactor()) {
-                LOGGER.info("Auto-replicating " + filePath + " to meet factor " + status.getReplicationFactor());
-                replicateFile(filePath, status.getReplicationFactor());
+                if(queue != null) {
+                    underReplicated.add(filePath);
+                } else {
+                    LOGGER.info("Auto-replicating " + filePath + " to meet factor " + status.getReplicationFactor());
+                    replicateFile(filePath, status.getReplicationFactor());
+                }
+            }
+        }
+
+        if(!underReplicated.isEmpty()) {
+            try {
+                int queued = queue.enqueueAll(underReplicated);
+                if(queued > 0) {
+                    LOGGER.info("Queued " + queued + " under-replicated files");
+                }
+            } catch(IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to queue under-replicated files", e);
             }
         }
     }
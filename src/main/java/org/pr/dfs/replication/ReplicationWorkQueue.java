@@ -0,0 +1,475 @@
+package org.pr.dfs.replication;
+
+import org.pr.dfs.model.Node;
+import org.pr.dfs.namespace.NamespaceEntry;
+import org.pr.dfs.namespace.NamespaceTree;
+import org.pr.dfs.utils.AppendOnlyLog;
+import org.pr.dfs.utils.StripedLocks;
+import org.pr.dfs.utils.TokenBucket;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable, prioritized queue of files that need more replicas, drained by a bounded set of workers.
+ *
+ * Files are ordered by exposure: fewest live replicas first, then largest deficit, then oldest. Each task
+ * adds one replica and a file still short afterwards is queued again at its new priority, so every file
+ * down to its last copy gets a second one before any file gets its third. Priorities are re-checked when a
+ * file is taken, since nodes may have failed or come back in the meantime.
+ *
+ * Copies are bounded globally, per node (counting both source and target) and by a bandwidth budget. The
+ * set of queued files is journaled, so recovery resumes after a coordinator restart. Writes record their
+ * replication intent here before they are acknowledged, with the factor the client asked for, so a file
+ * stored on fewer nodes than requested is brought up to its factor even if the coordinator crashes first.
+ */
+public class ReplicationWorkQueue implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(ReplicationWorkQueue.class.getName());
+
+    private static final byte OP_ENQUEUE = 1;
+    private static final byte OP_DONE = 2;
+    private static final byte OP_INTENT = 3; // Enqueue with a replication factor
+    private static final long MIN_RETRY_DELAY_MS = 5000;
+    private static final long MAX_RETRY_DELAY_MS = 300000;
+    private static final int MAX_SCAN = 64; // Tasks looked at per dispatch, bounding how long the queue stays locked
+    private static final int COMPACT_THRESHOLD = 10000;
+
+    private static class Task implements Comparable<Task> {
+        private final String path;
+        private final long sequence;
+        private int liveReplicas;
+        private int deficit;
+        private int attempts;
+        private long notBefore;
+
+        Task(String path, long sequence) {
+            this.path = path;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if(liveReplicas != other.liveReplicas) {
+                return Integer.compare(liveReplicas, other.liveReplicas);
+            }
+            if(deficit != other.deficit) {
+                return Integer.compare(other.deficit, deficit);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static class Dispatch {
+        private final Task task;
+        private final Node source;
+        private final Node target;
+        private final long size;
+
+        Dispatch(Task task, Node source, Node target, long size) {
+            this.task = task;
+            this.source = source;
+            this.target = target;
+            this.size = size;
+        }
+    }
+
+    private final ReplicationManager replicationManager;
+    private final NodeManager nodeManager;
+    private final NamespaceTree namespaceTree;
+    private final ReplicaCopier copier;
+    private final int maxConcurrentCopies;
+    private final int maxCopiesPerNode;
+    private final TokenBucket bandwidth;
+
+    private final Path checkpointFile;
+    private final AppendOnlyLog journal;
+    private final PriorityQueue<Task> ready = new PriorityQueue<>();
+    private final List<Task> delayed = new ArrayList<>();
+    private final Map<Task, Set<String>> parked = new LinkedHashMap<>(); // Waiting on the busy nodes it maps to
+    private final Map<String, Integer> pending = new LinkedHashMap<>(); // Queued, delayed or in flight, to requested factor or 0
+    private final Map<String, Integer> copiesPerNode = new HashMap<>();
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private long nextSequence;
+    private int inFlight;
+    private volatile boolean running;
+
+    private final AtomicLong completedCopies = new AtomicLong();
+    private final AtomicLong failedCopies = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    public ReplicationWorkQueue(Path directory, ReplicationManager replicationManager, NodeManager nodeManager,
+                                NamespaceTree namespaceTree, ReplicaCopier copier, int maxConcurrentCopies,
+                                int maxCopiesPerNode, long bandwidthBytesPerSecond) throws IOException {
+        this.replicationManager = replicationManager;
+        this.nodeManager = nodeManager;
+        this.namespaceTree = namespaceTree;
+        this.copier = copier;
+        this.maxConcurrentCopies = maxConcurrentCopies;
+        this.maxCopiesPerNode = Math.max(1, maxCopiesPerNode); // A node at its limit must have a copy to wait for
+        this.bandwidth = new TokenBucket(bandwidthBytesPerSecond);
+
+        Files.createDirectories(directory);
+        this.checkpointFile = directory.resolve("replication-queue.checkpoint");
+        this.journal = new AppendOnlyLog(directory.resolve("replication-queue.log"));
+
+        AppendOnlyLog.readCheckpoint(checkpointFile, record -> apply(record, pending));
+        journal.replay(record -> apply(record, pending));
+        for(String path : pending.keySet()) {
+            ready.add(prioritize(new Task(path, nextSequence++)));
+        }
+        if(!pending.isEmpty()) {
+            LOGGER.info("Resuming re-replication of " + pending.size() + " files");
+        }
+
+        this.workers = Executors.newFixedThreadPool(maxConcurrentCopies, r -> {
+            Thread thread = new Thread(r, "replication-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatchLoop, "replication-dispatcher");
+        this.dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        dispatcher.start();
+    }
+
+    /**
+     * Queues files for re-replication. Files already queued keep their place.
+     * @return the number of newly queued files
+     */
+    public synchronized int enqueueAll(Collection<String> paths) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        List<Task> tasks = new ArrayList<>();
+        for(String path : paths) {
+            if(pending.putIfAbsent(path, 0) == null) {
+                records.add(encode(OP_ENQUEUE, path));
+                tasks.add(prioritize(new Task(path, nextSequence++)));
+            }
+        }
+        if(records.isEmpty()) {
+            return 0;
+        }
+
+        journal.appendAll(records);
+        ready.addAll(tasks);
+        notifyAll();
+        return tasks.size();
+    }
+
+    public boolean enqueue(String path) throws IOException {
+        return enqueueAll(List.of(path)) > 0;
+    }
+
+    /**
+     * Durably records that a file should reach the given replication factor; returns once the intent is on disk.
+     * A file already queued takes the new factor.
+     */
+    public synchronized void enqueue(String path, int replicationFactor) throws IOException {
+        int factor = Math.max(1, Math.min(replicationFactor, 127));
+        Integer previous = pending.get(path);
+        if(previous != null && previous == factor) {
+            return;
+        }
+
+        journal.append(encodeIntent(path, factor));
+        pending.put(path, factor);
+        if(previous == null) {
+            ready.add(prioritize(new Task(path, nextSequence++)));
+            notifyAll();
+        }
+    }
+
+    public synchronized Map<String, Object> getStatus() {
+        Map<Integer, Integer> byLiveReplicas = new TreeMap<>();
+        for(Task task : ready) {
+            byLiveReplicas.merge(task.liveReplicas, 1, Integer::sum);
+        }
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("pendingFiles", pending.size());
+        status.put("readyFiles", ready.size());
+        status.put("waitingForRetry", delayed.size());
+        status.put("waitingForBusyNodes", parked.size());
+        status.put("readyByLiveReplicas", byLiveReplicas);
+        status.put("copiesInFlight", inFlight);
+        status.put("completedCopies", completedCopies.get());
+        status.put("failedCopies", failedCopies.get());
+        status.put("bytesCopied", bytesCopied.get());
+        status.put("maxConcurrentCopies", maxConcurrentCopies);
+        status.put("maxCopiesPerNode", maxCopiesPerNode);
+        status.put("bandwidthBytesPerSecond", bandwidth.getRate());
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdownNow();
+        try {
+            // The dispatcher journals finished files; let it stop before the journal is closed
+            dispatcher.join(5000);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    // ---- Scheduling ----
+
+    private void dispatchLoop() {
+        while(running) {
+            try {
+                Dispatch dispatch = nextDispatch();
+                if(dispatch != null) {
+                    workers.submit(() -> execute(dispatch));
+                }
+            } catch(InterruptedException e) {
+                return;
+            } catch(Exception e) {
+                LOGGER.log(Level.WARNING, "Replication dispatcher error", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for a free copy slot and returns the most urgent task whose nodes have capacity, or null if
+     * nothing can be started right now. Tasks held up only by busy nodes are parked until one of those
+     * nodes finishes a copy, so they are not scanned again on every dispatch.
+     */
+    private synchronized Dispatch nextDispatch() throws InterruptedException, IOException {
+        promoteDueTasks();
+        while(inFlight >= maxConcurrentCopies || ready.isEmpty()) {
+            wait(1000);
+            promoteDueTasks();
+        }
+
+        Set<String> busy = new HashSet<>();
+        for(int scanned = 0; scanned < MAX_SCAN && !ready.isEmpty(); scanned++) {
+            Task task = ready.poll();
+            int previousLive = task.liveReplicas;
+            int previousDeficit = task.deficit;
+            prioritize(task);
+
+            if(task.deficit <= 0 || !namespaceTree.exists(task.path)) {
+                finish(task.path);
+            } else if(task.liveReplicas == 0) {
+                // No reachable copy left; a node holding one may still come back
+                retryLater(task);
+            } else if(task.liveReplicas != previousLive || task.deficit != previousDeficit) {
+                ready.add(task);
+            } else {
+                busy.clear();
+                Dispatch dispatch = assign(task, busy);
+                if(dispatch != null) {
+                    inFlight++;
+                    copiesPerNode.merge(dispatch.source.getNodeId(), 1, Integer::sum);
+                    copiesPerNode.merge(dispatch.target.getNodeId(), 1, Integer::sum);
+                    return dispatch;
+                }
+                if(busy.isEmpty()) {
+                    // Every healthy node already holds it or is full; wait for the cluster to change
+                    retryLater(task);
+                } else {
+                    parked.put(task, new HashSet<>(busy));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the least loaded source holding the file and the least loaded target with room for it.
+     * @param busy filled with the nodes at their copy limit that would otherwise have been picked, when no
+     *             source or no target is free
+     */
+    private Dispatch assign(Task task, Set<String> busy) {
+        NamespaceEntry entry = namespaceTree.getEntry(task.path);
+        long size = entry != null ? entry.getSize() : 0;
+        Set<String> replicas = namespaceTree.getReplicaLocations(task.path);
+
+        Node source = null;
+        Node target = null;
+        List<String> busySources = new ArrayList<>();
+        List<String> busyTargets = new ArrayList<>();
+        for(Node node : nodeManager.getHealthyNodes()) {
+            boolean full = copiesPerNode.getOrDefault(node.getNodeId(), 0) >= maxCopiesPerNode;
+            if(replicas.contains(node.getNodeId())) {
+                if(full) {
+                    busySources.add(node.getNodeId());
+                } else if(source == null || node.estimatedReadWaitMicros() < source.estimatedReadWaitMicros()) {
+                    source = node;
+                }
+            } else if(hasRoom(node, size)) {
+                if(full) {
+                    busyTargets.add(node.getNodeId());
+                } else if(target == null || node.estimatedWriteWaitMicros() < target.estimatedWriteWaitMicros()) {
+                    target = node;
+                }
+            }
+        }
+        if(source != null && target != null) {
+            return new Dispatch(task, source, target, size);
+        }
+        if(target == null && busyTargets.isEmpty()) {
+            return null; // No node could take it even when idle
+        }
+        if(source == null) {
+            busy.addAll(busySources);
+        }
+        if(target == null) {
+            busy.addAll(busyTargets);
+        }
+        return null;
+    }
+
+    /**
+     * Puts the tasks waiting on either node back in line, now that it has a free copy slot.
+     */
+    private void unpark(String sourceId, String targetId) {
+        Iterator<Map.Entry<Task, Set<String>>> iterator = parked.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Task, Set<String>> entry = iterator.next();
+            if(entry.getValue().contains(sourceId) || entry.getValue().contains(targetId)) {
+                iterator.remove();
+                ready.add(entry.getKey());
+            }
+        }
+    }
+
+    private static boolean hasRoom(Node node, long size) {
+        // Nodes that have not reported their free space yet are assumed to have room
+        return node.getAvailableDiskSpace() <= 0 || node.getAvailableDiskSpace() > size;
+    }
+
+    private void execute(Dispatch dispatch) {
+        String path = dispatch.task.path;
+        boolean copied = false;
+        try {
+            bandwidth.acquire(dispatch.size);
+            try(StripedLocks.Held ignored = replicationManager.lockForReplication(path)) {
+                copied = copier.copy(path, dispatch.source, dispatch.target);
+                if(copied) {
+                    replicationManager.recordReplicaAdded(path, dispatch.target);
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(Exception e) {
+            LOGGER.log(Level.WARNING, "Copy of " + path + " from " + dispatch.source.getNodeId() + " to " +
+                    dispatch.target.getNodeId() + " failed", e);
+        }
+
+        synchronized(this) {
+            inFlight--;
+            copiesPerNode.merge(dispatch.source.getNodeId(), -1, Integer::sum);
+            copiesPerNode.merge(dispatch.target.getNodeId(), -1, Integer::sum);
+            unpark(dispatch.source.getNodeId(), dispatch.target.getNodeId());
+
+            if(copied) {
+                completedCopies.incrementAndGet();
+                bytesCopied.addAndGet(dispatch.size);
+                dispatch.task.attempts = 0;
+                // Back in line at its new priority; it is finished when taken with no deficit left
+                ready.add(prioritize(dispatch.task));
+            } else {
+                failedCopies.incrementAndGet();
+                retryLater(dispatch.task);
+            }
+            notifyAll();
+        }
+    }
+
+    private Task prioritize(Task task) {
+        int live = 0;
+        for(String nodeId : namespaceTree.getReplicaLocations(task.path)) {
+            Node node = nodeManager.getNodeById(nodeId);
+            if(node != null && node.isHealthy()) {
+                live++;
+            }
+        }
+        task.liveReplicas = live;
+        int factor = pending.getOrDefault(task.path, 0);
+        task.deficit = (factor > 0 ? factor : replicationManager.getReplicationFactor(task.path)) - live;
+        return task;
+    }
+
+    private void retryLater(Task task) {
+        long delay = Math.min(MAX_RETRY_DELAY_MS, MIN_RETRY_DELAY_MS << Math.min(task.attempts, 6));
+        delay += ThreadLocalRandom.current().nextLong(delay / 5 + 1); // Jitter, so files failed together retry apart
+        task.attempts++;
+        task.notBefore = System.currentTimeMillis() + delay;
+        delayed.add(task);
+    }
+
+    private void promoteDueTasks() {
+        long now = System.currentTimeMillis();
+        Iterator<Task> iterator = delayed.iterator();
+        while(iterator.hasNext()) {
+            Task task = iterator.next();
+            if(task.notBefore <= now) {
+                iterator.remove();
+                ready.add(prioritize(task));
+            }
+        }
+    }
+
+    private void finish(String path) throws IOException {
+        pending.remove(path);
+        journal.append(encode(OP_DONE, path));
+
+        if(journal.getRecordCount() > COMPACT_THRESHOLD && journal.getRecordCount() > 2L * pending.size()) {
+            List<byte[]> records = new ArrayList<>(pending.size());
+            pending.forEach((pendingPath, factor) ->
+                    records.add(factor > 0 ? encodeIntent(pendingPath, factor) : encode(OP_ENQUEUE, pendingPath)));
+            AppendOnlyLog.writeCheckpoint(checkpointFile, records);
+            journal.truncate();
+        }
+    }
+
+    // ---- Journal records: [op][UTF-8 path], intents [OP_INTENT][factor][UTF-8 path] ----
+
+    private static byte[] encode(byte op, String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[bytes.length + 1];
+        record[0] = op;
+        System.arraycopy(bytes, 0, record, 1, bytes.length);
+        return record;
+    }
+
+    private static byte[] encodeIntent(String path, int factor) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[bytes.length + 2];
+        record[0] = OP_INTENT;
+        record[1] = (byte) factor;
+        System.arraycopy(bytes, 0, record, 2, bytes.length);
+        return record;
+    }
+
+    private static void apply(byte[] record, Map<String, Integer> paths) {
+        if(record[0] == OP_INTENT) {
+            paths.put(new String(record, 2, record.length - 2, StandardCharsets.UTF_8), (int) record[1]);
+            return;
+        }
+        String path = new String(record, 1, record.length - 1, StandardCharsets.UTF_8);
+        if(record[0] == OP_ENQUEUE) {
+            paths.putIfAbsent(path, 0);
+        } else if(record[0] == OP_DONE) {
+            paths.remove(path);
+        } else {
+            throw new UncheckedIOException(new IOException("Unknown replication queue op: " + record[0]));
+        }
+    }
+}
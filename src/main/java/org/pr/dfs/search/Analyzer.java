@@ -0,0 +1,106 @@
+package org.pr.dfs.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns file fields into index terms and queries into the terms to look up.
+ *
+ * Text is split into lowercase tokens at anything that is not a letter or digit, and also at camel case
+ * and letter/digit boundaries, so {@code QuarterlyReport2024.pdf} yields quarterly, report, 2024 and pdf.
+ * Every term starts with a kind character:
+ * <ul>
+ *     <li>{@code t} a whole token</li>
+ *     <li>{@code p} a proper prefix of a token, up to {@link #MAX_PREFIX} characters, for search as you type</li>
+ *     <li>{@code g} a trigram of a token, for matches inside a word like the old LIKE '%q%' query</li>
+ * </ul>
+ * Names and tags get all three kinds. Descriptions get tokens and prefixes of at least three characters,
+ * which keeps long descriptions from flooding the index with short prefixes and trigrams.
+ */
+final class Analyzer {
+    static final char TOKEN = 't';
+    static final char PREFIX = 'p';
+    static final char GRAM = 'g';
+    static final int MAX_PREFIX = 12;
+    static final int GRAM_LENGTH = 3;
+
+    // Term frequency weights, so a match in the name counts more than one in the description
+    private static final int NAME_WEIGHT = 3;
+    private static final int TAG_WEIGHT = 2;
+    private static final int DESCRIPTION_WEIGHT = 1;
+    private static final int DESCRIPTION_MIN_PREFIX = 3;
+
+    private Analyzer() {
+    }
+
+    /**
+     * Adds the weighted terms of a file to {@code frequencies}.
+     * @return the document length used by BM25: the weighted number of tokens
+     */
+    static int analyze(IndexedFile file, Map<String, Integer> frequencies) {
+        int length = addField(file.getFileName(), NAME_WEIGHT, 1, true, frequencies);
+        for(String tag : file.getTags()) {
+            length += addField(tag, TAG_WEIGHT, 1, true, frequencies);
+        }
+        length += addField(file.getDescription(), DESCRIPTION_WEIGHT, DESCRIPTION_MIN_PREFIX, false, frequencies);
+        return Math.max(1, length);
+    }
+
+    /**
+     * The lowercased text a candidate is checked against when the index alone cannot confirm a match.
+     */
+    static String searchableText(IndexedFile file) {
+        return (file.getFileName() + "\n" + String.join(" ", file.getTags()) + "\n" + file.getDescription())
+                .toLowerCase(Locale.ROOT);
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for(int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            boolean wordChar = Character.isLetterOrDigit(c);
+            if(start >= 0 && (!wordChar || isBoundary(text.charAt(i - 1), c))) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            if(wordChar && start < 0) {
+                start = i;
+            }
+        }
+        return tokens;
+    }
+
+    static List<String> grams(String token) {
+        List<String> grams = new ArrayList<>();
+        for(int i = 0; i + GRAM_LENGTH <= token.length(); i++) {
+            grams.add(GRAM + token.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+
+    private static boolean isBoundary(char previous, char current) {
+        return (Character.isLowerCase(previous) && Character.isUpperCase(current)) ||
+                (Character.isLetter(previous) && Character.isDigit(current)) ||
+                (Character.isDigit(previous) && Character.isLetter(current));
+    }
+
+    private static int addField(String text, int weight, int minPrefix, boolean withGrams, Map<String, Integer> frequencies) {
+        int length = 0;
+        for(String token : tokenize(text)) {
+            length += weight;
+            frequencies.merge(TOKEN + token, weight, Integer::sum);
+            for(int end = minPrefix; end < token.length() && end <= MAX_PREFIX; end++) {
+                frequencies.merge(PREFIX + token.substring(0, end), weight, Integer::sum);
+            }
+            if(withGrams) {
+                for(String gram : grams(token)) {
+                    frequencies.merge(gram, weight, Integer::sum);
+                }
+            }
+        }
+        return length;
+    }
+}
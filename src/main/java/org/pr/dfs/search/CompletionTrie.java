@@ -0,0 +1,338 @@
+package org.pr.dfs.search;
+
+import java.util.*;
+
+/**
+ * File name completions of one user: a ternary search trie with the best weight of every subtree, so the
+ * top suggestions for a prefix are found best first without visiting the rest of the subtree.
+ *
+ * A name is reachable from the start of each of its words, so {@code rep} completes to
+ * {@code quarterly_report.pdf} as well. Files sharing a name share one entry, weighted by the sum of their
+ * access counts. At most {@code maxNames} names are kept; a new name past that evicts the lightest one.
+ * Not thread safe, SuggestionIndex synchronizes on each trie.
+ */
+final class CompletionTrie {
+    private static final int MAX_KEYS_PER_NAME = 8;
+    static final int MAX_KEY_LENGTH = 64; // Longer keys are cut, completions only need the start
+
+    private static final class Node {
+        final char c;
+        Node lo;
+        Node eq;
+        Node hi;
+        Entry[] entries; // Names whose key ends here
+        long max; // Best weight in this subtree, lo and hi included
+
+        Node(char c) {
+            this.c = c;
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        long weight;
+        final List<String> fileIds = new ArrayList<>(1);
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<Entry> LIGHTEST_FIRST =
+            Comparator.<Entry>comparingLong(entry -> entry.weight).thenComparing(entry -> entry.name);
+
+    private final int maxNames;
+    private Node root;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Entry> byFileId = new HashMap<>();
+    private final Map<String, Long> fileWeights = new HashMap<>();
+    private final TreeSet<Entry> byWeight = new TreeSet<>(LIGHTEST_FIRST);
+    private int nodes;
+
+    CompletionTrie(int maxNames) {
+        this.maxNames = Math.max(1, maxNames);
+    }
+
+    /**
+     * Adds a file or moves it to a new name and weight.
+     */
+    void put(String fileId, String name, long weight) {
+        if(name == null || name.isEmpty()) {
+            remove(fileId);
+            return;
+        }
+        Entry current = byFileId.get(fileId);
+        if(current != null && current.name.equals(name)) {
+            reweigh(current, current.weight - fileWeights.get(fileId) + weight);
+            fileWeights.put(fileId, weight);
+            return;
+        }
+        remove(fileId);
+
+        Entry entry = entries.get(name);
+        if(entry == null) {
+            if(entries.size() >= maxNames) {
+                // A new name always gets a place, or a full trie would never suggest a fresh upload
+                evict(byWeight.first());
+            }
+            entry = new Entry(name);
+            entries.put(name, entry);
+            byWeight.add(entry);
+            for(String key : keys(name)) {
+                root = insert(root, key, 0, entry);
+            }
+        }
+        entry.fileIds.add(fileId);
+        byFileId.put(fileId, entry);
+        fileWeights.put(fileId, weight);
+        reweigh(entry, entry.weight + weight);
+    }
+
+    void remove(String fileId) {
+        Entry entry = byFileId.remove(fileId);
+        if(entry == null) {
+            return;
+        }
+        long weight = fileWeights.remove(fileId);
+        entry.fileIds.remove(fileId);
+        if(entry.fileIds.isEmpty()) {
+            evict(entry);
+        } else {
+            reweigh(entry, entry.weight - weight);
+        }
+    }
+
+    /**
+     * @return up to {@code limit} names completing the prefix, heaviest first, ties by name
+     */
+    List<String> complete(String prefix, int limit) {
+        String key = normalize(prefix);
+        Node node = key.isEmpty() ? null : find(root, key);
+        if(node == null || limit <= 0) {
+            return List.of();
+        }
+
+        // Best first over subtrees bounded by their max weight and names with their exact weight
+        PriorityQueue<Object[]> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Long.compare((long) b[0], (long) a[0]);
+            if(cmp != 0) {
+                return cmp;
+            }
+            if(a[1] instanceof Entry && b[1] instanceof Entry) {
+                return ((Entry) a[1]).name.compareTo(((Entry) b[1]).name);
+            }
+            // Open subtrees first, they may hold a name of the same weight that sorts earlier
+            return a[1] instanceof Entry ? 1 : (b[1] instanceof Entry ? -1 : 0);
+        });
+        addEntries(queue, node);
+        if(node.eq != null) {
+            queue.add(new Object[]{node.eq.max, node.eq});
+        }
+
+        List<String> names = new ArrayList<>(limit);
+        Set<Entry> seen = new HashSet<>();
+        while(!queue.isEmpty() && names.size() < limit) {
+            Object item = queue.poll()[1];
+            if(item instanceof Entry) {
+                if(seen.add((Entry) item)) {
+                    names.add(((Entry) item).name);
+                }
+                continue;
+            }
+            Node next = (Node) item;
+            addEntries(queue, next);
+            for(Node child : new Node[]{next.lo, next.eq, next.hi}) {
+                if(child != null) {
+                    queue.add(new Object[]{child.max, child});
+                }
+            }
+        }
+        return names;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int nodeCount() {
+        return nodes;
+    }
+
+    private static void addEntries(PriorityQueue<Object[]> queue, Node node) {
+        if(node.entries != null) {
+            for(Entry entry : node.entries) {
+                queue.add(new Object[]{entry.weight, entry});
+            }
+        }
+    }
+
+    private void reweigh(Entry entry, long weight) {
+        byWeight.remove(entry);
+        entry.weight = weight;
+        byWeight.add(entry);
+        for(String key : keys(entry.name)) {
+            refresh(root, key, 0);
+        }
+    }
+
+    private void evict(Entry entry) {
+        byWeight.remove(entry);
+        entries.remove(entry.name);
+        for(String fileId : entry.fileIds) {
+            byFileId.remove(fileId);
+            fileWeights.remove(fileId);
+        }
+        for(String key : keys(entry.name)) {
+            root = delete(root, key, 0, entry);
+        }
+    }
+
+    private Node insert(Node node, String key, int depth, Entry entry) {
+        char c = key.charAt(depth);
+        if(node == null) {
+            node = new Node(c);
+            nodes++;
+        }
+        if(c < node.c) {
+            node.lo = insert(node.lo, key, depth, entry);
+        } else if(c > node.c) {
+            node.hi = insert(node.hi, key, depth, entry);
+        } else if(depth + 1 < key.length()) {
+            node.eq = insert(node.eq, key, depth + 1, entry);
+        } else if(node.entries == null) {
+            node.entries = new Entry[]{entry};
+        } else if(!Arrays.asList(node.entries).contains(entry)) {
+            node.entries = Arrays.copyOf(node.entries, node.entries.length + 1);
+            node.entries[node.entries.length - 1] = entry;
+        }
+        updateMax(node);
+        return node;
+    }
+
+    /**
+     * Removes the entry from the key's end and prunes nodes left without entries or children.
+     */
+    private Node delete(Node node, String key, int depth, Entry entry) {
+        if(node == null) {
+            return null;
+        }
+        char c = key.charAt(depth);
+        if(c < node.c) {
+            node.lo = delete(node.lo, key, depth, entry);
+        } else if(c > node.c) {
+            node.hi = delete(node.hi, key, depth, entry);
+        } else if(depth + 1 < key.length()) {
+            node.eq = delete(node.eq, key, depth + 1, entry);
+        } else if(node.entries != null) {
+            List<Entry> rest = new ArrayList<>(Arrays.asList(node.entries));
+            rest.remove(entry);
+            node.entries = rest.isEmpty() ? null : rest.toArray(new Entry[0]);
+        }
+
+        if(node.entries == null && node.eq == null) {
+            // Replace the node by one of its siblings, merging the other into it
+            nodes--;
+            if(node.lo == null) {
+                return node.hi;
+            }
+            if(node.hi == null) {
+                return node.lo;
+            }
+            Node rightmost = node.lo;
+            while(rightmost.hi != null) {
+                rightmost = rightmost.hi;
+            }
+            rightmost.hi = node.hi;
+            return refreshSpine(node.lo);
+        }
+        updateMax(node);
+        return node;
+    }
+
+    /**
+     * Recomputes the max of the nodes on the rightmost path of a subtree after a merge.
+     */
+    private static Node refreshSpine(Node node) {
+        if(node.hi != null) {
+            refreshSpine(node.hi);
+        }
+        updateMax(node);
+        return node;
+    }
+
+    private void refresh(Node node, String key, int depth) {
+        if(node == null) {
+            return;
+        }
+        char c = key.charAt(depth);
+        if(c < node.c) {
+            refresh(node.lo, key, depth);
+        } else if(c > node.c) {
+            refresh(node.hi, key, depth);
+        } else if(depth + 1 < key.length()) {
+            refresh(node.eq, key, depth + 1);
+        }
+        updateMax(node);
+    }
+
+    private static void updateMax(Node node) {
+        long max = Long.MIN_VALUE;
+        if(node.entries != null) {
+            for(Entry entry : node.entries) {
+                max = Math.max(max, entry.weight);
+            }
+        }
+        for(Node child : new Node[]{node.lo, node.eq, node.hi}) {
+            if(child != null) {
+                max = Math.max(max, child.max);
+            }
+        }
+        node.max = max;
+    }
+
+    private static Node find(Node node, String key) {
+        int depth = 0;
+        while(node != null) {
+            char c = key.charAt(depth);
+            if(c < node.c) {
+                node = node.lo;
+            } else if(c > node.c) {
+                node = node.hi;
+            } else if(++depth == key.length()) {
+                return node;
+            } else {
+                node = node.eq;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The lowercased name from the start of each word, so words inside a name complete too.
+     */
+    static List<String> keys(String name) {
+        String lower = normalize(name);
+        List<String> keys = new ArrayList<>();
+        for(int i = 0; i < name.length() && keys.size() < MAX_KEYS_PER_NAME; i++) {
+            char c = name.charAt(i);
+            if(!Character.isLetterOrDigit(c)) {
+                continue;
+            }
+            char previous = i > 0 ? name.charAt(i - 1) : ' ';
+            boolean wordStart = !Character.isLetterOrDigit(previous) ||
+                    (Character.isLowerCase(previous) && Character.isUpperCase(c)) ||
+                    (Character.isLetter(previous) && Character.isDigit(c));
+            if(wordStart && i < lower.length()) {
+                keys.add(lower.substring(i, Math.min(lower.length(), i + MAX_KEY_LENGTH)));
+            }
+        }
+        if(keys.isEmpty() && !lower.isEmpty()) {
+            keys.add(lower.substring(0, Math.min(lower.length(), MAX_KEY_LENGTH)));
+        }
+        return keys;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,476 @@
+package org.pr.dfs.search;
+
+import org.pr.dfs.utils.AppendOnlyLog;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Immutable segment file, memory-mapped, with only its term dictionary on the heap.
+ *
+ * Layout, all offsets relative to the start of the file:
+ * <pre>
+ * [int magic][int version]
+ * docs:       per document [string fileId][string userId][string text]
+ * postings:   per term, ascending documents as varint pairs [doc delta][freq]
+ * dictionary: [int terms] per term [string key][int docFreq][int postings offset], keys ascending
+ * docOffsets: [int] per document
+ * lengths:    [int] per document
+ * byFileId:   [int] documents ordered by file id, for lookups on update and delete
+ * users:      [int users] per user [string userId][int docs][long total length]
+ * trailer:    [int docs][int dictionary][int docOffsets][int lengths][int byFileId][int users][int magic]
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes. Deleted documents are kept in a bitset beside the
+ * segment, in the {@code .del} file, until a merge drops them.
+ */
+final class DiskSegment implements Segment {
+    private static final int MAGIC = 0x44465358; // "DFSX"
+    private static final int VERSION = 1;
+    private static final int TRAILER_SIZE = 7 * 4;
+    private static final MethodHandle UNMAPPER = findUnmapper(); // null where the JDK does not offer it
+
+    private final long generation;
+    private final Path file;
+    private final Path deletesFile;
+    private final MappedByteBuffer data;
+    private final long sizeBytes;
+    private final int docCount;
+    private final String[] keys;
+    private final int[] docFreqs;
+    private final int[] postingOffsets;
+    private final int docOffsetsAt;
+    private final int lengthsAt;
+    private final int byFileIdAt;
+    private final Map<String, long[]> users; // User to {docs, total length}, deleted documents included
+    private final BitSet deleted;
+    private boolean deletesDirty;
+
+    private DiskSegment(Path directory, long generation) throws IOException {
+        this.generation = generation;
+        this.file = segmentFile(directory, generation);
+        this.deletesFile = directory.resolve(String.format("segment-%012d.del", generation));
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            this.sizeBytes = channel.size();
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, sizeBytes);
+        }
+
+        int trailer = (int) sizeBytes - TRAILER_SIZE;
+        if(sizeBytes < 8 + TRAILER_SIZE || data.getInt(0) != MAGIC || data.getInt(trailer + 24) != MAGIC) {
+            throw new IOException("Not a search segment: " + file);
+        }
+        if(data.getInt(4) != VERSION) {
+            throw new IOException("Unsupported search segment version " + data.getInt(4) + ": " + file);
+        }
+        this.docCount = data.getInt(trailer);
+        int dictionaryAt = data.getInt(trailer + 4);
+        this.docOffsetsAt = data.getInt(trailer + 8);
+        this.lengthsAt = data.getInt(trailer + 12);
+        this.byFileIdAt = data.getInt(trailer + 16);
+        int usersAt = data.getInt(trailer + 20);
+
+        int terms = data.getInt(dictionaryAt);
+        this.keys = new String[terms];
+        this.docFreqs = new int[terms];
+        this.postingOffsets = new int[terms];
+        int position = dictionaryAt + 4;
+        for(int i = 0; i < terms; i++) {
+            int length = data.getInt(position);
+            keys[i] = readString(position);
+            docFreqs[i] = data.getInt(position + 4 + length);
+            postingOffsets[i] = data.getInt(position + 8 + length);
+            position += 12 + length;
+        }
+
+        int userCount = data.getInt(usersAt);
+        this.users = new HashMap<>(userCount * 2);
+        position = usersAt + 4;
+        for(int i = 0; i < userCount; i++) {
+            int length = data.getInt(position);
+            String userId = readString(position);
+            users.put(userId, new long[]{data.getInt(position + 4 + length), data.getLong(position + 8 + length)});
+            position += 16 + length;
+        }
+
+        BitSet loaded = new BitSet(docCount);
+        AppendOnlyLog.readCheckpoint(deletesFile, record -> loaded.or(BitSet.valueOf(record)));
+        this.deleted = loaded;
+    }
+
+    static DiskSegment open(Path directory, long generation) throws IOException {
+        return new DiskSegment(directory, generation);
+    }
+
+    static Path segmentFile(Path directory, long generation) {
+        return directory.resolve(String.format("segment-%012d.seg", generation));
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    Map<String, long[]> getUsers() {
+        return users;
+    }
+
+    void markDeleted(int doc) {
+        deleted.set(doc);
+        deletesDirty = true;
+    }
+
+    /**
+     * Persists the deleted documents if they changed since the last save.
+     */
+    void saveDeletes() throws IOException {
+        if(deletesDirty) {
+            AppendOnlyLog.writeCheckpoint(deletesFile, List.of(deleted.toByteArray()));
+            deletesDirty = false;
+        }
+    }
+
+    /**
+     * Unmaps the segment and deletes its files. A mapping otherwise lives until the buffer is collected,
+     * and on Windows a mapped file cannot be deleted. The segment must no longer be reachable by searches:
+     * reading an unmapped buffer crashes the JVM.
+     */
+    void deleteFiles() throws IOException {
+        if(UNMAPPER != null) {
+            try {
+                UNMAPPER.invokeExact((ByteBuffer) data);
+            } catch(Throwable e) {
+                throw new IOException("Could not unmap " + file, e);
+            }
+        }
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(deletesFile);
+    }
+
+    /**
+     * sun.misc.Unsafe.invokeCleaner(ByteBuffer), bound to the Unsafe instance.
+     */
+    private static MethodHandle findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    String[] keys() {
+        return keys;
+    }
+
+    Postings postingsAt(int term, Postings reuse) {
+        int count = docFreqs[term];
+        Postings result = Postings.ensure(reuse, count);
+        int position = postingOffsets[term];
+        int doc = 0;
+        for(int i = 0; i < count; i++) {
+            // Inline varint decoding, this is the hot loop of every search
+            int delta = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = data.get(position++);
+                delta |= (b & 0x7F) << shift;
+                if(b >= 0) {
+                    break;
+                }
+            }
+            int freq = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = data.get(position++);
+                freq |= (b & 0x7F) << shift;
+                if(b >= 0) {
+                    break;
+                }
+            }
+            doc += delta;
+            result.docs[i] = doc;
+            result.freqs[i] = freq;
+        }
+        result.size = count;
+        return result;
+    }
+
+    @Override
+    public int maxDoc() {
+        return docCount;
+    }
+
+    @Override
+    public BitSet deleted() {
+        return deleted;
+    }
+
+    @Override
+    public int docFreq(String key) {
+        int term = Arrays.binarySearch(keys, key);
+        return term >= 0 ? docFreqs[term] : 0;
+    }
+
+    @Override
+    public Postings postings(String key, Postings reuse) {
+        int term = Arrays.binarySearch(keys, key);
+        if(term < 0) {
+            Postings empty = Postings.ensure(reuse, 0);
+            empty.size = 0;
+            return empty;
+        }
+        return postingsAt(term, reuse);
+    }
+
+    @Override
+    public String fileId(int doc) {
+        return readString(docOffset(doc));
+    }
+
+    @Override
+    public String userId(int doc) {
+        int position = docOffset(doc);
+        return readString(position + 4 + data.getInt(position));
+    }
+
+    @Override
+    public int length(int doc) {
+        return data.getInt(lengthsAt + doc * 4);
+    }
+
+    @Override
+    public String text(int doc) {
+        int position = docOffset(doc);
+        position += 4 + data.getInt(position);
+        position += 4 + data.getInt(position);
+        return readString(position);
+    }
+
+    @Override
+    public boolean textContains(int doc, String token, byte[] utf8) {
+        // Searches the mapped bytes, without decoding the text
+        int position = docOffset(doc);
+        position += 4 + data.getInt(position);
+        position += 4 + data.getInt(position);
+        int start = position + 4;
+        int end = start + data.getInt(position) - utf8.length;
+        byte first = utf8[0];
+        for(int i = start; i <= end; i++) {
+            if(data.get(i) != first) {
+                continue;
+            }
+            int j = 1;
+            while(j < utf8.length && data.get(i + j) == utf8[j]) {
+                j++;
+            }
+            if(j == utf8.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int findDoc(String fileId) {
+        int low = 0;
+        int high = docCount - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int doc = data.getInt(byFileIdAt + mid * 4);
+            int cmp = fileId(doc).compareTo(fileId);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
+            } else {
+                return doc;
+            }
+        }
+        return -1;
+    }
+
+    private int docOffset(int doc) {
+        return data.getInt(docOffsetsAt + doc * 4);
+    }
+
+    private String readString(int position) {
+        byte[] bytes = new byte[data.getInt(position)];
+        data.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a segment file: documents first, then terms in ascending key order. The file only appears
+     * under its final name once complete and synced.
+     */
+    static final class Writer implements Closeable {
+        private final Path directory;
+        private final long generation;
+        private final Path tempFile;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final List<String> fileIds = new ArrayList<>();
+        private final Map<String, long[]> users = new HashMap<>();
+        private int[] docOffsets = new int[1024];
+        private int[] lengths = new int[1024];
+        private final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        private final DataOutputStream dictionaryOut = new DataOutputStream(dictionary);
+        private int terms;
+        private String lastKey;
+        private boolean finished;
+
+        Writer(Path directory, long generation) throws IOException {
+            this.directory = directory;
+            this.generation = generation;
+            this.tempFile = segmentFile(directory, generation).resolveSibling("segment-" + generation + ".tmp");
+            this.fileOut = new FileOutputStream(tempFile.toFile());
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 256 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        /**
+         * @return the document number in the new segment
+         */
+        int addDoc(String fileId, String userId, int length, String text) throws IOException {
+            if(terms > 0) {
+                throw new IllegalStateException("Documents must be added before terms");
+            }
+            int doc = fileIds.size();
+            if(doc == docOffsets.length) {
+                docOffsets = Arrays.copyOf(docOffsets, doc * 2);
+                lengths = Arrays.copyOf(lengths, doc * 2);
+            }
+            docOffsets[doc] = position();
+            lengths[doc] = length;
+            fileIds.add(fileId);
+            long[] totals = users.computeIfAbsent(userId, k -> new long[2]);
+            totals[0]++;
+            totals[1] += length;
+
+            writeString(out, fileId);
+            writeString(out, userId);
+            writeString(out, text);
+            return doc;
+        }
+
+        /**
+         * Adds a term's postings, which must use this segment's document numbers in ascending order.
+         */
+        void addTerm(String key, Postings postings) throws IOException {
+            if(postings.size == 0) {
+                return;
+            }
+            if(lastKey != null && lastKey.compareTo(key) >= 0) {
+                throw new IllegalStateException("Terms must be added in ascending order: " + key);
+            }
+            lastKey = key;
+            terms++;
+
+            writeString(dictionaryOut, key);
+            dictionaryOut.writeInt(postings.size);
+            dictionaryOut.writeInt(position());
+            int previous = 0;
+            for(int i = 0; i < postings.size; i++) {
+                writeVarInt(postings.docs[i] - previous);
+                writeVarInt(postings.freqs[i]);
+                previous = postings.docs[i];
+            }
+        }
+
+        DiskSegment finish() throws IOException {
+            int docCount = fileIds.size();
+            int dictionaryAt = position();
+            out.writeInt(terms);
+            dictionaryOut.flush();
+            dictionary.writeTo(out);
+
+            int docOffsetsAt = position();
+            for(int i = 0; i < docCount; i++) {
+                out.writeInt(docOffsets[i]);
+            }
+            int lengthsAt = position();
+            for(int i = 0; i < docCount; i++) {
+                out.writeInt(lengths[i]);
+            }
+            int byFileIdAt = position();
+            Integer[] byFileId = new Integer[docCount];
+            for(int i = 0; i < docCount; i++) {
+                byFileId[i] = i;
+            }
+            Arrays.sort(byFileId, Comparator.comparing(fileIds::get));
+            for(int doc : byFileId) {
+                out.writeInt(doc);
+            }
+            int usersAt = position();
+            out.writeInt(users.size());
+            for(Map.Entry<String, long[]> user : users.entrySet()) {
+                writeString(out, user.getKey());
+                out.writeInt((int) user.getValue()[0]);
+                out.writeLong(user.getValue()[1]);
+            }
+
+            out.writeInt(docCount);
+            out.writeInt(dictionaryAt);
+            out.writeInt(docOffsetsAt);
+            out.writeInt(lengthsAt);
+            out.writeInt(byFileIdAt);
+            out.writeInt(usersAt);
+            out.writeInt(MAGIC);
+            position();
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+
+            Files.move(tempFile, segmentFile(directory, generation), StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            return DiskSegment.open(directory, generation);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!finished) {
+                out.close();
+                Files.deleteIfExists(tempFile);
+            }
+        }
+
+        private int position() throws IOException {
+            // DataOutputStream.size() sticks at Integer.MAX_VALUE, the limit of the int offsets
+            if(out.size() == Integer.MAX_VALUE) {
+                throw new IOException("Search segment exceeds 2GB");
+            }
+            return out.size();
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+}
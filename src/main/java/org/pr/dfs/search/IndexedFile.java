@@ -0,0 +1,43 @@
+package org.pr.dfs.search;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The searchable fields of a file, as handed to {@link SearchIndex}.
+ */
+public final class IndexedFile {
+    private final String fileId;
+    private final String userId;
+    private final String fileName;
+    private final String description;
+    private final Collection<String> tags;
+
+    public IndexedFile(String fileId, String userId, String fileName, String description, Collection<String> tags) {
+        this.fileId = fileId;
+        this.userId = userId;
+        this.fileName = fileName != null ? fileName : "";
+        this.description = description != null ? description : "";
+        this.tags = tags != null ? tags : List.of();
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Collection<String> getTags() {
+        return tags;
+    }
+}
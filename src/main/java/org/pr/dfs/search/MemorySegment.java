@@ -0,0 +1,122 @@
+package org.pr.dfs.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Documents added since the last flush, searchable right away and written out as a segment file once
+ * the buffer is full. Each buffer has its own journal, deleted once its segment file is committed.
+ */
+final class MemorySegment implements Segment {
+    private final long generation;
+    private final List<String> fileIds = new ArrayList<>();
+    private final List<String> userIds = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+    private int[] lengths = new int[64];
+    private final BitSet deleted = new BitSet();
+    private final Map<String, Integer> docsByFileId = new HashMap<>();
+    // Per term: [pair count, doc, freq, doc, freq, ...]
+    private final Map<String, int[]> postings = new HashMap<>();
+
+    MemorySegment(long generation) {
+        this.generation = generation;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    int add(IndexedFile file, int length, String text, Map<String, Integer> frequencies) {
+        int doc = fileIds.size();
+        fileIds.add(file.getFileId());
+        userIds.add(file.getUserId());
+        texts.add(text);
+        if(doc == lengths.length) {
+            lengths = Arrays.copyOf(lengths, doc * 2);
+        }
+        lengths[doc] = length;
+        docsByFileId.put(file.getFileId(), doc);
+
+        for(Map.Entry<String, Integer> term : frequencies.entrySet()) {
+            String key = Segment.key(file.getUserId(), term.getKey());
+            int[] list = postings.get(key);
+            if(list == null) {
+                list = new int[5];
+            } else if(list[0] * 2 + 3 > list.length) {
+                list = Arrays.copyOf(list, list.length * 2 + 1);
+            }
+            list[list[0] * 2 + 1] = doc;
+            list[list[0] * 2 + 2] = term.getValue();
+            list[0]++;
+            postings.put(key, list);
+        }
+        return doc;
+    }
+
+    /**
+     * @return the keys of all terms in ascending order, as a segment file stores them
+     */
+    String[] sortedKeys() {
+        String[] keys = postings.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    @Override
+    public int maxDoc() {
+        return fileIds.size();
+    }
+
+    @Override
+    public BitSet deleted() {
+        return deleted;
+    }
+
+    @Override
+    public int docFreq(String key) {
+        int[] list = postings.get(key);
+        return list != null ? list[0] : 0;
+    }
+
+    @Override
+    public Postings postings(String key, Postings reuse) {
+        int[] list = postings.get(key);
+        int count = list != null ? list[0] : 0;
+        Postings result = Postings.ensure(reuse, count);
+        for(int i = 0; i < count; i++) {
+            result.docs[i] = list[i * 2 + 1];
+            result.freqs[i] = list[i * 2 + 2];
+        }
+        result.size = count;
+        return result;
+    }
+
+    @Override
+    public String fileId(int doc) {
+        return fileIds.get(doc);
+    }
+
+    @Override
+    public String userId(int doc) {
+        return userIds.get(doc);
+    }
+
+    @Override
+    public int length(int doc) {
+        return lengths[doc];
+    }
+
+    @Override
+    public String text(int doc) {
+        return texts.get(doc);
+    }
+
+    @Override
+    public int findDoc(String fileId) {
+        return docsByFileId.getOrDefault(fileId, -1);
+    }
+}
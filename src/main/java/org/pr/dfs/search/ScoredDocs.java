@@ -0,0 +1,119 @@
+package org.pr.dfs.search;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Documents of one segment with their scores, ascending by document. Query clauses are combined with
+ * {@link #union} for alternatives of a query token and {@link #intersect} across query tokens.
+ */
+final class ScoredDocs {
+    static final ScoredDocs EMPTY = new ScoredDocs(0);
+
+    final int[] docs;
+    final float[] scores;
+    int size;
+
+    ScoredDocs(int capacity) {
+        docs = new int[capacity];
+        scores = new float[capacity];
+    }
+
+    /**
+     * @return documents in either input, scored by the better match
+     */
+    static ScoredDocs union(ScoredDocs a, ScoredDocs b) {
+        if(a.size == 0) {
+            return b;
+        }
+        if(b.size == 0) {
+            return a;
+        }
+        ScoredDocs result = new ScoredDocs(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while(i < a.size || j < b.size) {
+            int n = result.size++;
+            if(j == b.size || (i < a.size && a.docs[i] < b.docs[j])) {
+                result.docs[n] = a.docs[i];
+                result.scores[n] = a.scores[i++];
+            } else if(i == a.size || b.docs[j] < a.docs[i]) {
+                result.docs[n] = b.docs[j];
+                result.scores[n] = b.scores[j++];
+            } else {
+                result.docs[n] = a.docs[i];
+                result.scores[n] = Math.max(a.scores[i++], b.scores[j++]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return documents in both inputs, scored by the sum
+     */
+    static ScoredDocs intersect(ScoredDocs a, ScoredDocs b) {
+        ScoredDocs result = new ScoredDocs(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while(i < a.size && j < b.size) {
+            if(a.docs[i] < b.docs[j]) {
+                i++;
+            } else if(b.docs[j] < a.docs[i]) {
+                j++;
+            } else {
+                result.docs[result.size] = a.docs[i];
+                result.scores[result.size++] = a.scores[i++] + b.scores[j++];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the documents of {@code a} not in {@code b}
+     */
+    static ScoredDocs subtract(ScoredDocs a, ScoredDocs b) {
+        if(b.size == 0) {
+            return a;
+        }
+        ScoredDocs result = new ScoredDocs(a.size);
+        int j = 0;
+        for(int i = 0; i < a.size; i++) {
+            while(j < b.size && b.docs[j] < a.docs[i]) {
+                j++;
+            }
+            if(j == b.size || b.docs[j] != a.docs[i]) {
+                result.docs[result.size] = a.docs[i];
+                result.scores[result.size++] = a.scores[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the documents of {@code a} also in {@code b}, keeping the scores of {@code a}
+     */
+    static ScoredDocs retain(ScoredDocs a, ScoredDocs b) {
+        ScoredDocs result = new ScoredDocs(Math.min(a.size, b.size));
+        int j = 0;
+        for(int i = 0; i < a.size && j < b.size; i++) {
+            while(j < b.size && b.docs[j] < a.docs[i]) {
+                j++;
+            }
+            if(j < b.size && b.docs[j] == a.docs[i]) {
+                result.docs[result.size] = a.docs[i];
+                result.scores[result.size++] = a.scores[i];
+            }
+        }
+        return result;
+    }
+
+    ScoredDocs filter(IntPredicate keep) {
+        ScoredDocs result = new ScoredDocs(size);
+        for(int i = 0; i < size; i++) {
+            if(keep.test(docs[i])) {
+                result.docs[result.size] = docs[i];
+                result.scores[result.size++] = scores[i];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,920 @@
+package org.pr.dfs.search;
+
+import org.pr.dfs.utils.AppendOnlyLog;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.pr.dfs.utils.RecordStrings.readString;
+import static org.pr.dfs.utils.RecordStrings.writeString;
+
+/**
+ * In-process inverted index over file names, descriptions and tags, scored with BM25.
+ *
+ * New documents go to an in-memory buffer and its journal, so they are searchable and durable at once.
+ * A full buffer is frozen and written out as an immutable, memory-mapped segment file by a background
+ * thread, which also merges small segments so a search only has to visit a few. Updates and deletes
+ * mark the old document deleted in whichever segment holds it; merges drop deleted documents.
+ *
+ * A query token matches a document by the whole token, as a token prefix, or inside a token through
+ * its trigrams, the last two scoring lower. All query tokens must match.
+ */
+public class SearchIndex implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SearchIndex.class.getName());
+    private static final String MANIFEST = "segments";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final byte ADD = 1;
+    private static final byte DELETE = 2;
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final float PREFIX_BOOST = 0.6f;
+    private static final float INFIX_BOOST = 0.3f;
+    private static final int MAX_QUERY_TOKENS = 8;
+    private static final int TEXT_CHECK_COST = 8; // A text check costs about as much as decoding 8 postings
+    private static final long MAX_MERGE_BYTES = 1024L * 1024 * 1024; // 1GB, well below the 2GB segment limit
+    private static final long MAINTENANCE_INTERVAL_SECONDS = 10;
+
+    private final Path directory;
+    private final int flushDocs;
+    private final int mergeFactor;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService maintenance;
+
+    // All guarded by lock
+    private List<DiskSegment> segments = new ArrayList<>();
+    private final Deque<Frozen> frozen = new ArrayDeque<>();
+    private MemorySegment buffer;
+    private AppendOnlyLog journal;
+    private final Map<String, long[]> userStats = new HashMap<>(); // User to {live docs, total length}
+    private long nextGeneration = 1;
+    private long flushedThrough; // Journals up to this generation are in segment files
+    private long merges;
+
+    private static final class Frozen {
+        final MemorySegment segment;
+        final AppendOnlyLog journal;
+
+        Frozen(MemorySegment segment, AppendOnlyLog journal) {
+            this.segment = segment;
+            this.journal = journal;
+        }
+    }
+
+    public static final class Hit {
+        private final String fileId;
+        private final float score;
+
+        public Hit(String fileId, float score) {
+            this.fileId = fileId;
+            this.score = score;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+
+    public static final class Result {
+        private final long total;
+        private final List<Hit> hits;
+
+        Result(long total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+
+    public SearchIndex(Path directory, int flushDocs, int mergeFactor) throws IOException {
+        this.directory = directory;
+        this.flushDocs = Math.max(1, flushDocs);
+        this.mergeFactor = Math.max(2, mergeFactor);
+        Files.createDirectories(directory);
+        recover();
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "search-index-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL_SECONDS,
+                MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a file, replacing the previous version of it if indexed.
+     */
+    public void index(IndexedFile file) throws IOException {
+        if(file.getFileId() == null || file.getUserId() == null) {
+            return;
+        }
+        byte[] record = encodeAdd(file);
+        Map<String, Integer> frequencies = new HashMap<>();
+        int length = Analyzer.analyze(file, frequencies);
+        String text = Analyzer.searchableText(file);
+
+        lock.writeLock().lock();
+        try {
+            journal.append(record);
+            applyAdd(file, length, text, frequencies);
+            rotateIfFull();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds files with one journal sync for the whole batch, for bulk loads.
+     */
+    public void indexAll(Collection<IndexedFile> files) throws IOException {
+        List<IndexedFile> accepted = new ArrayList<>(files.size());
+        List<byte[]> records = new ArrayList<>(files.size());
+        for(IndexedFile file : files) {
+            if(file.getFileId() != null && file.getUserId() != null) {
+                accepted.add(file);
+                records.add(encodeAdd(file));
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            journal.appendAll(records);
+            for(IndexedFile file : accepted) {
+                Map<String, Integer> frequencies = new HashMap<>();
+                int length = Analyzer.analyze(file, frequencies);
+                applyAdd(file, length, Analyzer.searchableText(file), frequencies);
+            }
+            rotateIfFull();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String fileId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if(applyDelete(fileId)) {
+                journal.append(encodeDelete(fileId));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return userStats.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds a user's files matching every token of the query, best first.
+     */
+    public Result search(String userId, String query, int limit) {
+        return search(userId, query, null, limit);
+    }
+
+    /**
+     * Finds a user's files matching every token of the query, ranked by score and then file ID, starting
+     * after a hit of the previous page. Only limit candidates are kept however deep the page is.
+     * @param after last hit of the previous page, or null for the first page
+     */
+    public Result search(String userId, String query, Hit after, int limit) {
+        List<String> tokens = new ArrayList<>(new LinkedHashSet<>(Analyzer.tokenize(query)));
+        if(tokens.size() > MAX_QUERY_TOKENS) {
+            tokens = new ArrayList<>(tokens.subList(0, MAX_QUERY_TOKENS));
+        }
+        int wanted = Math.max(0, limit);
+        if(tokens.isEmpty() || userId == null) {
+            return new Result(0, List.of());
+        }
+
+        lock.readLock().lock();
+        try {
+            long[] stats = userStats.get(userId);
+            if(stats == null || stats[0] == 0) {
+                return new Result(0, List.of());
+            }
+            QueryContext context = new QueryContext(userId, stats[0], (double) stats[1] / stats[0], allSegments());
+            // Rarest token first, so the others only verify documents that can still match
+            tokens.sort(Comparator.comparingLong(token -> context.docFreq(Analyzer.TOKEN + token) + context.docFreq(prefixTerm(token))));
+
+            // Worst of the kept candidates on top
+            PriorityQueue<Candidate> top = new PriorityQueue<>(Math.max(1, wanted), Candidate.RANK.reversed());
+            long total = 0;
+            for(Segment segment : context.segments) {
+                ScoredDocs matches = null;
+                for(String token : tokens) {
+                    ScoredDocs clause = matchToken(context, segment, token, matches);
+                    matches = matches == null ? clause : ScoredDocs.intersect(matches, clause);
+                    if(matches.size == 0) {
+                        break;
+                    }
+                }
+                total += matches.size;
+                for(int i = 0; i < matches.size && wanted > 0; i++) {
+                    float score = matches.scores[i];
+                    if(after != null && score > after.score) {
+                        continue; // On an earlier page, compared without looking up the file ID
+                    }
+                    if(top.size() == wanted && score < top.peek().score) {
+                        continue;
+                    }
+                    Candidate candidate = new Candidate(segment, matches.docs[i], score);
+                    if(after != null && score == after.score && candidate.fileId().compareTo(after.fileId) <= 0) {
+                        continue;
+                    }
+                    if(top.size() < wanted) {
+                        top.add(candidate);
+                    } else if(Candidate.RANK.compare(candidate, top.peek()) < 0) {
+                        top.poll();
+                        top.add(candidate);
+                    }
+                }
+            }
+
+            List<Candidate> ranked = new ArrayList<>(top);
+            ranked.sort(Candidate.RANK);
+            List<Hit> hits = new ArrayList<>();
+            for(Candidate candidate : ranked) {
+                hits.add(new Hit(candidate.fileId(), candidate.score));
+            }
+            return new Result(total, hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        lock.readLock().lock();
+        try {
+            long docs = 0;
+            for(long[] stats : userStats.values()) {
+                docs += stats[0];
+            }
+            long diskBytes = 0;
+            for(DiskSegment segment : segments) {
+                diskBytes += segment.getSizeBytes();
+            }
+            int frozenDocs = 0;
+            for(Frozen f : frozen) {
+                frozenDocs += f.segment.maxDoc();
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("documents", docs);
+            stats.put("users", userStats.size());
+            stats.put("segments", segments.size());
+            stats.put("segmentBytes", diskBytes);
+            stats.put("bufferedDocs", buffer.maxDoc() + frozenDocs);
+            stats.put("merges", merges);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops background maintenance and writes out buffered documents, so the next start replays nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            if(buffer.maxDoc() > 0) {
+                rotate();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushFrozen();
+        lock.writeLock().lock();
+        try {
+            journal.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ---- Query evaluation ----
+
+    private static final class Candidate {
+        // Best first: higher score, then lower file ID. File IDs are only read to break ties
+        static final Comparator<Candidate> RANK = (a, b) -> {
+            int byScore = Float.compare(b.score, a.score);
+            return byScore != 0 ? byScore : a.fileId().compareTo(b.fileId());
+        };
+
+        final Segment segment;
+        final int doc;
+        final float score;
+        private String fileId;
+
+        Candidate(Segment segment, int doc, float score) {
+            this.segment = segment;
+            this.doc = doc;
+            this.score = score;
+        }
+
+        String fileId() {
+            if(fileId == null) {
+                fileId = segment.fileId(doc);
+            }
+            return fileId;
+        }
+    }
+
+    private static final class QueryContext {
+        final String userId;
+        final long docCount;
+        final double averageLength;
+        final List<Segment> segments;
+        final Map<String, Float> idfs = new HashMap<>();
+        Segment.Postings postings;
+
+        QueryContext(String userId, long docCount, double averageLength, List<Segment> segments) {
+            this.userId = userId;
+            this.docCount = docCount;
+            this.averageLength = averageLength;
+            this.segments = segments;
+        }
+
+        long docFreq(String term) {
+            String key = Segment.key(userId, term);
+            long df = 0;
+            for(Segment segment : segments) {
+                df += segment.docFreq(key);
+            }
+            return Math.min(df, docCount);
+        }
+
+        float idf(String key) {
+            return idfs.computeIfAbsent(key, k -> {
+                long df = 0;
+                for(Segment segment : segments) {
+                    df += segment.docFreq(k);
+                }
+                df = Math.min(df, docCount);
+                return (float) Math.log(1 + (docCount - df + 0.5) / (df + 0.5));
+            });
+        }
+    }
+
+    /**
+     * Documents of a segment matching one query token. Candidates found only through trigrams are checked
+     * against the text, limited to {@code within} when earlier tokens already narrowed the match.
+     */
+    private ScoredDocs matchToken(QueryContext context, Segment segment, String token, ScoredDocs within) {
+        byte[] utf8 = token.getBytes(StandardCharsets.UTF_8);
+        ScoredDocs exact = termScores(context, segment, Analyzer.TOKEN + token, 1f);
+        ScoredDocs prefix = termScores(context, segment, prefixTerm(token), PREFIX_BOOST);
+        if(token.length() > Analyzer.MAX_PREFIX) {
+            // Only prefixes up to MAX_PREFIX are indexed, check the rest against the text
+            prefix = prefix.filter(doc -> segment.textContains(doc, token, utf8));
+        }
+        ScoredDocs matched = ScoredDocs.union(exact, prefix);
+
+        if(token.length() < Analyzer.GRAM_LENGTH) {
+            return matched;
+        }
+        List<String> grams = new ArrayList<>(new LinkedHashSet<>(Analyzer.grams(token)));
+        grams.sort(Comparator.comparingInt(gram -> segment.docFreq(Segment.key(context.userId, gram))));
+        String rarest = Segment.key(context.userId, grams.get(0));
+        ScoredDocs candidates;
+        if(within != null && within.size * TEXT_CHECK_COST <= segment.docFreq(rarest)) {
+            // Far fewer documents left than the trigrams would decode, check those directly
+            candidates = ScoredDocs.subtract(within, matched);
+        } else {
+            candidates = null;
+            for(String gram : grams) {
+                ScoredDocs gramDocs = termScores(context, segment, gram, 1f);
+                candidates = candidates == null ? gramDocs : ScoredDocs.intersect(candidates, gramDocs);
+                if(candidates.size == 0) {
+                    return matched;
+                }
+            }
+            // Documents already matched hold the token, the others only hold all its trigrams
+            candidates = ScoredDocs.subtract(candidates, matched);
+        }
+
+        // Scored as a single occurrence of the rarest trigram, whichever way the candidates were found
+        float idf = INFIX_BOOST * context.idf(rarest);
+        ScoredDocs infix = new ScoredDocs(candidates.size);
+        for(int i = 0; i < candidates.size; i++) {
+            int doc = candidates.docs[i];
+            if(!segment.deleted().get(doc) && segment.textContains(doc, token, utf8)) {
+                double norm = K1 * (1 - B + B * segment.length(doc) / context.averageLength);
+                infix.docs[infix.size] = doc;
+                infix.scores[infix.size++] = (float) (idf * (K1 + 1) / (1 + norm));
+            }
+        }
+        return ScoredDocs.union(matched, infix);
+    }
+
+    private static String prefixTerm(String token) {
+        return Analyzer.PREFIX + (token.length() <= Analyzer.MAX_PREFIX ? token : token.substring(0, Analyzer.MAX_PREFIX));
+    }
+
+    private ScoredDocs termScores(QueryContext context, Segment segment, String term, float boost) {
+        String key = Segment.key(context.userId, term);
+        Segment.Postings postings = segment.postings(key, context.postings);
+        context.postings = postings;
+        if(postings.size == 0) {
+            return ScoredDocs.EMPTY;
+        }
+        float idf = boost * context.idf(key);
+        BitSet deleted = segment.deleted();
+        ScoredDocs result = new ScoredDocs(postings.size);
+        for(int i = 0; i < postings.size; i++) {
+            int doc = postings.docs[i];
+            if(deleted.get(doc)) {
+                continue;
+            }
+            int tf = postings.freqs[i];
+            double norm = K1 * (1 - B + B * segment.length(doc) / context.averageLength);
+            result.docs[result.size] = doc;
+            result.scores[result.size++] = (float) (idf * tf * (K1 + 1) / (tf + norm));
+        }
+        return result;
+    }
+
+    private List<Segment> allSegments() {
+        List<Segment> all = new ArrayList<>(segments.size() + frozen.size() + 1);
+        all.addAll(segments);
+        for(Frozen f : frozen) {
+            all.add(f.segment);
+        }
+        all.add(buffer);
+        return all;
+    }
+
+    // ---- Updates, called with the write lock held ----
+
+    private void applyAdd(IndexedFile file, int length, String text, Map<String, Integer> frequencies) throws IOException {
+        applyDelete(file.getFileId());
+        buffer.add(file, length, text, frequencies);
+        long[] stats = userStats.computeIfAbsent(file.getUserId(), k -> new long[2]);
+        stats[0]++;
+        stats[1] += length;
+    }
+
+    /**
+     * Freezes a full buffer for the background flush. Only called between journal appends, so every
+     * record of a journal belongs to its own buffer.
+     */
+    private void rotateIfFull() throws IOException {
+        if(buffer.maxDoc() >= flushDocs) {
+            rotate();
+            maintenance.execute(this::maintain);
+        }
+    }
+
+    private boolean applyDelete(String fileId) {
+        boolean found = false;
+        for(Segment segment : allSegments()) {
+            int doc = segment.findDoc(fileId);
+            if(doc < 0 || segment.deleted().get(doc)) {
+                continue;
+            }
+            if(segment instanceof DiskSegment) {
+                ((DiskSegment) segment).markDeleted(doc);
+            } else {
+                segment.deleted().set(doc);
+            }
+            long[] stats = userStats.get(segment.userId(doc));
+            if(stats != null) {
+                stats[0]--;
+                stats[1] -= segment.length(doc);
+                if(stats[0] <= 0) {
+                    userStats.remove(segment.userId(doc));
+                }
+            }
+            found = true;
+        }
+        return found;
+    }
+
+    private void rotate() throws IOException {
+        frozen.addLast(new Frozen(buffer, journal));
+        long generation = nextGeneration++;
+        buffer = new MemorySegment(generation);
+        journal = new AppendOnlyLog(journalFile(generation));
+    }
+
+    // ---- Background maintenance ----
+
+    private void maintain() {
+        try {
+            flushFrozen();
+            while(mergeOnce()) {
+                // Keep merging until the segment count is back under the merge factor
+            }
+        } catch(IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Search index maintenance failed", e);
+        }
+    }
+
+    /**
+     * Writes frozen buffers out as segment files, oldest first, so a journal is only deleted once
+     * everything before it is in segment files.
+     */
+    private synchronized void flushFrozen() throws IOException {
+        while(true) {
+            Frozen next;
+            BitSet deletedAtStart;
+            lock.readLock().lock();
+            try {
+                next = frozen.peekFirst();
+                if(next == null) {
+                    return;
+                }
+                deletedAtStart = (BitSet) next.segment.deleted().clone();
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // The frozen buffer takes no more documents, only deletes, so it can be read without the lock
+            MemorySegment source = next.segment;
+            long generation = source.getGeneration();
+            int[] docMap = new int[source.maxDoc()];
+            DiskSegment written = null;
+            if(deletedAtStart.cardinality() < source.maxDoc()) {
+                try(DiskSegment.Writer writer = new DiskSegment.Writer(directory, generation)) {
+                    for(int doc = 0; doc < source.maxDoc(); doc++) {
+                        docMap[doc] = deletedAtStart.get(doc) ? -1 :
+                                writer.addDoc(source.fileId(doc), source.userId(doc), source.length(doc), source.text(doc));
+                    }
+                    Segment.Postings postings = null;
+                    for(String key : source.sortedKeys()) {
+                        postings = remap(source.postings(key, postings), docMap);
+                        writer.addTerm(key, postings);
+                    }
+                    written = writer.finish();
+                }
+            }
+
+            lock.writeLock().lock();
+            try {
+                if(written != null) {
+                    applyLateDeletes(source.deleted(), deletedAtStart, docMap, written);
+                    List<DiskSegment> updated = new ArrayList<>(segments);
+                    updated.add(written);
+                    segments = updated;
+                }
+                frozen.removeFirst();
+                flushedThrough = generation;
+                saveDeletes();
+                writeManifest();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            next.journal.close();
+            Files.deleteIfExists(next.journal.getLogFile());
+        }
+    }
+
+    /**
+     * Merges the smallest segments into one when there are more than the merge factor.
+     * @return whether a merge happened
+     */
+    private synchronized boolean mergeOnce() throws IOException {
+        List<DiskSegment> sources;
+        List<BitSet> deletedAtStart = new ArrayList<>();
+        long generation;
+        lock.writeLock().lock();
+        try {
+            if(segments.size() <= mergeFactor) {
+                return false;
+            }
+            List<DiskSegment> bySize = new ArrayList<>(segments);
+            bySize.sort(Comparator.comparingLong(DiskSegment::getSizeBytes));
+            sources = new ArrayList<>();
+            long bytes = 0;
+            for(DiskSegment segment : bySize) {
+                if(sources.size() == mergeFactor || bytes + segment.getSizeBytes() > MAX_MERGE_BYTES) {
+                    break;
+                }
+                sources.add(segment);
+                bytes += segment.getSizeBytes();
+            }
+            if(sources.size() < 2) {
+                return false;
+            }
+            for(DiskSegment source : sources) {
+                deletedAtStart.add((BitSet) source.deleted().clone());
+            }
+            generation = nextGeneration++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // Segment files are immutable, so the merge reads them without the lock
+        int[][] docMaps = new int[sources.size()][];
+        DiskSegment merged;
+        try(DiskSegment.Writer writer = new DiskSegment.Writer(directory, generation)) {
+            for(int s = 0; s < sources.size(); s++) {
+                DiskSegment source = sources.get(s);
+                BitSet deleted = deletedAtStart.get(s);
+                docMaps[s] = new int[source.maxDoc()];
+                for(int doc = 0; doc < source.maxDoc(); doc++) {
+                    docMaps[s][doc] = deleted.get(doc) ? -1 :
+                            writer.addDoc(source.fileId(doc), source.userId(doc), source.length(doc), source.text(doc));
+                }
+            }
+            mergeTerms(sources, docMaps, writer);
+            merged = writer.finish();
+        }
+
+        lock.writeLock().lock();
+        try {
+            for(int s = 0; s < sources.size(); s++) {
+                applyLateDeletes(sources.get(s).deleted(), deletedAtStart.get(s), docMaps[s], merged);
+            }
+            List<DiskSegment> updated = new ArrayList<>(segments);
+            updated.removeAll(sources);
+            updated.add(merged);
+            segments = updated;
+            merged.saveDeletes();
+            writeManifest();
+            merges++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Searches hold the read lock throughout, so none can still be reading the sources
+        for(DiskSegment source : sources) {
+            try {
+                source.deleteFiles();
+            } catch(IOException e) {
+                // The manifest no longer lists it, so the next start removes what is left
+                LOGGER.warning("Failed to delete merged search segment " + source.getGeneration() + ": " + e.getMessage());
+            }
+        }
+        LOGGER.fine("Merged " + sources.size() + " search segments into segment " + generation);
+        return true;
+    }
+
+    /**
+     * Writes the union of the sources' terms, visiting every key once in ascending order.
+     */
+    private static void mergeTerms(List<DiskSegment> sources, int[][] docMaps, DiskSegment.Writer writer) throws IOException {
+        int[] positions = new int[sources.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                Comparator.comparing((Integer s) -> sources.get(s).keys()[positions[s]]));
+        for(int s = 0; s < sources.size(); s++) {
+            if(sources.get(s).keys().length > 0) {
+                queue.add(s);
+            }
+        }
+        Segment.Postings merged = new Segment.Postings(1024);
+        Segment.Postings postings = null;
+        while(!queue.isEmpty()) {
+            String key = sources.get(queue.peek()).keys()[positions[queue.peek()]];
+            List<Integer> holders = new ArrayList<>();
+            while(!queue.isEmpty() && sources.get(queue.peek()).keys()[positions[queue.peek()]].equals(key)) {
+                holders.add(queue.poll());
+            }
+            // Sources were written in order, so their new document numbers ascend across holders
+            holders.sort(null);
+            merged.size = 0;
+            for(int s : holders) {
+                postings = sources.get(s).postingsAt(positions[s], postings);
+                for(int i = 0; i < postings.size; i++) {
+                    int doc = docMaps[s][postings.docs[i]];
+                    if(doc < 0) {
+                        continue;
+                    }
+                    if(merged.size == merged.docs.length) {
+                        merged.docs = Arrays.copyOf(merged.docs, merged.size * 2);
+                        merged.freqs = Arrays.copyOf(merged.freqs, merged.size * 2);
+                    }
+                    merged.docs[merged.size] = doc;
+                    merged.freqs[merged.size++] = postings.freqs[i];
+                }
+                if(++positions[s] < sources.get(s).keys().length) {
+                    queue.add(s);
+                }
+            }
+            writer.addTerm(key, merged);
+        }
+    }
+
+    private static Segment.Postings remap(Segment.Postings postings, int[] docMap) {
+        int kept = 0;
+        for(int i = 0; i < postings.size; i++) {
+            int doc = docMap[postings.docs[i]];
+            if(doc >= 0) {
+                postings.docs[kept] = doc;
+                postings.freqs[kept++] = postings.freqs[i];
+            }
+        }
+        postings.size = kept;
+        return postings;
+    }
+
+    /**
+     * Carries deletes made while a segment was being written over to the new segment.
+     */
+    private static void applyLateDeletes(BitSet deletedNow, BitSet deletedAtStart, int[] docMap, DiskSegment target) {
+        BitSet late = (BitSet) deletedNow.clone();
+        late.andNot(deletedAtStart);
+        for(int doc = late.nextSetBit(0); doc >= 0; doc = late.nextSetBit(doc + 1)) {
+            if(docMap[doc] >= 0) {
+                target.markDeleted(docMap[doc]);
+            }
+        }
+    }
+
+    // ---- Persistence ----
+
+    private void recover() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        List<byte[]> records = new ArrayList<>();
+        AppendOnlyLog.readCheckpoint(manifest, records::add);
+        for(int i = 0; i < records.size(); i++) {
+            try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(records.get(i)))) {
+                if(i == 0) {
+                    nextGeneration = in.readLong();
+                    flushedThrough = in.readLong();
+                } else {
+                    segments.add(DiskSegment.open(directory, in.readLong()));
+                }
+            }
+        }
+        for(DiskSegment segment : segments) {
+            for(Map.Entry<String, long[]> user : segment.getUsers().entrySet()) {
+                long[] stats = userStats.computeIfAbsent(user.getKey(), k -> new long[2]);
+                stats[0] += user.getValue()[0];
+                stats[1] += user.getValue()[1];
+            }
+            BitSet deleted = segment.deleted();
+            for(int doc = deleted.nextSetBit(0); doc >= 0; doc = deleted.nextSetBit(doc + 1)) {
+                long[] stats = userStats.get(segment.userId(doc));
+                stats[0]--;
+                stats[1] -= segment.length(doc);
+            }
+        }
+        userStats.values().removeIf(stats -> stats[0] <= 0);
+        removeStrayFiles();
+
+        // Replay journals not yet in segment files, each into a buffer of its own
+        int replayed = 0;
+        for(long generation : journalGenerations()) {
+            Path file = journalFile(generation);
+            if(generation <= flushedThrough) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            nextGeneration = Math.max(nextGeneration, generation + 1);
+            buffer = new MemorySegment(generation);
+            AppendOnlyLog log = new AppendOnlyLog(file);
+            log.replay(this::replayRecord);
+            replayed += buffer.maxDoc();
+            frozen.addLast(new Frozen(buffer, log));
+        }
+        long generation = nextGeneration++;
+        buffer = new MemorySegment(generation);
+        journal = new AppendOnlyLog(journalFile(generation));
+        flushFrozen();
+
+        LOGGER.info("Search index loaded: " + segments.size() + " segments, " + replayed + " documents replayed");
+    }
+
+    private void replayRecord(byte[] record) {
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte op = in.readByte();
+            if(op == ADD) {
+                String fileId = readString(in);
+                String userId = readString(in);
+                String fileName = readString(in);
+                String description = readString(in);
+                int tagCount = in.readInt();
+                List<String> tags = new ArrayList<>(tagCount);
+                for(int i = 0; i < tagCount; i++) {
+                    tags.add(readString(in));
+                }
+                IndexedFile file = new IndexedFile(fileId, userId, fileName, description, tags);
+                Map<String, Integer> frequencies = new HashMap<>();
+                int length = Analyzer.analyze(file, frequencies);
+                applyAdd(file, length, Analyzer.searchableText(file), frequencies);
+            } else if(op == DELETE) {
+                applyDelete(readString(in));
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void removeStrayFiles() throws IOException {
+        Set<String> live = new HashSet<>();
+        for(DiskSegment segment : segments) {
+            live.add(String.format("segment-%012d", segment.getGeneration()));
+        }
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*")) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                if(!live.contains(name.substring(0, name.lastIndexOf('.')))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private List<Long> journalGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())));
+                } catch(NumberFormatException e) {
+                    LOGGER.warning("Ignoring unexpected file in search index: " + file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path journalFile(long generation) {
+        return directory.resolve(String.format("%s%012d%s", JOURNAL_PREFIX, generation, JOURNAL_SUFFIX));
+    }
+
+    private void saveDeletes() throws IOException {
+        for(DiskSegment segment : segments) {
+            segment.saveDeletes();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(header)) {
+            out.writeLong(nextGeneration);
+            out.writeLong(flushedThrough);
+        }
+        records.add(header.toByteArray());
+        for(DiskSegment segment : segments) {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            try(DataOutputStream out = new DataOutputStream(entry)) {
+                out.writeLong(segment.getGeneration());
+            }
+            records.add(entry.toByteArray());
+        }
+        AppendOnlyLog.writeCheckpoint(directory.resolve(MANIFEST), records);
+    }
+
+    private static byte[] encodeAdd(IndexedFile file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ADD);
+            writeString(out, file.getFileId());
+            writeString(out, file.getUserId());
+            writeString(out, file.getFileName());
+            writeString(out, file.getDescription());
+            out.writeInt(file.getTags().size());
+            for(String tag : file.getTags()) {
+                writeString(out, tag);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDelete(String fileId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DELETE);
+            writeString(out, fileId);
+        }
+        return bytes.toByteArray();
+    }
+}
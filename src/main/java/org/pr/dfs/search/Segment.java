@@ -0,0 +1,72 @@
+package org.pr.dfs.search;
+
+import java.util.BitSet;
+
+/**
+ * A searchable set of documents: the in-memory buffer or an immutable segment file.
+ *
+ * Documents are numbered from 0 in the order they were added. Terms are looked up by key, the user id
+ * and the analyzed term joined by {@link #KEY_SEPARATOR}, so every user has postings of their own.
+ * Guarded by SearchIndex's lock.
+ */
+interface Segment {
+    char KEY_SEPARATOR = '\u0000';
+
+    static String key(String userId, String term) {
+        return userId + KEY_SEPARATOR + term;
+    }
+
+    int maxDoc();
+
+    BitSet deleted();
+
+    /**
+     * @return number of documents holding the term, deleted ones included
+     */
+    int docFreq(String key);
+
+    /**
+     * Decodes the postings of a term into {@code docs} and {@code freqs}, ascending by document.
+     * @return the postings, reusing the given arrays when they are large enough
+     */
+    Postings postings(String key, Postings reuse);
+
+    String fileId(int doc);
+
+    String userId(int doc);
+
+    int length(int doc);
+
+    String text(int doc);
+
+    /**
+     * @param token lowercase token, {@code utf8} its UTF-8 encoding
+     */
+    default boolean textContains(int doc, String token, byte[] utf8) {
+        return text(doc).contains(token);
+    }
+
+    /**
+     * @return the document holding a file, deleted or not, or -1
+     */
+    int findDoc(String fileId);
+
+    final class Postings {
+        int[] docs;
+        int[] freqs;
+        int size;
+
+        Postings(int capacity) {
+            docs = new int[capacity];
+            freqs = new int[capacity];
+        }
+
+        static Postings ensure(Postings postings, int capacity) {
+            if(postings == null || postings.docs.length < capacity) {
+                return new Postings(Math.max(16, capacity));
+            }
+            postings.size = 0;
+            return postings;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.pr.dfs.search;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * In-memory file name completions per user, ranked by access count.
+ *
+ * A user's names are loaded once, on their first suggestion request, and then kept current by
+ * {@link #put} and {@link #remove}. Updates for users not loaded are ignored, their load reads the
+ * current state. Updates while a user is being loaded bump the load's generation; a load that saw its
+ * generation move may have missed them, so it answers its own request but is not kept.
+ * Each user keeps at most {@code maxNamesPerUser} names, and only the most recently used
+ * {@code maxUsers} users are kept loaded.
+ */
+public class SuggestionIndex {
+    private final int maxNamesPerUser;
+    private final Map<String, CompletionTrie> tries;
+    private final Map<String, Load> loads = new HashMap<>(); // Users being loaded, guarded by tries
+
+    private static final class Load {
+        int loaders;
+        long generation; // Bumped by every update to the user while loading
+    }
+
+    /**
+     * A file as loaded into the index.
+     */
+    public static final class Suggestion {
+        private final String fileId;
+        private final String fileName;
+        private final long weight;
+
+        public Suggestion(String fileId, String fileName, long weight) {
+            this.fileId = fileId;
+            this.fileName = fileName;
+            this.weight = weight;
+        }
+    }
+
+    public SuggestionIndex(int maxNamesPerUser, int maxUsers) {
+        this.maxNamesPerUser = maxNamesPerUser;
+        this.tries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletionTrie> eldest) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    /**
+     * @param loader the user's files, heaviest first, called when the user is not loaded yet
+     * @return up to {@code limit} file names completing the prefix, most accessed first
+     */
+    public List<String> suggest(String userId, String prefix, int limit, Function<String, List<Suggestion>> loader) {
+        CompletionTrie trie = trie(userId);
+        if(trie == null) {
+            trie = load(userId, loader);
+        }
+        String key = prefix.length() > CompletionTrie.MAX_KEY_LENGTH ? prefix.substring(0, CompletionTrie.MAX_KEY_LENGTH) : prefix;
+        synchronized(trie) {
+            return trie.complete(key, limit);
+        }
+    }
+
+    /**
+     * Adds or renames a file, or updates its access count.
+     */
+    public void put(String userId, String fileId, String fileName, long weight) {
+        CompletionTrie trie = trieOrMarkUpdated(userId);
+        if(trie != null) {
+            synchronized(trie) {
+                trie.put(fileId, fileName, weight);
+            }
+        }
+    }
+
+    public void remove(String userId, String fileId) {
+        CompletionTrie trie = trieOrMarkUpdated(userId);
+        if(trie != null) {
+            synchronized(trie) {
+                trie.remove(fileId);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        List<CompletionTrie> loaded;
+        synchronized(tries) {
+            loaded = new ArrayList<>(tries.values());
+        }
+        long names = 0;
+        long nodes = 0;
+        for(CompletionTrie trie : loaded) {
+            synchronized(trie) {
+                names += trie.size();
+                nodes += trie.nodeCount();
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", loaded.size());
+        stats.put("names", names);
+        stats.put("nodes", nodes);
+        return stats;
+    }
+
+    private CompletionTrie trie(String userId) {
+        synchronized(tries) {
+            return tries.get(userId);
+        }
+    }
+
+    /**
+     * @return the user's trie, or null after telling a load in progress that it may be missing an update
+     */
+    private CompletionTrie trieOrMarkUpdated(String userId) {
+        synchronized(tries) {
+            CompletionTrie trie = tries.get(userId);
+            if(trie == null) {
+                Load load = loads.get(userId);
+                if(load != null) {
+                    load.generation++;
+                }
+            }
+            return trie;
+        }
+    }
+
+    private CompletionTrie load(String userId, Function<String, List<Suggestion>> loader) {
+        Load load;
+        long generation;
+        synchronized(tries) {
+            load = loads.computeIfAbsent(userId, k -> new Load());
+            load.loaders++;
+            generation = load.generation;
+        }
+
+        try {
+            CompletionTrie loaded = new CompletionTrie(maxNamesPerUser);
+            for(Suggestion suggestion : loader.apply(userId)) {
+                loaded.put(suggestion.fileId, suggestion.fileName, suggestion.weight);
+            }
+            synchronized(tries) {
+                if(load.generation != generation) {
+                    // May have missed an update; the next request loads again unless another load got in
+                    CompletionTrie current = tries.get(userId);
+                    return current != null ? current : loaded;
+                }
+                // Another request may have loaded the user meanwhile, and taken updates since
+                return tries.computeIfAbsent(userId, k -> loaded);
+            }
+        } finally {
+            synchronized(tries) {
+                if(--load.loaders == 0) {
+                    loads.remove(userId);
+                }
+            }
+        }
+    }
+}
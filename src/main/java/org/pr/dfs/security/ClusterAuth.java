@@ -0,0 +1,91 @@
+package org.pr.dfs.security;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Signs and checks the calls storage nodes make to the coordinator (block reports and heartbeats).
+ *
+ * Both sides hold the same secret. A node sends the current time and an HMAC-SHA256 over the endpoint,
+ * its id, address and the time; the coordinator recomputes it and refuses calls that do not match or
+ * are more than a few minutes old. The report body is streamed and not covered by the signature.
+ * Without a secret nothing is signed and every call is refused.
+ */
+public final class ClusterAuth {
+    public static final String TIMESTAMP_HEADER = "X-DFS-Cluster-Timestamp";
+    public static final String SIGNATURE_HEADER = "X-DFS-Cluster-Signature";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final long MAX_SKEW_MS = 5 * 60 * 1000;
+
+    private final SecretKeySpec key; // Null without a secret
+
+    /**
+     * @param secret Base64, at least 256 bits; empty to leave the cluster unauthenticated and refuse calls
+     */
+    public ClusterAuth(String secret) {
+        if(secret == null || secret.isEmpty()) {
+            this.key = null;
+            return;
+        }
+        byte[] raw = Base64.getDecoder().decode(secret);
+        if(raw.length < 32) {
+            throw new IllegalArgumentException("Cluster secret must have at least 256 bits");
+        }
+        this.key = new SecretKeySpec(raw, ALGORITHM);
+    }
+
+    public boolean isConfigured() {
+        return key != null;
+    }
+
+    /**
+     * @return the signature header value, or null without a secret
+     */
+    public String sign(String endpoint, String nodeId, String host, int port, long timestamp) {
+        if(key == null) {
+            return null;
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(mac(payload(endpoint, nodeId, host, port, timestamp)));
+    }
+
+    /**
+     * @return whether the call was signed with this secret within the allowed clock skew
+     */
+    public boolean verify(String endpoint, String nodeId, String host, int port, String timestamp,
+                          String signature, long now) {
+        if(key == null || timestamp == null || signature == null) {
+            return false;
+        }
+        try {
+            long sentAt = Long.parseLong(timestamp);
+            if(Math.abs(now - sentAt) > MAX_SKEW_MS) {
+                return false;
+            }
+            byte[] expected = mac(payload(endpoint, nodeId, host, port, sentAt));
+            return MessageDigest.isEqual(expected, Base64.getUrlDecoder().decode(signature));
+        } catch(IllegalArgumentException e) {
+            return false; // Not a number or not base64
+        }
+    }
+
+    private static byte[] payload(String endpoint, String nodeId, String host, int port, long timestamp) {
+        return (endpoint + "|" + nodeId + "|" + host + "|" + port + "|" + timestamp)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] mac(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.pr.dfs.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * AES-GCM for file contents, laid out as the 12 byte IV followed by the ciphertext and the 16 byte tag.
+ *
+ * Each thread keeps its own Cipher, initialized per message rather than looked up from the providers each
+ * time, and its own DRBG for the IVs. The DRBG is seeded once when the thread first encrypts and never
+ * waits for entropy afterwards, unlike SecureRandom.getInstanceStrong(), and threads do not contend on a
+ * shared generator. IVs are random, which keeps them unique for far more messages per key than a user
+ * will ever store.
+ *
+ * The byte array methods write straight into the array they return, without separate IV and ciphertext
+ * arrays to copy together or apart. The ByteBuffer methods work on direct buffers without copying them to
+ * the heap, for callers reading from or writing to channels.
+ */
+public class CryptoEngine {
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int IV_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private static final class ThreadState {
+        final Cipher cipher;
+        final SecureRandom nonces;
+        final byte[] iv = new byte[IV_LENGTH];
+
+        ThreadState() {
+            try {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " not available", e);
+            }
+            nonces = newDrbg();
+        }
+    }
+
+    private final ThreadLocal<ThreadState> states = ThreadLocal.withInitial(ThreadState::new);
+
+    public static int sealedLength(int plainLength) {
+        return IV_LENGTH + plainLength + TAG_LENGTH;
+    }
+
+    public byte[] encrypt(SecretKey key, byte[] plain) throws GeneralSecurityException {
+        return encrypt(key, plain, 0, plain.length);
+    }
+
+    public byte[] encrypt(SecretKey key, byte[] plain, int offset, int length) throws GeneralSecurityException {
+        ThreadState state = states.get();
+        byte[] sealed = new byte[sealedLength(length)];
+        state.nonces.nextBytes(state.iv);
+        System.arraycopy(state.iv, 0, sealed, 0, IV_LENGTH);
+        state.cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, state.iv));
+        state.cipher.doFinal(plain, offset, length, sealed, IV_LENGTH);
+        return sealed;
+    }
+
+    public byte[] decrypt(SecretKey key, byte[] sealed) throws GeneralSecurityException {
+        return decrypt(key, sealed, 0, sealed.length);
+    }
+
+    public byte[] decrypt(SecretKey key, byte[] sealed, int offset, int length) throws GeneralSecurityException {
+        if(length < IV_LENGTH + TAG_LENGTH) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        }
+        Cipher cipher = states.get().cipher;
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, sealed, offset, IV_LENGTH));
+        return cipher.doFinal(sealed, offset + IV_LENGTH, length - IV_LENGTH);
+    }
+
+    /**
+     * Seals the remaining bytes of {@code plain} into {@code out}, which needs room for
+     * {@link #sealedLength} bytes.
+     * @return the number of bytes written
+     */
+    public int encrypt(SecretKey key, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        ThreadState state = states.get();
+        if(out.remaining() < sealedLength(plain.remaining())) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        state.nonces.nextBytes(state.iv);
+        out.put(state.iv);
+        state.cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, state.iv));
+        return IV_LENGTH + state.cipher.doFinal(plain, out);
+    }
+
+    /**
+     * Opens the remaining bytes of {@code sealed} into {@code out}, which needs room for the plaintext.
+     * @return the number of bytes written
+     */
+    public int decrypt(SecretKey key, ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        if(sealed.remaining() < IV_LENGTH + TAG_LENGTH) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        }
+        ThreadState state = states.get();
+        sealed.get(state.iv);
+        state.cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, state.iv));
+        return state.cipher.doFinal(sealed, out);
+    }
+
+    /**
+     * Fills {@code bytes} from this thread's DRBG, e.g. for a salt.
+     */
+    public void nextBytes(byte[] bytes) {
+        states.get().nonces.nextBytes(bytes);
+    }
+
+    private static SecureRandom newDrbg() {
+        byte[] personalization = ("dfs-crypto-" + Thread.currentThread().getId()).getBytes(StandardCharsets.UTF_8);
+        try {
+            return SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, personalization));
+        } catch(NoSuchAlgorithmException e) {
+            return new SecureRandom(); // Non-blocking default of the platform
+        }
+    }
+}
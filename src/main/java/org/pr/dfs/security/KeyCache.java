@@ -0,0 +1,167 @@
+package org.pr.dfs.security;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Raw key material of recently active users, so encrypting or decrypting a file does not look the key up
+ * in the database each time.
+ *
+ * The cache owns its copies of the key bytes and hands out a fresh {@link SecretKeySpec} per lookup, so it
+ * can overwrite its copy with zeros the moment an entry leaves: when the least recently used key is pushed
+ * out by the size bound, when a key was not used for the idle time, on {@link #invalidate} and on
+ * {@link #clear}. A key in use by a transfer is unaffected, that transfer holds its own copy.
+ */
+public class KeyCache {
+
+    private static final class Entry {
+        final byte[] material;
+        final String algorithm;
+        long lastUsed;
+
+        Entry(byte[] material, String algorithm, long lastUsed) {
+            this.material = material;
+            this.algorithm = algorithm;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final long idleNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private long generation; // Bumped by every write, a load started before one is not cached
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long idleEvictions;
+    private long invalidations;
+
+    /**
+     * @param maxKeys keys kept at most, the least recently used is dropped past that
+     * @param idleMillis a key not used for this long is dropped
+     */
+    public KeyCache(int maxKeys, long idleMillis) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if(size() > maxKeys) {
+                    zero(eldest.getValue());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param loader reads the key when it is not cached, may return null
+     * @return a copy of the user's key, or null if the loader has none
+     */
+    public SecretKey get(String userId, Function<String, SecretKey> loader) {
+        long now = System.nanoTime();
+        long loadGeneration;
+        synchronized(this) {
+            Entry entry = entries.get(userId);
+            if(entry != null) {
+                if(now - entry.lastUsed <= idleNanos) {
+                    entry.lastUsed = now;
+                    hits++;
+                    return new SecretKeySpec(entry.material, entry.algorithm);
+                }
+                entries.remove(userId);
+                zero(entry);
+                idleEvictions++;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        // Loaded outside the lock, lookups of other users go on meanwhile
+        SecretKey key = loader.apply(userId);
+        if(key != null) {
+            synchronized(this) {
+                if(generation == loadGeneration) {
+                    replace(userId, key);
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Caches a key just written, replacing the user's previous key.
+     */
+    public synchronized void put(String userId, SecretKey key) {
+        generation++;
+        replace(userId, key);
+    }
+
+    public synchronized void invalidate(String userId) {
+        generation++;
+        Entry entry = entries.remove(userId);
+        if(entry != null) {
+            zero(entry);
+            invalidations++;
+        }
+    }
+
+    /**
+     * Drops the keys not used for the idle time.
+     * @return the number of keys dropped
+     */
+    public synchronized int evictIdle() {
+        long now = System.nanoTime();
+        int dropped = 0;
+        for(Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if(now - entry.lastUsed > idleNanos) {
+                it.remove();
+                zero(entry);
+                dropped++;
+            }
+        }
+        idleEvictions += dropped;
+        return dropped;
+    }
+
+    /**
+     * Drops and zeroes every key, e.g. on shutdown.
+     */
+    public synchronized void clear() {
+        for(Entry entry : entries.values()) {
+            zero(entry);
+        }
+        entries.clear();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long lookups = hits + misses;
+        stats.put("keys", entries.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRatio", lookups == 0 ? 0.0 : Math.round(hits * 1000.0 / lookups) / 1000.0);
+        stats.put("evictions", evictions);
+        stats.put("idleEvictions", idleEvictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    private void replace(String userId, SecretKey key) {
+        Entry previous = entries.put(userId, new Entry(key.getEncoded(), key.getAlgorithm(), System.nanoTime()));
+        if(previous != null) {
+            zero(previous);
+        }
+    }
+
+    private static void zero(Entry entry) {
+        Arrays.fill(entry.material, (byte) 0);
+    }
+}
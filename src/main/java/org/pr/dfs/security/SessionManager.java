@@ -1,31 +1,81 @@
 package org.pr.dfs.security;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.config.DfsConfig;
 import org.pr.dfs.model.User;
+import org.pr.dfs.service.UserChangedEvent;
 import org.pr.dfs.service.UserService;
+import org.pr.dfs.utils.BoundedTtlCache;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Sessions and the users behind them, resolved on every authenticated request.
+ *
+ * By default sessions live in a {@link SessionStore} on this instance, expired by a timer wheel and capped
+ * in number. With {@code dfs.session.stateless} the session ID is instead a signed {@link SessionTokens}
+ * token that every instance sharing the secret accepts, so requests need not stick to one instance. Tokens
+ * are renewed while in use up to {@code dfs.session.max-lifetime-ms} after login. Logging out or changing
+ * the password bumps the user's token epoch, which ends all of that user's tokens; other instances notice
+ * once their cached copy of the user expires.
+ *
+ * Users are served from a short-lived cache instead of the database, and dropped from it as soon as
+ * {@link UserService} reports a change to them, so quota checks and password changes see the new record.
+ * A session's expiry is only moved forward once a minute has passed since it was last moved, so most
+ * requests resolve their session without writing anything.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class SessionManager {
 
-    private final UserService userService;
-
-    private final Map<String, String> sessions = new ConcurrentHashMap<>(); // sessionId -> userId
-    private final Map<String, Long> sessionExpiry = new ConcurrentHashMap<>();
+    private static final long WHEEL_TICK = 1000;
+    private static final long RENEW_INTERVAL = 1000 * 60; // Expiry is extended at most this often
+    private static final long USER_CACHE_TTL = 1000 * 10; // Bounds staleness of changes made elsewhere
+    private static final int USER_CACHE_SIZE = 10000;
 
-    private static final long SESSION_TIMEOUT = 1000 * 60 * 30; // 30 minutes
+    private final UserService userService;
+    private final DfsConfig dfsConfig;
+
+    private final BoundedTtlCache<String, User> users = new BoundedTtlCache<>(USER_CACHE_SIZE, USER_CACHE_TTL, 0);
+    private SessionStore store;
+    private SessionTokens tokens;
+    private long sessionTimeout;
+
+    @PostConstruct
+    public void init() {
+        DfsConfig.Session config = dfsConfig.getSession();
+        sessionTimeout = config.getTimeoutMs();
+        store = new SessionStore(WHEEL_TICK, config.getMaxSessions(), System.currentTimeMillis());
+        if (config.isStateless()) {
+            byte[] secret;
+            if (config.getTokenSecret().isEmpty()) {
+                log.warn("No dfs.session.token-secret set, tokens are only valid on this instance until it restarts");
+                secret = new byte[32];
+                new SecureRandom().nextBytes(secret);
+            } else {
+                secret = Base64.getDecoder().decode(config.getTokenSecret());
+            }
+            tokens = new SessionTokens(secret, config.getTokenTtlMs(), config.getMaxLifetimeMs());
+        }
+    }
 
     public String createSession(User user) {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, user.getUserId()); // Store userId instead of User object
-        sessionExpiry.put(sessionId, System.currentTimeMillis() + SESSION_TIMEOUT);
+        long now = System.currentTimeMillis();
+        String sessionId;
+        if (tokens != null) {
+            sessionId = tokens.issue(user.getUserId(), user.getTokenEpoch(), now, now);
+        } else {
+            sessionId = UUID.randomUUID().toString();
+            store.add(new SessionStore.Session(sessionId, user.getUserId(), now + sessionTimeout));
+        }
 
         try {
             userService.updateLastLoginTime(user.getUserId());
@@ -33,7 +83,7 @@ public class SessionManager {
             log.warn("Failed to update last login time for user {}: {}", user.getUsername(), e.getMessage());
         }
 
-        log.debug("Created session {} for user {}", sessionId, user.getUsername());
+        log.debug("Created session for user {}", user.getUsername());
         return sessionId;
     }
 
@@ -42,64 +92,114 @@ public class SessionManager {
             return null;
         }
 
-        Long expiry = sessionExpiry.get(sessionId);
-        if (expiry == null || System.currentTimeMillis() > expiry) {
-            invalidateSession(sessionId);
+        String userId = resolveUserId(sessionId, System.currentTimeMillis());
+        if (userId == null) {
             return null;
         }
 
-        // Extend session timeout
-        sessionExpiry.put(sessionId, System.currentTimeMillis() + SESSION_TIMEOUT);
-
-        // Get fresh user data from database
-        String userId = sessions.get(sessionId);
-        if (userId == null) {
+        User user = users.get(userId, this::loadUser);
+        if (user == null) {
+            store.remove(sessionId);
+            return null;
+        }
+        if (!user.isActive()) {
+            log.warn("Session belongs to inactive user {}, invalidating", user.getUsername());
+            store.remove(sessionId); // A token is refused on every request while the user stays inactive
             return null;
         }
+        return user;
+    }
 
-        try {
-            User user = userService.getUserById(userId);
-            if (!user.isActive()) {
-                log.warn("Session {} belongs to inactive user {}, invalidating", sessionId, user.getUsername());
-                invalidateSession(sessionId);
-                return null;
-            }
-            return user;
-        } catch (Exception e) {
-            log.error("Failed to retrieve user for session {}: {}", sessionId, e.getMessage());
-            invalidateSession(sessionId);
+    /**
+     * A fresh token for a stateless session past half its lifetime, so clients in use stay logged in,
+     * until the session reaches its maximum lifetime.
+     * @return the new token, or null if the session needs none or cannot be extended
+     */
+    public String renewToken(String sessionId) {
+        if (tokens == null || sessionId == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        SessionTokens.Claims claims = verifyToken(sessionId, now);
+        if (claims == null || now - claims.issuedAt < tokens.getTtlMillis() / 2 || !tokens.canExtend(claims, now)) {
             return null;
         }
+        return tokens.issue(claims.userId, claims.epoch, claims.loginAt, now);
+    }
+
+    /**
+     * How long a session cookie should live: the token lifetime for stateless sessions, the idle timeout otherwise.
+     */
+    public int getCookieMaxAgeSeconds() {
+        long lifetime = tokens != null ? tokens.getTtlMillis() : sessionTimeout;
+        return (int) Math.min(Integer.MAX_VALUE, lifetime / 1000);
     }
 
+    /**
+     * Ends a session. A stateless session cannot be ended alone: every token of its user is revoked.
+     */
     public void invalidateSession(String sessionId) {
-        String userId = sessions.remove(sessionId);
-        sessionExpiry.remove(sessionId);
-
-        if (userId != null) {
-            try {
-                User user = userService.getUserById(userId);
-                log.debug("Invalidated session {} for user {}", sessionId, user.getUsername());
-            } catch (Exception e) {
-                log.debug("Invalidated session {} for user ID {}", sessionId, userId);
-            }
+        if (tokens == null) {
+            store.remove(sessionId);
+            return;
+        }
+        SessionTokens.Claims claims = verifyToken(sessionId, System.currentTimeMillis());
+        if (claims == null) {
+            return;
+        }
+        try {
+            userService.revokeSessionTokens(claims.userId);
+        } catch (Exception e) {
+            log.warn("Failed to revoke session tokens of user {}: {}", claims.userId, e.getMessage());
         }
     }
 
+    @EventListener
+    public void onUserChanged(UserChangedEvent event) {
+        users.invalidate(event.getUserId());
+    }
+
+    @Scheduled(fixedRate = WHEEL_TICK)
     public void cleanupExpiredSessions() {
-        long now = System.currentTimeMillis();
-        int cleanedCount = 0;
+        int cleanedCount = store.advance(System.currentTimeMillis());
+        if (cleanedCount > 0) {
+            log.debug("Cleaned up {} expired sessions, {} active", cleanedCount, store.size());
+        }
+    }
 
-        sessionExpiry.entrySet().removeIf(entry -> {
-            if (now > entry.getValue()) {
-                sessions.remove(entry.getKey());
-                return true;
-            }
-            return false;
-        });
+    private String resolveUserId(String sessionId, long now) {
+        if (tokens != null) {
+            SessionTokens.Claims claims = verifyToken(sessionId, now);
+            return claims != null ? claims.userId : null;
+        }
+        SessionStore.Session session = store.get(sessionId, now);
+        if (session == null) {
+            return null;
+        }
+        if (now + sessionTimeout - session.expiresAt >= RENEW_INTERVAL) {
+            session.expiresAt = now + sessionTimeout; // Racing renewals write about the same time
+        }
+        return session.userId;
+    }
 
-        if (cleanedCount > 0) {
-            log.debug("Cleaned up {} expired sessions", cleanedCount);
+    /**
+     * @return the claims of a valid token whose epoch is still the user's, or null
+     */
+    private SessionTokens.Claims verifyToken(String token, long now) {
+        SessionTokens.Claims claims = tokens.verify(token, now);
+        if (claims == null) {
+            return null;
+        }
+        User user = users.get(claims.userId, this::loadUser);
+        return user != null && user.getTokenEpoch() == claims.epoch ? claims : null;
+    }
+
+    private User loadUser(String userId) {
+        try {
+            return userService.getUserById(userId);
+        } catch (Exception e) {
+            log.error("Failed to retrieve user {}: {}", userId, e.getMessage());
+            return null;
         }
     }
 }
@@ -0,0 +1,229 @@
+package org.pr.dfs.security;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side sessions with expiry on a hierarchical timer wheel and a hard cap on their number.
+ *
+ * Lookups go to a concurrent map and take no lock. Every session also sits in one slot of the wheel:
+ * level 0 has a slot per tick, level 1 a slot per 64 ticks and level 2 a slot per 4096 ticks, so a
+ * session is filed in constant time whatever its deadline, and {@link #advance} only visits the slots
+ * that fall due. Entries of a higher level slot move down a level when its time range comes up.
+ *
+ * Renewing a session only moves its expiry, not its slot. When the slot falls due a renewed session is
+ * filed again for its new deadline instead of being dropped, so renewals never take the wheel's lock.
+ * Expiry may therefore only be moved forward. At the cap, a new session replaces the one closest to
+ * expiring.
+ */
+final class SessionStore {
+    private static final int LEVELS = 3;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    static final class Session {
+        final String id;
+        final String userId;
+        volatile long expiresAt;
+
+        // Wheel links, guarded by the store
+        private Session previous;
+        private Session next;
+        private Session[] slot;
+        private int slotIndex;
+
+        Session(String id, String userId, long expiresAt) {
+            this.id = id;
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long tickMillis;
+    private final int maxSessions;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Session[][] wheel = new Session[LEVELS][SLOTS]; // Heads of doubly linked lists
+    private long currentTick;
+    private long expired;
+    private long evicted;
+
+    SessionStore(long tickMillis, int maxSessions, long now) {
+        if(tickMillis <= 0 || maxSessions <= 0) {
+            throw new IllegalArgumentException("Tick and session cap must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.maxSessions = maxSessions;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * @return the live session with this ID, or null
+     */
+    Session get(String id, long now) {
+        Session session = sessions.get(id);
+        return session != null && now <= session.expiresAt ? session : null;
+    }
+
+    synchronized void add(Session session) {
+        while(sessions.size() >= maxSessions && evictClosestToExpiry()) {
+            evicted++;
+        }
+        Session replaced = sessions.put(session.id, session);
+        if(replaced != null) {
+            unlink(replaced);
+        }
+        schedule(session);
+    }
+
+    synchronized void remove(String id) {
+        Session session = sessions.remove(id);
+        if(session != null) {
+            unlink(session);
+        }
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    synchronized long getExpiredCount() {
+        return expired;
+    }
+
+    synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Moves the wheel up to {@code now}, dropping the sessions that expired on the way.
+     * @return the number of sessions dropped
+     */
+    synchronized int advance(long now) {
+        long target = now / tickMillis;
+        int dropped = 0;
+        while(currentTick < target) {
+            currentTick++;
+            // Bring down the level whose time range starts now, highest first
+            for(int level = LEVELS - 1; level > 0; level--) {
+                if((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    refile(wheel[level], index(currentTick, level));
+                }
+            }
+            Session[] slot = wheel[0];
+            int index = index(currentTick, 0);
+            Session session = slot[index];
+            slot[index] = null;
+            while(session != null) {
+                Session next = session.next;
+                session.previous = null;
+                session.next = null;
+                session.slot = null;
+                if(now > session.expiresAt) {
+                    sessions.remove(session.id, session);
+                    dropped++;
+                } else {
+                    schedule(session);
+                }
+                session = next;
+            }
+        }
+        expired += dropped;
+        return dropped;
+    }
+
+    /**
+     * Files a session in the slot of its deadline, on the lowest level whose range reaches it.
+     */
+    private void schedule(Session session) {
+        int place = place(session, currentTick + 1);
+        link(session, wheel[place / SLOTS], place % SLOTS);
+    }
+
+    /**
+     * @param earliest the first tick still to be processed
+     * @return level * SLOTS + index of the slot the session belongs in now
+     */
+    private int place(Session session, long earliest) {
+        long deadline = Math.max(earliest, (session.expiresAt + tickMillis - 1) / tickMillis);
+        long delta = deadline - currentTick;
+        for(int level = 0; level < LEVELS; level++) {
+            if(delta < 1L << (SLOT_BITS * (level + 1))) {
+                return level * SLOTS + index(deadline, level);
+            }
+        }
+        // Beyond the wheel: park in the farthest slot, it is filed again when that comes up
+        return (LEVELS - 1) * SLOTS + index(currentTick - 1, LEVELS - 1);
+    }
+
+    private void refile(Session[] slot, int index) {
+        Session session = slot[index];
+        slot[index] = null;
+        while(session != null) {
+            Session next = session.next;
+            session.previous = null;
+            session.next = null;
+            session.slot = null;
+            // The current tick's own slot is processed right after moving down, so it may take entries
+            int place = place(session, currentTick);
+            link(session, wheel[place / SLOTS], place % SLOTS);
+            session = next;
+        }
+    }
+
+    /**
+     * Drops the session filed for the earliest deadline. Renewed sessions found on the way are filed again
+     * for their real deadline first, so an active session is not mistaken for an idle one.
+     */
+    private boolean evictClosestToExpiry() {
+        for(int level = 0; level < LEVELS; level++) {
+            for(int step = level == 0 ? 1 : 0; step < SLOTS + (level == 0 ? 1 : 0); step++) {
+                int index = index(currentTick + ((long) step << (SLOT_BITS * level)), level);
+                Session[] slot = wheel[level];
+                while(slot[index] != null) {
+                    Session session = slot[index];
+                    unlink(session);
+                    if(place(session, currentTick + 1) == level * SLOTS + index) {
+                        sessions.remove(session.id, session);
+                        return true;
+                    }
+                    schedule(session);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int index(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+    }
+
+    private static void link(Session session, Session[] slot, int index) {
+        Session head = slot[index];
+        session.next = head;
+        session.previous = null;
+        if(head != null) {
+            head.previous = session;
+        }
+        slot[index] = session;
+        session.slot = slot;
+        session.slotIndex = index;
+    }
+
+    private static void unlink(Session session) {
+        if(session.slot == null) {
+            return;
+        }
+        if(session.previous != null) {
+            session.previous.next = session.next;
+        } else {
+            session.slot[session.slotIndex] = session.next;
+        }
+        if(session.next != null) {
+            session.next.previous = session.previous;
+        }
+        session.previous = null;
+        session.next = null;
+        session.slot = null;
+    }
+}
@@ -0,0 +1,119 @@
+package org.pr.dfs.security;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Stateless session tokens: the user ID and expiry, signed with HMAC-SHA256. Any API instance holding the
+ * same secret verifies a token on its own, without sessions in memory or a shared session database.
+ *
+ * Tokens are short-lived and reissued while in use, but never past a fixed lifetime from the login they
+ * carry. They also carry the user's token epoch; bumping it in the user record ends every token issued
+ * before. Format: base64url(userId|epoch|loginAt|issuedAt|expiresAt).base64url(mac).
+ */
+final class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final long maxLifetimeMillis;
+    private final ThreadLocal<Mac> macs; // Mac instances are not thread safe, reuse one per thread
+
+    static final class Claims {
+        final String userId;
+        final long epoch;
+        final long loginAt;
+        final long issuedAt;
+        final long expiresAt;
+
+        private Claims(String userId, long epoch, long loginAt, long issuedAt, long expiresAt) {
+            this.userId = userId;
+            this.epoch = epoch;
+            this.loginAt = loginAt;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param ttlMillis lifetime of a single token
+     * @param maxLifetimeMillis time from login after which no token is valid, however often renewed
+     */
+    SessionTokens(byte[] secret, long ttlMillis, long maxLifetimeMillis) {
+        if(secret.length < 32) {
+            throw new IllegalArgumentException("Token secret must have at least 256 bits");
+        }
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlMillis = ttlMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC-SHA256 not available", e);
+            }
+        });
+    }
+
+    long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @return a token for a login at loginAt, or null once that login is past its maximum lifetime
+     */
+    String issue(String userId, long epoch, long loginAt, long now) {
+        long expiresAt = Math.min(now + ttlMillis, loginAt + maxLifetimeMillis);
+        if(expiresAt <= now) {
+            return null;
+        }
+        byte[] payload = (userId + "|" + epoch + "|" + loginAt + "|" + now + "|" + expiresAt)
+                .getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+    }
+
+    /**
+     * @return whether a token issued now for this login would outlive the given one
+     */
+    boolean canExtend(Claims claims, long now) {
+        return Math.min(now + ttlMillis, claims.loginAt + maxLifetimeMillis) > claims.expiresAt;
+    }
+
+    /**
+     * @return the claims of a token signed with this secret and not yet expired, or null
+     */
+    Claims verify(String token, long now) {
+        int dot = token.indexOf('.');
+        if(dot <= 0) {
+            return null;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] payload = decoder.decode(token.substring(0, dot));
+            byte[] signature = decoder.decode(token.substring(dot + 1));
+            if(!MessageDigest.isEqual(sign(payload), signature)) {
+                return null;
+            }
+            String[] parts = new String(payload, StandardCharsets.UTF_8).split("\\|");
+            if(parts.length != 5) {
+                return null;
+            }
+            Claims claims = new Claims(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+            return now <= claims.expiresAt ? claims : null;
+        } catch(IllegalArgumentException e) {
+            return null; // Not base64 or not numbers, a token we never issued
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+}
@@ -0,0 +1,285 @@
+package org.pr.dfs.server;
+
+import org.pr.dfs.model.FileMetaData;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Logger;
+
+/**
+ * Sorted, in-memory index of directory entries used for cursor-paginated listings.
+ *
+ * A directory is scanned once, on its first listing, into skip lists ordered by name, size and
+ * modification time. After that a page costs O(log n + limit). Indexes are kept current by the
+ * create/delete/move hooks and rebuilt if the directory's mtime shows a change made outside them.
+ * Only the most recently used directories are kept in memory.
+ */
+public class DirectoryIndex {
+    private static final Logger LOGGER = Logger.getLogger(DirectoryIndex.class.getName());
+    private static final int DEFAULT_MAX_DIRECTORIES = 1024;
+
+    public enum SortField { NAME, SIZE, MODIFIED }
+
+    public static class Page {
+        private final List<FileMetaData> entries;
+        private final String nextCursor;
+        private final int totalEntries;
+
+        Page(List<FileMetaData> entries, String nextCursor, int totalEntries) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
+            this.totalEntries = totalEntries;
+        }
+
+        public List<FileMetaData> getEntries() {
+            return entries;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public int getTotalEntries() {
+            return totalEntries;
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        Entry(String name, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final Comparator<Entry> BY_SIZE =
+            Comparator.<Entry>comparingLong(e -> e.size).thenComparing(e -> e.name);
+    private static final Comparator<Entry> BY_MODIFIED =
+            Comparator.<Entry>comparingLong(e -> e.lastModified).thenComparing(e -> e.name);
+
+    private static class DirIndex {
+        final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+        final ConcurrentSkipListSet<Entry> bySize = new ConcurrentSkipListSet<>(BY_SIZE);
+        final ConcurrentSkipListSet<Entry> byModified = new ConcurrentSkipListSet<>(BY_MODIFIED);
+        volatile int count;
+        volatile long directoryMtime;
+
+        synchronized void put(Entry entry) {
+            Entry previous = byName.put(entry.name, entry);
+            if(previous != null) {
+                bySize.remove(previous);
+                byModified.remove(previous);
+            } else {
+                count++;
+            }
+            bySize.add(entry);
+            byModified.add(entry);
+        }
+
+        synchronized void remove(String name) {
+            Entry previous = byName.remove(name);
+            if(previous != null) {
+                bySize.remove(previous);
+                byModified.remove(previous);
+                count--;
+            }
+        }
+    }
+
+    private final Path storageRoot;
+    private final Map<String, DirIndex> indexes;
+
+    public DirectoryIndex(String storagePath) {
+        this(storagePath, DEFAULT_MAX_DIRECTORIES);
+    }
+
+    public DirectoryIndex(String storagePath, int maxDirectories) {
+        this.storageRoot = Paths.get(storagePath);
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DirIndex> eldest) {
+                return size() > maxDirectories;
+            }
+        });
+    }
+
+    /**
+     * Returns one page of a directory listing.
+     * @param cursor the nextCursor of the previous page, or null for the first page
+     */
+    public Page list(String path, SortField sortBy, boolean descending, int limit, String cursor) throws IOException {
+        path = normalize(path);
+        DirIndex index = getOrBuild(path);
+
+        Iterator<Entry> iterator = iterate(index, sortBy, descending, decodeCursor(cursor, sortBy, descending));
+        List<FileMetaData> entries = new ArrayList<>(Math.min(limit, index.count));
+        Entry last = null;
+        while(iterator.hasNext() && entries.size() < limit) {
+            last = iterator.next();
+            entries.add(toFileMetaData(path, last));
+        }
+
+        String nextCursor = iterator.hasNext() && last != null ? encodeCursor(last, sortBy, descending) : null;
+        return new Page(entries, nextCursor, index.count);
+    }
+
+    /**
+     * Records that a file or directory was created or modified.
+     */
+    public void onCreated(String path) {
+        path = normalize(path);
+        DirIndex parent = indexes.get(parentOf(path));
+        if(parent == null) {
+            return;
+        }
+        Path fullPath = storageRoot.resolve(path);
+        try {
+            parent.put(readEntry(fullPath, Files.readAttributes(fullPath, BasicFileAttributes.class)));
+            parent.directoryMtime = Files.getLastModifiedTime(fullPath.getParent()).toMillis();
+        } catch(IOException e) {
+            // The path is already gone again; drop the parent so the next listing rescans it
+            indexes.remove(parentOf(path));
+        }
+    }
+
+    /**
+     * Records that a file or directory was deleted. Indexes below a deleted directory are dropped.
+     */
+    public void onDeleted(String path) {
+        path = normalize(path);
+        invalidateTree(path);
+        DirIndex parent = indexes.get(parentOf(path));
+        if(parent != null) {
+            parent.remove(fileNameOf(path));
+            try {
+                parent.directoryMtime = Files.getLastModifiedTime(storageRoot.resolve(parentOf(path))).toMillis();
+            } catch(IOException e) {
+                indexes.remove(parentOf(path));
+            }
+        }
+    }
+
+    public void onMoved(String sourcePath, String destinationPath) {
+        onDeleted(sourcePath);
+        invalidateTree(destinationPath);
+        onCreated(destinationPath);
+    }
+
+    /**
+     * Drops the index of a directory and of every directory below it.
+     */
+    public void invalidateTree(String path) {
+        String prefix = normalize(path);
+        synchronized(indexes) {
+            indexes.keySet().removeIf(dir -> dir.equals(prefix) || dir.startsWith(prefix + "/"));
+        }
+    }
+
+    public int getIndexedDirectoryCount() {
+        return indexes.size();
+    }
+
+    private DirIndex getOrBuild(String path) throws IOException {
+        Path fullPath = storageRoot.resolve(path);
+        if(!Files.isDirectory(fullPath)) {
+            indexes.remove(path);
+            throw new FileNotFoundException("Directory not found: " + path);
+        }
+
+        long mtime = Files.getLastModifiedTime(fullPath).toMillis();
+        DirIndex index = indexes.get(path);
+        if(index != null && index.directoryMtime == mtime) {
+            return index;
+        }
+
+        index = new DirIndex();
+        index.directoryMtime = mtime;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(fullPath)) {
+            for(Path entry : stream) {
+                try {
+                    index.put(readEntry(entry, Files.readAttributes(entry, BasicFileAttributes.class)));
+                } catch(NoSuchFileException e) {
+                    // Deleted while scanning
+                }
+            }
+        }
+        indexes.put(path, index);
+        LOGGER.fine("Indexed directory " + path + " with " + index.count + " entries");
+        return index;
+    }
+
+    private Iterator<Entry> iterate(DirIndex index, SortField sortBy, boolean descending, Entry after) {
+        if(sortBy == SortField.NAME) {
+            NavigableMap<String, Entry> view = index.byName;
+            if(after != null) {
+                view = descending ? view.headMap(after.name, false) : view.tailMap(after.name, false);
+            }
+            return (descending ? view.descendingMap() : view).values().iterator();
+        }
+
+        NavigableSet<Entry> view = sortBy == SortField.SIZE ? index.bySize : index.byModified;
+        if(after != null) {
+            view = descending ? view.headSet(after, false) : view.tailSet(after, false);
+        }
+        return (descending ? view.descendingSet() : view).iterator();
+    }
+
+    private Entry readEntry(Path path, BasicFileAttributes attrs) {
+        return new Entry(path.getFileName().toString(), attrs.isDirectory(), attrs.size(),
+                attrs.lastModifiedTime().toMillis());
+    }
+
+    private FileMetaData toFileMetaData(String directory, Entry entry) {
+        String path = directory.isEmpty() ? "/" + entry.name : "/" + directory + "/" + entry.name;
+        return new FileMetaData(entry.name, path, entry.directory, entry.size, new Date(entry.lastModified));
+    }
+
+    // Cursor format: sortBy|direction|size|lastModified|name, base64url encoded. Opaque to clients.
+
+    private String encodeCursor(Entry last, SortField sortBy, boolean descending) {
+        String raw = sortBy + "|" + (descending ? "desc" : "asc") + "|" + last.size + "|" + last.lastModified + "|" + last.name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Entry decodeCursor(String cursor, SortField sortBy, boolean descending) {
+        if(cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", 5);
+            if(parts.length != 5 || !parts[0].equals(sortBy.name()) ||
+                    !parts[1].equals(descending ? "desc" : "asc")) {
+                throw new IllegalArgumentException("Cursor does not match the requested sort order");
+            }
+            return new Entry(parts[4], false, Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        } catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + e.getMessage(), e);
+        }
+    }
+
+    private static String normalize(String path) {
+        return path.replace("\\", "/").replaceAll("^/+", "").replaceAll("/+$", "");
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static String fileNameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
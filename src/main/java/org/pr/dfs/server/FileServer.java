@@ -156,16 +156,15 @@ public class FileServer {
 
                 LOGGER.info("Running scheduled health check for " + totalNodes + " nodes");
 
-                for(Node node : nodes) {
-                    boolean wasHealthy = node.isHealthy();
-                    nodeManager.checkNodeHealth(node);
+                // Failed probes only raise suspicion; the failure detector notifies the fault tolerance
+                // manager once a node is dead
+                nodeManager.checkNodesHealth(nodes);
 
+                for(Node node : nodes) {
                     if(node.isHealthy()) {
                         healthyNodes++;
-                    } else if(wasHealthy) {
-                        // Node just became unhealthy
-                        LOGGER.warning("Node " + node.getNodeId() + " is not responding");
-                        faultToleranceManager.onNodeFailure(node.getNodeId());
+                    } else {
+                        LOGGER.warning("Node " + node.getNodeId() + " is " + nodeManager.getNodeState(node.getNodeId()));
                     }
                 }
 
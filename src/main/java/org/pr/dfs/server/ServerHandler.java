@@ -3,6 +3,9 @@ package org.pr.dfs.server;
 import org.pr.dfs.model.*;
 import org.pr.dfs.replication.*;
 import org.pr.dfs.utils.FileUtils;
+import org.pr.dfs.utils.PathDictionary;
+import org.pr.dfs.utils.RoaringBitmap;
+import org.pr.dfs.utils.StripedLocks;
 import org.pr.dfs.versioning.VersionManager;
 
 import java.io.*;
@@ -28,6 +31,7 @@ public class ServerHandler implements Runnable{
     private static final int MAX_RETRIES = 3;
     private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunks
     private static final long MAX_FILE_SIZE = 1024L * 1024L * 1024L; // 1GB max file size
+    private static final int FILE_LOCK_STRIPES = 256;
 
     private final Socket clientSocket;
     private final String storagePath;
@@ -40,9 +44,15 @@ public class ServerHandler implements Runnable{
 
     // Thread-safe maps for file operations
     private static final ConcurrentHashMap<String, FileOutputStream> activeFiles = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String,Object> fileLocks = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, ReplicationStatus> replicationStatuses = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Set<String>> fileNodeMap = new ConcurrentHashMap<>();
+    private static final StripedLocks fileLocks = new StripedLocks(FILE_LOCK_STRIPES); // By file name
+    // Keyed by path id in the shared PathDictionary; the map holds one reference per key and each node's
+    // bitmap one per id in it. Both are guarded by trackingLock.
+    private static final PathDictionary paths = PathDictionary.shared();
+    private static final Object trackingLock = new Object();
+    private static final ConcurrentHashMap<Integer, ReplicationStatus> replicationStatuses = new ConcurrentHashMap<>();
+    private static final Map<String, RoaringBitmap> filesByNode = new HashMap<>(); // Path ids replicated to each node
+    // One VersionManager per storage path, since each owns the journal under .versions
+    private static final ConcurrentHashMap<String, VersionManager> versionManagers = new ConcurrentHashMap<>();
 
     public ServerHandler(Socket clientSocket, String storagePath,
                          NodeManager nodeManager, ReplicationManager replicationManager, FaultToleranceManager faultToleranceManager) {
@@ -52,7 +62,7 @@ public class ServerHandler implements Runnable{
         this.replicationManager = replicationManager;
         this.faultToleranceManager = faultToleranceManager;
         this.directoryHandler = new DirectoryHandler(storagePath);
-        this.versionManager = new VersionManager(storagePath);
+        this.versionManager = versionManagers.computeIfAbsent(storagePath, VersionManager::new);
         LOGGER.info(() -> "Created new ServerHandler for client: " + clientSocket.getInetAddress());
     }
 
@@ -238,9 +248,8 @@ public class ServerHandler implements Runnable{
      */
     private void processChunk(FileChunk chunk) throws IOException {
         String fileId = chunk.getFileId();
-        Object fileLock = fileLocks.computeIfAbsent(fileId, k -> new Object());
 
-        synchronized (fileLock) {
+        try(StripedLocks.Held ignored = fileLocks.write(chunk.getFileName())) {
             String fullPath = getFullPath(chunk.getFileName());
             FileOutputStream fos = getOrCreateOutputStream(fileId, fullPath);
 
@@ -276,7 +285,12 @@ public class ServerHandler implements Runnable{
 
     private void updateReplicationStatus(String filePath, CompletableFuture<Boolean> replicationFuture) {
         ReplicationStatus status = new ReplicationStatus(filePath);
-        replicationStatuses.put(filePath, status);
+        synchronized(trackingLock) {
+            int pathId = paths.intern(filePath);
+            if(replicationStatuses.put(pathId, status) != null) {
+                paths.release(pathId);
+            }
+        }
 
         replicationFuture.thenAccept(success -> {
             status.setStatus(success ? ReplicationStatus.Status.COMPLETED : ReplicationStatus.Status.FAILED);
@@ -287,8 +301,22 @@ public class ServerHandler implements Runnable{
     }
 
     private void updateFileNodeMapping(String filePath) {
-        Set<String> nodes = fileNodeMap.computeIfAbsent(filePath, k -> ConcurrentHashMap.newKeySet());
-        nodeManager.getHealthyNodes().forEach(node -> nodes.add(node.getNodeId()));
+        List<Node> nodes = nodeManager.getHealthyNodes();
+        synchronized(trackingLock) {
+            for(Node node : nodes) {
+                int pathId = paths.intern(filePath);
+                if(!filesByNode.computeIfAbsent(node.getNodeId(), k -> new RoaringBitmap()).add(pathId)) {
+                    paths.release(pathId);
+                }
+            }
+        }
+    }
+
+    private static int countFilesOnNode(String nodeId) {
+        synchronized(trackingLock) {
+            RoaringBitmap files = filesByNode.get(nodeId);
+            return files != null ? files.getCardinality() : 0;
+        }
     }
 
     private void handleListDirectory(String path, ObjectOutputStream oos) throws IOException {
@@ -364,7 +392,7 @@ public class ServerHandler implements Runnable{
             return;
         }
 
-        try {
+        try(StripedLocks.Held ignored = fileLocks.read(path)) {
             sendFileInChunks(filePath, oos);
         } catch(Exception e) {
             sendError(oos, "Error downloading file: " + e.getMessage());
@@ -374,7 +402,10 @@ public class ServerHandler implements Runnable{
     private void handleFileDelete(String path, ObjectOutputStream oos) throws IOException {
         try {
             Path filePath = Paths.get(storagePath, path);
-            boolean deleted = Files.deleteIfExists(filePath);
+            boolean deleted;
+            try(StripedLocks.Held ignored = fileLocks.write(path)) {
+                deleted = Files.deleteIfExists(filePath);
+            }
 
             if(deleted) {
                 removeReplicationStatus(path);
@@ -420,7 +451,12 @@ public class ServerHandler implements Runnable{
     }
 
     private void handleShowReplicationStatus(String path, ObjectOutputStream oos) throws IOException {
-        ReplicationStatus status = replicationStatuses.get(path);
+        ReplicationStatus status;
+        synchronized(trackingLock) {
+            // Under the lock that guards releases, so the id cannot be reused for another path in between
+            int pathId = paths.find(path);
+            status = pathId != PathDictionary.NO_ID ? replicationStatuses.get(pathId) : null;
+        }
         if(status != null) {
             sendSuccess(oos, "Replication status retrieved", status);
         } else {
@@ -447,9 +483,7 @@ public class ServerHandler implements Runnable{
                 NodeHealthInfo info = new NodeHealthInfo(
                         node.isHealthy(),
                         node.getLastHeartbeat(),
-                        fileNodeMap.values().stream()
-                                .filter(nodeSet -> nodeSet.contains(node.getNodeId()))
-                                .count()
+                        countFilesOnNode(node.getNodeId())
                 );
                 healthStatus.put(node.getNodeId(), info);
             }
@@ -525,7 +559,6 @@ public class ServerHandler implements Runnable{
     private void closeAndCleanUp(String fileId, String fileName, FileOutputStream fos) throws IOException {
         fos.close();
         activeFiles.remove(fileId);
-        fileLocks.remove(fileId);
         LOGGER.info( () -> "File completed: " + fileName);
     }
 
@@ -536,25 +569,69 @@ public class ServerHandler implements Runnable{
             LOGGER.warning("Error closing file stream: " + ioe.getMessage());
         }
         activeFiles.remove(fileId);
-        fileLocks.remove(fileId);
     }
 
+    /**
+     * Drops the tracking of a file, or of every file below a deleted directory.
+     */
     private void removeReplicationStatus(String path) {
-        replicationStatuses.remove(path);
-        fileNodeMap.remove(path);
+        synchronized(trackingLock) {
+            for(int pathId : idsUnder(path)) {
+                if(replicationStatuses.remove(pathId) != null) {
+                    paths.release(pathId);
+                }
+                for(RoaringBitmap files : filesByNode.values()) {
+                    if(files.remove(pathId)) {
+                        paths.release(pathId);
+                    }
+                }
+            }
+        }
     }
 
+    /**
+     * Re-keys the tracking of a moved file, or of every file below a moved directory.
+     */
     private void updateReplicationStatusAfterMove(String oldPath, String newPath) {
-        ReplicationStatus status = replicationStatuses.get(oldPath);
-        if(status != null) {
-            status.updatePath(newPath);
-            replicationStatuses.put(newPath, status);
+        synchronized(trackingLock) {
+            int oldId = paths.intern(oldPath);
+            int newId = paths.intern(newPath);
+            String oldPrefix = paths.path(oldId);
+            String newPrefix = paths.path(newId);
+            for(int pathId : idsUnder(oldPath)) {
+                String movedPath = newPrefix + paths.path(pathId).substring(oldPrefix.length());
+                ReplicationStatus status = replicationStatuses.remove(pathId);
+                if(status != null) {
+                    status.updatePath(movedPath);
+                    rekey(replicationStatuses, pathId, movedPath, status);
+                }
+                for(RoaringBitmap files : filesByNode.values()) {
+                    if(files.remove(pathId)) {
+                        int movedId = paths.intern(movedPath);
+                        if(!files.add(movedId)) {
+                            paths.release(movedId);
+                        }
+                        paths.release(pathId);
+                    }
+                }
+            }
+            paths.release(oldId);
+            paths.release(newId);
         }
+    }
+
+    private static int[] idsUnder(String path) {
+        List<Integer> ids = new ArrayList<>();
+        paths.forEachUnder(path, ids::add);
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
 
-        Set<String> nodes = fileNodeMap.remove(oldPath);
-        if (nodes != null) {
-            fileNodeMap.put(newPath, nodes);
+    private static <V> void rekey(ConcurrentHashMap<Integer, V> map, int oldId, String newPath, V value) {
+        int newId = paths.intern(newPath);
+        if(map.put(newId, value) != null) {
+            paths.release(newId);
         }
+        paths.release(oldId);
     }
 
     private void sendFileInChunks(Path filePath, ObjectOutputStream oos) throws IOException {
@@ -0,0 +1,180 @@
+package org.pr.dfs.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.search.SuggestionIndex;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Write-behind access statistics. A download only bumps an in-memory counter for its path; the counters
+ * are flushed to file_metadata every few seconds, with the increments of many files applied by one UPDATE.
+ *
+ * The increment happens in SQL, so concurrent downloads and nodes never overwrite each other's counts.
+ * Access counts and last access times in the database, and the listings ordered by them, lag by at most
+ * one flush interval. Counts not yet flushed are lost if the process dies; they are statistics only.
+ * For the same reason a failed flush only re-queues a bounded number of paths, each for a few attempts,
+ * so an unreachable database cannot make the pending map grow without limit.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AccessStatsService {
+
+    private static final int FLUSH_BATCH = 1000;
+    private static final int MAX_FLUSH_ATTEMPTS = 5;
+    private static final int MAX_REQUEUED_PATHS = 100_000;
+
+    // Adds the accesses of a batch of paths and returns the new totals for the suggestion index
+    private static final String FLUSH_SQL =
+            "UPDATE file_metadata f SET access_count = COALESCE(f.access_count, 0) + d.accesses, " +
+            "last_accessed = GREATEST(f.last_accessed, d.accessed) " +
+            "FROM unnest(?::varchar[], ?::bigint[], ?::timestamp[]) AS d(path, accesses, accessed) " +
+            "WHERE f.file_path = d.path AND f.is_deleted = false " +
+            "RETURNING f.user_id, f.file_id, f.file_name, f.access_count";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final SuggestionIndex suggestionIndex;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Accesses of one path since the last flush. Only changed inside the map's compute and remove,
+     * which lock the path's bin, so a flush takes every increment exactly once.
+     */
+    private static final class Pending {
+        long accesses;
+        long lastAccessed;
+        int failedFlushes;
+    }
+
+    public void recordAccess(String filePath) {
+        long now = System.currentTimeMillis();
+        pending.compute(filePath, (path, counts) -> {
+            if(counts == null) {
+                counts = new Pending();
+            }
+            counts.accesses++;
+            counts.lastAccessed = Math.max(counts.lastAccessed, now);
+            return counts;
+        });
+    }
+
+    /**
+     * Writes the pending counts out. Runs on a fixed delay and on shutdown.
+     */
+    @Scheduled(fixedDelayString = "${dfs.search.access-flush-ms:5000}", initialDelayString = "${dfs.search.access-flush-ms:5000}")
+    public synchronized void flush() {
+        if(pending.isEmpty()) {
+            return;
+        }
+        write(path -> true);
+    }
+
+    /**
+     * Writes out the pending counts of a path and everything under it, before metadata is moved away from it.
+     * Waits for a flush in progress, which may hold counts of these paths too.
+     */
+    public synchronized void flushUnder(String filePath) {
+        String prefix = filePath + "/";
+        write(path -> path.equals(filePath) || path.startsWith(prefix));
+    }
+
+    private void write(Predicate<String> selected) {
+        List<String> paths = new ArrayList<>();
+        List<Pending> counts = new ArrayList<>();
+        for(String path : pending.keySet()) {
+            if(!selected.test(path)) {
+                continue;
+            }
+            Pending taken = pending.remove(path);
+            if(taken != null) {
+                paths.add(path);
+                counts.add(taken);
+            }
+        }
+        if(paths.isEmpty()) {
+            return;
+        }
+
+        int updated = 0;
+        int dropped = 0;
+        for(int from = 0; from < paths.size(); from += FLUSH_BATCH) {
+            int to = Math.min(paths.size(), from + FLUSH_BATCH);
+            try {
+                updated += flushBatch(paths.subList(from, to), counts.subList(from, to));
+            } catch(Exception e) {
+                log.warn("Failed to flush access counts of {} files, retrying with the next flush", to - from, e);
+                for(int i = from; i < to; i++) {
+                    if(!restore(paths.get(i), counts.get(i))) {
+                        dropped++;
+                    }
+                }
+            }
+        }
+        if(dropped > 0) {
+            log.warn("Dropped unflushed access counts of {} files", dropped);
+        }
+        log.debug("Flushed access counts of {} files ({} updated)", paths.size(), updated);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    private int flushBatch(List<String> paths, List<Pending> counts) {
+        String[] pathArray = paths.toArray(new String[0]);
+        Long[] accesses = new Long[counts.size()];
+        Timestamp[] accessed = new Timestamp[counts.size()];
+        for(int i = 0; i < counts.size(); i++) {
+            accesses[i] = counts.get(i).accesses;
+            accessed[i] = new Timestamp(counts.get(i).lastAccessed);
+        }
+
+        int[] updated = {0};
+        RowCallbackHandler refreshSuggestion = resultSet -> {
+            suggestionIndex.put(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3),
+                    resultSet.getLong(4));
+            updated[0]++;
+        };
+        jdbcTemplate.query((Connection connection) -> {
+            PreparedStatement statement = connection.prepareStatement(FLUSH_SQL);
+            statement.setArray(1, connection.createArrayOf("varchar", pathArray));
+            statement.setArray(2, connection.createArrayOf("bigint", accesses));
+            statement.setArray(3, connection.createArrayOf("timestamp", accessed));
+            return statement;
+        }, refreshSuggestion);
+        return updated[0];
+    }
+
+    /**
+     * Puts back the counts of a failed flush, unless they failed too often or too many are waiting already.
+     * @return whether the counts were kept
+     */
+    private boolean restore(String filePath, Pending counts) {
+        counts.failedFlushes++;
+        if(counts.failedFlushes >= MAX_FLUSH_ATTEMPTS || pending.size() >= MAX_REQUEUED_PATHS) {
+            return false;
+        }
+        pending.merge(filePath, counts, (current, failed) -> {
+            current.accesses += failed.accesses;
+            current.lastAccessed = Math.max(current.lastAccessed, failed.lastAccessed);
+            current.failedFlushes = failed.failedFlushes;
+            return current;
+        });
+        return true;
+    }
+}
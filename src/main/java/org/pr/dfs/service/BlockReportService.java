@@ -0,0 +1,256 @@
+package org.pr.dfs.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.model.Node;
+import org.pr.dfs.namespace.NamespaceTree;
+import org.pr.dfs.node.BlockInventory;
+import org.pr.dfs.replication.NodeManager;
+import org.pr.dfs.replication.ReplicationManager;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rebuilds replica locations from the block reports sent by storage nodes.
+ *
+ * Nodes push a full report when they start and incremental reports with every heartbeat afterwards. When the coordinator
+ * starts it also pulls a full report from every known node in parallel, so the replica maps are complete
+ * within seconds instead of waiting for each node to report. Incremental reports from a node without a
+ * full report since the coordinator started are rejected, which makes the node send a full one.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BlockReportService {
+
+    private static final Duration REPORT_TIMEOUT = Duration.ofSeconds(30);
+
+    private final NodeManager nodeManager;
+    private final ReplicationManager replicationManager;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final Set<String> reportedNodes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Thrown for an incremental report from a node that has no full report on record.
+     */
+    public static class FullReportRequiredException extends Exception {
+        public FullReportRequiredException(String nodeId) {
+            super("Full block report required from node " + nodeId);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void requestReportsOnStartup() {
+        requestFullReports();
+    }
+
+    /**
+     * Pulls a full report from every known node in parallel.
+     * @return completes once every node has answered or failed
+     */
+    public CompletableFuture<Map<String, Object>> requestFullReports() {
+        long start = System.currentTimeMillis();
+
+        // Several ids may be registered for one address; each storage node is asked once
+        Map<String, Node> nodesByAddress = new TreeMap<>();
+        for (Node node : nodeManager.getAllNodes()) {
+            Node canonical = resolveNode(null, node.getAddress(), node.getPort());
+            if (canonical != null) {
+                nodesByAddress.putIfAbsent(canonical.getAddress() + ":" + canonical.getPort(), canonical);
+            }
+        }
+
+        Map<String, Object> results = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        for (Node node : nodesByAddress.values()) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(String.format("http://%s:%d/node/block-report", node.getAddress(), node.getPort())))
+                    .timeout(REPORT_TIMEOUT)
+                    .GET()
+                    .build();
+
+            requests.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                    .thenAccept(response -> {
+                        try (InputStream body = response.body()) {
+                            if (response.statusCode() != 200) {
+                                throw new IOException("node answered " + response.statusCode());
+                            }
+                            results.put(node.getNodeId(), processFullReport(node.getNodeId(), node.getAddress(), node.getPort(), body));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        } catch (UnknownNodeException e) {
+                            throw new IllegalStateException(e.getMessage(), e); // Removed while the report was in flight
+                        }
+                    })
+                    .exceptionally(e -> {
+                        log.warn("Could not pull block report from node {}: {}", node.getNodeId(), e.getMessage());
+                        results.put(node.getNodeId(), Map.of("error", String.valueOf(e.getMessage())));
+                        return null;
+                    }));
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    log.info("Pulled block reports from {} nodes in {}ms",
+                            nodesByAddress.size(), System.currentTimeMillis() - start);
+                    return results;
+                });
+    }
+
+    /**
+     * Replaces everything known about a node's replicas with the contents of a full report.
+     */
+    public Map<String, Object> processFullReport(String nodeId, String host, int port, InputStream body)
+            throws IOException, UnknownNodeException {
+        long start = System.currentTimeMillis();
+        Node node = requireNode(nodeId, host, port);
+
+        Map<String, Long> reported = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length >= 2) {
+                    reported.put(BlockInventory.decode(parts[0]), Long.parseLong(parts[1]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed block report from node " + node.getNodeId(), e);
+        }
+
+        NamespaceTree.ReplicaChanges changes = replicationManager.processFullBlockReport(node.getNodeId(), reported);
+        reportedNodes.add(node.getNodeId());
+        recordContact(node);
+
+        node.setHostedFiles(replicationManager.getFilesOnNode(node.getNodeId()));
+
+        long elapsed = System.currentTimeMillis() - start;
+        log.info("Full block report from node {}: {} files, +{} -{} replicas, {} unknown, {} size mismatches ({}ms)",
+                node.getNodeId(), reported.size(), changes.getAdded().size(), changes.getRemoved().size(),
+                changes.getUnknown(), changes.getSizeMismatches(), elapsed);
+        return summarize(node, reported.size(), changes, elapsed);
+    }
+
+    /**
+     * Applies the files a node stored and deleted since its previous report. Deltas arrive with heartbeats.
+     */
+    public Map<String, Object> processIncrementalReport(Node node, InputStream body)
+            throws IOException, FullReportRequiredException {
+        long start = System.currentTimeMillis();
+        if (!reportedNodes.contains(node.getNodeId())) {
+            throw new FullReportRequiredException(node.getNodeId());
+        }
+
+        // Deltas are applied in order, so only the last change to a path counts
+        Map<String, Long> added = new LinkedHashMap<>();
+        Set<String> removed = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length >= 3 && parts[0].equals("+")) {
+                    String path = BlockInventory.decode(parts[1]);
+                    removed.remove(path);
+                    added.put(path, Long.parseLong(parts[2]));
+                } else if (parts.length >= 2 && parts[0].equals("-")) {
+                    String path = BlockInventory.decode(parts[1]);
+                    added.remove(path);
+                    removed.add(path);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed incremental block report from node " + node.getNodeId(), e);
+        }
+
+        recordContact(node);
+        if (added.isEmpty() && removed.isEmpty()) {
+            return summarize(node, 0, new NamespaceTree.ReplicaChanges(), System.currentTimeMillis() - start);
+        }
+
+        NamespaceTree.ReplicaChanges changes = replicationManager.processIncrementalBlockReport(node.getNodeId(), added, removed);
+        changes.getAdded().forEach(node::addHostedFile);
+        changes.getRemoved().forEach(node::removeHostedFile);
+
+        if (!changes.getAdded().isEmpty() || !changes.getRemoved().isEmpty()) {
+            log.debug("Incremental block report from node {}: +{} -{} replicas",
+                    node.getNodeId(), changes.getAdded().size(), changes.getRemoved().size());
+        }
+        return summarize(node, added.size() + removed.size(), changes, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Thrown for a report from a node neither the configured node list nor gossip has registered.
+     */
+    public static class UnknownNodeException extends Exception {
+        public UnknownNodeException(String nodeId, String host, int port) {
+            super("Unknown node " + nodeId + " at " + host + ":" + port);
+        }
+    }
+
+    /**
+     * Finds the registered node a report belongs to: by id when it matches the reported address,
+     * otherwise the first node registered for that address. Reports never register nodes; only the
+     * configured node list and gossip do.
+     * @return the node, or null if none is registered at that address
+     */
+    public Node resolveNode(String nodeId, String host, int port) {
+        if (nodeId != null) {
+            Node node = nodeManager.getNodeById(nodeId);
+            if (node != null && node.getPort() == port && node.getAddress().equalsIgnoreCase(host)) {
+                return node;
+            }
+        }
+
+        return nodeManager.getAllNodes().stream()
+                .filter(node -> node.getPort() == port && node.getAddress().equalsIgnoreCase(host))
+                .min(Comparator.comparing(Node::getNodeId))
+                .orElse(null);
+    }
+
+    /**
+     * @see #resolveNode
+     */
+    public Node requireNode(String nodeId, String host, int port) throws UnknownNodeException {
+        Node node = resolveNode(nodeId, host, port);
+        if (node == null) {
+            throw new UnknownNodeException(nodeId, host, port);
+        }
+        return node;
+    }
+
+    private void recordContact(Node node) {
+        // Liveness is judged by the failure detector from heartbeats; a report only refreshes the timestamp
+        node.updateHeartbeat();
+    }
+
+    private Map<String, Object> summarize(Node node, int entries, NamespaceTree.ReplicaChanges changes, long elapsedMs) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("nodeId", node.getNodeId());
+        summary.put("entries", entries);
+        summary.put("replicasAdded", changes.getAdded().size());
+        summary.put("replicasRemoved", changes.getRemoved().size());
+        summary.put("unknownFiles", changes.getUnknown());
+        summary.put("sizeMismatches", changes.getSizeMismatches());
+        summary.put("processingTimeMs", elapsedMs);
+        return summary;
+    }
+}
@@ -9,6 +9,7 @@ public interface EncryptionService {
 
     SecretKey generateUserKey(String userId, String password) throws Exception;
     SecretKey getUserKey(String userId) throws Exception;
+    void evictUserKey(String userId);
 
     void storeUserKey(String userId, SecretKey key) throws Exception;
 
@@ -3,7 +3,6 @@ package org.pr.dfs.service;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.pr.dfs.model.Node;
-import org.pr.dfs.replication.FaultToleranceManager;
 import org.pr.dfs.replication.NodeManager;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -11,7 +10,9 @@ import org.springframework.stereotype.Service;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Service
@@ -19,7 +20,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class HealthMonitoringService {
 
     private final NodeManager nodeManager;
-    private final FaultToleranceManager faultToleranceManager;
     private final SimpleNodeService simpleNodeService; // Added simple node service for HTTP health checks
 
     private final AtomicInteger healthCheckCount = new AtomicInteger(0);
@@ -39,7 +39,20 @@ public class HealthMonitoringService {
     }
 
     /**
-     * Performs health checks on all nodes every 30 seconds using simple HTTP
+     * Re-evaluates every node against the failure detector. Runs every 2 seconds, so a node that
+     * stops pushing heartbeats is suspected within a few seconds; re-replication starts once it is dead.
+     */
+    @Scheduled(fixedRate = 2000)
+    public void evaluateNodeStates() {
+        if (!monitoringActive) {
+            return;
+        }
+        nodeManager.evaluateNodeStates();
+    }
+
+    /**
+     * Polls the nodes that do not push heartbeats every 30 seconds using simple HTTP.
+     * All probes run concurrently, so a sweep takes one timeout at most regardless of cluster size.
      */
     @Scheduled(fixedRate = 30000) // Every 30 seconds
     public void performHealthChecks() {
@@ -47,51 +60,33 @@ public class HealthMonitoringService {
             return;
         }
 
-        List<Node> allNodes = nodeManager.getAllNodes();
+        List<Node> polledNodes = nodeManager.getAllNodes().stream()
+                .filter(node -> !node.isPushingHeartbeats())
+                .collect(Collectors.toList());
         int healthCheckId = healthCheckCount.incrementAndGet();
 
-        log.debug("Starting health check #{} for {} nodes", healthCheckId, allNodes.size());
-
-        int healthyCount = 0;
-        int unhealthyCount = 0;
-
-        for (Node node : allNodes) {
-            try {
-                // Use SimpleNodeService for HTTP-based health checks
-                boolean isHealthy = simpleNodeService.performHealthCheck(node);
-
-                if (isHealthy) {
-                    healthyCount++;
-                    log.debug("Node {} is healthy", node.getNodeId());
-                } else {
-                    unhealthyCount++;
-                    log.warn("Node {} is unhealthy", node.getNodeId());
-
-                    // Trigger fault tolerance if node becomes unhealthy
-                    try {
-                        faultToleranceManager.handleNodeFailure(node.getNodeId());
-                    } catch (Exception e) {
-                        log.error("Failed to handle node failure for {}: {}", node.getNodeId(), e.getMessage());
-                    }
-                }
-            } catch (Exception e) {
-                unhealthyCount++;
-                log.error("Health check failed for node {}: {}", node.getNodeId(), e.getMessage());
-
-                // Mark node as unhealthy
-                nodeManager.markNodeUnhealthy(node.getNodeId());
-
-                // Trigger fault tolerance
-                try {
-                    faultToleranceManager.handleNodeFailure(node.getNodeId());
-                } catch (Exception faultException) {
-                    log.error("Failed to handle node failure for {}: {}", node.getNodeId(), faultException.getMessage());
-                }
-            }
-        }
-
-        log.info("Health check #{} completed - Healthy: {}, Unhealthy: {}, Total: {}",
-                healthCheckId, healthyCount, unhealthyCount, allNodes.size());
+        log.debug("Starting health check #{} for {} nodes", healthCheckId, polledNodes.size());
+
+        AtomicInteger healthyCount = new AtomicInteger();
+        AtomicInteger unhealthyCount = new AtomicInteger();
+
+        CompletableFuture<?>[] checks = polledNodes.stream()
+                .map(node -> simpleNodeService.performHealthCheckAsync(node)
+                        .thenAccept(isHealthy -> {
+                            if (isHealthy) {
+                                healthyCount.incrementAndGet();
+                                log.debug("Node {} is healthy", node.getNodeId());
+                            } else {
+                                unhealthyCount.incrementAndGet();
+                                log.warn("Node {} did not respond ({})", node.getNodeId(),
+                                        nodeManager.getNodeState(node.getNodeId()));
+                            }
+                        }))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(checks).join();
+
+        log.info("Health check #{} completed - Healthy: {}, Unhealthy: {}, Polled: {}",
+                healthCheckId, healthyCount.get(), unhealthyCount.get(), polledNodes.size());
     }
 
     /**
@@ -0,0 +1,41 @@
+package org.pr.dfs.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.model.Node;
+import org.pr.dfs.replication.NodeManager;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Receives the heartbeats storage nodes push every few seconds.
+ *
+ * A heartbeat proves the node is alive, refreshes the load figures used for placement and read routing,
+ * and carries the block report deltas since the previous heartbeat.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class HeartbeatService {
+
+    private static final long HEARTBEAT_INTERVAL_MS = 3000; // Matches the storage node's HeartbeatSender
+
+    private final NodeManager nodeManager;
+    private final BlockReportService blockReportService;
+
+    public Map<String, Object> processHeartbeat(String nodeId, String host, int port, long freeSpace,
+                                                int inFlightTransfers, int queueDepth,
+                                                long readLatencyMicros, long writeLatencyMicros,
+                                                InputStream deltas)
+            throws IOException, BlockReportService.FullReportRequiredException, BlockReportService.UnknownNodeException {
+        Node node = blockReportService.requireNode(nodeId, host, port);
+        node.updateLoad(freeSpace, inFlightTransfers, queueDepth, readLatencyMicros, writeLatencyMicros);
+
+        nodeManager.recordHeartbeat(node.getNodeId(), HEARTBEAT_INTERVAL_MS);
+
+        return blockReportService.processIncrementalReport(node, deltas);
+    }
+}
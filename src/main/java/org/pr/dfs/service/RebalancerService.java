@@ -0,0 +1,378 @@
+package org.pr.dfs.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.config.DfsConfig;
+import org.pr.dfs.model.Node;
+import org.pr.dfs.namespace.NamespaceTree;
+import org.pr.dfs.node.TrafficClass;
+import org.pr.dfs.replication.NodeManager;
+import org.pr.dfs.replication.ReplicationManager;
+import org.pr.dfs.utils.StripedLocks;
+import org.pr.dfs.utils.TokenBucket;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves replicas between storage nodes so their disks fill evenly, e.g. onto a node that just joined.
+ *
+ * A node's capacity is the bytes it hosts plus its reported free space. Each run compares every node's
+ * utilization with the cluster average: nodes above the threshold band shed replicas to nodes below the
+ * average, then nodes still below the band pull replicas from nodes above the average. Each step picks the
+ * largest file that fits the remaining imbalance without overshooting the average, so few moves are needed.
+ *
+ * A move copies the file, records the new replica, and only then deletes the source copy, and only if the
+ * file keeps at least its replication factor of live replicas without it. Copies are paced by a token bucket
+ * so rebalancing cannot starve client traffic.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RebalancerService {
+
+    private final NodeManager nodeManager;
+    private final ReplicationManager replicationManager;
+    private final NamespaceTree namespaceTree;
+    private final SimpleNodeService simpleNodeService;
+    private final DfsConfig dfsConfig;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private TokenBucket bandwidth;
+
+    // Progress of the current or last run
+    private final AtomicInteger plannedMoves = new AtomicInteger();
+    private final AtomicInteger completedMoves = new AtomicInteger();
+    private final AtomicInteger keptSourceMoves = new AtomicInteger();
+    private final AtomicInteger skippedMoves = new AtomicInteger();
+    private final AtomicInteger failedMoves = new AtomicInteger();
+    private final AtomicLong bytesPlanned = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private volatile String currentMove;
+    private volatile double averageUtilization;
+    private volatile Map<String, Double> nodeUtilization = Collections.emptyMap();
+    private volatile long lastRunStarted;
+    private volatile long lastRunFinished;
+
+    private enum MoveResult { MOVED, KEPT_SOURCE, SKIPPED, FAILED }
+
+    private static class NodeUsage {
+        private final Node node;
+        private final Map<String, Long> files;
+        private final long capacity;
+        private long used;
+
+        NodeUsage(Node node, Map<String, Long> files, long used, long capacity) {
+            this.node = node;
+            this.files = files;
+            this.used = used;
+            this.capacity = capacity;
+        }
+
+        double utilization() {
+            return (double) used / capacity;
+        }
+    }
+
+    private static class Move {
+        private final String path;
+        private final long size;
+        private final Node source;
+        private final Node target;
+
+        Move(String path, long size, Node source, Node target) {
+            this.path = path;
+            this.size = size;
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return path + " (" + size + " bytes) " + source.getNodeId() + " -> " + target.getNodeId();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        bandwidth = new TokenBucket(dfsConfig.getRebalancer().getBandwidthBytesPerSecond());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${dfs.rebalancer.interval-ms:60000}", initialDelayString = "${dfs.rebalancer.interval-ms:60000}")
+    public void scheduledRun() {
+        if (dfsConfig.getRebalancer().isEnabled()) {
+            startRebalance();
+        }
+    }
+
+    /**
+     * Starts a run in the background.
+     * @return false if a run is already in progress
+     */
+    public boolean startRebalance() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.submit(() -> {
+            try {
+                rebalance();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Rebalancing failed: {}", e.getMessage(), e);
+            } finally {
+                currentMove = null;
+                lastRunFinished = System.currentTimeMillis();
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    private void rebalance() throws InterruptedException {
+        lastRunStarted = System.currentTimeMillis();
+        plannedMoves.set(0);
+        completedMoves.set(0);
+        keptSourceMoves.set(0);
+        skippedMoves.set(0);
+        failedMoves.set(0);
+        bytesPlanned.set(0);
+        bytesMoved.set(0);
+
+        List<Move> plan = planMoves();
+        if (plan.isEmpty()) {
+            log.debug("Cluster is balanced, average utilization {}%", String.format("%.1f", averageUtilization * 100));
+            return;
+        }
+        plannedMoves.set(plan.size());
+        bytesPlanned.set(plan.stream().mapToLong(move -> move.size).sum());
+        log.info("Rebalancing: {} moves, {} bytes, average utilization {}%",
+                plan.size(), bytesPlanned.get(), String.format("%.1f", averageUtilization * 100));
+
+        for (Move move : plan) {
+            currentMove = move.toString();
+            switch (executeMove(move)) {
+                case MOVED -> {
+                    completedMoves.incrementAndGet();
+                    bytesMoved.addAndGet(move.size);
+                }
+                case KEPT_SOURCE -> {
+                    keptSourceMoves.incrementAndGet();
+                    bytesMoved.addAndGet(move.size);
+                }
+                case SKIPPED -> skippedMoves.incrementAndGet();
+                case FAILED -> failedMoves.incrementAndGet();
+            }
+        }
+
+        log.info("Rebalancing finished in {}ms: {} moved, {} copied without removing the source, {} skipped, {} failed",
+                System.currentTimeMillis() - lastRunStarted, completedMoves.get(), keptSourceMoves.get(),
+                skippedMoves.get(), failedMoves.get());
+    }
+
+    private List<Move> planMoves() {
+        List<NodeUsage> usages = new ArrayList<>();
+        long totalUsed = 0;
+        long totalCapacity = 0;
+        for (Node node : nodeManager.getHealthyNodes()) {
+            if (node.getAvailableDiskSpace() <= 0) {
+                continue; // Free space not reported yet
+            }
+            Map<String, Long> files = namespaceTree.getFileSizesOnNode(node.getNodeId());
+            long used = files.values().stream().mapToLong(Long::longValue).sum();
+            usages.add(new NodeUsage(node, files, used, used + node.getAvailableDiskSpace()));
+            totalUsed += used;
+            totalCapacity += used + node.getAvailableDiskSpace();
+        }
+
+        Map<String, Double> utilization = new TreeMap<>();
+        usages.forEach(usage -> utilization.put(usage.node.getNodeId(), usage.utilization()));
+        nodeUtilization = utilization;
+        if (usages.size() < 2 || totalUsed == 0) {
+            averageUtilization = totalCapacity > 0 ? (double) totalUsed / totalCapacity : 0;
+            return List.of();
+        }
+
+        double average = (double) totalUsed / totalCapacity;
+        double threshold = dfsConfig.getRebalancer().getThresholdPercent() / 100.0;
+        int maxMoves = dfsConfig.getRebalancer().getMaxMovesPerRun();
+        averageUtilization = average;
+
+        List<Move> plan = new ArrayList<>();
+        Set<String> planned = new HashSet<>();
+
+        // Nodes above the band shed replicas, to the emptiest nodes first
+        usages.sort(Comparator.comparingDouble(NodeUsage::utilization).reversed());
+        for (NodeUsage source : usages) {
+            while (plan.size() < maxMoves && source.utilization() > average + threshold) {
+                if (!planMoveFrom(source, usages, average, plan, planned)) {
+                    break;
+                }
+            }
+        }
+
+        // Nodes still below the band pull replicas, from the fullest nodes first
+        usages.sort(Comparator.comparingDouble(NodeUsage::utilization));
+        for (NodeUsage target : usages) {
+            while (plan.size() < maxMoves && target.utilization() < average - threshold) {
+                if (!planMoveTo(target, usages, average, plan, planned)) {
+                    break;
+                }
+            }
+        }
+        return plan;
+    }
+
+    private boolean planMoveFrom(NodeUsage source, List<NodeUsage> usagesByUtilization, double average,
+                                 List<Move> plan, Set<String> planned) {
+        for (int i = usagesByUtilization.size() - 1; i >= 0; i--) {
+            if (planMove(source, usagesByUtilization.get(i), average, plan, planned)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean planMoveTo(NodeUsage target, List<NodeUsage> usagesByUtilization, double average,
+                               List<Move> plan, Set<String> planned) {
+        for (int i = usagesByUtilization.size() - 1; i >= 0; i--) {
+            if (planMove(usagesByUtilization.get(i), target, average, plan, planned)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Plans moving the largest file that neither pushes the source below the average nor the target above it.
+     */
+    private boolean planMove(NodeUsage source, NodeUsage target, double average, List<Move> plan, Set<String> planned) {
+        long give = source.used - (long) (average * source.capacity);
+        long room = (long) (average * target.capacity) - target.used;
+        long limit = Math.min(give, room);
+        if (source == target || limit <= 0) {
+            return false;
+        }
+
+        String best = null;
+        long bestSize = 0;
+        for (Map.Entry<String, Long> file : source.files.entrySet()) {
+            long size = file.getValue();
+            if (size > bestSize && size <= limit && !planned.contains(file.getKey())
+                    && !target.files.containsKey(file.getKey())) {
+                best = file.getKey();
+                bestSize = size;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+
+        plan.add(new Move(best, bestSize, source.node, target.node));
+        planned.add(best);
+        source.files.remove(best);
+        source.used -= bestSize;
+        target.files.put(best, bestSize);
+        target.used += bestSize;
+        return true;
+    }
+
+    private MoveResult executeMove(Move move) throws InterruptedException {
+        if (!isStillValid(move)) {
+            return MoveResult.SKIPPED;
+        }
+
+        bandwidth.acquire(move.size);
+        // Keeps re-replication of the same file out, so the two cannot both count the source copy as
+        // live and drop the file below its factor
+        try (StripedLocks.Held ignored = replicationManager.lockForReplication(move.path)) {
+            if (!isStillValid(move)) {
+                return MoveResult.SKIPPED;
+            }
+            return copyAndRemoveSource(move);
+        }
+    }
+
+    /**
+     * Nodes and files may have changed since the plan was made.
+     */
+    private boolean isStillValid(Move move) {
+        Set<String> replicas = namespaceTree.getReplicaLocations(move.path);
+        return move.source.isHealthy() && move.target.isHealthy()
+                && replicas.contains(move.source.getNodeId()) && !replicas.contains(move.target.getNodeId());
+    }
+
+    private MoveResult copyAndRemoveSource(Move move) {
+        if (!simpleNodeService.replicateBetweenNodes(move.source, move.target, move.path, TrafficClass.REBALANCE)) {
+            log.warn("Rebalancer could not copy {}", move);
+            return MoveResult.FAILED;
+        }
+        replicationManager.recordReplicaAdded(move.path, move.target);
+
+        if (!namespaceTree.exists(move.path)) {
+            // Deleted while it was being copied
+            simpleNodeService.deleteFileFromNode(move.target, move.path);
+            replicationManager.recordReplicaRemoved(move.path, move.target);
+            return MoveResult.SKIPPED;
+        }
+
+        // The source copy only goes if the file stays at its replication factor without it
+        int replicationFactor = replicationManager.getReplicationStatus(move.path).getReplicationFactor();
+        long liveReplicas = namespaceTree.getReplicaLocations(move.path).stream()
+                .map(nodeManager::getNodeById)
+                .filter(node -> node != null && node.isHealthy())
+                .count();
+        if (liveReplicas - 1 < replicationFactor) {
+            log.info("Rebalancer kept the source replica of {}: {} live replicas, factor {}",
+                    move.path, liveReplicas, replicationFactor);
+            return MoveResult.KEPT_SOURCE;
+        }
+
+        if (!simpleNodeService.deleteFileFromNode(move.source, move.path)) {
+            log.warn("Rebalancer copied {} but could not remove the source replica", move);
+            return MoveResult.KEPT_SOURCE;
+        }
+        replicationManager.recordReplicaRemoved(move.path, move.source);
+        log.debug("Rebalancer moved {}", move);
+        return MoveResult.MOVED;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", dfsConfig.getRebalancer().isEnabled());
+        status.put("running", running.get());
+        status.put("thresholdPercent", dfsConfig.getRebalancer().getThresholdPercent());
+        status.put("bandwidthBytesPerSecond", bandwidth.getRate());
+        status.put("averageUtilization", averageUtilization);
+        status.put("nodeUtilization", nodeUtilization);
+        status.put("plannedMoves", plannedMoves.get());
+        status.put("completedMoves", completedMoves.get());
+        status.put("keptSourceMoves", keptSourceMoves.get());
+        status.put("skippedMoves", skippedMoves.get());
+        status.put("failedMoves", failedMoves.get());
+        status.put("bytesPlanned", bytesPlanned.get());
+        status.put("bytesMoved", bytesMoved.get());
+        status.put("currentMove", currentMove);
+        status.put("lastRunStarted", lastRunStarted);
+        status.put("lastRunFinished", lastRunFinished);
+        return status;
+    }
+}
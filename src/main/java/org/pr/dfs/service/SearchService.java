@@ -8,12 +8,14 @@ import java.util.List;
 
 public interface SearchService {
     SearchResult searchFiles(SearchRequest request) throws Exception;
-    SearchResult searchByTag(String userId, String tag, int page, int size)  throws Exception;
-    SearchResult getRecentFiles(String userId, int page, int size) throws Exception;
-    SearchResult getPopularFiles(String userId, int page, int size) throws Exception;
+    SearchResult searchByTag(String userId, String tag, String cursor, int size, boolean withTotal) throws Exception;
+    SearchResult getRecentFiles(String userId, String cursor, int size, boolean withTotal) throws Exception;
+    SearchResult getPopularFiles(String userId, String cursor, int size, boolean withTotal) throws Exception;
     List<String> getFileNameSuggestions(String userId, String query) throws Exception;
     void saveFileMetadata(FileMetadata fileMetadata) throws Exception;
     void updateFileAccess(String filePath) throws Exception;
     void deleteFileMetadata(String filePath) throws Exception;
+    void moveFileMetadata(String sourcePath, String destinationPath) throws Exception;
     FileMetadata getFileMetadataByPath(String filePath) throws Exception;
+    FileMetadata restoreFileMetadata(String filePath) throws Exception;
 }
@@ -1,6 +1,7 @@
 package org.pr.dfs.service;
 
 import org.pr.dfs.model.Node;
+import org.pr.dfs.node.TrafficClass;
 import org.pr.dfs.replication.NodeManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -10,8 +11,13 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 @Service
@@ -41,8 +47,12 @@ public class SimpleNodeService {
             return false;
         }
 
-        // Select a random healthy node for storage
+        // Pick the less loaded of two random healthy nodes, which spreads load without herding onto one node
         Node targetNode = healthyNodes.get(random.nextInt(healthyNodes.size()));
+        Node alternative = healthyNodes.get(random.nextInt(healthyNodes.size()));
+        if (alternative.estimatedWriteWaitMicros() < targetNode.estimatedWriteWaitMicros()) {
+            targetNode = alternative;
+        }
 
         return storeFileOnNode(targetNode, filePath, fileData);
     }
@@ -79,11 +89,61 @@ public class SimpleNodeService {
         }
     }
 
+    /**
+     * Asks a node holding the file to push it straight to another node, so the data does not pass through
+     * the coordinator.
+     */
+    public boolean replicateBetweenNodes(Node source, Node target, String filePath) {
+        return replicateBetweenNodes(source, target, filePath, TrafficClass.REPLICATION);
+    }
+
+    /**
+     * @param trafficClass class the nodes schedule the copy under, so it does not crowd out user requests
+     */
+    public boolean replicateBetweenNodes(Node source, Node target, String filePath, TrafficClass trafficClass) {
+        try {
+            String url = String.format("http://%s:%d/node/replicate?filePath=%s&target=%s",
+                source.getAddress(), source.getPort(), java.net.URLEncoder.encode(filePath, "UTF-8"),
+                java.net.URLEncoder.encode(target.getAddress() + ":" + target.getPort(), "UTF-8"));
+
+            HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header(TrafficClass.HEADER, trafficClass.headerValue())
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .timeout(java.time.Duration.ofMinutes(5))
+                .build();
+
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+            if (response.statusCode() == 200) {
+                LOGGER.info("File replicated from node " + source.getNodeId() + " to node " + target.getNodeId() + ": " + filePath);
+                return true;
+            } else {
+                LOGGER.warning("Failed to replicate file from node " + source.getNodeId() + " to node " + target.getNodeId() + ": " + response.statusCode() + " " + response.body());
+                return false;
+            }
+
+        } catch (Exception e) {
+            LOGGER.severe("Error replicating file from node " + source.getNodeId() + " to node " + target.getNodeId() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Retrieve file from any available node
      */
     public byte[] retrieveFile(String filePath) {
-        List<Node> healthyNodes = nodeManager.getHealthyNodes();
+        return retrieveFile(filePath, Collections.emptySet());
+    }
+
+    /**
+     * Retrieves a file, trying the nodes known to hold a replica before falling back to every other healthy node.
+     * Within each group the least loaded node, by its last heartbeat, is tried first.
+     */
+    public byte[] retrieveFile(String filePath, Collection<String> preferredNodeIds) {
+        List<Node> healthyNodes = new ArrayList<>(nodeManager.getHealthyNodes());
+        healthyNodes.sort(Comparator.<Node, Boolean>comparing(node -> !preferredNodeIds.contains(node.getNodeId()))
+            .thenComparingLong(Node::estimatedReadWaitMicros));
 
         if (healthyNodes.isEmpty()) {
             LOGGER.warning("No healthy nodes available for file retrieval");
@@ -210,22 +270,49 @@ public class SimpleNodeService {
             boolean isHealthy = response.statusCode() == 200;
 
             if (isHealthy) {
-                nodeManager.markNodeHealthy(node.getNodeId());
+                nodeManager.recordHeartbeat(node.getNodeId(), NodeManager.POLL_INTERVAL_MS);
                 LOGGER.info("Health check passed for node: " + node.getNodeId());
             } else {
-                nodeManager.markNodeUnhealthy(node.getNodeId());
+                nodeManager.evaluateNode(node);
                 LOGGER.warning("Health check failed for node: " + node.getNodeId());
             }
 
             return isHealthy;
 
         } catch (Exception e) {
-            nodeManager.markNodeUnhealthy(node.getNodeId());
+            nodeManager.evaluateNode(node);
             LOGGER.severe("Health check error for node " + node.getNodeId() + ": " + e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Non-blocking variant of {@link #performHealthCheck}, so many nodes can be probed at once.
+     */
+    public CompletableFuture<Boolean> performHealthCheckAsync(Node node) {
+        String url = String.format("http://%s:%d/node/health", node.getAddress(), node.getPort());
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(url))
+            .GET()
+            .timeout(java.time.Duration.ofSeconds(5))
+            .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .handle((response, error) -> {
+                boolean isHealthy = error == null && response.statusCode() == 200;
+                if (isHealthy) {
+                    nodeManager.recordHeartbeat(node.getNodeId(), NodeManager.POLL_INTERVAL_MS);
+                } else {
+                    // A missed probe only adds to the suspicion; the detector decides when the node is dead
+                    nodeManager.evaluateNode(node);
+                    LOGGER.warning("Health check failed for node " + node.getNodeId() +
+                        (error != null ? ": " + error.getMessage() : ": " + response.statusCode()));
+                }
+                return isHealthy;
+            });
+    }
+
     /**
      * Get node info using simple HTTP
      */
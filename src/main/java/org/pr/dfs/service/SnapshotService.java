@@ -0,0 +1,15 @@
+package org.pr.dfs.service;
+
+import org.pr.dfs.dto.SnapshotDto;
+import org.pr.dfs.model.SnapshotEntry;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+public interface SnapshotService {
+    SnapshotDto createSnapshot(String name) throws Exception;
+    List<SnapshotDto> listSnapshots() throws Exception;
+    Stream<SnapshotEntry> listSnapshotContents(String snapshotId) throws Exception;
+    int restoreSnapshot(String snapshotId) throws Exception;
+    boolean deleteSnapshot(String snapshotId) throws Exception;
+}
@@ -0,0 +1,17 @@
+package org.pr.dfs.service;
+
+/**
+ * Published by {@link UserService} after a user record was written, e.g. a changed password or storage
+ * usage, so copies of the user held in memory can be dropped.
+ */
+public class UserChangedEvent {
+    private final String userId;
+
+    public UserChangedEvent(String userId) {
+        this.userId = userId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+}
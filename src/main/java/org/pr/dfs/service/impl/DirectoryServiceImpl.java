@@ -4,14 +4,21 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.pr.dfs.config.DfsConfig;
 import org.pr.dfs.model.UserContext;
+import org.pr.dfs.dto.DirectoryPage;
 import org.pr.dfs.dto.FileMetaDataDto;
 import org.pr.dfs.model.FileMetaData;
 import org.pr.dfs.model.User;
+import org.pr.dfs.namespace.NamespaceEntry;
+import org.pr.dfs.namespace.NamespaceTree;
 import org.pr.dfs.server.DirectoryHandler;
+import org.pr.dfs.server.DirectoryIndex;
 import org.pr.dfs.service.DirectoryService;
+import org.pr.dfs.service.SearchService;
 import org.pr.dfs.service.UserService;
+import org.pr.dfs.versioning.SnapshotManager;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,8 +33,15 @@ public class DirectoryServiceImpl implements DirectoryService {
 
     private final DfsConfig dfsConfig;
     private final UserService userService;
+    private final SnapshotManager snapshotManager;
+    private final DirectoryIndex directoryIndex;
+    private final NamespaceTree namespaceTree;
+    private final SearchService searchService;
     private DirectoryHandler directoryHandler;
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private DirectoryHandler getDirectoryHandler() {
         if (directoryHandler == null) {
             // Always use the base storage path for DirectoryHandler
@@ -52,6 +66,13 @@ public class DirectoryServiceImpl implements DirectoryService {
             log.info("Created user directory: {}", userDirPath);
         }
 
+        List<NamespaceEntry> entries = namespaceTree.list(userScopedPath);
+        if (entries != null) {
+            return entries.stream()
+                    .map(this::convertToDto)
+                    .collect(Collectors.toList());
+        }
+
         List<FileMetaData> files = getDirectoryHandler().listDirectory(userScopedPath);
 
         return files.stream()
@@ -59,6 +80,38 @@ public class DirectoryServiceImpl implements DirectoryService {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public DirectoryPage listDirectoryPage(String path, String sortBy, String direction, int limit, String cursor) throws Exception {
+        User currentUser = validateUserContext();
+
+        String normalizedPath = normalizePath(path);
+        String userScopedPath = getUserScopedPath(currentUser, normalizedPath);
+
+        DirectoryIndex.SortField sortField = parseSortField(sortBy);
+        boolean descending = "desc".equalsIgnoreCase(direction);
+        int pageSize = Math.max(1, Math.min(limit > 0 ? limit : DEFAULT_PAGE_SIZE, MAX_PAGE_SIZE));
+
+        log.debug("User {} listing directory page: {} (resolved to: {}, sort: {} {}, limit: {})",
+                currentUser.getUsername(), normalizedPath, userScopedPath, sortField, descending ? "desc" : "asc", pageSize);
+
+        Path userDirPath = Paths.get(dfsConfig.getStorage().getPath(), currentUser.getUserDirectory());
+        if (!Files.exists(userDirPath)) {
+            Files.createDirectories(userDirPath);
+            log.info("Created user directory: {}", userDirPath);
+        }
+
+        DirectoryIndex.Page page = directoryIndex.list(userScopedPath, sortField, descending, pageSize, cursor);
+
+        return DirectoryPage.builder()
+                .entries(page.getEntries().stream()
+                        .map(this::convertToDto)
+                        .collect(Collectors.toList()))
+                .nextCursor(page.getNextCursor())
+                .hasMore(page.getNextCursor() != null)
+                .totalEntries(page.getTotalEntries())
+                .build();
+    }
+
     @Override
     public boolean createDirectory(String path) throws Exception {
         User currentUser = validateUserContext();
@@ -69,7 +122,11 @@ public class DirectoryServiceImpl implements DirectoryService {
         log.info("User {} creating directory: {} (resolved to: {})",
                 currentUser.getUsername(), normalizedPath, userScopedPath);
 
-        return getDirectoryHandler().createDirectory(userScopedPath);
+        snapshotManager.beforeChange(userScopedPath);
+        boolean created = getDirectoryHandler().createDirectory(userScopedPath);
+        directoryIndex.onCreated(userScopedPath);
+        namespaceTree.mkdirs(userScopedPath);
+        return created;
     }
 
     @Override
@@ -86,7 +143,11 @@ public class DirectoryServiceImpl implements DirectoryService {
         log.info("User {} deleting directory: {} (resolved to: {})",
                 currentUser.getUsername(), normalizedPath, userScopedPath);
 
-        return getDirectoryHandler().deleteDirectory(userScopedPath);
+        snapshotManager.beforeReplace(userScopedPath);
+        boolean deleted = getDirectoryHandler().deleteDirectory(userScopedPath);
+        directoryIndex.onDeleted(userScopedPath);
+        namespaceTree.delete(userScopedPath);
+        return deleted;
     }
 
     @Override
@@ -103,7 +164,38 @@ public class DirectoryServiceImpl implements DirectoryService {
                 currentUser.getUsername(), normalizedSource, normalizedDestination,
                 userScopedSource, userScopedDestination);
 
-        return getDirectoryHandler().moveOrRename(userScopedSource, userScopedDestination);
+        snapshotManager.beforeReplace(userScopedSource);
+        snapshotManager.beforeReplace(userScopedDestination);
+        boolean moved = getDirectoryHandler().moveOrRename(userScopedSource, userScopedDestination);
+        if (moved) {
+            try {
+                searchService.moveFileMetadata(userScopedSource, userScopedDestination);
+            } catch (Exception e) {
+                // The metadata still names the old paths, so put the files back where it says they are
+                try {
+                    getDirectoryHandler().moveOrRename(userScopedDestination, userScopedSource);
+                } catch (IOException rollbackFailure) {
+                    e.addSuppressed(rollbackFailure);
+                    log.error("Failed to move {} back to {} after its metadata could not be moved",
+                            userScopedDestination, userScopedSource, rollbackFailure);
+                }
+                throw e;
+            }
+            directoryIndex.onMoved(userScopedSource, userScopedDestination);
+            namespaceTree.rename(userScopedSource, userScopedDestination);
+        }
+        return moved;
+    }
+
+    private DirectoryIndex.SortField parseSortField(String sortBy) {
+        if (sortBy == null || sortBy.isBlank()) {
+            return DirectoryIndex.SortField.NAME;
+        }
+        try {
+            return DirectoryIndex.SortField.valueOf(sortBy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported sort field: " + sortBy + " (expected name, size or modified)");
+        }
     }
 
     private User validateUserContext() {
@@ -131,6 +223,18 @@ public class DirectoryServiceImpl implements DirectoryService {
         return normalized.isEmpty() ? "/" : normalized;
     }
 
+    private FileMetaDataDto convertToDto(NamespaceEntry entry) {
+        return FileMetaDataDto.builder()
+                .name(entry.getName())
+                .path("/" + entry.getPath())
+                .isDirectory(entry.isDirectory())
+                .size(entry.getSize())
+                .lastModified(LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(entry.getModificationTime()),
+                        java.time.ZoneId.systemDefault()))
+                .currentReplicas(entry.getReplicas().size())
+                .build();
+    }
+
     private FileMetaDataDto convertToDto(FileMetaData fileMetaData) {
         return FileMetaDataDto.builder()
                 .name(fileMetaData.getName())
@@ -4,21 +4,22 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.pr.dfs.model.UserEncryptionKey;
 import org.pr.dfs.repository.UserEncryptionRepository;
+import org.pr.dfs.security.CryptoEngine;
+import org.pr.dfs.security.KeyCache;
 import org.pr.dfs.service.EncryptionService;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.spec.KeySpec;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Base64;
 
 @Slf4j
@@ -27,12 +28,11 @@ import java.util.Base64;
 public class EncryptionServiceImpl implements EncryptionService {
 
     private final UserEncryptionRepository keyRepository;
+    private final KeyCache keyCache;
+    private final CryptoEngine cryptoEngine;
 
     private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA256";
-    private static final int GCM_IV_LENGTH = 12;
-    private static final int GCM_TAG_LENGTH = 16;
     private static final int KEY_LENGTH = 256;
     private static final int ITERATION_COUNT = 100000;
     private static final int SALT_LENGTH = 32;
@@ -44,19 +44,7 @@ public class EncryptionServiceImpl implements EncryptionService {
             throw new IllegalStateException("No encryption key found for userId: " + userId);
         }
 
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom.getInstanceStrong().nextBytes(iv);
-
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, userKey, gcmSpec);
-
-        byte[] encryptedData = cipher.doFinal(fileData);
-
-        byte[] result = new byte[GCM_IV_LENGTH + encryptedData.length];
-        System.arraycopy(iv, 0, result, 0, GCM_IV_LENGTH);
-        System.arraycopy(encryptedData, 0, result, GCM_IV_LENGTH, encryptedData.length);
+        byte[] result = cryptoEngine.encrypt(userKey, fileData);
 
         log.debug("File encrypted for user: {} (size: {} -> {}", userId, fileData.length, result.length);
         return result;
@@ -69,21 +57,7 @@ public class EncryptionServiceImpl implements EncryptionService {
             throw new IllegalStateException("No encryption key found for userId: " + userId);
         }
 
-        if(encryptedData.length <  GCM_IV_LENGTH){
-            throw new IllegalArgumentException("Invalid encrypted data format");
-        }
-
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, GCM_IV_LENGTH);
-
-        byte[] cipherText = new byte[encryptedData.length - GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, GCM_IV_LENGTH, cipherText, 0, cipherText.length);
-
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, userKey, gcmSpec);
-
-        byte[] decryptedData = cipher.doFinal(cipherText);
+        byte[] decryptedData = cryptoEngine.decrypt(userKey, encryptedData);
 
         log.debug("File decrypted for user: {} (size: {} -> {}", userId, encryptedData.length, decryptedData.length);
 
@@ -103,13 +77,32 @@ public class EncryptionServiceImpl implements EncryptionService {
 
     @Override
     public SecretKey getUserKey(String userId) throws Exception {
+        return keyCache.get(userId, this::loadUserKey);
+    }
+
+    @Override
+    public void evictUserKey(String userId) {
+        keyCache.invalidate(userId);
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void evictIdleKeys() {
+        int evicted = keyCache.evictIdle();
+        if(evicted > 0) {
+            log.debug("Evicted {} idle encryption keys", evicted);
+        }
+    }
+
+    private SecretKey loadUserKey(String userId) {
         UserEncryptionKey keyEntity = keyRepository.findByUserId(userId);
         if(keyEntity == null){
             return  null;
         }
 
         byte[] keyBytes = Base64.getDecoder().decode(keyEntity.getEncryptedKey());
-        return new SecretKeySpec(keyBytes, ALGORITHM);
+        SecretKey key = new SecretKeySpec(keyBytes, ALGORITHM);
+        Arrays.fill(keyBytes, (byte) 0); // The spec keeps a copy
+        return key;
     }
 
     @Override
@@ -134,56 +127,25 @@ public class EncryptionServiceImpl implements EncryptionService {
         keyEntity.setLastUsed(LocalDateTime.now());
 
         keyRepository.save(keyEntity);
+        keyCache.put(userId, key);
         log.debug("Stored encryption key for user: {}", userId);
     }
 
     @Override
     public String generateSalt() {
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[SALT_LENGTH];
-        random.nextBytes(salt);
+        cryptoEngine.nextBytes(salt);
         return Base64.getEncoder().encodeToString(salt);
     }
 
     @Override
     public String encrypt(String plainText, SecretKey userKey) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom.getInstanceStrong().nextBytes(iv);
-
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, userKey, gcmSpec);
-
-        byte[] encryptedData = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-
-        byte[] result = new byte[GCM_IV_LENGTH + encryptedData.length];
-        System.arraycopy(iv, 0, result, 0, GCM_IV_LENGTH);
-        System.arraycopy(encryptedData, 0, result, GCM_IV_LENGTH, encryptedData.length);
-
-        return Base64.getEncoder().encodeToString(result);
+        return Base64.getEncoder().encodeToString(cryptoEngine.encrypt(userKey, plainText.getBytes(StandardCharsets.UTF_8)));
     }
 
     @Override
     public String decrypt(String encryptedText, SecretKey userKey) throws Exception {
-        byte[] encryptedData = Base64.getDecoder().decode(encryptedText);
-
-        if(encryptedData.length < GCM_IV_LENGTH){
-            throw new IllegalArgumentException("Invalid encrypted data format");
-        }
-
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, GCM_IV_LENGTH);
-
-        byte[] cipherText = new byte[encryptedData.length - GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, GCM_IV_LENGTH, cipherText, 0, cipherText.length);
-
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, userKey, gcmSpec);
-
-        byte[] decryptedData = cipher.doFinal(cipherText);
-
+        byte[] decryptedData = cryptoEngine.decrypt(userKey, Base64.getDecoder().decode(encryptedText));
         return new String(decryptedData, StandardCharsets.UTF_8);
     }
 
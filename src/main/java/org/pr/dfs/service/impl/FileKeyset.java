@@ -0,0 +1,186 @@
+package org.pr.dfs.service.impl;
+
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import org.pr.dfs.dto.FileMetadata;
+import org.pr.dfs.search.SearchIndex;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.function.Function;
+
+/**
+ * Keyset pagination over file metadata: rows are ordered by a sort column and then fileId, and the next
+ * page starts strictly after the last row of the previous one. Page N costs the same as page 1, with no
+ * OFFSET to skip over.
+ *
+ * Rows whose sort column is null come last in either direction, ordered by fileId. They are read as a
+ * section of their own once the valued rows run out, so the order does not depend on where the database
+ * puts nulls, and comparisons never see a null.
+ */
+final class FileKeyset {
+    private static final String VALUE = "=";
+    private static final String NULL = "null";
+
+    enum SortField {
+        uploadTime(LocalDateTime::parse, FileMetadata::getUploadTime, false),
+        lastModified(LocalDateTime::parse, FileMetadata::getLastModified, true),
+        lastAccessed(LocalDateTime::parse, FileMetadata::getLastAccessed, true),
+        fileName(value -> value, FileMetadata::getFileName, false),
+        fileSize(Long::valueOf, FileMetadata::getFileSize, false),
+        accessCount(Long::valueOf, FileMetadata::getAccessCount, true);
+
+        private final Function<String, Comparable<?>> parser;
+        private final Function<FileMetadata, Object> getter;
+        private final boolean nullable;
+
+        SortField(Function<String, Comparable<?>> parser, Function<FileMetadata, Object> getter, boolean nullable) {
+            this.parser = parser;
+            this.getter = getter;
+            this.nullable = nullable;
+        }
+
+        static SortField parse(String sortBy) {
+            for(SortField field : values()) {
+                if(field.name().equalsIgnoreCase(sortBy)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported sort field: " + sortBy);
+        }
+    }
+
+    private final SortField sortBy;
+    private final boolean descending;
+    private final Comparable<?> afterValue;
+    private final String afterFileId;
+
+    private FileKeyset(SortField sortBy, boolean descending, Comparable<?> afterValue, String afterFileId) {
+        this.sortBy = sortBy;
+        this.descending = descending;
+        this.afterValue = afterValue;
+        this.afterFileId = afterFileId;
+    }
+
+    /**
+     * @param cursor the nextCursor of the previous page, or null for the first page
+     */
+    static FileKeyset of(SortField sortBy, boolean descending, String cursor) {
+        if(cursor == null || cursor.isEmpty()) {
+            return new FileKeyset(sortBy, descending, null, null);
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", 4);
+            if(parts.length != 4 || !parts[0].equals(sortBy.name()) ||
+                    !parts[1].equals(descending ? "desc" : "asc")) {
+                throw new IllegalArgumentException("Cursor does not match the requested sort order");
+            }
+            Comparable<?> value = null;
+            if(parts[3].startsWith(VALUE)) {
+                value = sortBy.parser.apply(parts[3].substring(VALUE.length()));
+            } else if(!parts[3].equals(NULL)) {
+                throw new IllegalArgumentException("Malformed value");
+            }
+            return new FileKeyset(sortBy, descending, value, parts[2]);
+        } catch(RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + e.getMessage(), e);
+        }
+    }
+
+    Sort sort() {
+        Sort.Direction direction = descending ? Sort.Direction.DESC : Sort.Direction.ASC;
+        return Sort.by(direction, sortBy.name()).and(Sort.by(direction, "fileId"));
+    }
+
+    /**
+     * Valued rows after the cursor: (sort, fileId) beyond (value, id) in the page direction.
+     * @return null when the cursor is already among the null rows, so no valued row is left
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Specification<FileMetadata> valuedAfter() {
+        if(afterFileId != null && afterValue == null) {
+            return null;
+        }
+        return (root, query, criteriaBuilder) -> {
+            Path<Comparable> column = root.get(sortBy.name());
+            if(afterFileId == null) {
+                return criteriaBuilder.isNotNull(column);
+            }
+            Path<String> fileId = root.get("fileId");
+            Comparable value = afterValue;
+            if(descending) {
+                return criteriaBuilder.or(
+                        criteriaBuilder.lessThan(column, value),
+                        criteriaBuilder.and(criteriaBuilder.equal(column, value),
+                                criteriaBuilder.lessThan(fileId, afterFileId)));
+            }
+            return criteriaBuilder.or(
+                    criteriaBuilder.greaterThan(column, value),
+                    criteriaBuilder.and(criteriaBuilder.equal(column, value),
+                            criteriaBuilder.greaterThan(fileId, afterFileId)));
+        };
+    }
+
+    /**
+     * Rows with a null sort value after the cursor, which follow every valued row.
+     * @return null when the sort column cannot be null
+     */
+    Specification<FileMetadata> nullAfter() {
+        if(!sortBy.nullable) {
+            return null;
+        }
+        return (root, query, criteriaBuilder) -> {
+            Predicate isNull = criteriaBuilder.isNull(root.get(sortBy.name()));
+            if(afterFileId == null || afterValue != null) {
+                return isNull;
+            }
+            Path<String> fileId = root.get("fileId");
+            return criteriaBuilder.and(isNull, descending ?
+                    criteriaBuilder.lessThan(fileId, afterFileId) : criteriaBuilder.greaterThan(fileId, afterFileId));
+        };
+    }
+
+    // Cursor format: sortBy|direction|fileId|=value, or sortBy|direction|fileId|null for a null value,
+    // base64url encoded. Opaque to clients.
+    // Relevance ranked pages come from the search index, ordered by score descending and then fileId,
+    // and use relevance|score|fileId of their last hit instead.
+
+    String cursorAfter(FileMetadata last) {
+        Object value = sortBy.getter.apply(last);
+        String raw = sortBy.name() + "|" + (descending ? "desc" : "asc") + "|" + last.getFileId() + "|" +
+                (value != null ? VALUE + value : NULL);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String relevanceCursor(SearchIndex.Hit last) {
+        String raw = "relevance|" + last.getScore() + "|" + last.getFileId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the last hit of the previous relevance ranked page, or null for the first page
+     */
+    static SearchIndex.Hit relevanceAfter(String cursor) {
+        if(cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", 3);
+            if(parts.length != 3 || !parts[0].equals("relevance")) {
+                throw new IllegalArgumentException("Cursor does not match the requested sort order");
+            }
+            float score = Float.parseFloat(parts[1]);
+            if(Float.isNaN(score)) {
+                throw new IllegalArgumentException("Malformed score");
+            }
+            return new SearchIndex.Hit(parts[2], score);
+        } catch(RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + e.getMessage(), e);
+        }
+    }
+}
@@ -7,10 +7,13 @@ import org.pr.dfs.dto.FileMetaDataDto;
 import org.pr.dfs.dto.FileMetadata;
 import org.pr.dfs.dto.FileUploadRequest;
 import org.pr.dfs.model.*;
+import org.pr.dfs.namespace.NamespaceTree;
 import org.pr.dfs.replication.NodeManager;
 import org.pr.dfs.replication.ReplicationManager;
+import org.pr.dfs.server.DirectoryIndex;
 import org.pr.dfs.service.*;
 import org.pr.dfs.utils.FileUtils;
+import org.pr.dfs.versioning.SnapshotManager;
 import org.pr.dfs.versioning.VersionManager;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
@@ -22,6 +25,7 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
@@ -36,6 +40,9 @@ public class FileServiceImpl implements FileService {
     private final NodeManager nodeManager;
     private final ReplicationManager replicationManager;
     private final VersionManager versionManager;
+    private final SnapshotManager snapshotManager;
+    private final DirectoryIndex directoryIndex;
+    private final NamespaceTree namespaceTree;
     private final UserService userService;
     private final SimpleNodeService simpleNodeService;
     private final SearchService searchService;
@@ -80,8 +87,7 @@ public class FileServiceImpl implements FileService {
             log.info("User {} uploading file {} to distributed system (size: {})",
                     currentUser.getUsername(), fileName, formatBytes(file.getSize()));
 
-            Path userFilePath = Paths.get(dfsConfig.getStorage().getPath(), userScopedPath);
-            if (Files.exists(userFilePath)) {
+            if (namespaceTree.exists(userScopedPath)) {
                 throw new IllegalArgumentException("File already exists: " + fileName);
             }
 
@@ -128,9 +134,9 @@ public class FileServiceImpl implements FileService {
         log.info("Uploading file {} with replication factor {} across {} nodes",
                 userScopedPath, actualReplicationFactor, availableNodes.size());
 
-        List<Node> targetNodes = selectTargetNodes(availableNodes, actualReplicationFactor);
+        List<Node> targetNodes = selectTargetNodes(availableNodes, actualReplicationFactor, encryptedFileData.length);
 
-        boolean uploadSuccess = false;
+        List<String> storedOnNodes = new ArrayList<>();
         Exception lastException = null;
         byte[] fileData = file.getBytes();
 
@@ -141,7 +147,7 @@ public class FileServiceImpl implements FileService {
                 if (success) {
                     node.addHostedFile(userScopedPath);
                     log.info("Encrypted File {} replicated to node {} using simple HTTP", userScopedPath, node.getNodeId());
-                    uploadSuccess = true;
+                    storedOnNodes.add(node.getNodeId());
                 } else {
                     log.error("Failed to replicate encrypted file {} to node {} using simple HTTP", userScopedPath, node.getNodeId());
                 }
@@ -151,16 +157,31 @@ public class FileServiceImpl implements FileService {
             }
         }
 
-        if (!uploadSuccess) {
+        if (storedOnNodes.isEmpty()) {
             throw new RuntimeException("Failed to upload file to any node", lastException);
         }
 
         // Store locally for backup/metadata purposes
         Path userFilePath = Paths.get(dfsConfig.getStorage().getPath(), userScopedPath);
+        snapshotManager.beforeReplace(userScopedPath);
         Files.createDirectories(userFilePath.getParent());
-        Files.write(userFilePath, encryptedFileData);
+        // Written next to the target and moved over it, snapshots may hold a hard link to the old file
+        Path tempFilePath = Files.createTempFile(userFilePath.getParent(), ".upload-", ".tmp");
+        try {
+            Files.write(tempFilePath, encryptedFileData);
+            Files.move(tempFilePath, userFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFilePath);
+        }
+        directoryIndex.onCreated(userScopedPath);
+
+        namespaceTree.addFile(userScopedPath, encryptedFileData.length);
+        for (String nodeId : storedOnNodes) {
+            namespaceTree.addReplica(userScopedPath, nodeId);
+        }
 
-        replicationManager.replicateFile(userScopedPath, actualReplicationFactor);
+        // Journaled before the upload is acknowledged, so missing replicas survive a coordinator crash
+        replicationManager.requestReplication(userScopedPath, actualReplicationFactor);
 
         return FileMetaDataDto.builder()
                 .name(file.getOriginalFilename())
@@ -172,8 +193,15 @@ public class FileServiceImpl implements FileService {
                 .build();
     }
 
-    private List<Node> selectTargetNodes(List<Node> availableNodes, int replicationFactor) {
+    /**
+     * Picks the least loaded nodes that have room for the file, using the load pushed with node heartbeats.
+     * Nodes that do not report load sort as idle.
+     */
+    private List<Node> selectTargetNodes(List<Node> availableNodes, int replicationFactor, long fileSize) {
         List<Node> selectedNodes = availableNodes.stream()
+                .filter(node -> !node.isPushingHeartbeats() || node.getAvailableDiskSpace() < 0
+                        || node.getAvailableDiskSpace() >= fileSize)
+                .sorted(Comparator.comparingLong(Node::estimatedWriteWaitMicros))
                 .limit(replicationFactor)
                 .collect(Collectors.toList());
         return selectedNodes;
@@ -204,7 +232,8 @@ public class FileServiceImpl implements FileService {
 
         // Try to retrieve from distributed nodes first
         try {
-            encryptedFileData = simpleNodeService.retrieveFile(userScopedPath);
+            encryptedFileData = simpleNodeService.retrieveFile(userScopedPath,
+                    namespaceTree.getReplicaLocations(userScopedPath));
             if (encryptedFileData != null) {
                 log.info("File {} retrieved from distributed nodes (size: {} bytes)", userScopedPath, encryptedFileData.length);
             }
@@ -276,7 +305,7 @@ public class FileServiceImpl implements FileService {
 
         Path fullPath = Paths.get(dfsConfig.getStorage().getPath(), userScopedPath);
 
-        if (!Files.exists(fullPath)) {
+        if (!namespaceTree.exists(userScopedPath)) {
             throw new FileNotFoundException("File not found: " + normalizedPath);
         }
 
@@ -300,7 +329,7 @@ public class FileServiceImpl implements FileService {
 
         Path fullPath = Paths.get(dfsConfig.getStorage().getPath(), userScopedPath);
 
-        if (!Files.exists(fullPath)) {
+        if (!namespaceTree.exists(userScopedPath) || namespaceTree.isDirectory(userScopedPath)) {
             return false;
         }
 
@@ -321,9 +350,12 @@ public class FileServiceImpl implements FileService {
             fileSize =Files.size(fullPath);
         }
 
-        boolean deleted = Files.deleteIfExists(fullPath);
+        snapshotManager.beforeReplace(userScopedPath);
+        boolean deleted = namespaceTree.delete(userScopedPath);
+        Files.deleteIfExists(fullPath);
 
         if (deleted) {
+            directoryIndex.onDeleted(userScopedPath);
             userService.updateUserStorageUsage(currentUser.getUserId(), -fileSize);
 
             try {
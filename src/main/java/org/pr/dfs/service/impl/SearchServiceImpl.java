@@ -1,22 +1,37 @@
 package org.pr.dfs.service.impl;
 
+import jakarta.persistence.criteria.Join;
+import jakarta.persistence.criteria.Predicate;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.config.DfsConfig;
 import org.pr.dfs.dto.FileMetadata;
 import org.pr.dfs.dto.SearchRequest;
 import org.pr.dfs.dto.SearchResult;
 import org.pr.dfs.model.UserContext;
 import org.pr.dfs.repository.FileMetadataRepository;
+import org.pr.dfs.search.IndexedFile;
+import org.pr.dfs.search.SearchIndex;
+import org.pr.dfs.search.SuggestionIndex;
+import org.pr.dfs.service.AccessStatsService;
 import org.pr.dfs.service.SearchService;
-import org.springframework.data.domain.Page;
+import org.pr.dfs.utils.BoundedTtlCache;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -24,65 +39,86 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class SearchServiceImpl implements SearchService {
 
+    private static final int INDEX_BOOTSTRAP_BATCH = 1000;
+    private static final int MAX_SUGGESTIONS = 10;
+
     private final FileMetadataRepository fileMetadataRepository;
+    private final SearchIndex searchIndex;
+    private final SuggestionIndex suggestionIndex;
+    private final AccessStatsService accessStatsService;
+    private final BoundedTtlCache<String, FileMetadata> metadataCache;
+    private final DfsConfig dfsConfig;
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * Builds the search index from the database on first start, or after the index directory was removed.
+     * Each batch is read in a transaction of its own, so the persistence context never holds more than one.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void bootstrapSearchIndex() {
+        if(!searchIndex.isEmpty()) {
+            return;
+        }
+        long indexed = 0;
+        String cursor = null;
+        Specification<FileMetadata> active = (root, query, criteriaBuilder) ->
+                criteriaBuilder.equal(root.get("isDeleted"), false);
+        try {
+            while(true) {
+                FileKeyset keyset = FileKeyset.of(FileKeyset.SortField.uploadTime, false, cursor);
+                List<FileMetadata> rows = new ArrayList<>();
+                List<IndexedFile> batch = transactionTemplate.execute(status -> {
+                    rows.addAll(readAfter(active, keyset, INDEX_BOOTSTRAP_BATCH));
+                    // Tags are lazy, read them while the transaction is open
+                    return rows.stream().map(SearchServiceImpl::toIndexedFile).collect(Collectors.toList());
+                });
+                if(rows.isEmpty()) {
+                    break;
+                }
+                searchIndex.indexAll(batch);
+                indexed += rows.size();
+                cursor = keyset.cursorAfter(rows.get(rows.size() - 1));
+            }
+            log.info("Search index built from {} file metadata records", indexed);
+        } catch(Exception e) {
+            log.error("Failed to build search index after {} records", indexed, e);
+        }
+    }
 
     @Override
     public SearchResult searchFiles(SearchRequest request) throws Exception {
         String userId = getCurrentUserId();
+        int size = clampPageSize(request.getSize());
 
-        Pageable pageable = createPageable(request);
-        Page<FileMetadata> page;
+        if(!hasAdvancedSearchCriteria(request) && request.getQuery() != null && !request.getQuery().trim().isEmpty()) {
+            return searchIndexed(userId, request.getQuery().trim(), request.getCursor(), size);
+        }
 
+        Specification<FileMetadata> filter = activeFilesOf(userId);
         if(hasAdvancedSearchCriteria(request)) {
-            page = fileMetadataRepository.advancedSearch(
-                    userId,
-                    request.getFileName(),
-                    request.getContentType(),
-                    request.getMinSize(),
-                    request.getMaxSize(),
-                    request.getFromDate(),
-                    request.getToDate(),
-                    pageable
-            );
-
-        } else if(request.getQuery() != null && !request.getQuery().trim().isEmpty()) {
-            page = fileMetadataRepository.searchByTextQuery(userId, request.getQuery().trim(), pageable);
-        } else {
-            page = fileMetadataRepository.findAll(
-                    (root, query, criteriaBuilder) -> {
-                        return criteriaBuilder.and(
-                                criteriaBuilder.equal(root.get("userId"), userId),
-                                criteriaBuilder.equal(root.get("isDeleted"), false)
-                        );
-                    },
-                    pageable
-            );
+            filter = filter.and(matching(request));
         }
-
-        return convertToSearchResult(page, request);
+        FileKeyset keyset = FileKeyset.of(FileKeyset.SortField.parse(request.getSortBy()),
+                !"asc".equalsIgnoreCase(request.getSortDirection()), request.getCursor());
+        return keysetPage(filter, keyset, size, request.isWithTotal());
     }
 
     @Override
-    public SearchResult searchByTag(String userId, String tag, int page, int size) throws Exception {
-        Pageable pageable = PageRequest.of(page, size, Sort.by(Sort.Direction.DESC, "uploadTime"));
-        Page<FileMetadata> resultPage = fileMetadataRepository.searchByTag(userId, tag, pageable);
-
-        return convertToSearchResult(resultPage, null);
+    public SearchResult searchByTag(String userId, String tag, String cursor, int size, boolean withTotal) throws Exception {
+        FileKeyset keyset = FileKeyset.of(FileKeyset.SortField.uploadTime, true, cursor);
+        return keysetPage(activeFilesOf(userId).and(taggedLike(tag)), keyset, clampPageSize(size), withTotal);
     }
 
     @Override
-    public SearchResult getRecentFiles(String userId, int page, int size) throws Exception {
-        Pageable pageable = PageRequest.of(page, size);
-        Page<FileMetadata> resultPage = fileMetadataRepository.findRecentFiles(userId, pageable);
-        return convertToSearchResult(resultPage, null);
+    public SearchResult getRecentFiles(String userId, String cursor, int size, boolean withTotal) throws Exception {
+        FileKeyset keyset = FileKeyset.of(FileKeyset.SortField.lastAccessed, true, cursor);
+        return keysetPage(activeFilesOf(userId), keyset, clampPageSize(size), withTotal);
     }
 
     @Override
-    public SearchResult getPopularFiles(String userId, int page, int size) throws Exception {
-        Pageable pageable = PageRequest.of(page, size);
-        Page<FileMetadata> resultPage = fileMetadataRepository.findPopularFiles(userId, pageable);
-
-        return convertToSearchResult(resultPage, null);
+    public SearchResult getPopularFiles(String userId, String cursor, int size, boolean withTotal) throws Exception {
+        FileKeyset keyset = FileKeyset.of(FileKeyset.SortField.accessCount, true, cursor);
+        return keysetPage(activeFilesOf(userId), keyset, clampPageSize(size), withTotal);
     }
 
     @Override
@@ -91,9 +127,14 @@ public class SearchServiceImpl implements SearchService {
             return List.of();
         }
 
-        return fileMetadataRepository.findFileNameSuggestions(userId, query.trim())
-                .stream()
-                .limit(10)
+        return suggestionIndex.suggest(userId, query.trim(), MAX_SUGGESTIONS, this::loadSuggestions);
+    }
+
+    private List<SuggestionIndex.Suggestion> loadSuggestions(String userId) {
+        Pageable mostAccessed = PageRequest.of(0, dfsConfig.getSearch().getSuggestionNamesPerUser());
+        return fileMetadataRepository.findSuggestionSources(userId, mostAccessed).stream()
+                .map(row -> new SuggestionIndex.Suggestion((String) row[0], (String) row[1],
+                        row[2] != null ? (Long) row[2] : 0L))
                 .collect(Collectors.toList());
     }
 
@@ -107,6 +148,9 @@ public class SearchServiceImpl implements SearchService {
             fileMetadata.setIsDeleted(false);
 
             fileMetadataRepository.save(fileMetadata);
+            metadataCache.invalidate(fileMetadata.getFilePath());
+            searchIndex.index(toIndexedFile(fileMetadata));
+            suggestionIndex.put(fileMetadata.getUserId(), fileMetadata.getFileId(), fileMetadata.getFileName(), 0L);
             log.info("File metadata saved for: {}",  fileMetadata.getFileName());
         } catch (Exception e) {
             log.error("Failed to save file metadata for: {}",  fileMetadata.getFileName(), e);
@@ -116,20 +160,8 @@ public class SearchServiceImpl implements SearchService {
 
     @Override
     public void updateFileAccess(String filePath) throws Exception {
-        try {
-            Optional<FileMetadata> optionalMetadata = fileMetadataRepository.findByFilePathAndIsDeletedFalse(filePath);
-
-            if(optionalMetadata.isPresent()) {
-                FileMetadata fileMetadata = optionalMetadata.get();
-                fileMetadata.setLastAccessed(LocalDateTime.now());
-                fileMetadata.setAccessCount(fileMetadata.getAccessCount() + 1);
-
-                fileMetadataRepository.save(fileMetadata);
-                log.debug("Updated access count for file: {}", filePath);
-            }
-        } catch(Exception e) {
-            log.warn("Failed to update access count for file: {}", filePath, e);
-        }
+        // Counted in memory and written out in batches, the download does not wait for the database
+        accessStatsService.recordAccess(filePath);
     }
 
     @Override
@@ -142,6 +174,9 @@ public class SearchServiceImpl implements SearchService {
                 fileMetadata.setIsDeleted(true);
 
                 fileMetadataRepository.save(fileMetadata);
+                metadataCache.invalidate(filePath);
+                searchIndex.remove(fileMetadata.getFileId());
+                suggestionIndex.remove(fileMetadata.getUserId(), fileMetadata.getFileId());
                 log.info("Marked file metadata as deleted: {}", filePath);
             }
         } catch(Exception e) {
@@ -150,10 +185,210 @@ public class SearchServiceImpl implements SearchService {
         }
     }
 
+    @Override
+    public void moveFileMetadata(String sourcePath, String destinationPath) throws Exception {
+        try {
+            // Pending access counts are keyed by path, write out those of the moved paths before they change
+            accessStatsService.flushUnder(sourcePath);
+            List<FileMetadata> moved = new ArrayList<>();
+            fileMetadataRepository.findByFilePathAndIsDeletedFalse(sourcePath).ifPresent(fileMetadata -> {
+                fileMetadata.setFilePath(destinationPath);
+                fileMetadata.setFileName(destinationPath.substring(destinationPath.lastIndexOf('/') + 1));
+                moved.add(fileMetadata);
+            });
+            for(FileMetadata fileMetadata : fileMetadataRepository.findByFilePathStartingWithAndIsDeletedFalse(sourcePath + "/")) {
+                fileMetadata.setFilePath(destinationPath + fileMetadata.getFilePath().substring(sourcePath.length()));
+                moved.add(fileMetadata);
+            }
+            if(moved.isEmpty()) {
+                return;
+            }
+
+            fileMetadataRepository.saveAll(moved);
+            String sourcePrefix = sourcePath + "/";
+            String destinationPrefix = destinationPath + "/";
+            metadataCache.invalidateIf(path -> path.equals(sourcePath) || path.startsWith(sourcePrefix) ||
+                    path.equals(destinationPath) || path.startsWith(destinationPrefix));
+            // The rows are saved, so from here on the move stands; the caller only undoes it when saving fails
+            try {
+                for(FileMetadata fileMetadata : moved) {
+                    searchIndex.index(toIndexedFile(fileMetadata));
+                    suggestionIndex.put(fileMetadata.getUserId(), fileMetadata.getFileId(), fileMetadata.getFileName(),
+                            fileMetadata.getAccessCount() != null ? fileMetadata.getAccessCount() : 0L);
+                }
+            } catch(IOException e) {
+                log.warn("Moved metadata from {} to {} but failed to reindex it", sourcePath, destinationPath, e);
+            }
+            log.info("Moved metadata of {} files from {} to {}", moved.size(), sourcePath, destinationPath);
+        } catch(Exception e) {
+            log.error("Failed to move file metadata from {} to {}", sourcePath, destinationPath, e);
+            throw new RuntimeException("Failed to move file metadata", e);
+        }
+    }
+
     @Override
     public FileMetadata getFileMetadataByPath(String filePath) throws Exception {
-        return fileMetadataRepository.findByFilePathAndIsDeletedFalse(filePath)
-                .orElse(null);
+        return metadataCache.get(filePath, path -> fileMetadataRepository.findByFilePathAndIsDeletedFalse(path)
+                .map(SearchServiceImpl::cachedCopy)
+                .orElse(null));
+    }
+
+    @Override
+    public FileMetadata restoreFileMetadata(String filePath) throws Exception {
+        FileMetadata active = getFileMetadataByPath(filePath);
+        if(active != null) {
+            return active;
+        }
+
+        Optional<FileMetadata> deletedMetadata =
+                fileMetadataRepository.findFirstByFilePathAndIsDeletedTrueOrderByLastModifiedDesc(filePath);
+        if(deletedMetadata.isEmpty()) {
+            return null;
+        }
+
+        FileMetadata fileMetadata = deletedMetadata.get();
+        fileMetadata.setIsDeleted(false);
+        fileMetadata.setLastModified(LocalDateTime.now());
+        fileMetadataRepository.save(fileMetadata);
+        metadataCache.invalidate(filePath);
+        searchIndex.index(toIndexedFile(fileMetadata));
+        suggestionIndex.put(fileMetadata.getUserId(), fileMetadata.getFileId(), fileMetadata.getFileName(),
+                fileMetadata.getAccessCount() != null ? fileMetadata.getAccessCount() : 0L);
+        log.info("Restored file metadata: {}", filePath);
+        return fileMetadata;
+    }
+
+    /**
+     * One page after the cursor, fetching a single row past the page to learn whether another follows.
+     * The total is only counted on request, a COUNT costs as much as reading every match.
+     */
+    private SearchResult keysetPage(Specification<FileMetadata> filter, FileKeyset keyset, int size, boolean withTotal) {
+        List<FileMetadata> rows = readAfter(filter, keyset, size + 1);
+
+        boolean hasNext = rows.size() > size;
+        List<FileMetadata> files = hasNext ? rows.subList(0, size) : rows;
+        String nextCursor = hasNext ? keyset.cursorAfter(files.get(files.size() - 1)) : null;
+        long total = withTotal ? fileMetadataRepository.count(filter) : -1;
+        return toSearchResult(files, Map.of(), size, total, nextCursor);
+    }
+
+    /**
+     * Up to {@code limit} rows after the cursor: the valued rows, then those with a null sort value
+     * if the valued ones run out.
+     */
+    private List<FileMetadata> readAfter(Specification<FileMetadata> filter, FileKeyset keyset, int limit) {
+        List<FileMetadata> rows = new ArrayList<>(limit);
+        Specification<FileMetadata> valued = keyset.valuedAfter();
+        if(valued != null) {
+            rows.addAll(fileMetadataRepository.findBy(filter.and(valued),
+                    query -> query.sortBy(keyset.sort()).limit(limit).all()));
+        }
+        Specification<FileMetadata> nulls = keyset.nullAfter();
+        if(nulls != null && rows.size() < limit) {
+            int remaining = limit - rows.size();
+            rows.addAll(fileMetadataRepository.findBy(filter.and(nulls),
+                    query -> query.sortBy(keyset.sort()).limit(remaining).all()));
+        }
+        return rows;
+    }
+
+    /**
+     * Free-text search through the in-process index, in relevance order whatever sort was requested.
+     * The index counts every match anyway, so these pages always carry the total. One hit more than
+     * the page is asked for to tell whether another page follows.
+     */
+    private SearchResult searchIndexed(String userId, String query, String cursor, int size) {
+        SearchIndex.Result result = searchIndex.search(userId, query, FileKeyset.relevanceAfter(cursor), size + 1);
+        boolean hasNext = result.getHits().size() > size;
+        List<SearchIndex.Hit> hits = hasNext ? result.getHits().subList(0, size) : result.getHits();
+        List<String> fileIds = hits.stream()
+                .map(SearchIndex.Hit::getFileId)
+                .collect(Collectors.toList());
+        Map<String, FileMetadata> byId = fileMetadataRepository.findAllById(fileIds).stream()
+                .collect(Collectors.toMap(FileMetadata::getFileId, Function.identity()));
+
+        List<FileMetadata> files = new ArrayList<>(fileIds.size());
+        Map<String, Double> scores = new HashMap<>();
+        for(SearchIndex.Hit hit : hits) {
+            FileMetadata fileMetadata = byId.get(hit.getFileId());
+            if(fileMetadata != null && !Boolean.TRUE.equals(fileMetadata.getIsDeleted())) {
+                files.add(fileMetadata);
+                scores.put(hit.getFileId(), (double) hit.getScore());
+            }
+        }
+        String nextCursor = hasNext ? FileKeyset.relevanceCursor(hits.get(hits.size() - 1)) : null;
+        return toSearchResult(files, scores, size, result.getTotal(), nextCursor);
+    }
+
+    private static Specification<FileMetadata> activeFilesOf(String userId) {
+        return (root, query, criteriaBuilder) -> criteriaBuilder.and(
+                criteriaBuilder.equal(root.get("userId"), userId),
+                criteriaBuilder.equal(root.get("isDeleted"), false));
+    }
+
+    private static Specification<FileMetadata> matching(SearchRequest request) {
+        return (root, query, criteriaBuilder) -> {
+            List<Predicate> predicates = new ArrayList<>();
+            if(request.getFileName() != null) {
+                predicates.add(criteriaBuilder.like(criteriaBuilder.lower(root.get("fileName")),
+                        "%" + request.getFileName().toLowerCase() + "%"));
+            }
+            if(request.getContentType() != null) {
+                predicates.add(criteriaBuilder.equal(root.get("contentType"), request.getContentType()));
+            }
+            if(request.getMinSize() != null) {
+                predicates.add(criteriaBuilder.greaterThanOrEqualTo(root.get("fileSize"), request.getMinSize()));
+            }
+            if(request.getMaxSize() != null) {
+                predicates.add(criteriaBuilder.lessThanOrEqualTo(root.get("fileSize"), request.getMaxSize()));
+            }
+            if(request.getFromDate() != null) {
+                predicates.add(criteriaBuilder.greaterThanOrEqualTo(root.get("uploadTime"), request.getFromDate()));
+            }
+            if(request.getToDate() != null) {
+                predicates.add(criteriaBuilder.lessThanOrEqualTo(root.get("uploadTime"), request.getToDate()));
+            }
+            return criteriaBuilder.and(predicates.toArray(new Predicate[0]));
+        };
+    }
+
+    private static Specification<FileMetadata> taggedLike(String tag) {
+        return (root, query, criteriaBuilder) -> {
+            // A file with several matching tags must still come back once
+            query.distinct(true);
+            Join<FileMetadata, String> tags = root.join("tags");
+            return criteriaBuilder.like(criteriaBuilder.lower(tags), "%" + tag.toLowerCase() + "%");
+        };
+    }
+
+    private static IndexedFile toIndexedFile(FileMetadata fileMetadata) {
+        return new IndexedFile(fileMetadata.getFileId(), fileMetadata.getUserId(), fileMetadata.getFileName(),
+                fileMetadata.getDescription(), fileMetadata.getTags() != null ? new ArrayList<>(fileMetadata.getTags()) : null);
+    }
+
+    /**
+     * A detached copy for the metadata cache, shared by every reader until it expires. Tags are left out,
+     * they are lazy and cannot be read once the loading session is gone. Access counts trail the database
+     * by up to the cache TTL.
+     */
+    private static FileMetadata cachedCopy(FileMetadata fileMetadata) {
+        return FileMetadata.builder()
+                .fileId(fileMetadata.getFileId())
+                .fileName(fileMetadata.getFileName())
+                .filePath(fileMetadata.getFilePath())
+                .fileSize(fileMetadata.getFileSize())
+                .userId(fileMetadata.getUserId())
+                .contentType(fileMetadata.getContentType())
+                .uploadTime(fileMetadata.getUploadTime())
+                .lastModified(fileMetadata.getLastModified())
+                .lastAccessed(fileMetadata.getLastAccessed())
+                .checksum(fileMetadata.getChecksum())
+                .description(fileMetadata.getDescription())
+                .replicationFactor(fileMetadata.getReplicationFactor())
+                .currentReplicas(fileMetadata.getCurrentReplicas())
+                .accessCount(fileMetadata.getAccessCount())
+                .isDeleted(fileMetadata.getIsDeleted())
+                .build();
     }
 
     private String getCurrentUserId() {
@@ -169,38 +404,27 @@ public class SearchServiceImpl implements SearchService {
                 request.getToDate() != null;
     }
 
-    private Pageable createPageable(SearchRequest request) {
-        Sort.Direction direction = "asc".equalsIgnoreCase((request.getSortDirection()))
-                ? Sort.Direction.ASC
-                : Sort.Direction.DESC;
-
-        Sort sort = Sort.by(direction, request.getSortBy());
-
-        return PageRequest.of(
-                Math.max(0, request.getPage()),
-                Math.min(100, Math.max(1, request.getSize())),
-                sort
-        );
+    private static int clampPageSize(int size) {
+        return Math.min(100, Math.max(1, size));
     }
 
-    private SearchResult convertToSearchResult(Page<FileMetadata> page, SearchRequest request) {
-        List<SearchResult.FileSearchResultDto> files = page.getContent().stream()
-                .map(this::convertToFileSearchResultDto)
+    private SearchResult toSearchResult(List<FileMetadata> page, Map<String, Double> textScores, int size, long total,
+                                        String nextCursor) {
+        List<SearchResult.FileSearchResultDto> files = page.stream()
+                .map(fileMetadata -> convertToFileSearchResultDto(fileMetadata, textScores.get(fileMetadata.getFileId())))
                 .collect(Collectors.toList());
 
         return SearchResult.builder()
                 .files(files)
-                .totalElements(page.getTotalElements())
-                .totalPages(page.getTotalPages())
-                .currentPage(page.getNumber())
-                .pageSize(page.getSize())
-                .hasNext(page.hasNext())
-                .hasPrevious(page.hasPrevious())
+                .totalElements(total)
+                .totalPages(total >= 0 ? (int) ((total + size - 1) / size) : -1)
+                .pageSize(size)
+                .hasNext(nextCursor != null)
+                .nextCursor(nextCursor)
                 .build();
-
     }
 
-    private SearchResult.FileSearchResultDto convertToFileSearchResultDto(FileMetadata fileMetadata) {
+    private SearchResult.FileSearchResultDto convertToFileSearchResultDto(FileMetadata fileMetadata, Double textScore) {
         return SearchResult.FileSearchResultDto.builder()
                 .fileId(fileMetadata.getFileId())
                 .fileName(fileMetadata.getFileName())
@@ -215,7 +439,7 @@ public class SearchServiceImpl implements SearchService {
                 .accessCount(fileMetadata.getAccessCount())
                 .replicationFactor(fileMetadata.getReplicationFactor())
                 .currentReplicas(fileMetadata.getCurrentReplicas())
-                .relevanceScore(calculateRelevanceScore(fileMetadata))
+                .relevanceScore(textScore != null ? textScore : calculateRelevanceScore(fileMetadata))
                 .build();
     }
 
@@ -0,0 +1,149 @@
+package org.pr.dfs.service.impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.pr.dfs.config.DfsConfig;
+import org.pr.dfs.dto.FileMetadata;
+import org.pr.dfs.dto.SnapshotDto;
+import org.pr.dfs.model.Snapshot;
+import org.pr.dfs.model.SnapshotEntry;
+import org.pr.dfs.model.User;
+import org.pr.dfs.model.UserContext;
+import org.pr.dfs.namespace.NamespaceTree;
+import org.pr.dfs.replication.ReplicationManager;
+import org.pr.dfs.server.DirectoryIndex;
+import org.pr.dfs.service.SearchService;
+import org.pr.dfs.service.SnapshotService;
+import org.pr.dfs.service.UserService;
+import org.pr.dfs.versioning.SnapshotManager;
+import org.springframework.stereotype.Service;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SnapshotServiceImpl implements SnapshotService {
+
+    private final DfsConfig dfsConfig;
+    private final SnapshotManager snapshotManager;
+    private final SearchService searchService;
+    private final UserService userService;
+    private final ReplicationManager replicationManager;
+    private final DirectoryIndex directoryIndex;
+    private final NamespaceTree namespaceTree;
+
+    @Override
+    public SnapshotDto createSnapshot(String name) throws Exception {
+        User currentUser = validateUserContext();
+
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Snapshot name cannot be empty");
+        }
+
+        Snapshot snapshot = snapshotManager.createSnapshot(currentUser.getUserDirectory(), name.trim());
+        log.info("User {} created snapshot {} ({})", currentUser.getUsername(), snapshot.getName(), snapshot.getSnapshotId());
+        return convertToDto(snapshot);
+    }
+
+    @Override
+    public List<SnapshotDto> listSnapshots() throws Exception {
+        User currentUser = validateUserContext();
+
+        return snapshotManager.listSnapshots(currentUser.getUserDirectory()).stream()
+                .map(this::convertToDto)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Stream<SnapshotEntry> listSnapshotContents(String snapshotId) throws Exception {
+        User currentUser = validateUserContext();
+        requireSnapshot(currentUser, snapshotId);
+
+        return snapshotManager.listSnapshot(currentUser.getUserDirectory(), snapshotId);
+    }
+
+    @Override
+    public int restoreSnapshot(String snapshotId) throws Exception {
+        User currentUser = validateUserContext();
+        requireSnapshot(currentUser, snapshotId);
+
+        log.info("User {} restoring snapshot {}", currentUser.getUsername(), snapshotId);
+
+        int changed = snapshotManager.restoreSnapshot(currentUser.getUserDirectory(), snapshotId,
+                new SnapshotManager.RestoreListener() {
+                    @Override
+                    public void onFileRestored(String path) {
+                        try {
+                            boolean wasActive = searchService.getFileMetadataByPath(path) != null;
+                            FileMetadata metadata = searchService.restoreFileMetadata(path);
+                            if (metadata != null && !wasActive) {
+                                userService.updateUserStorageUsage(currentUser.getUserId(), metadata.getFileSize());
+                            }
+                            namespaceTree.addFile(path, Files.size(Paths.get(dfsConfig.getStorage().getPath(), path)));
+                        } catch (Exception e) {
+                            log.warn("Failed to restore metadata for {}: {}", path, e.getMessage());
+                        }
+                        replicationManager.replicateFile(path);
+                    }
+
+                    @Override
+                    public void onFileRemoved(String path) {
+                        try {
+                            FileMetadata metadata = searchService.getFileMetadataByPath(path);
+                            if (metadata != null) {
+                                searchService.deleteFileMetadata(path);
+                                userService.updateUserStorageUsage(currentUser.getUserId(), -metadata.getFileSize());
+                            }
+                            namespaceTree.delete(path);
+                        } catch (Exception e) {
+                            log.warn("Failed to remove metadata for {}: {}", path, e.getMessage());
+                        }
+                        replicationManager.handleFileDeletion(path);
+                    }
+                });
+        directoryIndex.invalidateTree(currentUser.getUserDirectory());
+        return changed;
+    }
+
+    @Override
+    public boolean deleteSnapshot(String snapshotId) throws Exception {
+        User currentUser = validateUserContext();
+
+        boolean deleted = snapshotManager.deleteSnapshot(currentUser.getUserDirectory(), snapshotId);
+        if (deleted) {
+            log.info("User {} deleted snapshot {}", currentUser.getUsername(), snapshotId);
+        }
+        return deleted;
+    }
+
+    private void requireSnapshot(User user, String snapshotId) throws FileNotFoundException {
+        if (snapshotManager.getSnapshot(user.getUserDirectory(), snapshotId) == null) {
+            throw new FileNotFoundException("Snapshot not found: " + snapshotId);
+        }
+    }
+
+    private User validateUserContext() {
+        User currentUser = UserContext.getCurrentUser();
+        if (currentUser == null) {
+            throw new IllegalStateException("No authenticated user found in context");
+        }
+        return currentUser;
+    }
+
+    private SnapshotDto convertToDto(Snapshot snapshot) {
+        return SnapshotDto.builder()
+                .snapshotId(snapshot.getSnapshotId())
+                .name(snapshot.getName())
+                .root(snapshot.getRoot())
+                .createdAt(snapshot.getCreatedAt().atZone(ZoneId.systemDefault()).toLocalDateTime())
+                .changedPaths(snapshotManager.getChangedPathCount(snapshot.getRoot(), snapshot.getSnapshotId()))
+                .build();
+    }
+}
@@ -3,10 +3,13 @@ package org.pr.dfs.service.impl;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.pr.dfs.config.DfsConfig;
+import org.pr.dfs.dto.FileMetadata;
 import org.pr.dfs.model.Node;
 import org.pr.dfs.replication.FaultToleranceManager;
 import org.pr.dfs.replication.NodeManager;
+import org.pr.dfs.security.KeyCache;
 import org.pr.dfs.service.SystemService;
+import org.pr.dfs.utils.BoundedTtlCache;
 import org.pr.dfs.utils.MetricsCollector;
 import org.springframework.stereotype.Service;
 
@@ -29,6 +32,8 @@ public class SystemServiceImpl implements SystemService {
     private final NodeManager nodeManager;
     private final FaultToleranceManager faultToleranceManager;
     private final MetricsCollector metricsCollector;
+    private final BoundedTtlCache<String, FileMetadata> metadataCache;
+    private final KeyCache keyCache;
 
     @Override
     public Map<String, Object> getSystemHealth() throws Exception {
@@ -100,7 +105,7 @@ public class SystemServiceImpl implements SystemService {
         nodeInfo.put("unhealthyNodes", allNodes.size() - healthyCount);
 
         long totalFiles = allNodes.stream()
-                .mapToLong(n -> n.getHostedFiles() != null ? n.getHostedFiles().size() : 0)
+                .mapToLong(Node::getHostedFileCount)
                 .sum();
         nodeInfo.put("totalFilesHosted", totalFiles);
 
@@ -136,6 +141,8 @@ public class SystemServiceImpl implements SystemService {
         performance.put("errorRate", 0);
 
         metrics.put("performance", performance);
+        metrics.put("metadataCache", metadataCache.getStats());
+        metrics.put("keyCache", keyCache.getStats());
 
         List<Node> nodes = nodeManager.getAllNodes();
         Map<String, Object> nodeMetrics = new HashMap<>();
@@ -185,7 +192,7 @@ public class SystemServiceImpl implements SystemService {
         nodeMap.put("healthy", node.isHealthy());
         nodeMap.put("availableDiskSpace", node.getAvailableDiskSpace());
         nodeMap.put("lastHeartbeat", node.getLastHeartbeat());
-        nodeMap.put("hostedFilesCount", node.getHostedFiles() != null ? node.getHostedFiles().size() : 0);
+        nodeMap.put("hostedFilesCount", node.getHostedFileCount());
         nodeMap.put("storagePath", node.getStoragePath());
 
         return nodeMap;
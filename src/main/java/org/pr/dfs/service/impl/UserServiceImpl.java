@@ -6,7 +6,9 @@ import org.pr.dfs.config.DfsConfig;
 import org.pr.dfs.model.User;
 import org.pr.dfs.repository.UserRepository;
 import org.pr.dfs.service.EncryptionService;
+import org.pr.dfs.service.UserChangedEvent;
 import org.pr.dfs.service.UserService;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.SecretKey;
@@ -27,6 +29,7 @@ public class UserServiceImpl implements UserService {
     private final DfsConfig dfsConfig;
     private final UserRepository userRepository;
     private final EncryptionService encryptionService;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Override
     public User createUser(String username, String email, String password) throws Exception {
@@ -141,6 +144,7 @@ public class UserServiceImpl implements UserService {
 
         user.setCurrentUsage(newUsage);
         userRepository.save(user);
+        eventPublisher.publishEvent(new UserChangedEvent(userId));
 
         log.debug("Updated storage usage for user {}: {} -> {} (change: {})",
                 user.getUsername(), user.getCurrentUsage() - sizeChange, newUsage, sizeChange);
@@ -151,10 +155,21 @@ public class UserServiceImpl implements UserService {
         User user = getUserById(userId);
         user.setLastLoginAt(LocalDateTime.now());
         userRepository.save(user);
+        eventPublisher.publishEvent(new UserChangedEvent(userId));
 
         log.debug("Updated last login time for user: {}", user.getUsername());
     }
 
+    @Override
+    public void revokeSessionTokens(String userId) throws Exception {
+        User user = getUserById(userId);
+        user.setTokenEpoch(user.getTokenEpoch() + 1);
+        userRepository.save(user);
+        eventPublisher.publishEvent(new UserChangedEvent(userId));
+
+        log.debug("Revoked session tokens of user: {}", user.getUsername());
+    }
+
     private String hashPassword(String password) throws Exception {
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
         byte[] hash = digest.digest(password.getBytes("UTF-8"));
@@ -177,10 +192,14 @@ public class UserServiceImpl implements UserService {
 
         String newPasswordHash = hashPassword(newPassword);
 
+        // Zero the cached old key now rather than when it goes idle
+        encryptionService.evictUserKey(userId);
         SecretKey newKey = encryptionService.generateUserKey(user.getUserId(), newPassword);
 
         user.setPasswordHash(newPasswordHash);
+        user.setTokenEpoch(user.getTokenEpoch() + 1); // Sessions opened with the old password end
         userRepository.save(user);
+        eventPublisher.publishEvent(new UserChangedEvent(userId));
 
         log.info("Password and encryption key updated for user: {}", user.getUsername());
 
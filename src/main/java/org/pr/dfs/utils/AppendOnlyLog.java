@@ -0,0 +1,319 @@
+package org.pr.dfs.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of checksummed records.
+ * Each record is stored as [int length][int crc32c][payload]. A torn tail left behind by a crash is
+ * detected when the log is opened and truncated back to the last valid record. A bad record with a valid
+ * one after it is damage rather than an interrupted write, and the log refuses to open instead of
+ * discarding everything behind it.
+ * Checkpoint files use the same record layout and are replaced atomically.
+ *
+ * {@link #append} forces every record to disk on its own. Writers that log under a lock of their own can
+ * {@link #write} instead and {@link #sync} once they have released it: one fsync then commits the records
+ * of every thread that wrote before it (group commit).
+ */
+public class AppendOnlyLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(AppendOnlyLog.class.getName());
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024; // 16MB per record
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path logFile;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    private long recordCount;
+    private volatile long sequence; // Records written since the log was opened, written under this
+    private volatile long syncedSequence; // Records of those known to be on disk
+
+    public AppendOnlyLog(Path logFile) throws IOException {
+        this.logFile = logFile;
+        if(logFile.getParent() != null) {
+            Files.createDirectories(logFile.getParent());
+        }
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long[] count = new long[1];
+        long validEnd = readRecords(logFile, record -> count[0]++);
+        if(validEnd < channel.size() && !isTornTail(channel, validEnd)) {
+            long size = channel.size();
+            channel.close();
+            throw new IOException("Corrupt record in " + logFile + " at offset " + validEnd +
+                    " followed by valid records (" + size + " bytes in the log)");
+        }
+        if(validEnd < channel.size()) {
+            LOGGER.warning("Truncating corrupt tail of " + logFile + " at offset " + validEnd +
+                    " (" + (channel.size() - validEnd) + " bytes discarded)");
+            channel.truncate(validEnd);
+            channel.force(true);
+        }
+        channel.position(validEnd);
+        this.recordCount = count[0];
+    }
+
+    /**
+     * Appends a record and forces it to disk before returning.
+     */
+    public void append(byte[] payload) throws IOException {
+        sync(write(payload));
+    }
+
+    /**
+     * Appends a batch of records with a single fsync. A crash mid-batch keeps a prefix of it.
+     */
+    public void appendAll(List<byte[]> payloads) throws IOException {
+        sync(writeAll(payloads));
+    }
+
+    /**
+     * Appends a record without forcing it to disk. It is durable once {@link #sync} returns for the
+     * returned sequence number or a later one.
+     */
+    public synchronized long write(byte[] payload) throws IOException {
+        if(payload.length > MAX_RECORD_SIZE) {
+            throw new IOException("Record too large: " + payload.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        recordCount++;
+        return ++sequence;
+    }
+
+    /**
+     * Appends a batch of records without forcing them to disk, see {@link #write}.
+     */
+    public synchronized long writeAll(List<byte[]> payloads) throws IOException {
+        if(payloads.isEmpty()) {
+            return sequence;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        for(byte[] payload : payloads) {
+            if(payload.length > MAX_RECORD_SIZE) {
+                throw new IOException("Record too large: " + payload.length + " bytes");
+            }
+            if(buffer.remaining() < HEADER_SIZE + payload.length) {
+                flush(buffer);
+                if(buffer.capacity() < HEADER_SIZE + payload.length) {
+                    buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+                }
+            }
+            buffer.putInt(payload.length);
+            buffer.putInt(checksum(payload));
+            buffer.put(payload);
+        }
+        flush(buffer);
+        recordCount += payloads.size();
+        sequence += payloads.size();
+        return sequence;
+    }
+
+    /**
+     * Returns once every record up to the sequence number is on disk. A thread finding another one in the
+     * middle of an fsync waits for it, and skips its own if that fsync covered its records.
+     */
+    public void sync(long upTo) throws IOException {
+        if(syncedSequence >= upTo) {
+            return;
+        }
+        synchronized(syncLock) {
+            if(syncedSequence >= upTo) {
+                return;
+            }
+            long written = sequence;
+            channel.force(false);
+            syncedSequence = Math.max(syncedSequence, written);
+        }
+    }
+
+    /**
+     * @return the sequence number of the last record written, for {@link #sync}
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Replays every valid record in append order.
+     */
+    public synchronized void replay(Consumer<byte[]> consumer) throws IOException {
+        readRecords(logFile, consumer);
+    }
+
+    /**
+     * Discards all records, typically right after a checkpoint has captured them.
+     */
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        recordCount = 0;
+        syncedSequence = sequence; // Whatever was written before is in the checkpoint now
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public Path getLogFile() {
+        return logFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(syncedSequence < sequence) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+
+    /**
+     * Writes a complete checkpoint to a temporary file, syncs it and atomically moves it into place,
+     * so readers only ever see the previous or the new checkpoint.
+     */
+    public static void writeCheckpoint(Path checkpointFile, Iterable<byte[]> records) throws IOException {
+        Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try(FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(out), READ_BUFFER_SIZE));
+            for(byte[] record : records) {
+                dos.writeInt(record.length);
+                dos.writeInt(checksum(record));
+                dos.write(record);
+            }
+            dos.flush();
+            out.force(true);
+        }
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a checkpoint written by {@link #writeCheckpoint}.
+     * @return false if no checkpoint exists
+     * @throws IOException if the checkpoint is corrupt
+     */
+    public static boolean readCheckpoint(Path checkpointFile, Consumer<byte[]> consumer) throws IOException {
+        if(!Files.exists(checkpointFile)) {
+            return false;
+        }
+        long validEnd = readRecords(checkpointFile, consumer);
+        if(validEnd != Files.size(checkpointFile)) {
+            throw new IOException("Corrupt checkpoint " + checkpointFile + " at offset " + validEnd);
+        }
+        return true;
+    }
+
+    /**
+     * Sequentially reads records until the end of the file or the first invalid record.
+     * @return the offset just past the last valid record
+     */
+    private static long readRecords(Path file, Consumer<byte[]> consumer) throws IOException {
+        long offset = 0;
+        try(DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), READ_BUFFER_SIZE))) {
+            while(true) {
+                int length;
+                int expectedChecksum;
+                try {
+                    length = dis.readInt();
+                    expectedChecksum = dis.readInt();
+                } catch(EOFException e) {
+                    return offset;
+                }
+                if(length < 0 || length > MAX_RECORD_SIZE) {
+                    return offset;
+                }
+
+                byte[] payload = new byte[length];
+                try {
+                    dis.readFully(payload);
+                } catch(EOFException e) {
+                    return offset;
+                }
+                if(checksum(payload) != expectedChecksum) {
+                    return offset;
+                }
+
+                consumer.accept(payload);
+                offset += HEADER_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * Whether the invalid record at {@code offset} is the torn end of an interrupted write: its header is
+     * incomplete, it runs to or past the end of the file, or no valid record follows it.
+     */
+    private static boolean isTornTail(FileChannel channel, long offset) throws IOException {
+        long size = channel.size();
+        if(size - offset < HEADER_SIZE) {
+            return true;
+        }
+        int length = readAt(channel, offset, HEADER_SIZE).getInt();
+        if(length < 0) {
+            return false;
+        }
+        long next = offset + HEADER_SIZE + length;
+        if(next >= size) {
+            return true;
+        }
+        return length <= MAX_RECORD_SIZE && !isValidRecord(channel, next, size);
+    }
+
+    private static boolean isValidRecord(FileChannel channel, long offset, long size) throws IOException {
+        if(size - offset < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = readAt(channel, offset, HEADER_SIZE);
+        int length = header.getInt();
+        int expectedChecksum = header.getInt();
+        if(length < 0 || length > MAX_RECORD_SIZE || offset + HEADER_SIZE + length > size) {
+            return false;
+        }
+        return checksum(readAt(channel, offset + HEADER_SIZE, length).array()) == expectedChecksum;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + length + " bytes at offset " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
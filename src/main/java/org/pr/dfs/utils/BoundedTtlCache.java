@@ -0,0 +1,189 @@
+package org.pr.dfs.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Read-through cache with a size bound and a time to live, e.g. in front of a repository lookup.
+ *
+ * Keys are spread over segments, each a small LRU map behind its own lock, so lookups of different keys
+ * rarely wait for each other and the least recently used entry of a full segment is evicted. A loader
+ * returning null is cached too, for its own (usually shorter) time, so repeated lookups of a missing key
+ * do not reach the backing store either; a negative TTL of 0 turns that off.
+ *
+ * Writers invalidate the keys they change. A load that started before an invalidation of its segment is
+ * returned to its caller but not cached, so a stale value never outlives the write that replaced it.
+ * The loader runs outside the lock and two concurrent misses of one key may both load it.
+ */
+public class BoundedTtlCache<K, V> {
+    private static final int SEGMENTS = 16;
+
+    private static final class Entry<V> {
+        final V value; // null for a cached miss
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+        final int capacity;
+        final LongAdder evictions;
+        long generation; // Bumped by every invalidation, guarded by the segment
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if(size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment<K, V>[] segments;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries upper bound of cached keys, misses included
+     * @param ttlMillis how long a loaded value is served
+     * @param negativeTtlMillis how long a miss is served, 0 to not cache misses
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedTtlCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        if(maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        int count = Math.min(SEGMENTS, Integer.highestOneBit(maxEntries));
+        this.segments = new Segment[count];
+        for(int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(maxEntries / count, evictions);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    }
+
+    /**
+     * @return the cached value, or the loader's result for the key, which may be null
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Segment<K, V> segment = segmentOf(key);
+        long generation;
+        synchronized(segment) {
+            Entry<V> entry = segment.get(key);
+            if(entry != null) {
+                if(entry.expiresAt - System.nanoTime() > 0) {
+                    (entry.value != null ? hits : negativeHits).increment();
+                    return entry.value;
+                }
+                segment.remove(key);
+                expirations.increment();
+            }
+            generation = segment.generation;
+        }
+
+        misses.increment();
+        V value;
+        try {
+            value = loader.apply(key);
+        } catch(RuntimeException e) {
+            loadFailures.increment(); // Failures are not cached, the next lookup tries again
+            throw e;
+        }
+        long ttl = value != null ? ttlNanos : negativeTtlNanos;
+        if(ttl > 0) {
+            synchronized(segment) {
+                if(segment.generation == generation) {
+                    segment.put(key, new Entry<>(value, System.nanoTime() + ttl));
+                }
+            }
+        }
+        return value;
+    }
+
+    public void invalidate(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized(segment) {
+            segment.remove(key);
+            segment.generation++;
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * Drops every key matching the filter, e.g. all paths under a moved directory.
+     */
+    public void invalidateIf(Predicate<? super K> filter) {
+        for(Segment<K, V> segment : segments) {
+            synchronized(segment) {
+                segment.keySet().removeIf(filter);
+                segment.generation++;
+            }
+        }
+        invalidations.increment();
+    }
+
+    public void invalidateAll() {
+        invalidateIf(key -> true);
+    }
+
+    public int size() {
+        int size = 0;
+        for(Segment<K, V> segment : segments) {
+            synchronized(segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Share of lookups served from memory, cached misses included.
+     */
+    public double getHitRatio() {
+        long served = hits.sum() + negativeHits.sum();
+        long lookups = served + misses.sum();
+        return lookups == 0 ? 0.0 : (double) served / lookups;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size());
+        stats.put("hits", hits.sum());
+        stats.put("negativeHits", negativeHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("hitRatio", Math.round(getHitRatio() * 1000) / 1000.0);
+        stats.put("loadFailures", loadFailures.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+
+    private Segment<K, V> segmentOf(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+}
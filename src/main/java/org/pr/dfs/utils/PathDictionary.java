@@ -0,0 +1,469 @@
+package org.pr.dfs.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Hands out stable int ids for namespace paths, so that maps keyed by path can hold a small int instead of
+ * their own copy of a string like {@code users/alice/projects/x/y/z.bin}.
+ *
+ * Paths are stored as a trie of path components: an entry is its parent's id plus the UTF-8 bytes of its
+ * last component in a shared arena, and every prefix is stored once no matter how many paths share it.
+ * Child lookup goes through one open-addressing table keyed by (parent, component), and each entry links
+ * its children, so everything under a directory is a walk of its subtree rather than a scan of all paths.
+ *
+ * Ids are reference counted: every {@link #intern} must be paired with a {@link #release} by the same
+ * holder. An entry and its id are recycled once no holder and no child is left, so a {@link #find} is only
+ * meaningful while the caller, or a lock the caller shares with the holder, keeps the id from being released.
+ *
+ * Paths are normalized, so {@code /a//b/} and {@code a/b} share an id, and {@link #path} returns the
+ * normalized form rather than the string that was interned; compare against it through {@link #normalize}.
+ * The empty path is the root, id 0, and is never released.
+ */
+public final class PathDictionary {
+    public static final int NO_ID = -1;
+    public static final int ROOT = 0;
+
+    private static final PathDictionary SHARED = new PathDictionary();
+    private static final int NONE = -1;
+
+    // Per entry, indexed by id
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] previousSibling;
+    private int[] holders;
+    private int[] nameOffset; // Arena offset of the component: a varint length followed by the bytes
+
+    private byte[] arena = new byte[1024];
+    private int arenaSize;
+    private long deadArenaBytes;
+
+    private int[] table; // id + 1 of each entry by hash of (parent, component), 0 when empty
+    private int tableMask;
+
+    private int[] freeIds = new int[64];
+    private int freeCount;
+    private int nextId;
+    private int entries;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public PathDictionary() {
+        this(1024);
+    }
+
+    public PathDictionary(int expectedPaths) {
+        int capacity = Math.max(16, expectedPaths);
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        previousSibling = new int[capacity];
+        holders = new int[capacity];
+        nameOffset = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        tableMask = table.length - 1;
+
+        // Root: the empty path
+        nextId = 1;
+        entries = 1;
+        parent[ROOT] = NONE;
+        firstChild[ROOT] = NONE;
+        nextSibling[ROOT] = NONE;
+        previousSibling[ROOT] = NONE;
+        nameOffset[ROOT] = appendName(new byte[0]);
+    }
+
+    /**
+     * The dictionary shared by the in-memory maps of this process.
+     */
+    public static PathDictionary shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the id of a path, adding it if needed, and counts the caller as one more holder.
+     */
+    public int intern(String path) {
+        byte[][] components = split(path);
+        lock.writeLock().lock();
+        try {
+            int id = ROOT;
+            for(byte[] component : components) {
+                int child = findChild(id, component);
+                id = child != NONE ? child : addChild(id, component);
+            }
+            if(id != ROOT) {
+                holders[id]++;
+            }
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the id of a path, or {@link #NO_ID} if it is not in the dictionary
+     */
+    public int find(String path) {
+        byte[][] components = split(path);
+        lock.readLock().lock();
+        try {
+            int id = ROOT;
+            for(int i = 0; i < components.length && id != NONE; i++) {
+                id = findChild(id, components[i]);
+            }
+            return id != NONE ? id : NO_ID;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops one holder of an id obtained from {@link #intern}.
+     */
+    public void release(int id) {
+        if(id == ROOT) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            checkId(id);
+            if(holders[id] <= 0) {
+                throw new IllegalStateException("Path id " + id + " has no holders");
+            }
+            holders[id]--;
+            // Drop the entry and every ancestor it alone kept alive
+            while(id != ROOT && holders[id] == 0 && firstChild[id] == NONE) {
+                int up = parent[id];
+                removeEntry(id);
+                id = up;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the normalized path of an id
+     */
+    public String path(int id) {
+        lock.readLock().lock();
+        try {
+            checkId(id);
+            int length = 0;
+            int depth = 0;
+            for(int entry = id; entry != ROOT; entry = parent[entry]) {
+                length += nameLength(nameOffset[entry]);
+                depth++;
+            }
+            if(depth == 0) {
+                return "";
+            }
+            byte[] bytes = new byte[length + depth - 1];
+            int end = bytes.length;
+            for(int entry = id; entry != ROOT; entry = parent[entry]) {
+                int offset = nameOffset[entry];
+                int nameLength = nameLength(offset);
+                end -= nameLength;
+                System.arraycopy(arena, nameStart(offset), bytes, end, nameLength);
+                if(end > 0) {
+                    bytes[--end] = '/';
+                }
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the id of a path and of every path below it that has a holder, parents before children.
+     * The dictionary is read-locked during the walk, so the consumer must not intern or release.
+     */
+    public void forEachUnder(String prefix, IntConsumer consumer) {
+        byte[][] components = split(prefix);
+        lock.readLock().lock();
+        try {
+            int top = ROOT;
+            for(int i = 0; i < components.length && top != NONE; i++) {
+                top = findChild(top, components[i]);
+            }
+            if(top == NONE) {
+                return;
+            }
+
+            // Depth-first without recursion: go down to the first child, else across, else back up
+            int id = top;
+            while(true) {
+                if(holders[id] > 0) {
+                    consumer.accept(id);
+                }
+                if(firstChild[id] != NONE) {
+                    id = firstChild[id];
+                    continue;
+                }
+                while(id != top && nextSibling[id] == NONE) {
+                    id = parent[id];
+                }
+                if(id == top) {
+                    return;
+                }
+                id = nextSibling[id];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a path as {@link #path} returns it: its components joined by single slashes, with no slash at
+     *         either end
+     */
+    public static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder(path.length());
+        for(String part : path.split("/")) {
+            if(!part.isEmpty()) {
+                if(normalized.length() > 0) {
+                    normalized.append('/');
+                }
+                normalized.append(part);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return number of entries, including the root and directories kept only for their children
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Approximate heap used by the dictionary, for sizing and monitoring.
+     */
+    public long estimatedBytes() {
+        lock.readLock().lock();
+        try {
+            return parent.length * 24L + (long) table.length * 4 + arena.length + freeIds.length * 4L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int findChild(int parentId, byte[] component) {
+        for(int slot = hash(parentId, component, 0, component.length) & tableMask; table[slot] != 0; slot = (slot + 1) & tableMask) {
+            int id = table[slot] - 1;
+            if(parent[id] == parentId && nameEquals(nameOffset[id], component)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private int addChild(int parentId, byte[] component) {
+        int id;
+        if(freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if(id == parent.length) {
+                grow();
+            }
+        }
+        entries++;
+
+        parent[id] = parentId;
+        holders[id] = 0;
+        firstChild[id] = NONE;
+        previousSibling[id] = NONE;
+        nextSibling[id] = firstChild[parentId];
+        if(firstChild[parentId] != NONE) {
+            previousSibling[firstChild[parentId]] = id;
+        }
+        firstChild[parentId] = id;
+        nameOffset[id] = appendName(component);
+
+        int slot = hash(parentId, component, 0, component.length) & tableMask;
+        while(table[slot] != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = id + 1;
+        if(entries * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    private void removeEntry(int id) {
+        // Unlink from the parent's children
+        if(previousSibling[id] != NONE) {
+            nextSibling[previousSibling[id]] = nextSibling[id];
+        } else {
+            firstChild[parent[id]] = nextSibling[id];
+        }
+        if(nextSibling[id] != NONE) {
+            previousSibling[nextSibling[id]] = previousSibling[id];
+        }
+
+        // Remove from the table, shifting back later entries of the probe run so lookups stay correct
+        int slot = entryHash(id) & tableMask;
+        while(table[slot] != id + 1) {
+            slot = (slot + 1) & tableMask;
+        }
+        int hole = slot;
+        for(slot = (slot + 1) & tableMask; table[slot] != 0; slot = (slot + 1) & tableMask) {
+            int home = entryHash(table[slot] - 1) & tableMask;
+            if(((slot - home) & tableMask) >= ((slot - hole) & tableMask)) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+
+        int offset = nameOffset[id];
+        deadArenaBytes += nameStart(offset) - offset + nameLength(offset);
+        parent[id] = NONE;
+        entries--;
+        if(freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+
+        if(deadArenaBytes > arenaSize / 2 && arenaSize > 1024 * 1024) {
+            compactArena();
+        }
+    }
+
+    private void grow() {
+        int capacity = parent.length + (parent.length >> 1);
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        previousSibling = Arrays.copyOf(previousSibling, capacity);
+        holders = Arrays.copyOf(holders, capacity);
+        nameOffset = Arrays.copyOf(nameOffset, capacity);
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        tableMask = capacity - 1;
+        for(int id = 0; id < nextId; id++) {
+            if(id != ROOT && parent[id] != NONE) {
+                int slot = entryHash(id) & tableMask;
+                while(table[slot] != 0) {
+                    slot = (slot + 1) & tableMask;
+                }
+                table[slot] = id + 1;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the arena without the names of removed entries.
+     */
+    private void compactArena() {
+        byte[] compacted = new byte[Math.max(1024, arenaSize - (int) deadArenaBytes + 1024)];
+        int size = 0;
+        for(int id = 0; id < nextId; id++) {
+            if(id == ROOT || parent[id] != NONE) {
+                int offset = nameOffset[id];
+                int recordLength = nameStart(offset) - offset + nameLength(offset);
+                System.arraycopy(arena, offset, compacted, size, recordLength);
+                nameOffset[id] = size;
+                size += recordLength;
+            }
+        }
+        arena = compacted;
+        arenaSize = size;
+        deadArenaBytes = 0;
+    }
+
+    private int appendName(byte[] component) {
+        int needed = arenaSize + component.length + 5;
+        if(needed > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(needed, arena.length + (arena.length >> 1)));
+        }
+        int offset = arenaSize;
+        int length = component.length;
+        while(length >= 0x80) {
+            arena[arenaSize++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        arena[arenaSize++] = (byte) length;
+        System.arraycopy(component, 0, arena, arenaSize, component.length);
+        arenaSize += component.length;
+        return offset;
+    }
+
+    private int nameLength(int offset) {
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = arena[offset++];
+            length |= (b & 0x7F) << shift;
+            if(b >= 0) {
+                return length;
+            }
+        }
+    }
+
+    private int nameStart(int offset) {
+        while(arena[offset] < 0) {
+            offset++;
+        }
+        return offset + 1;
+    }
+
+    private boolean nameEquals(int offset, byte[] component) {
+        if(nameLength(offset) != component.length) {
+            return false;
+        }
+        return Arrays.equals(arena, nameStart(offset), nameStart(offset) + component.length, component, 0, component.length);
+    }
+
+    private int entryHash(int id) {
+        int offset = nameOffset[id];
+        int start = nameStart(offset);
+        return hash(parent[id], arena, start, start + nameLength(offset));
+    }
+
+    private static int hash(int parentId, byte[] bytes, int from, int to) {
+        int h = parentId * 0x9E3779B9;
+        for(int i = from; i < to; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void checkId(int id) {
+        if(id < 0 || id >= nextId || (id != ROOT && parent[id] == NONE)) {
+            throw new IllegalArgumentException("Unknown path id: " + id);
+        }
+    }
+
+    private static byte[][] split(String path) {
+        String[] parts = path.split("/");
+        int count = 0;
+        for(String part : parts) {
+            if(!part.isEmpty()) {
+                count++;
+            }
+        }
+        byte[][] components = new byte[count][];
+        int i = 0;
+        for(String part : parts) {
+            if(!part.isEmpty()) {
+                components[i++] = part.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        return components;
+    }
+}
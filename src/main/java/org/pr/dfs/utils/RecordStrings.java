@@ -0,0 +1,36 @@
+package org.pr.dfs.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * String fields of the records kept in an {@link AppendOnlyLog} and its checkpoints: an int byte length
+ * followed by the UTF-8 bytes, or a length of -1 for null.
+ */
+public final class RecordStrings {
+
+    private RecordStrings() {
+    }
+
+    public static void writeString(DataOutputStream dos, String value) throws IOException {
+        if(value == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    public static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if(length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,221 @@
+package org.pr.dfs.utils;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative ints, laid out like a roaring bitmap.
+ *
+ * Values are split by their high 16 bits into chunks of 65536. A chunk holding at most 4096 values is a
+ * sorted char array (2 bytes per value), a fuller one is a fixed 8KB bitmap, so memory stays within about
+ * 2 bytes per value for sparse sets and drops towards 1 bit per value for dense ones. Not thread-safe.
+ */
+public final class RoaringBitmap {
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    // Chunks sorted by key; each container is a char[] (array chunk) or a long[] (bitmap chunk)
+    private char[] keys = new char[0];
+    private Object[] containers = new Object[0];
+    private int[] counts = new int[0];
+    private int chunkCount;
+    private int cardinality;
+
+    public boolean add(int value) {
+        char key = (char) (value >>> 16);
+        char low = (char) value;
+        int index = findChunk(key);
+        if(index < 0) {
+            index = -index - 1;
+            insertChunk(index, key);
+        }
+
+        Object container = containers[index];
+        if(container instanceof long[] bits) {
+            long mask = 1L << low;
+            if((bits[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bits[low >>> 6] |= mask;
+        } else {
+            char[] values = (char[]) container;
+            int count = counts[index];
+            int position = Arrays.binarySearch(values, 0, count, low);
+            if(position >= 0) {
+                return false;
+            }
+            position = -position - 1;
+            if(count == MAX_ARRAY_SIZE) {
+                long[] bits = toBitmap(values, count);
+                bits[low >>> 6] |= 1L << low;
+                containers[index] = bits;
+            } else {
+                if(count == values.length) {
+                    values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, Math.max(4, count * 2)));
+                    containers[index] = values;
+                }
+                System.arraycopy(values, position, values, position + 1, count - position);
+                values[position] = low;
+            }
+        }
+        counts[index]++;
+        cardinality++;
+        return true;
+    }
+
+    public boolean remove(int value) {
+        char low = (char) value;
+        int index = findChunk((char) (value >>> 16));
+        if(index < 0) {
+            return false;
+        }
+
+        Object container = containers[index];
+        if(container instanceof long[] bits) {
+            long mask = 1L << low;
+            if((bits[low >>> 6] & mask) == 0) {
+                return false;
+            }
+            bits[low >>> 6] &= ~mask;
+            if(counts[index] - 1 == MAX_ARRAY_SIZE) {
+                containers[index] = toArray(bits, MAX_ARRAY_SIZE);
+            }
+        } else {
+            char[] values = (char[]) container;
+            int count = counts[index];
+            int position = Arrays.binarySearch(values, 0, count, low);
+            if(position < 0) {
+                return false;
+            }
+            System.arraycopy(values, position + 1, values, position, count - position - 1);
+            if(count - 1 < values.length / 4 && values.length > 4) {
+                containers[index] = Arrays.copyOf(values, values.length / 2);
+            }
+        }
+        cardinality--;
+        if(--counts[index] == 0) {
+            removeChunk(index);
+        }
+        return true;
+    }
+
+    public boolean contains(int value) {
+        char low = (char) value;
+        int index = findChunk((char) (value >>> 16));
+        if(index < 0) {
+            return false;
+        }
+        Object container = containers[index];
+        if(container instanceof long[] bits) {
+            return (bits[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, 0, counts[index], low) >= 0;
+    }
+
+    /**
+     * Visits every value in ascending order.
+     */
+    public void forEach(IntConsumer consumer) {
+        for(int i = 0; i < chunkCount; i++) {
+            int base = keys[i] << 16;
+            Object container = containers[i];
+            if(container instanceof long[] bits) {
+                for(int word = 0; word < BITMAP_WORDS; word++) {
+                    long remaining = bits[word];
+                    while(remaining != 0) {
+                        consumer.accept(base | (word << 6) | Long.numberOfTrailingZeros(remaining));
+                        remaining &= remaining - 1;
+                    }
+                }
+            } else {
+                char[] values = (char[]) container;
+                for(int j = 0; j < counts[i]; j++) {
+                    consumer.accept(base | values[j]);
+                }
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] values = new int[cardinality];
+        int[] position = new int[1];
+        forEach(value -> values[position[0]++] = value);
+        return values;
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public void clear() {
+        keys = new char[0];
+        containers = new Object[0];
+        counts = new int[0];
+        chunkCount = 0;
+        cardinality = 0;
+    }
+
+    /**
+     * Approximate heap footprint of the value storage, excluding object headers of this instance.
+     */
+    public long estimatedBytes() {
+        long bytes = (long) keys.length * 2 + (long) containers.length * 4 + (long) counts.length * 4;
+        for(int i = 0; i < chunkCount; i++) {
+            bytes += 16 + (containers[i] instanceof long[] ? BITMAP_WORDS * 8L : ((char[]) containers[i]).length * 2L);
+        }
+        return bytes;
+    }
+
+    private int findChunk(char key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, key);
+    }
+
+    private void insertChunk(int index, char key) {
+        if(chunkCount == keys.length) {
+            int capacity = Math.max(4, chunkCount * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+        System.arraycopy(containers, index, containers, index + 1, chunkCount - index);
+        System.arraycopy(counts, index, counts, index + 1, chunkCount - index);
+        keys[index] = key;
+        containers[index] = new char[4];
+        counts[index] = 0;
+        chunkCount++;
+    }
+
+    private void removeChunk(int index) {
+        System.arraycopy(keys, index + 1, keys, index, chunkCount - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, chunkCount - index - 1);
+        System.arraycopy(counts, index + 1, counts, index, chunkCount - index - 1);
+        chunkCount--;
+        containers[chunkCount] = null;
+    }
+
+    private static long[] toBitmap(char[] values, int count) {
+        long[] bits = new long[BITMAP_WORDS];
+        for(int i = 0; i < count; i++) {
+            bits[values[i] >>> 6] |= 1L << values[i];
+        }
+        return bits;
+    }
+
+    private static char[] toArray(long[] bits, int count) {
+        char[] values = new char[count];
+        int position = 0;
+        for(int word = 0; word < BITMAP_WORDS; word++) {
+            long remaining = bits[word];
+            while(remaining != 0) {
+                values[position++] = (char) ((word << 6) | Long.numberOfTrailingZeros(remaining));
+                remaining &= remaining - 1;
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,154 @@
+package org.pr.dfs.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fixed pool of read-write locks shared by any number of keys, e.g. file paths.
+ *
+ * A key always maps to the same stripe, so memory stays constant however many keys are ever locked,
+ * instead of a lock object per key that is never cleaned up. Readers of a key share its stripe; writers
+ * are exclusive. Two keys may share a stripe and then serialize their writers, which more stripes make rare.
+ *
+ * Stripes are reentrant, but a thread holding a read lock must not take a write lock on the same stripe:
+ * it would wait for itself. Each stripe counts its acquisitions and those that had to wait, so a hot
+ * stripe shows up in {@link #getStats()}.
+ */
+public class StripedLocks {
+    private static final int HOTTEST_REPORTED = 5;
+
+    /**
+     * A held lock, released on close.
+     */
+    public static final class Held implements AutoCloseable {
+        private final Lock lock;
+        private boolean released;
+
+        private Held(Lock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() {
+            if(!released) {
+                released = true;
+                lock.unlock();
+            }
+        }
+    }
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+    private final AtomicLongArray acquisitions;
+    private final AtomicLongArray contended;
+    private final AtomicLongArray waitNanos;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public StripedLocks(int stripes) {
+        if(stripes <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripes);
+        }
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new ReentrantReadWriteLock[size];
+        for(int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+        this.acquisitions = new AtomicLongArray(size);
+        this.contended = new AtomicLongArray(size);
+        this.waitNanos = new AtomicLongArray(size);
+    }
+
+    /**
+     * Takes the key's stripe in shared mode, e.g. to read a file.
+     */
+    public Held read(String key) {
+        int stripe = stripeOf(key);
+        return acquire(stripe, stripes[stripe].readLock());
+    }
+
+    /**
+     * Takes the key's stripe in exclusive mode, e.g. to write or replicate a file.
+     */
+    public Held write(String key) {
+        int stripe = stripeOf(key);
+        return acquire(stripe, stripes[stripe].writeLock());
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public long getAcquisitions() {
+        return sum(acquisitions);
+    }
+
+    public long getContended() {
+        return sum(contended);
+    }
+
+    public long getWaitNanos() {
+        return sum(waitNanos);
+    }
+
+    /**
+     * Totals plus the stripes that waited longest.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("stripes", stripes.length);
+        stats.put("acquisitions", getAcquisitions());
+        stats.put("contended", getContended());
+        stats.put("waitMillis", getWaitNanos() / 1_000_000);
+
+        List<Integer> hottest = new ArrayList<>();
+        for(int i = 0; i < stripes.length; i++) {
+            if(contended.get(i) > 0) {
+                hottest.add(i);
+            }
+        }
+        hottest.sort((a, b) -> Long.compare(waitNanos.get(b), waitNanos.get(a)));
+        List<Map<String, Object>> hotStripes = new ArrayList<>();
+        for(int stripe : hottest.subList(0, Math.min(HOTTEST_REPORTED, hottest.size()))) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("stripe", stripe);
+            entry.put("acquisitions", acquisitions.get(stripe));
+            entry.put("contended", contended.get(stripe));
+            entry.put("waitMillis", waitNanos.get(stripe) / 1_000_000);
+            hotStripes.add(entry);
+        }
+        stats.put("hottestStripes", hotStripes);
+        return stats;
+    }
+
+    private Held acquire(int stripe, Lock lock) {
+        acquisitions.incrementAndGet(stripe);
+        if(!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            contended.incrementAndGet(stripe);
+            waitNanos.addAndGet(stripe, System.nanoTime() - start);
+        }
+        return new Held(lock);
+    }
+
+    private int stripeOf(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static long sum(AtomicLongArray values) {
+        long total = 0;
+        for(int i = 0; i < values.length(); i++) {
+            total += values.get(i);
+        }
+        return total;
+    }
+}
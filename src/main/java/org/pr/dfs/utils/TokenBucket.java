@@ -0,0 +1,64 @@
+package org.pr.dfs.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter, e.g. for capping background transfer bandwidth in bytes per second.
+ *
+ * Up to one second's worth of tokens can accumulate, so short bursts pass unthrottled. A request larger
+ * than the bucket borrows from the future: it is admitted once the debt has been refilled, which keeps the
+ * long-run rate exact even for transfers bigger than the burst size.
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long tokensPerSecond) {
+        if(tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + tokensPerSecond);
+        }
+        this.tokensPerNano = tokensPerSecond / 1e9;
+        this.capacity = tokensPerSecond;
+        this.tokens = tokensPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens, waiting as long as needed for the bucket to cover them.
+     */
+    public void acquire(long permits) throws InterruptedException {
+        long waitNanos;
+        synchronized(this) {
+            refill();
+            tokens -= permits;
+            waitNanos = tokens < 0 ? (long) (-tokens / tokensPerNano) : 0;
+        }
+        if(waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes tokens only if they are available right now.
+     */
+    public synchronized boolean tryAcquire(long permits) {
+        refill();
+        if(tokens < permits) {
+            return false;
+        }
+        tokens -= permits;
+        return true;
+    }
+
+    public long getRate() {
+        return Math.round(tokensPerNano * 1e9);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
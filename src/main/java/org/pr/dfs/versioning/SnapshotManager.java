@@ -0,0 +1,779 @@
+package org.pr.dfs.versioning;
+
+import org.pr.dfs.model.Snapshot;
+import org.pr.dfs.model.SnapshotEntry;
+import org.pr.dfs.utils.AppendOnlyLog;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.pr.dfs.utils.RecordStrings.readString;
+import static org.pr.dfs.utils.RecordStrings.writeString;
+
+/**
+ * Copy-on-write snapshots of a directory tree (normally a user's home directory).
+ *
+ * Creating a snapshot only records its metadata. The first time a path under the root is changed
+ * after the latest snapshot, its pre-image is recorded in that snapshot's diff: file contents go to a
+ * content-addressed, reference-counted block store and paths that did not exist yet are recorded as absent.
+ * The state of a path at snapshot S is the first diff entry found in S or any later snapshot, or the
+ * live file if no later change touched it. Deleting a snapshot folds its diff into the previous one.
+ *
+ * Pre-images are copied without holding the manager's lock: a path being captured is reserved, so only
+ * changes to that same path wait for the copy, and the block is moved into the store under the lock once
+ * it is complete. A file that is about to be moved, deleted or replaced keeps its bytes, so
+ * {@link #beforeReplace} hands it to the store by hard link instead of copying and hashing it; such blocks
+ * are named by a random ID rather than their hash. For this to hold, files under a root are never rewritten
+ * in place: writers create a new file and move it over the old one. Listing and restore look each path up in the diffs from the snapshot onwards instead of
+ * merging them into one map first.
+ */
+public class SnapshotManager implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotManager.class.getName());
+    private static final String SNAPSHOT_DIR = ".snapshots";
+    private static final String BLOCK_DIR = "blocks";
+    private static final String SNAPSHOT_LOG = "snapshots.log";
+    private static final String SNAPSHOT_CHECKPOINT = "snapshots.checkpoint";
+    private static final int COMPACTION_THRESHOLD = 10000; // Log records before writing a new checkpoint
+
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_DIFF = 3;
+
+    private enum EntryKind { ABSENT, FILE, DIRECTORY }
+
+    private static class DiffEntry {
+        final String path;
+        final EntryKind kind;
+        final String blockId;
+        final long size;
+        final long lastModified;
+
+        DiffEntry(String path, EntryKind kind, String blockId, long size, long lastModified) {
+            this.path = path;
+            this.kind = kind;
+            this.blockId = blockId;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class SnapshotState {
+        final Snapshot snapshot;
+        final Map<String, DiffEntry> diff = new ConcurrentHashMap<>(); // Written under the lock, read without
+
+        SnapshotState(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static class StagedBlock {
+        final Path temp;
+        final String blockId;
+
+        StagedBlock(Path temp, String blockId) {
+            this.temp = temp;
+            this.blockId = blockId;
+        }
+    }
+
+    /**
+     * A root as of one snapshot: the diffs of that snapshot and every later one, oldest first. The first entry
+     * found for a path is its state at the snapshot; a path without one is unchanged since.
+     */
+    private static class Overlay {
+        final String root;
+        final List<SnapshotState> states;
+
+        Overlay(String root, List<SnapshotState> states) {
+            this.root = root;
+            this.states = states;
+        }
+
+        DiffEntry lookup(String path) {
+            for(SnapshotState state : states) {
+                DiffEntry entry = state.diff.get(path);
+                if(entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Every changed path once, with the entry that decides its state at the snapshot.
+         */
+        Stream<DiffEntry> entries() {
+            return states.stream()
+                    .flatMap(state -> state.diff.values().stream())
+                    .filter(entry -> lookup(entry.path) == entry);
+        }
+
+        boolean hasAbsentAncestor(String path) {
+            return SnapshotManager.hasAbsentAncestor(this::lookup, root, path);
+        }
+    }
+
+    public interface RestoreListener {
+        void onFileRestored(String path);
+        void onFileRemoved(String path);
+    }
+
+    private final Path storageRoot;
+    private final Path blockDir;
+    private final Path checkpointFile;
+    private final AppendOnlyLog log;
+
+    // Guarded by this. Snapshots per root are ordered oldest first.
+    private final Map<String, List<SnapshotState>> snapshotsByRoot = new HashMap<>();
+    private final Map<String, Integer> blockRefCounts = new HashMap<>();
+    private final Set<String> capturing = new HashSet<>(); // Paths whose pre-image is being copied
+    private final Set<String> restoring = new HashSet<>(); // Roots with a restore running
+
+    public SnapshotManager(String storagePath) {
+        this.storageRoot = Paths.get(storagePath);
+        Path snapshotDir = storageRoot.resolve(SNAPSHOT_DIR);
+        this.blockDir = snapshotDir.resolve(BLOCK_DIR);
+        this.checkpointFile = snapshotDir.resolve(SNAPSHOT_CHECKPOINT);
+        try {
+            Files.createDirectories(blockDir);
+            this.log = new AppendOnlyLog(snapshotDir.resolve(SNAPSHOT_LOG));
+            load();
+        } catch(IOException e) {
+            LOGGER.severe("Failed to initialize snapshot directory: " + e.getMessage());
+            throw new RuntimeException("Snapshot directory initialization failed", e);
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        AppendOnlyLog.readCheckpoint(checkpointFile, this::apply);
+        log.replay(this::apply);
+        removeOrphanBlocks();
+        LOGGER.info("Loaded " + snapshotsByRoot.values().stream().mapToInt(List::size).sum() +
+                " snapshots referencing " + blockRefCounts.size() + " blocks");
+    }
+
+    public synchronized Snapshot createSnapshot(String root, String name) throws IOException {
+        root = normalize(root);
+        for(SnapshotState state : snapshotsByRoot.getOrDefault(root, Collections.emptyList())) {
+            if(state.snapshot.getName().equals(name)) {
+                throw new IllegalArgumentException("Snapshot already exists: " + name);
+            }
+        }
+
+        Snapshot snapshot = new Snapshot(UUID.randomUUID().toString(), name, root, Instant.now());
+        log.append(encodeCreate(snapshot));
+        applyCreate(snapshot);
+        maybeCompact();
+
+        LOGGER.info("Created snapshot " + name + " of " + root);
+        return snapshot;
+    }
+
+    public synchronized List<Snapshot> listSnapshots(String root) {
+        return snapshotsByRoot.getOrDefault(normalize(root), Collections.emptyList()).stream()
+                .map(state -> state.snapshot)
+                .collect(Collectors.toList());
+    }
+
+    public synchronized Snapshot getSnapshot(String root, String snapshotId) {
+        SnapshotState state = findState(normalize(root), snapshotId);
+        return state != null ? state.snapshot : null;
+    }
+
+    /**
+     * Number of paths whose pre-image is held by this snapshot.
+     */
+    public synchronized int getChangedPathCount(String root, String snapshotId) {
+        SnapshotState state = findState(normalize(root), snapshotId);
+        return state != null ? state.diff.size() : 0;
+    }
+
+    public synchronized boolean deleteSnapshot(String root, String snapshotId) throws IOException {
+        root = normalize(root);
+        if(findState(root, snapshotId) == null) {
+            return false;
+        }
+        if(restoring.contains(root)) {
+            throw new IOException("Cannot delete a snapshot while " + root + " is being restored");
+        }
+        log.append(encodeDelete(root, snapshotId));
+        applyDelete(root, snapshotId);
+        maybeCompact();
+
+        LOGGER.info("Deleted snapshot " + snapshotId + " of " + root);
+        return true;
+    }
+
+    /**
+     * Must be called before a path is created, modified, moved or deleted. Records the current state of the
+     * path (and everything below it, for directories) in the latest snapshot covering it, unless already recorded.
+     * Missing parent directories the change will create are recorded as absent as well.
+     */
+    public void beforeChange(String path) throws IOException {
+        beforeChange(path, false);
+    }
+
+    /**
+     * Like {@link #beforeChange}, for a path that is about to be moved, deleted or replaced by a new file
+     * rather than rewritten in place. Its files are linked into the block store, so capturing a large tree
+     * costs a walk of its entries, not a copy of its bytes.
+     */
+    public void beforeReplace(String path) throws IOException {
+        beforeChange(path, true);
+    }
+
+    private void beforeChange(String path, boolean link) throws IOException {
+        path = normalize(path);
+        String root;
+        synchronized(this) {
+            root = findRoot(path);
+        }
+        if(root == null) {
+            return;
+        }
+
+        Path target = storageRoot.resolve(path);
+        if(!Files.exists(target)) {
+            captureMissingAncestors(root, path);
+            capture(root, path, target, link);
+            return;
+        }
+        if(!Files.isDirectory(target)) {
+            capture(root, path, target, link);
+            return;
+        }
+
+        List<Path> subtree;
+        try(Stream<Path> walk = Files.walk(target)) {
+            subtree = walk.sorted().collect(Collectors.toList());
+        }
+        for(Path p : subtree) {
+            capture(root, relativize(p), p, link);
+        }
+    }
+
+    /**
+     * Streams the contents of a snapshot. The stream holds an open directory walk and must be closed.
+     */
+    public Stream<SnapshotEntry> listSnapshot(String root, String snapshotId) throws IOException {
+        Overlay overlay = overlay(normalize(root), snapshotId);
+
+        Stream<SnapshotEntry> preserved = overlay.entries()
+                .filter(entry -> entry.kind != EntryKind.ABSENT && !overlay.hasAbsentAncestor(entry.path))
+                .map(entry -> new SnapshotEntry(entry.path, entry.kind == EntryKind.DIRECTORY,
+                        entry.size, Instant.ofEpochMilli(entry.lastModified)));
+
+        Path rootDir = storageRoot.resolve(overlay.root);
+        if(!Files.isDirectory(rootDir)) {
+            return preserved;
+        }
+
+        Stream<SnapshotEntry> unchanged = Files.walk(rootDir)
+                .filter(p -> !p.equals(rootDir))
+                .filter(p -> {
+                    String relative = relativize(p);
+                    return overlay.lookup(relative) == null && !overlay.hasAbsentAncestor(relative);
+                })
+                .map(this::toLiveEntry);
+        return Stream.concat(unchanged, preserved);
+    }
+
+    /**
+     * Rolls the root back to the snapshot. Only paths changed since the snapshot are touched, and the
+     * changes made by the restore are themselves captured by the latest snapshot. Changed files are
+     * streamed from the diffs one at a time; only directories are collected, to create parents first.
+     * The listener is called without the manager's lock held.
+     * @return number of files restored or removed
+     */
+    public int restoreSnapshot(String root, String snapshotId, RestoreListener listener) throws IOException {
+        String normalizedRoot = normalize(root);
+        synchronized(this) {
+            if(!restoring.add(normalizedRoot)) {
+                throw new IOException("A restore of " + normalizedRoot + " is already running");
+            }
+        }
+        try {
+            Overlay overlay = overlay(normalizedRoot, snapshotId);
+            int changed = 0;
+
+            // Remove everything created after the snapshot
+            for(Iterator<DiffEntry> it = overlay.entries().iterator(); it.hasNext(); ) {
+                DiffEntry entry = it.next();
+                if(entry.kind == EntryKind.ABSENT && !overlay.hasAbsentAncestor(entry.path)) {
+                    Path target = storageRoot.resolve(entry.path);
+                    if(Files.exists(target)) {
+                        beforeReplace(entry.path);
+                        changed += deleteRecursively(target, listener);
+                    }
+                }
+            }
+
+            // Bring back preserved directories, parents before children
+            List<DiffEntry> directories = overlay.entries()
+                    .filter(entry -> entry.kind == EntryKind.DIRECTORY && !overlay.hasAbsentAncestor(entry.path))
+                    .sorted(Comparator.comparing(entry -> entry.path))
+                    .collect(Collectors.toList());
+            for(DiffEntry entry : directories) {
+                Path target = storageRoot.resolve(entry.path);
+                if(!Files.isDirectory(target)) {
+                    beforeReplace(entry.path);
+                    if(Files.exists(target)) {
+                        changed += deleteRecursively(target, listener);
+                    }
+                    Files.createDirectories(target);
+                }
+            }
+
+            // Then preserved files
+            for(Iterator<DiffEntry> it = overlay.entries().iterator(); it.hasNext(); ) {
+                DiffEntry entry = it.next();
+                if(entry.kind != EntryKind.FILE || overlay.hasAbsentAncestor(entry.path)) {
+                    continue;
+                }
+                Path target = storageRoot.resolve(entry.path);
+                if(isUnchanged(target, entry)) {
+                    continue;
+                }
+                beforeReplace(entry.path);
+                if(Files.isDirectory(target)) {
+                    changed += deleteRecursively(target, listener);
+                }
+                Files.createDirectories(target.getParent());
+                Files.copy(blockPath(entry.blockId), target, StandardCopyOption.REPLACE_EXISTING);
+                Files.setLastModifiedTime(target, FileTime.fromMillis(entry.lastModified));
+                listener.onFileRestored(entry.path);
+                changed++;
+            }
+
+            LOGGER.info("Restored snapshot " + snapshotId + " of " + normalizedRoot + ": " + changed + " files changed");
+            return changed;
+        } finally {
+            synchronized(this) {
+                restoring.remove(normalizedRoot);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Records the pre-image of one path in the latest snapshot of its root, unless that snapshot already holds
+     * it or one of its ancestors was absent. The file is copied outside the lock; other changes to the same
+     * path wait for it, since it may only change once the copy is complete.
+     */
+    private void capture(String root, String path, Path file, boolean link) throws IOException {
+        synchronized(this) {
+            while(true) {
+                SnapshotState latest = latestState(root);
+                if(latest == null || latest.diff.containsKey(path)
+                        || hasAbsentAncestor(latest.diff::get, root, path)) {
+                    return;
+                }
+                if(capturing.add(path)) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the pre-image of " + path);
+                }
+            }
+        }
+
+        StagedBlock staged = null;
+        try {
+            DiffEntry entry;
+            if(!Files.exists(file)) {
+                entry = new DiffEntry(path, EntryKind.ABSENT, null, 0, 0);
+            } else {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if(attrs.isDirectory()) {
+                    entry = new DiffEntry(path, EntryKind.DIRECTORY, null, 0, attrs.lastModifiedTime().toMillis());
+                } else {
+                    staged = link ? linkBlock(file) : stageBlock(file);
+                    entry = new DiffEntry(path, EntryKind.FILE, staged.blockId, attrs.size(),
+                            attrs.lastModifiedTime().toMillis());
+                }
+            }
+
+            synchronized(this) {
+                // A snapshot taken during the copy must see the pre-image too, the path has not changed yet
+                SnapshotState latest = latestState(root);
+                if(latest != null && !latest.diff.containsKey(path)
+                        && !hasAbsentAncestor(latest.diff::get, root, path)) {
+                    if(staged != null) {
+                        commitBlock(staged);
+                        staged = null;
+                    }
+                    log.append(encodeDiff(root, latest.snapshot.getSnapshotId(), entry));
+                    applyDiff(latest, entry);
+                    maybeCompact();
+                }
+            }
+        } finally {
+            if(staged != null) {
+                Files.deleteIfExists(staged.temp);
+            }
+            synchronized(this) {
+                capturing.remove(path);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records as absent the parent directories of a new path that do not exist yet, such as those a nested
+     * mkdir or an upload into a new folder creates, so a restore removes them again.
+     */
+    private void captureMissingAncestors(String root, String path) throws IOException {
+        int slash = path.indexOf('/', root.length() + 1);
+        while(slash > 0) {
+            String ancestor = path.substring(0, slash);
+            Path directory = storageRoot.resolve(ancestor);
+            if(!Files.exists(directory)) {
+                capture(root, ancestor, directory, false);
+            }
+            slash = path.indexOf('/', slash + 1);
+        }
+    }
+
+    private synchronized Overlay overlay(String root, String snapshotId) {
+        List<SnapshotState> states = snapshotsByRoot.getOrDefault(root, Collections.emptyList());
+        for(int i = 0; i < states.size(); i++) {
+            if(states.get(i).snapshot.getSnapshotId().equals(snapshotId)) {
+                return new Overlay(root, new ArrayList<>(states.subList(i, states.size())));
+            }
+        }
+        throw new IllegalArgumentException("Snapshot not found: " + snapshotId);
+    }
+
+    private int deleteRecursively(Path target, RestoreListener listener) throws IOException {
+        List<Path> paths;
+        try(Stream<Path> walk = Files.walk(target)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        int removed = 0;
+        for(Path p : paths) {
+            if(Files.isRegularFile(p)) {
+                listener.onFileRemoved(relativize(p));
+                removed++;
+            }
+            Files.deleteIfExists(p);
+        }
+        return removed;
+    }
+
+    private SnapshotEntry toLiveEntry(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return new SnapshotEntry(relativize(path), attrs.isDirectory(),
+                    attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime().toInstant());
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean hasAbsentAncestor(Function<String, DiffEntry> entries, String root, String path) {
+        int slash = path.lastIndexOf('/');
+        while(slash > root.length()) {
+            path = path.substring(0, slash);
+            DiffEntry entry = entries.apply(path);
+            if(entry != null && entry.kind == EntryKind.ABSENT) {
+                return true;
+            }
+            slash = path.lastIndexOf('/');
+        }
+        return false;
+    }
+
+    private String findRoot(String path) {
+        for(String root : snapshotsByRoot.keySet()) {
+            if(path.equals(root) || path.startsWith(root + "/")) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private SnapshotState latestState(String root) {
+        List<SnapshotState> states = snapshotsByRoot.get(root);
+        return states != null ? states.get(states.size() - 1) : null;
+    }
+
+    private SnapshotState findState(String root, String snapshotId) {
+        for(SnapshotState state : snapshotsByRoot.getOrDefault(root, Collections.emptyList())) {
+            if(state.snapshot.getSnapshotId().equals(snapshotId)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    // Block store
+
+    /**
+     * Copies a file into a temporary file in the block store, hashing it on the way.
+     */
+    private StagedBlock stageBlock(Path file) throws IOException {
+        Path temp = Files.createTempFile(blockDir, "stage-", ".tmp");
+        try {
+            MessageDigest digest = sha256();
+            try(InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new StagedBlock(temp, HexFormat.of().formatHex(digest.digest()));
+        } catch(IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Hard links a file into the block store under a random ID, for a file whose bytes will not change again
+     * under its current name. Copies it where the file system has no hard links.
+     */
+    private StagedBlock linkBlock(Path file) throws IOException {
+        String blockId = UUID.randomUUID().toString();
+        Path temp = blockDir.resolve("stage-" + blockId + ".tmp");
+        try {
+            Files.createLink(temp, file);
+        } catch(UnsupportedOperationException | FileSystemException e) {
+            if(!Files.exists(file)) {
+                throw e;
+            }
+            return stageBlock(file);
+        }
+        return new StagedBlock(temp, blockId);
+    }
+
+    /**
+     * Whether a restore can leave the live file as it is: it is still the linked block itself, or has the
+     * content of the hashed one.
+     */
+    private boolean isUnchanged(Path target, DiffEntry entry) throws IOException {
+        if(!Files.isRegularFile(target) || Files.size(target) != entry.size) {
+            return false;
+        }
+        Path block = blockPath(entry.blockId);
+        if(Files.exists(block) && Files.isSameFile(target, block)) {
+            return true;
+        }
+        return isContentAddressed(entry.blockId) && hashFile(target).equals(entry.blockId);
+    }
+
+    private static boolean isContentAddressed(String blockId) {
+        return blockId.indexOf('-') < 0; // Linked blocks have UUIDs, copied ones SHA-256 hex
+    }
+
+    /**
+     * Moves a staged copy into the store, or drops it if the block is already there. Called under the lock,
+     * so a block released at the same time is not deleted from under the entry about to reference it.
+     */
+    private void commitBlock(StagedBlock staged) throws IOException {
+        Path block = blockPath(staged.blockId);
+        if(Files.exists(block)) {
+            Files.delete(staged.temp);
+            return;
+        }
+        Files.createDirectories(block.getParent());
+        Files.move(staged.temp, block, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void retainBlock(String blockId) {
+        if(blockId != null) {
+            blockRefCounts.merge(blockId, 1, Integer::sum);
+        }
+    }
+
+    private void releaseBlock(String blockId) {
+        if(blockId == null) {
+            return;
+        }
+        Integer remaining = blockRefCounts.computeIfPresent(blockId, (id, count) -> count > 1 ? count - 1 : null);
+        if(remaining == null) {
+            try {
+                Files.deleteIfExists(blockPath(blockId));
+            } catch(IOException e) {
+                LOGGER.warning("Failed to delete snapshot block " + blockId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes blocks and staged copies left behind by a crash before their diff entry was journaled.
+     */
+    private void removeOrphanBlocks() throws IOException {
+        List<Path> blocks;
+        try(Stream<Path> walk = Files.walk(blockDir)) {
+            blocks = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for(Path block : blocks) {
+            if(!blockRefCounts.containsKey(block.getFileName().toString())) {
+                Files.deleteIfExists(block);
+            }
+        }
+    }
+
+    private Path blockPath(String blockId) {
+        return blockDir.resolve(blockId.substring(0, 2)).resolve(blockId);
+    }
+
+    private static String hashFile(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try(InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private String relativize(Path path) {
+        return storageRoot.relativize(path).toString().replace("\\", "/");
+    }
+
+    private static String normalize(String path) {
+        return path.replace("\\", "/").replaceAll("^/+", "").replaceAll("/+$", "");
+    }
+
+    // Log records
+
+    private void apply(byte[] record) {
+        try(DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte op = dis.readByte();
+            String root = readString(dis);
+            String snapshotId = readString(dis);
+            switch(op) {
+                case OP_CREATE -> {
+                    String name = readString(dis);
+                    Instant createdAt = Instant.ofEpochSecond(dis.readLong(), dis.readInt());
+                    applyCreate(new Snapshot(snapshotId, name, root, createdAt));
+                }
+                case OP_DELETE -> applyDelete(root, snapshotId);
+                case OP_DIFF -> {
+                    DiffEntry entry = new DiffEntry(readString(dis), EntryKind.values()[dis.readByte()],
+                            readString(dis), dis.readLong(), dis.readLong());
+                    SnapshotState state = findState(root, snapshotId);
+                    if(state != null) {
+                        applyDiff(state, entry);
+                    }
+                }
+                default -> throw new IOException("Unknown snapshot log op: " + op);
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void applyCreate(Snapshot snapshot) {
+        if(findState(snapshot.getRoot(), snapshot.getSnapshotId()) == null) {
+            snapshotsByRoot.computeIfAbsent(snapshot.getRoot(), k -> new ArrayList<>()).add(new SnapshotState(snapshot));
+        }
+    }
+
+    private void applyDiff(SnapshotState state, DiffEntry entry) {
+        if(state.diff.putIfAbsent(entry.path, entry) == null) {
+            retainBlock(entry.blockId);
+        }
+    }
+
+    private void applyDelete(String root, String snapshotId) {
+        List<SnapshotState> states = snapshotsByRoot.get(root);
+        SnapshotState state = findState(root, snapshotId);
+        if(state == null) {
+            return;
+        }
+        int index = states.indexOf(state);
+        SnapshotState previous = index > 0 ? states.get(index - 1) : null;
+
+        for(DiffEntry entry : state.diff.values()) {
+            if(previous != null && !previous.diff.containsKey(entry.path)) {
+                previous.diff.put(entry.path, entry);
+            } else {
+                releaseBlock(entry.blockId);
+            }
+        }
+        states.remove(index);
+        if(states.isEmpty()) {
+            snapshotsByRoot.remove(root);
+        }
+    }
+
+    private void maybeCompact() throws IOException {
+        if(log.getRecordCount() < COMPACTION_THRESHOLD) {
+            return;
+        }
+        List<byte[]> records = new ArrayList<>();
+        for(List<SnapshotState> states : snapshotsByRoot.values()) {
+            for(SnapshotState state : states) {
+                records.add(encodeCreate(state.snapshot));
+                for(DiffEntry entry : state.diff.values()) {
+                    records.add(encodeDiff(state.snapshot.getRoot(), state.snapshot.getSnapshotId(), entry));
+                }
+            }
+        }
+        AppendOnlyLog.writeCheckpoint(checkpointFile, records);
+        log.truncate();
+        LOGGER.info("Compacted snapshot log into checkpoint with " + records.size() + " records");
+    }
+
+    private static byte[] encodeCreate(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(OP_CREATE);
+        writeString(dos, snapshot.getRoot());
+        writeString(dos, snapshot.getSnapshotId());
+        writeString(dos, snapshot.getName());
+        dos.writeLong(snapshot.getCreatedAt().getEpochSecond());
+        dos.writeInt(snapshot.getCreatedAt().getNano());
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static byte[] encodeDelete(String root, String snapshotId) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(OP_DELETE);
+        writeString(dos, root);
+        writeString(dos, snapshotId);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static byte[] encodeDiff(String root, String snapshotId, DiffEntry entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(OP_DIFF);
+        writeString(dos, root);
+        writeString(dos, snapshotId);
+        writeString(dos, entry.path);
+        dos.writeByte(entry.kind.ordinal());
+        writeString(dos, entry.blockId);
+        dos.writeLong(entry.size);
+        dos.writeLong(entry.lastModified);
+        dos.flush();
+        return bos.toByteArray();
+    }
+}
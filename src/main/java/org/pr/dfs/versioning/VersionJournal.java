@@ -0,0 +1,126 @@
+package org.pr.dfs.versioning;
+
+import org.pr.dfs.model.Version;
+import org.pr.dfs.utils.AppendOnlyLog;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.pr.dfs.utils.RecordStrings.readString;
+import static org.pr.dfs.utils.RecordStrings.writeString;
+
+/**
+ * Durable record of version metadata changes.
+ * The journal holds ADD/REMOVE entries appended since the last snapshot; the snapshot holds
+ * one ADD entry per live version. Loading reads the snapshot and then replays the journal.
+ */
+public class VersionJournal implements Closeable {
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final Path snapshotFile;
+    private final AppendOnlyLog log;
+
+    public VersionJournal(Path journalFile, Path snapshotFile) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.log = new AppendOnlyLog(journalFile);
+    }
+
+    public void appendAdd(Version version) throws IOException {
+        log.append(encodeAdd(version));
+    }
+
+    public void appendRemove(String filePath, String versionId) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(OP_REMOVE);
+        writeString(dos, filePath);
+        writeString(dos, versionId);
+        dos.flush();
+        log.append(bos.toByteArray());
+    }
+
+    public long getJournalSize() {
+        return log.getRecordCount();
+    }
+
+    /**
+     * Loads the snapshot (if any) followed by every journal entry, in order.
+     */
+    public void load(Consumer<Version> onAdd, RemoveHandler onRemove) throws IOException {
+        AppendOnlyLog.readCheckpoint(snapshotFile, record -> apply(record, onAdd, onRemove));
+        log.replay(record -> apply(record, onAdd, onRemove));
+    }
+
+    /**
+     * Writes every live version to a new snapshot and clears the journal.
+     * Callers must prevent concurrent appends while this runs.
+     */
+    public void compact(Collection<Version> liveVersions) throws IOException {
+        List<byte[]> records = new ArrayList<>(liveVersions.size());
+        for(Version version : liveVersions) {
+            records.add(encodeAdd(version));
+        }
+        AppendOnlyLog.writeCheckpoint(snapshotFile, records);
+        log.truncate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    @FunctionalInterface
+    public interface RemoveHandler {
+        void onRemove(String filePath, String versionId);
+    }
+
+    private static void apply(byte[] record, Consumer<Version> onAdd, RemoveHandler onRemove) {
+        try(DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte op = dis.readByte();
+            if(op == OP_ADD) {
+                onAdd.accept(decodeVersion(dis));
+            } else if(op == OP_REMOVE) {
+                onRemove.onRemove(readString(dis), readString(dis));
+            } else {
+                throw new UncheckedIOException(new IOException("Unknown version journal op: " + op));
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encodeAdd(Version version) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(OP_ADD);
+        writeString(dos, version.getVersionId());
+        writeString(dos, version.getFileName());
+        writeString(dos, version.getFilePath());
+        dos.writeLong(version.getSize());
+        writeString(dos, version.getChecksum());
+        dos.writeLong(version.getCreatedAt().getEpochSecond());
+        dos.writeInt(version.getCreatedAt().getNano());
+        writeString(dos, version.getCreator());
+        writeString(dos, version.getComment());
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static Version decodeVersion(DataInputStream dis) throws IOException {
+        String versionId = readString(dis);
+        String fileName = readString(dis);
+        String filePath = readString(dis);
+        long size = dis.readLong();
+        String checksum = readString(dis);
+        Instant createdAt = Instant.ofEpochSecond(dis.readLong(), dis.readInt());
+        String creator = readString(dis);
+        String comment = readString(dis);
+        return new Version(versionId, fileName, filePath, size, checksum, createdAt, creator, comment);
+    }
+}
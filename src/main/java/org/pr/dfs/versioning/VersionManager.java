@@ -2,6 +2,7 @@ package org.pr.dfs.versioning;
 
 import org.pr.dfs.model.Version;
 import org.pr.dfs.utils.FileUtils;
+import org.pr.dfs.utils.PathDictionary;
 
 import java.io.*;
 import java.nio.file.Files;
@@ -18,48 +19,87 @@ import java.util.logging.Logger;
 public class VersionManager {
     private static final Logger LOGGER = Logger.getLogger(VersionManager.class.getName());
     private static final String VERSION_DIR = ".versions";
-    private static final String VERSION_DB = "versions.db";
+    private static final String VERSION_DB = "versions.db"; // legacy serialized map, migrated on load
+    private static final String VERSION_JOURNAL = "versions.journal";
+    private static final String VERSION_SNAPSHOT = "versions.snapshot";
     private static final int MAX_VERSIONS = 10; // Maximum versions to keep per file
+    private static final int COMPACTION_THRESHOLD = 1000; // Journal entries before writing a new snapshot
 
     private final String storagePath;
     private final Path versionDir;
     private final Path versionDbFile;
-    private final ConcurrentHashMap<String, List<Version>> versionCache;
+    private final ConcurrentHashMap<Integer, List<Version>> versionCache; // By path id in PathDictionary.shared()
+    private final PathDictionary paths = PathDictionary.shared();
+    private final VersionJournal journal;
 
     public VersionManager(String storagePath) {
         this.storagePath = storagePath;
         this.versionDir = Paths.get(storagePath, VERSION_DIR);
         this.versionDbFile = versionDir.resolve(VERSION_DB);
         this.versionCache = new ConcurrentHashMap<>();
-        initializeVersionDirectory();
+        this.journal = initializeVersionDirectory();
         loadVersions();
     }
 
-    private void initializeVersionDirectory() {
+    private VersionJournal initializeVersionDirectory() {
         try {
             Files.createDirectories(versionDir);
-            if(!Files.exists(versionDbFile)) {
-                Files.createFile(versionDbFile);
-            }
+            VersionJournal versionJournal = new VersionJournal(
+                    versionDir.resolve(VERSION_JOURNAL), versionDir.resolve(VERSION_SNAPSHOT));
             LOGGER.info("Version directory initiated at: " + versionDir);
+            return versionJournal;
         } catch (IOException e) {
             LOGGER.severe("Failed to initialize version directory: " + e.getMessage());
             throw new RuntimeException("Version directory initialization failed", e);
         }
     }
 
-    public void loadVersions() {
+    /**
+     * Rebuilds the cache from the snapshot and journal. A torn journal tail is already cut back to the last
+     * complete record by the log; anything else unreadable fails startup, since carrying on with part of the
+     * history would have the next compaction write that part out as the whole.
+     */
+    public synchronized void loadVersions() {
+        clearCache();
         try {
-            if(Files.exists(versionDbFile) && Files.size(versionDbFile) > 0) {
+            journal.load(this::applyAdd, this::applyRemove);
+            LOGGER.info("Loaded " + versionCache.size() + " version entries from disk (" +
+                    journal.getJournalSize() + " journal records replayed)");
+        } catch(IOException | UncheckedIOException e) {
+            clearCache();
+            LOGGER.severe("Could not load versions from disk: " + e.getMessage());
+            throw new RuntimeException("Version metadata could not be loaded from " + versionDir, e);
+        }
+        migrateLegacyVersionDb();
+    }
+
+    private void clearCache() {
+        versionCache.keySet().forEach(paths::release);
+        versionCache.clear();
+    }
+
+    /**
+     * Imports a versions.db written by older releases, then folds it into a snapshot and removes it.
+     * The legacy file is only removed once the snapshot holding its versions is on disk; if anything fails
+     * it stays and the import is retried on the next start.
+     */
+    private void migrateLegacyVersionDb() {
+        try {
+            if(!Files.exists(versionDbFile)) {
+                return;
+            }
+            if(Files.size(versionDbFile) > 0) {
                 try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(versionDbFile.toFile()))) {
                     @SuppressWarnings("unchecked")
                     ConcurrentHashMap<String, List<Version>> loaded = (ConcurrentHashMap<String, List<Version>>) ois.readObject();
-                    versionCache.putAll(loaded);
-                    LOGGER.info("Loaded " + versionCache.size() + " version entries from disk");
+                    loaded.values().forEach(versions -> versions.forEach(this::applyAdd));
+                    LOGGER.info("Migrating " + loaded.size() + " version entries from legacy " + VERSION_DB);
                 }
             }
+            saveVersions();
+            Files.delete(versionDbFile);
         } catch(Exception e) {
-            LOGGER.warning("Could not load versions from disk: " + e.getMessage());
+            LOGGER.warning("Could not migrate legacy version db: " + e.getMessage());
         }
     }
 
@@ -92,29 +132,30 @@ public class VersionManager {
                 comment
         );
 
-        // Update version cache
+        // Update version cache and journal the change
         updateVersionCache(filePath, version);
 
-        // Save to disk
-        saveVersions();
-
         LOGGER.info("Created new version " + versionId + " for file: " + filePath);
         return version;
     }
 
-    public void saveVersions() {
-        try(ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(versionDbFile.toFile()))){
-            oos.writeObject(versionCache);
-            LOGGER.info("Saved versions to disk");
-        } catch(Exception e) {
-            LOGGER.severe("Failed to save versions to disk: " + e.getMessage());
-        }
+    /**
+     * Writes a compacted snapshot of all versions and truncates the journal.
+     * @throws IOException if the snapshot could not be written, the journal is then left as it was
+     */
+    public synchronized void saveVersions() throws IOException {
+        List<Version> liveVersions = new ArrayList<>();
+        versionCache.values().forEach(liveVersions::addAll);
+        journal.compact(liveVersions);
+        LOGGER.info("Saved version snapshot with " + liveVersions.size() + " versions");
     }
 
-    public List<Version> getVersions(String filePath) {
+    // Synchronized like the updates: the id found could otherwise be released and reused for another path
+    // before the cache lookup, and the list is copied while no update changes it
+    public synchronized List<Version> getVersions(String filePath) {
         filePath = filePath.replaceAll("^/+","");
 
-        List<Version> versions = versionCache.get(filePath);
+        List<Version> versions = cachedVersions(filePath);
         LOGGER.info("Retrieving versions for " + filePath + ": found " +
                 (versions!=null ? versions.size() : 0) + " versions");
         return versions != null ? new ArrayList<>(versions) : new ArrayList<>();
@@ -136,19 +177,74 @@ public class VersionManager {
         LOGGER.info("Restored version " + versionId + " for file: " + filePath);
     }
 
-    private synchronized void updateVersionCache(String filePath, Version version) {
-        List<Version> versions = versionCache.computeIfAbsent(filePath, k -> new ArrayList<>());
+    private synchronized void updateVersionCache(String filePath, Version version) throws IOException {
+        journal.appendAdd(version);
+        Version oldVersion = addToCache(version);
+
+        // Keep only MAX_VERSIONS versions
+        if(oldVersion != null) {
+            journal.appendRemove(filePath, oldVersion.getVersionId());
+            deleteOldVersion(filePath, oldVersion.getVersionId());
+        }
+
+        if(journal.getJournalSize() >= COMPACTION_THRESHOLD) {
+            try {
+                saveVersions();
+            } catch(IOException e) {
+                // The journal still holds every change, compaction is tried again on the next update
+                LOGGER.warning("Failed to compact version journal: " + e.getMessage());
+            }
+        }
+        LOGGER.info("Updated version cache for " + filePath + ". Total versions: " + cachedVersions(filePath).size());
+    }
+
+    /**
+     * Adds a version to the cache and evicts the oldest one past MAX_VERSIONS.
+     * @return the evicted version, or null
+     */
+    private Version addToCache(Version version) {
+        int pathId = paths.intern(version.getFilePath());
+        List<Version> versions = versionCache.get(pathId);
+        if(versions == null) {
+            versions = new ArrayList<>();
+            versionCache.put(pathId, versions);
+        } else {
+            paths.release(pathId);
+        }
+        if(versions.contains(version)) {
+            return null;
+        }
         versions.add(version);
 
         // Sort versions by creation time, most recent first
         versions.sort((v1,v2) -> v2.getCreatedAt().compareTo(v1.getCreatedAt()));
 
-        // Keep only MAX_VERSIONS versions
-        if(versions.size() > MAX_VERSIONS) {
-            Version oldVersion = versions.remove(versions.size()-1);
-            deleteOldVersion(filePath, oldVersion.getVersionId());
+        return versions.size() > MAX_VERSIONS ? versions.remove(versions.size()-1) : null;
+    }
+
+    private void applyAdd(Version version) {
+        Version oldVersion = addToCache(version);
+        // A crash between the ADD and REMOVE records leaves an extra version behind; trim it here
+        if(oldVersion != null) {
+            deleteOldVersion(oldVersion.getFilePath(), oldVersion.getVersionId());
+        }
+    }
+
+    private void applyRemove(String filePath, String versionId) {
+        int pathId = paths.find(filePath);
+        List<Version> versions = pathId != PathDictionary.NO_ID ? versionCache.get(pathId) : null;
+        if(versions != null) {
+            versions.removeIf(v -> v.getVersionId().equals(versionId));
+            if(versions.isEmpty()) {
+                versionCache.remove(pathId);
+                paths.release(pathId);
+            }
         }
-        LOGGER.info("Updated version cache for " + filePath + ". Total versions: " + versions.size());
+    }
+
+    private List<Version> cachedVersions(String filePath) {
+        int pathId = paths.find(filePath);
+        return pathId != PathDictionary.NO_ID ? versionCache.get(pathId) : null;
     }
 
     private void deleteOldVersion(String filePath, String versionId) {
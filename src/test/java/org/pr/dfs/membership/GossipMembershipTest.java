@@ -0,0 +1,163 @@
+package org.pr.dfs.membership;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs real members over loopback UDP. A "ghost" is a plain socket speaking the wire format, standing in for
+ * a member that stops answering or spreads rumours.
+ */
+public class GossipMembershipTest {
+
+    private final List<GossipMembership> started = new ArrayList<>();
+    private final List<DatagramSocket> ghosts = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        started.forEach(GossipMembership::close);
+        ghosts.forEach(DatagramSocket::close);
+    }
+
+    private GossipMembership start(String id, GossipMembership... seeds) throws IOException {
+        List<String> seedAddresses = new ArrayList<>();
+        for(GossipMembership seed : seeds) {
+            seedAddresses.add("localhost:" + seed.getLocalMember().getGossipPort());
+        }
+        GossipMembership membership = new GossipMembership(id, "localhost", 8000, freePort(),
+                Member.Role.STORAGE, seedAddresses);
+        membership.start();
+        started.add(membership);
+        return membership;
+    }
+
+    private DatagramSocket ghost() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0);
+        ghosts.add(socket);
+        return socket;
+    }
+
+    private static int freePort() throws IOException {
+        try(DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void send(DatagramSocket from, GossipMembership to, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        from.send(new DatagramPacket(bytes, bytes.length,
+                new InetSocketAddress("localhost", to.getLocalMember().getGossipPort())));
+    }
+
+    private static Member.State stateOf(GossipMembership view, String id) {
+        for(Member member : view.getMembers()) {
+            if(member.getId().equals(id)) {
+                return member.getState();
+            }
+        }
+        return null;
+    }
+
+    private static void await(String what, long timeoutMs, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + what);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void membersConvergeThroughSeed() throws Exception {
+        GossipMembership a = start("a");
+        GossipMembership b = start("b", a);
+        GossipMembership c = start("c", a);
+
+        await("every member sees all three alive", 10000, () -> {
+            for(GossipMembership view : List.of(a, b, c)) {
+                for(String id : List.of("a", "b", "c")) {
+                    if(stateOf(view, id) != Member.State.ALIVE) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        });
+    }
+
+    @Test
+    public void silentMemberIsSuspectedThenDeclaredDead() throws Exception {
+        GossipMembership a = start("a");
+        List<Member.State> seen = new CopyOnWriteArrayList<>();
+        a.addListener(member -> {
+            if(member.getId().equals("ghost")) {
+                seen.add(member.getState());
+            }
+        });
+
+        DatagramSocket ghost = ghost();
+        send(ghost, a, "JOIN 0 ghost\nghost localhost 8000 " + ghost.getLocalPort() + " STORAGE 0 ALIVE\n");
+
+        await("the ghost is declared dead", 15000, () -> stateOf(a, "ghost") == Member.State.DEAD);
+        assertEquals(List.of(Member.State.ALIVE, Member.State.SUSPECT, Member.State.DEAD), seen);
+    }
+
+    @Test
+    public void suspectedMemberRefutesWithHigherIncarnation() throws Exception {
+        GossipMembership a = start("a");
+        long incarnation = a.getLocalMember().getIncarnation();
+
+        DatagramSocket ghost = ghost();
+        send(ghost, a, "SYNC 0 ghost\na localhost 8000 " + a.getLocalMember().getGossipPort() +
+                " STORAGE " + incarnation + " SUSPECT\n");
+
+        await("a refutes the suspicion", 5000, () -> a.getLocalMember().getIncarnation() > incarnation);
+        assertEquals(Member.State.ALIVE, a.getLocalMember().getState());
+    }
+
+    @Test
+    public void staleRumourDoesNotOverrideRefutation() throws Exception {
+        GossipMembership a = start("a");
+        GossipMembership b = start("b", a);
+        await("a knows b", 10000, () -> stateOf(a, "b") == Member.State.ALIVE);
+
+        DatagramSocket ghost = ghost();
+        send(ghost, b, "SYNC 0 ghost\nb localhost 8000 " + b.getLocalMember().getGossipPort() + " STORAGE 0 SUSPECT\n");
+        await("b refutes", 5000, () -> b.getLocalMember().getIncarnation() == 1);
+
+        await("a learns the new incarnation", 10000, () -> {
+            for(Member member : a.getMembers()) {
+                if(member.getId().equals("b")) {
+                    return member.getIncarnation() == 1 && member.getState() == Member.State.ALIVE;
+                }
+            }
+            return false;
+        });
+        send(ghost, a, "SYNC 0 ghost\nb localhost 8000 " + b.getLocalMember().getGossipPort() + " STORAGE 0 DEAD\n");
+        Thread.sleep(300);
+        assertEquals(Member.State.ALIVE, stateOf(a, "b"));
+    }
+
+    @Test
+    public void leavingMemberIsSeenAsLeft() throws Exception {
+        GossipMembership a = start("a");
+        GossipMembership b = start("b", a);
+        await("a knows b", 10000, () -> stateOf(a, "b") == Member.State.ALIVE);
+
+        b.close();
+
+        await("a sees b leave", 5000, () -> stateOf(a, "b") == Member.State.LEFT);
+    }
+}
@@ -0,0 +1,42 @@
+package org.pr.dfs.membership;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MemberTest {
+
+    private static Member member(long incarnation, Member.State state) {
+        return new Member("node1", "localhost", 8091, 9091, Member.Role.STORAGE, incarnation, state);
+    }
+
+    @Test
+    public void anyUpdateOverridesUnknownMember() {
+        assertTrue(member(0, Member.State.ALIVE).overrides(null));
+    }
+
+    @Test
+    public void strongerStateWinsWithinIncarnation() {
+        assertTrue(member(3, Member.State.SUSPECT).overrides(member(3, Member.State.ALIVE)));
+        assertTrue(member(3, Member.State.DEAD).overrides(member(3, Member.State.SUSPECT)));
+        assertTrue(member(3, Member.State.LEFT).overrides(member(3, Member.State.ALIVE)));
+        assertFalse(member(3, Member.State.ALIVE).overrides(member(3, Member.State.SUSPECT)));
+        assertFalse(member(3, Member.State.SUSPECT).overrides(member(3, Member.State.DEAD)));
+        assertFalse(member(3, Member.State.SUSPECT).overrides(member(3, Member.State.SUSPECT)));
+    }
+
+    @Test
+    public void higherIncarnationRefutesSuspicionAndDeath() {
+        assertTrue(member(4, Member.State.ALIVE).overrides(member(3, Member.State.SUSPECT)));
+        assertTrue(member(4, Member.State.ALIVE).overrides(member(3, Member.State.DEAD)));
+        assertFalse(member(2, Member.State.DEAD).overrides(member(3, Member.State.ALIVE)));
+    }
+
+    @Test
+    public void onlyAliveAndSuspectAreReachable() {
+        assertTrue(member(0, Member.State.ALIVE).isReachable());
+        assertTrue(member(0, Member.State.SUSPECT).isReachable());
+        assertFalse(member(0, Member.State.DEAD).isReachable());
+        assertFalse(member(0, Member.State.LEFT).isReachable());
+    }
+}
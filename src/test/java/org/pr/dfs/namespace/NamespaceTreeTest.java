@@ -0,0 +1,175 @@
+package org.pr.dfs.namespace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class NamespaceTreeTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path storage;
+    private NamespaceTree tree;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = temp.newFolder("storage").toPath();
+        tree = new NamespaceTree(storage.toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    private NamespaceTree reopen() throws IOException {
+        tree.close();
+        tree = new NamespaceTree(storage.toString());
+        return tree;
+    }
+
+    private Path editLog() {
+        return storage.resolve(".namespace/edits.log");
+    }
+
+    @Test
+    public void replaysEditLogAfterRestart() throws IOException {
+        assertTrue(tree.mkdirs("users/alice/docs"));
+        assertTrue(tree.addFile("users/alice/docs/a.txt", 10));
+        assertTrue(tree.addFile("users/alice/docs/b.txt", 20));
+        assertTrue(tree.addReplica("users/alice/docs/a.txt", "node-1"));
+        assertTrue(tree.addReplica("users/alice/docs/a.txt", "node-2"));
+        assertTrue(tree.rename("users/alice/docs/b.txt", "users/alice/moved/b.txt"));
+        assertTrue(tree.delete("users/alice/docs/a.txt"));
+        assertTrue(tree.addFile("users/alice/docs/c.txt", 30));
+        assertTrue(tree.addReplica("users/alice/docs/c.txt", "node-3"));
+
+        reopen();
+
+        assertFalse(tree.exists("users/alice/docs/a.txt"));
+        assertEquals(20, tree.getEntry("users/alice/moved/b.txt").getSize());
+        assertEquals(Set.of("node-3"), tree.getReplicaLocations("users/alice/docs/c.txt"));
+        assertEquals(0, tree.countFilesOnNode("node-1"));
+        assertEquals(2, tree.getFileCount());
+        assertTrue(tree.isDirectory("users/alice/moved"));
+    }
+
+    @Test
+    public void checkpointCapturesTreeAndTruncatesLog() throws IOException {
+        tree.addFile("users/bob/one.txt", 1);
+        tree.addReplica("users/bob/one.txt", "node-1");
+        tree.saveNamespace();
+        assertEquals(0, Files.size(editLog()));
+
+        tree.addFile("users/bob/two.txt", 2);
+        tree.removeReplica("users/bob/one.txt", "node-1");
+
+        reopen();
+
+        assertEquals(1, tree.getEntry("users/bob/one.txt").getSize());
+        assertEquals(2, tree.getEntry("users/bob/two.txt").getSize());
+        assertTrue(tree.getReplicaLocations("users/bob/one.txt").isEmpty());
+    }
+
+    @Test
+    public void skipsEditsAlreadyInCheckpoint() throws IOException {
+        tree.addFile("users/carol/a.txt", 1);
+        tree.delete("users/carol/a.txt");
+        tree.addFile("users/carol/a.txt", 5);
+        Path savedLog = temp.getRoot().toPath().resolve("edits.copy");
+        Files.copy(editLog(), savedLog);
+        tree.saveNamespace();
+        tree.close();
+
+        // As if the process died after writing the image but before truncating the log
+        Files.copy(savedLog, editLog(), StandardCopyOption.REPLACE_EXISTING);
+        tree = new NamespaceTree(storage.toString());
+
+        assertEquals(5, tree.getEntry("users/carol/a.txt").getSize());
+        assertEquals(1, tree.getFileCount());
+    }
+
+    @Test
+    public void discardsTornTailOfEditLog() throws IOException {
+        tree.addFile("users/dave/a.txt", 1);
+        tree.addFile("users/dave/b.txt", 2);
+        tree.close();
+
+        Files.write(editLog(), new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        tree = new NamespaceTree(storage.toString());
+
+        assertEquals(2, tree.getFileCount());
+        assertTrue(tree.addFile("users/dave/c.txt", 3));
+        assertEquals(3, reopen().getFileCount());
+    }
+
+    @Test
+    public void concurrentMutationsAreAllDurable() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for(int i = 0; i < 200; i++) {
+                String path = "users/erin/dir" + (i % 10) + "/file" + i;
+                results.add(executor.submit(() -> tree.addFile(path, 7) && tree.addReplica(path, "node-1")));
+            }
+            for(Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        reopen();
+
+        assertEquals(200, tree.getFileCount());
+        assertEquals(200, tree.countFilesOnNode("node-1"));
+    }
+
+    @Test
+    public void fullReportReplacesReplicasOfNode() throws IOException {
+        tree.addFile("users/frank/a", 1);
+        tree.addFile("users/frank/b", 2);
+        tree.addReplica("users/frank/a", "node-1");
+
+        NamespaceTree.ReplicaChanges changes = tree.applyFullReport("node-1",
+                Map.of("users/frank/b", 2L, "users/frank/unknown", 4L));
+
+        assertEquals(List.of("users/frank/b"), changes.getAdded());
+        assertEquals(List.of("users/frank/a"), changes.getRemoved());
+        assertEquals(1, changes.getUnknown());
+        assertEquals(Set.of("users/frank/b"), reopen().getFilesOnNode("node-1"));
+    }
+
+    @Test
+    public void bootstrapsFromStorageOnFirstStart() throws IOException {
+        Path other = temp.newFolder("seeded").toPath();
+        Files.createDirectories(other.resolve("users/gina/photos"));
+        Files.write(other.resolve("users/gina/photos/p.jpg"), new byte[12]);
+        Files.createDirectories(other.resolve(".versions"));
+        Files.write(other.resolve(".versions/ignored"), new byte[3]);
+
+        try(NamespaceTree seeded = new NamespaceTree(other.toString())) {
+            assertEquals(12, seeded.getEntry("users/gina/photos/p.jpg").getSize());
+            assertEquals(1, seeded.getFileCount());
+            assertFalse(seeded.exists(".versions"));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.pr.dfs.replication;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pr.dfs.membership.Member;
+import org.pr.dfs.model.Node;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class NodeManagerTest {
+
+    private NodeManager nodeManager;
+    private final List<String> failures = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        nodeManager = new NodeManager();
+        nodeManager.addNodeStatusListener(failures::add);
+
+        Node node = new Node("localhost", 8091);
+        node.setNodeId("node1");
+        nodeManager.registerNode(node);
+        nodeManager.recordHeartbeat("node1", 3000);
+    }
+
+    private static Member gossip(String id, long incarnation, Member.State state) {
+        return new Member(id, "localhost", 8091, 9091, Member.Role.STORAGE, incarnation, state);
+    }
+
+    @Test
+    public void gossipedDeathOnlySuspectsUntilFailureDetectorAgrees() {
+        nodeManager.onMemberUpdate(gossip("node1", 0, Member.State.DEAD));
+
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, nodeManager.getNodeState("node1"));
+        assertFalse(nodeManager.isNodeHealthy("node1"));
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void gossipedSuspicionTakesNodeOutOfPlacement() {
+        nodeManager.onMemberUpdate(gossip("node1", 0, Member.State.SUSPECT));
+
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, nodeManager.getNodeState("node1"));
+        assertTrue(nodeManager.getHealthyNodes().isEmpty());
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void leavingNodeIsDeadAtOnce() {
+        nodeManager.onMemberUpdate(gossip("node1", 0, Member.State.LEFT));
+        nodeManager.evaluateNodeStates();
+
+        assertEquals(PhiAccrualFailureDetector.State.DEAD, nodeManager.getNodeState("node1"));
+        assertEquals(List.of("node1"), failures);
+    }
+
+    @Test
+    public void refutationRestoresHealth() {
+        nodeManager.onMemberUpdate(gossip("node1", 0, Member.State.DEAD));
+        nodeManager.onMemberUpdate(gossip("node1", 1, Member.State.ALIVE));
+
+        assertEquals(PhiAccrualFailureDetector.State.ALIVE, nodeManager.getNodeState("node1"));
+        assertTrue(nodeManager.isNodeHealthy("node1"));
+    }
+
+    @Test
+    public void joiningStorageNodesAreRegistered() {
+        nodeManager.onMemberUpdate(gossip("node2", 0, Member.State.ALIVE));
+        nodeManager.onMemberUpdate(new Member("coordinator", "localhost", 8080, 7946,
+                Member.Role.COORDINATOR, 0, Member.State.ALIVE));
+
+        assertNotNull(nodeManager.getNodeById("node2"));
+        assertNull(nodeManager.getNodeById("coordinator"));
+        assertEquals(PhiAccrualFailureDetector.State.ALIVE, nodeManager.getNodeState("node2"));
+    }
+}
@@ -0,0 +1,80 @@
+package org.pr.dfs.replication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PhiAccrualFailureDetectorTest {
+
+    private final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector();
+
+    private long beat(String nodeId, long intervalMs, int count, long startMs) {
+        long now = startMs;
+        for(int i = 0; i < count; i++) {
+            detector.heartbeat(nodeId, intervalMs, now);
+            now += intervalMs;
+        }
+        return now - intervalMs;
+    }
+
+    @Test
+    public void untrackedNodeIsAlive() {
+        assertEquals(PhiAccrualFailureDetector.State.ALIVE, detector.getState("node1", 1000));
+        assertEquals(0.0, detector.phi("node1", 1000), 0.0);
+    }
+
+    @Test
+    public void regularHeartbeatsKeepNodeAlive() {
+        long last = beat("node1", 3000, 20, 0);
+        assertEquals(PhiAccrualFailureDetector.State.ALIVE, detector.getState("node1", last + 3000));
+    }
+
+    @Test
+    public void stoppedNodeIsSuspectedThenDeclaredDead() {
+        long last = beat("node1", 3000, 20, 0);
+
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, detector.getState("node1", last + 10000));
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, detector.getState("node1", last + 20000));
+        assertEquals(PhiAccrualFailureDetector.State.DEAD, detector.getState("node1", last + 40000));
+    }
+
+    @Test
+    public void nodesAreJudgedAgainstTheirOwnRhythm() {
+        long fastLast = beat("fast", 3000, 20, 0);
+        long slowLast = beat("slow", 30000, 20, 0);
+
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, detector.getState("fast", fastLast + 15000));
+        assertEquals(PhiAccrualFailureDetector.State.ALIVE, detector.getState("slow", slowLast + 15000));
+    }
+
+    @Test
+    public void expectedNodeThatStaysSilentIsDeclaredDead() {
+        detector.expect("node1", 30000, 0);
+
+        assertTrue(detector.isTracked("node1"));
+        assertEquals(PhiAccrualFailureDetector.State.ALIVE, detector.getState("node1", 30000));
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, detector.getState("node1", 70000));
+        assertEquals(PhiAccrualFailureDetector.State.DEAD, detector.getState("node1", 100000));
+    }
+
+    @Test
+    public void firstHeartbeatReplacesAssumedRhythm() {
+        detector.expect("node1", 30000, 0);
+        long last = beat("node1", 3000, 20, 1000);
+
+        assertEquals(PhiAccrualFailureDetector.State.SUSPECT, detector.getState("node1", last + 15000));
+    }
+
+    @Test
+    public void expectDoesNotResetHeardNode() {
+        long last = beat("node1", 3000, 20, 0);
+        detector.expect("node1", 3000, last + 40000);
+
+        assertEquals(PhiAccrualFailureDetector.State.DEAD, detector.getState("node1", last + 40000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDeadThresholdBelowSuspectThreshold() {
+        new PhiAccrualFailureDetector(8.0, 5.0, 500, 0);
+    }
+}
@@ -0,0 +1,169 @@
+package org.pr.dfs.replication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pr.dfs.model.Node;
+import org.pr.dfs.namespace.NamespaceTree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ReplicationWorkQueueTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path queueDir;
+    private NamespaceTree tree;
+    private NodeManager nodeManager;
+    private ReplicationManager replicationManager;
+    private ReplicationWorkQueue queue;
+    private final List<String> copies = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        queueDir = temp.newFolder("queue").toPath();
+        tree = new NamespaceTree(temp.newFolder("storage").toString());
+        nodeManager = new NodeManager();
+        for(String id : List.of("node1", "node2", "node3", "node4")) {
+            Node node = new Node("localhost", 8091);
+            node.setNodeId(id);
+            nodeManager.registerNode(node);
+            nodeManager.recordHeartbeat(id, 3000);
+        }
+        replicationManager = new ReplicationManager(3, nodeManager, tree);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if(queue != null) {
+            queue.close();
+        }
+        replicationManager.shutdown();
+        tree.close();
+    }
+
+    private void addFile(String path, String... nodeIds) throws IOException {
+        tree.addFile(path, 10);
+        for(String nodeId : nodeIds) {
+            tree.addReplica(path, nodeId);
+        }
+    }
+
+    private ReplicationWorkQueue open(ReplicaCopier copier, int maxConcurrentCopies, int maxCopiesPerNode) throws IOException {
+        queue = new ReplicationWorkQueue(queueDir, replicationManager, nodeManager, tree, (path, source, target) -> {
+            boolean copied = copier.copy(path, source, target);
+            if(copied) {
+                copies.add(path);
+            }
+            return copied;
+        }, maxConcurrentCopies, maxCopiesPerNode, Long.MAX_VALUE / 4);
+        return queue;
+    }
+
+    private static void await(String what, long timeoutMs, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void filesWithFewestLiveReplicasAreCopiedFirst() throws Exception {
+        addFile("users/a/two", "node1", "node2");
+        addFile("users/a/one-x", "node1");
+        addFile("users/a/one-y", "node2");
+        open((path, source, target) -> true, 1, 4);
+        queue.enqueueAll(List.of("users/a/two", "users/a/one-x", "users/a/one-y"));
+
+        queue.start();
+        await("every file has three replicas", 5000, () -> copies.size() == 5);
+
+        // Both single copies get a second before any file gets its third
+        assertEquals(List.of("users/a/one-x", "users/a/one-y"), copies.subList(0, 2).stream().sorted().toList());
+        for(String path : List.of("users/a/two", "users/a/one-x", "users/a/one-y")) {
+            assertEquals(3, tree.getReplicaLocations(path).size());
+        }
+        await("the queue drains", 5000, () -> (int) queue.getStatus().get("pendingFiles") == 0);
+    }
+
+    @Test
+    public void requestedFactorOverridesDefault() throws Exception {
+        addFile("users/b/file", "node1");
+        open((path, source, target) -> true, 2, 2);
+        queue.enqueue("users/b/file", 4);
+
+        queue.start();
+        await("the file reaches four replicas", 5000, () -> tree.getReplicaLocations("users/b/file").size() == 4);
+        await("the queue drains", 5000, () -> (int) queue.getStatus().get("pendingFiles") == 0);
+    }
+
+    @Test
+    public void failedCopyIsRetriedAfterBackoff() throws Exception {
+        addFile("users/c/file", "node1", "node2");
+        AtomicInteger attempts = new AtomicInteger();
+        open((path, source, target) -> attempts.incrementAndGet() > 1, 1, 2);
+        queue.enqueue("users/c/file");
+
+        queue.start();
+        await("the first attempt fails", 5000, () -> (long) queue.getStatus().get("failedCopies") == 1);
+        assertEquals(1, queue.getStatus().get("waitingForRetry"));
+        assertTrue(copies.isEmpty());
+
+        await("the retry succeeds", 10000, () -> copies.size() == 1);
+        assertEquals(3, tree.getReplicaLocations("users/c/file").size());
+    }
+
+    @Test
+    public void tasksWaitingOnBusySourceRunOnceItIsFree() throws Exception {
+        addFile("users/d/first", "node1");
+        addFile("users/d/second", "node1");
+        CountDownLatch release = new CountDownLatch(1);
+        open((path, source, target) -> release.await(5, TimeUnit.SECONDS), 4, 1);
+        queue.enqueueAll(List.of("users/d/first", "users/d/second"));
+
+        queue.start();
+        await("the second file waits for node1", 5000,
+                () -> (int) queue.getStatus().get("waitingForBusyNodes") == 1);
+        assertEquals(1, queue.getStatus().get("copiesInFlight"));
+
+        release.countDown();
+        await("both files have three replicas", 5000, () -> tree.getReplicaLocations("users/d/first").size() == 3 &&
+                tree.getReplicaLocations("users/d/second").size() == 3);
+        assertEquals(0, queue.getStatus().get("waitingForBusyNodes"));
+    }
+
+    @Test
+    public void queuedFilesSurviveRestart() throws Exception {
+        addFile("users/e/file", "node1");
+        open((path, source, target) -> true, 1, 2);
+        queue.enqueue("users/e/file", 2);
+        queue.enqueue("users/e/other");
+        queue.close();
+
+        open((path, source, target) -> true, 1, 2);
+        Map<String, Object> status = queue.getStatus();
+        assertEquals(2, status.get("pendingFiles"));
+
+        queue.start();
+        await("the file reaches its requested factor", 5000,
+                () -> tree.getReplicaLocations("users/e/file").size() == 2);
+        // The other path is not in the namespace, so it is dropped rather than retried
+        await("the queue drains", 5000, () -> (int) queue.getStatus().get("pendingFiles") == 0);
+    }
+}
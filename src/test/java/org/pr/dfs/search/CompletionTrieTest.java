@@ -0,0 +1,60 @@
+package org.pr.dfs.search;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompletionTrieTest {
+
+    @Test
+    public void completesFromEveryWordHeaviestFirst() {
+        CompletionTrie trie = new CompletionTrie(10);
+        trie.put("1", "quarterly_report.pdf", 5);
+        trie.put("2", "report-draft.txt", 9);
+        trie.put("3", "holiday.jpg", 50);
+
+        assertEquals(List.of("report-draft.txt", "quarterly_report.pdf"), trie.complete("rep", 10));
+        assertEquals(List.of("quarterly_report.pdf"), trie.complete("QUART", 10));
+        assertEquals(List.of(), trie.complete("x", 10));
+    }
+
+    @Test
+    public void sharedNamesSumTheirWeights() {
+        CompletionTrie trie = new CompletionTrie(10);
+        trie.put("1", "notes.txt", 3);
+        trie.put("2", "notes.txt", 3);
+        trie.put("3", "notebook.txt", 5);
+
+        assertEquals(List.of("notes.txt", "notebook.txt"), trie.complete("note", 10));
+        trie.remove("1");
+        assertEquals(List.of("notebook.txt", "notes.txt"), trie.complete("note", 10));
+    }
+
+    @Test
+    public void newNameEvictsTheLightestWhenFull() {
+        CompletionTrie trie = new CompletionTrie(2);
+        trie.put("1", "alpha.txt", 7);
+        trie.put("2", "beta.txt", 3);
+        trie.put("3", "gamma.txt", 0);
+
+        assertEquals(2, trie.size());
+        assertEquals(List.of("gamma.txt"), trie.complete("gam", 10));
+        assertEquals(List.of(), trie.complete("beta", 10));
+        assertEquals(List.of("alpha.txt"), trie.complete("al", 10));
+    }
+
+    @Test
+    public void renamePrunesTheOldKeys() {
+        CompletionTrie trie = new CompletionTrie(10);
+        trie.put("1", "old-name.txt", 1);
+        trie.put("1", "fresh.txt", 1);
+
+        assertEquals(1, trie.size());
+        assertEquals(List.of(), trie.complete("old", 10));
+        assertEquals(List.of("fresh.txt"), trie.complete("fre", 10));
+        trie.remove("1");
+        assertEquals(0, trie.nodeCount());
+    }
+}
@@ -0,0 +1,200 @@
+package org.pr.dfs.search;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path directory;
+    private SearchIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temp.newFolder("search").toPath();
+        index = new SearchIndex(directory, 1000, 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    private static IndexedFile file(String fileId, String userId, String fileName, String description) {
+        return new IndexedFile(fileId, userId, fileName, description, List.of());
+    }
+
+    private static List<String> ids(SearchIndex.Result result) {
+        List<String> ids = new ArrayList<>();
+        for(SearchIndex.Hit hit : result.getHits()) {
+            ids.add(hit.getFileId());
+        }
+        return ids;
+    }
+
+    private static SearchIndex.Hit last(SearchIndex.Result result) {
+        return result.getHits().get(result.getHits().size() - 1);
+    }
+
+    private List<String> segmentFiles() throws IOException {
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".seg"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void awaitMerged(int mergeFactor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while(System.currentTimeMillis() < deadline) {
+            Map<String, Object> stats = index.getStats();
+            if((Long) stats.get("merges") > 0 && (Integer) stats.get("segments") <= mergeFactor &&
+                    (Integer) stats.get("bufferedDocs") == 0) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail("Segments were not merged: " + index.getStats());
+    }
+
+    @Test
+    public void ranksNameMatchesAboveDescriptionMatches() throws IOException {
+        index.index(file("a", "u1", "notes.txt", "quarterly report draft"));
+        index.index(file("b", "u1", "report.pdf", ""));
+        index.index(file("c", "u1", "holiday.jpg", "beach"));
+
+        SearchIndex.Result result = index.search("u1", "report", 10);
+
+        assertEquals(2, result.getTotal());
+        assertEquals(List.of("b", "a"), ids(result));
+        assertTrue(result.getHits().get(0).getScore() > result.getHits().get(1).getScore());
+    }
+
+    @Test
+    public void requiresEveryTokenAndMatchesPrefixes() throws IOException {
+        index.index(file("a", "u1", "QuarterlyReport2024.pdf", ""));
+        index.index(file("b", "u1", "quarterly-plan.doc", ""));
+
+        assertEquals(List.of("a"), ids(index.search("u1", "quarterly report", 10)));
+        assertEquals(List.of("a"), ids(index.search("u1", "repo", 10)));
+        assertEquals(2, index.search("u1", "quart", 10).getTotal());
+        assertEquals(0, index.search("u1", "quarterly budget", 10).getTotal());
+    }
+
+    @Test
+    public void searchesOnlyTheUsersOwnFiles() throws IOException {
+        index.index(file("a", "u1", "report.pdf", ""));
+        index.index(file("b", "u2", "report.pdf", ""));
+
+        assertEquals(List.of("a"), ids(index.search("u1", "report", 10)));
+        assertEquals(List.of("b"), ids(index.search("u2", "report", 10)));
+        assertEquals(0, index.search("u3", "report", 10).getTotal());
+    }
+
+    @Test
+    public void updatesReplaceAndRemovesDrop() throws IOException {
+        index.index(file("a", "u1", "draft.txt", ""));
+        index.index(file("a", "u1", "final.txt", ""));
+        index.index(file("b", "u1", "final-notes.txt", ""));
+        index.remove("b");
+
+        assertEquals(0, index.search("u1", "draft", 10).getTotal());
+        assertEquals(List.of("a"), ids(index.search("u1", "final", 10)));
+        assertEquals(1L, index.getStats().get("documents"));
+    }
+
+    @Test
+    public void pagesThroughRankedHits() throws IOException {
+        for(int i = 0; i < 5; i++) {
+            index.index(file("f" + i, "u1", "photo" + i + ".jpg", ""));
+        }
+
+        SearchIndex.Result first = index.search("u1", "photo", 2);
+        SearchIndex.Result second = index.search("u1", "photo", last(first), 2);
+        SearchIndex.Result third = index.search("u1", "photo", last(second), 2);
+
+        assertEquals(5, first.getTotal());
+        assertEquals(2, first.getHits().size());
+        assertEquals(2, second.getHits().size());
+        assertEquals(1, third.getHits().size());
+        List<String> all = new ArrayList<>(ids(first));
+        all.addAll(ids(second));
+        all.addAll(ids(third));
+        assertEquals(ids(index.search("u1", "photo", 10)), all);
+    }
+
+    @Test
+    public void pagesOrderTiesByFileIdAfterHigherScores() throws IOException {
+        index.index(file("c", "u1", "report.pdf", ""));
+        index.index(file("a", "u1", "notes.txt", "report"));
+        index.index(file("b", "u1", "draft.txt", "report"));
+        index.index(file("d", "u1", "old.txt", "report"));
+
+        SearchIndex.Result first = index.search("u1", "report", 2);
+        SearchIndex.Result rest = index.search("u1", "report", last(first), 10);
+
+        assertEquals(List.of("c", "a"), ids(first));
+        assertEquals(List.of("b", "d"), ids(rest));
+        assertEquals(0, index.search("u1", "report", last(rest), 10).getHits().size());
+    }
+
+    @Test
+    public void mergesSegmentsWithoutChangingResults() throws Exception {
+        index.close();
+        index = new SearchIndex(directory, 2, 2);
+        for(int i = 0; i < 20; i++) {
+            index.index(file("f" + i, "u1", "report" + i + ".pdf", i % 2 == 0 ? "annual summary" : "weekly"));
+        }
+        index.remove("f0");
+        index.remove("f1");
+
+        awaitMerged(2);
+
+        assertTrue(segmentFiles().size() <= 2);
+        assertEquals(18L, index.getStats().get("documents"));
+        assertEquals(18, index.search("u1", "report", 100).getTotal());
+        SearchIndex.Result annual = index.search("u1", "annual", 100);
+        assertEquals(9, annual.getTotal());
+        assertFalse(ids(annual).contains("f0"));
+        assertEquals(List.of("f7"), ids(index.search("u1", "report7", 10)));
+    }
+
+    @Test
+    public void reopensWithTheSameDocuments() throws Exception {
+        index.close();
+        index = new SearchIndex(directory, 2, 2);
+        for(int i = 0; i < 7; i++) {
+            index.index(file("f" + i, "u1", "invoice" + i + ".pdf", ""));
+        }
+        index.remove("f3");
+        List<String> before = ids(index.search("u1", "invoice", 100));
+        index.close();
+
+        index = new SearchIndex(directory, 2, 2);
+
+        assertEquals(6L, index.getStats().get("documents"));
+        assertEquals(0, index.getStats().get("bufferedDocs"));
+        List<String> after = ids(index.search("u1", "invoice", 100));
+        assertEquals(before.stream().sorted().collect(Collectors.toList()),
+                after.stream().sorted().collect(Collectors.toList()));
+        assertFalse(after.contains("f3"));
+    }
+}
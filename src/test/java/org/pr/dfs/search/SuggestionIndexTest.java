@@ -0,0 +1,53 @@
+package org.pr.dfs.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SuggestionIndexTest {
+
+    private final SuggestionIndex index = new SuggestionIndex(10, 10);
+    private int loads;
+
+    private List<SuggestionIndex.Suggestion> files(String userId) {
+        loads++;
+        List<SuggestionIndex.Suggestion> files = new ArrayList<>();
+        files.add(new SuggestionIndex.Suggestion("1", "report.pdf", 5));
+        return files;
+    }
+
+    @Test
+    public void loadsOnceAndFollowsUpdates() {
+        assertEquals(List.of("report.pdf"), index.suggest("u1", "rep", 10, this::files));
+        index.put("u1", "2", "reply.txt", 9);
+        index.remove("u1", "1");
+
+        assertEquals(List.of("reply.txt"), index.suggest("u1", "rep", 10, this::files));
+        assertEquals(1, loads);
+    }
+
+    @Test
+    public void ignoresUpdatesForUsersNotLoaded() {
+        index.put("u1", "2", "reply.txt", 9);
+
+        assertEquals(List.of("report.pdf"), index.suggest("u1", "rep", 10, this::files));
+    }
+
+    @Test
+    public void loadRacingAnUpdateIsNotKept() {
+        List<String> first = index.suggest("u1", "rep", 10, userId -> {
+            List<SuggestionIndex.Suggestion> files = files(userId);
+            index.put("u1", "2", "reply.txt", 9); // Stored after the loader read the files
+            return files;
+        });
+
+        assertEquals(List.of("report.pdf"), first);
+        assertEquals(0L, index.getStats().get("names"));
+        index.suggest("u1", "rep", 10, this::files);
+        assertEquals(2, loads);
+        assertEquals(1L, index.getStats().get("names"));
+    }
+}
@@ -0,0 +1,66 @@
+package org.pr.dfs.security;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class ClusterAuthTest {
+
+    private static final String ENDPOINT = "/system/nodes/heartbeat";
+
+    private static String secret(int fill) {
+        byte[] secret = new byte[32];
+        Arrays.fill(secret, (byte) fill);
+        return Base64.getEncoder().encodeToString(secret);
+    }
+
+    private final ClusterAuth auth = new ClusterAuth(secret(1));
+
+    @Test
+    public void verifiesWhatItSigned() {
+        String signature = auth.sign(ENDPOINT, "node1", "localhost", 8091, 1000);
+
+        assertTrue(auth.verify(ENDPOINT, "node1", "localhost", 8091, "1000", signature, 2000));
+    }
+
+    @Test
+    public void rejectsAnotherNodeEndpointOrSecret() {
+        String signature = auth.sign(ENDPOINT, "node1", "localhost", 8091, 1000);
+
+        assertFalse(auth.verify(ENDPOINT, "node2", "localhost", 8091, "1000", signature, 1000));
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8092, "1000", signature, 1000));
+        assertFalse(auth.verify("/system/nodes/block-report", "node1", "localhost", 8091, "1000", signature, 1000));
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8091, "1001", signature, 1000));
+        assertFalse(new ClusterAuth(secret(2)).verify(ENDPOINT, "node1", "localhost", 8091, "1000", signature, 1000));
+    }
+
+    @Test
+    public void rejectsStaleAndMalformedCalls() {
+        long now = 10 * 60 * 1000;
+        String signature = auth.sign(ENDPOINT, "node1", "localhost", 8091, 0);
+
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8091, "0", signature, now));
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8091, null, signature, 0));
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8091, "0", null, 0));
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8091, "soon", signature, 0));
+        assertFalse(auth.verify(ENDPOINT, "node1", "localhost", 8091, "0", "not base64!", 0));
+    }
+
+    @Test
+    public void refusesEverythingWithoutASecret() {
+        ClusterAuth none = new ClusterAuth("");
+        String signature = auth.sign(ENDPOINT, "node1", "localhost", 8091, 1000);
+
+        assertFalse(none.isConfigured());
+        assertNull(none.sign(ENDPOINT, "node1", "localhost", 8091, 1000));
+        assertFalse(none.verify(ENDPOINT, "node1", "localhost", 8091, "1000", signature, 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortSecrets() {
+        new ClusterAuth(Base64.getEncoder().encodeToString(new byte[16]));
+    }
+}
@@ -0,0 +1,118 @@
+package org.pr.dfs.security;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES-GCM throughput of one thread, i.e. per core: {@link CryptoEngine} against the code EncryptionServiceImpl
+ * ran before it, a provider lookup and SecureRandom.getInstanceStrong() per file plus the copies around
+ * the cipher. Bytes per second are operations per second times {@code size}.
+ *
+ * Run {@link #main} from the IDE or with the test classpath after {@code mvn test-compile}; pass
+ * {@code -t <threads>} to JMH's own main to see how it scales across cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CryptoEngineBenchmark {
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+
+    private final CryptoEngine engine = new CryptoEngine();
+    private SecretKey key;
+    private byte[] plain;
+    private byte[] sealed;
+    private ByteBuffer directPlain;
+    private ByteBuffer directSealed;
+    private ByteBuffer directOpened;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        plain = new byte[size];
+        new Random(42).nextBytes(plain);
+        sealed = engine.encrypt(key, plain);
+
+        directPlain = ByteBuffer.allocateDirect(size);
+        directPlain.put(plain).flip();
+        directSealed = ByteBuffer.allocateDirect(CryptoEngine.sealedLength(size));
+        directSealed.put(sealed).flip();
+        directOpened = ByteBuffer.allocateDirect(size);
+    }
+
+    @Benchmark
+    public byte[] legacyEncrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance(CryptoEngine.TRANSFORMATION);
+        byte[] iv = new byte[IV_LENGTH];
+        SecureRandom.getInstanceStrong().nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        byte[] encryptedData = cipher.doFinal(plain);
+        byte[] result = new byte[IV_LENGTH + encryptedData.length];
+        System.arraycopy(iv, 0, result, 0, IV_LENGTH);
+        System.arraycopy(encryptedData, 0, result, IV_LENGTH, encryptedData.length);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] legacyDecrypt() throws Exception {
+        byte[] iv = new byte[IV_LENGTH];
+        System.arraycopy(sealed, 0, iv, 0, IV_LENGTH);
+        byte[] cipherText = new byte[sealed.length - IV_LENGTH];
+        System.arraycopy(sealed, IV_LENGTH, cipherText, 0, cipherText.length);
+        Cipher cipher = Cipher.getInstance(CryptoEngine.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        return cipher.doFinal(cipherText);
+    }
+
+    @Benchmark
+    public byte[] engineEncrypt() throws Exception {
+        return engine.encrypt(key, plain);
+    }
+
+    @Benchmark
+    public byte[] engineDecrypt() throws Exception {
+        return engine.decrypt(key, sealed);
+    }
+
+    @Benchmark
+    public int engineEncryptDirect() throws Exception {
+        directPlain.rewind();
+        directSealed.clear();
+        return engine.encrypt(key, directPlain, directSealed);
+    }
+
+    @Benchmark
+    public int engineDecryptDirect() throws Exception {
+        directSealed.rewind();
+        directOpened.clear();
+        return engine.decrypt(key, directSealed, directOpened);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CryptoEngineBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,110 @@
+package org.pr.dfs.security;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionStoreTest {
+
+    private static final long TICK = 1000;
+
+    private final SessionStore store = new SessionStore(TICK, 100, 0);
+
+    private SessionStore.Session add(String id, long expiresAt) {
+        SessionStore.Session session = new SessionStore.Session(id, "user-" + id, expiresAt);
+        store.add(session);
+        return session;
+    }
+
+    private void assertExpiresAt(long expiresAt) {
+        add("s", expiresAt);
+        assertEquals(0, store.advance(expiresAt - TICK));
+        assertNotNull(store.get("s", expiresAt - TICK));
+        assertEquals(0, store.advance(expiresAt));
+        assertEquals(1, store.advance(expiresAt + TICK));
+        assertNull(store.get("s", expiresAt + TICK));
+        assertEquals(0, store.size());
+        assertEquals(1, store.getExpiredCount());
+    }
+
+    @Test
+    public void expiresWithinTheFirstLevel() {
+        assertExpiresAt(5 * TICK);
+    }
+
+    @Test
+    public void expiresFromTheSecondLevel() {
+        assertExpiresAt(100 * TICK);
+    }
+
+    @Test
+    public void expiresFromTheThirdLevel() {
+        assertExpiresAt(5000 * TICK);
+    }
+
+    @Test
+    public void expiresBeyondTheWheel() {
+        assertExpiresAt(300_000 * TICK);
+    }
+
+    @Test
+    public void lookupIgnoresExpiredSessionsNotYetSwept() {
+        add("s", 5 * TICK);
+
+        assertNotNull(store.get("s", 5 * TICK));
+        assertNull(store.get("s", 5 * TICK + 1));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void renewedSessionIsFiledAgainInsteadOfDropped() {
+        SessionStore.Session session = add("s", 5 * TICK);
+        session.expiresAt = 70 * TICK;
+
+        assertEquals(0, store.advance(10 * TICK));
+        assertEquals(0, store.advance(69 * TICK));
+        assertSame(session, store.get("s", 69 * TICK));
+        assertEquals(1, store.advance(71 * TICK));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void removedSessionIsGone() {
+        add("a", 10 * TICK);
+        add("b", 10 * TICK);
+        store.remove("a");
+
+        assertNull(store.get("a", 0));
+        assertEquals(1, store.advance(11 * TICK));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void capReplacesTheSessionClosestToExpiring() {
+        SessionStore capped = new SessionStore(TICK, 2, 0);
+        capped.add(new SessionStore.Session("a", "u", 10 * TICK));
+        capped.add(new SessionStore.Session("b", "u", 50 * TICK));
+        capped.add(new SessionStore.Session("c", "u", 30 * TICK));
+
+        assertEquals(2, capped.size());
+        assertEquals(1, capped.getEvictedCount());
+        assertNull(capped.get("a", 0));
+        assertNotNull(capped.get("b", 0));
+        assertNotNull(capped.get("c", 0));
+    }
+
+    @Test
+    public void capGoesByRenewedExpiry() {
+        SessionStore capped = new SessionStore(TICK, 2, 0);
+        SessionStore.Session a = new SessionStore.Session("a", "u", 10 * TICK);
+        capped.add(a);
+        capped.add(new SessionStore.Session("b", "u", 50 * TICK));
+        a.expiresAt = 100 * TICK;
+        capped.add(new SessionStore.Session("c", "u", 30 * TICK));
+
+        assertNotNull(capped.get("a", 0));
+        assertNull(capped.get("b", 0));
+        assertNotNull(capped.get("c", 0));
+        assertEquals(2, capped.advance(101 * TICK));
+    }
+}
@@ -0,0 +1,101 @@
+package org.pr.dfs.security;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class SessionTokensTest {
+
+    private static final long TTL = 15 * 60 * 1000;
+    private static final long MAX_LIFETIME = 4 * TTL;
+
+    private static byte[] secret(int fill) {
+        byte[] secret = new byte[32];
+        Arrays.fill(secret, (byte) fill);
+        return secret;
+    }
+
+    private final SessionTokens tokens = new SessionTokens(secret(1), TTL, MAX_LIFETIME);
+
+    @Test
+    public void verifiesWhatItIssued() {
+        String token = tokens.issue("user-1", 0, 1000, 1000);
+
+        SessionTokens.Claims claims = tokens.verify(token, 2000);
+
+        assertNotNull(claims);
+        assertEquals("user-1", claims.userId);
+        assertEquals(0, claims.epoch);
+        assertEquals(1000, claims.loginAt);
+        assertEquals(1000, claims.issuedAt);
+        assertEquals(1000 + TTL, claims.expiresAt);
+    }
+
+    @Test
+    public void rejectsExpiredTokens() {
+        String token = tokens.issue("user-1", 0, 1000, 1000);
+
+        assertNotNull(tokens.verify(token, 1000 + TTL));
+        assertNull(tokens.verify(token, 1000 + TTL + 1));
+    }
+
+    @Test
+    public void renewalsKeepTheLoginAndEpoch() {
+        String renewed = tokens.issue("user-1", 7, 1000, 1000 + TTL / 2);
+
+        SessionTokens.Claims claims = tokens.verify(renewed, 1000 + TTL);
+
+        assertEquals(7, claims.epoch);
+        assertEquals(1000, claims.loginAt);
+        assertEquals(1000 + TTL / 2, claims.issuedAt);
+        assertEquals(1000 + TTL / 2 + TTL, claims.expiresAt);
+    }
+
+    @Test
+    public void renewalsStopAtTheMaximumLifetime() {
+        long end = 1000 + MAX_LIFETIME;
+        long late = end - TTL / 2;
+        String token = tokens.issue("user-1", 0, 1000, late);
+        SessionTokens.Claims claims = tokens.verify(token, late);
+
+        assertEquals(end, claims.expiresAt);
+        assertFalse(tokens.canExtend(claims, late + 1));
+        assertNull(tokens.verify(token, end + 1));
+        assertNull(tokens.issue("user-1", 0, 1000, end));
+        assertTrue(tokens.canExtend(tokens.verify(tokens.issue("user-1", 0, 1000, 1000), 1000), 2000));
+    }
+
+    @Test
+    public void rejectsTokensSignedWithAnotherSecret() {
+        String token = new SessionTokens(secret(2), TTL, MAX_LIFETIME).issue("user-1", 0, 1000, 1000);
+
+        assertNull(tokens.verify(token, 2000));
+    }
+
+    @Test
+    public void rejectsTamperedPayload() {
+        String token = tokens.issue("user-1", 0, 1000, 1000);
+        String signature = token.substring(token.indexOf('.'));
+        String forged = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(("user-2|0|1000|1000|" + (1000 + TTL)).getBytes()) + signature;
+
+        assertNull(tokens.verify(forged, 2000));
+    }
+
+    @Test
+    public void rejectsMalformedTokens() {
+        assertNull(tokens.verify("", 0));
+        assertNull(tokens.verify("no-dot", 0));
+        assertNull(tokens.verify(".sig", 0));
+        assertNull(tokens.verify("***.***", 0));
+        assertNull(tokens.verify("3f2504e0-4f89-11d3-9a0c-0305e82c3301", 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesShortSecrets() {
+        new SessionTokens(new byte[16], TTL, MAX_LIFETIME);
+    }
+}
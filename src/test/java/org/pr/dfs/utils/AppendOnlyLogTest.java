@@ -0,0 +1,99 @@
+package org.pr.dfs.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AppendOnlyLogTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path writeLog(String... records) throws IOException {
+        Path file = temp.getRoot().toPath().resolve("test.log");
+        try(AppendOnlyLog log = new AppendOnlyLog(file)) {
+            for(String record : records) {
+                log.append(record.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    private static List<String> replay(AppendOnlyLog log) throws IOException {
+        List<String> records = new ArrayList<>();
+        log.replay(record -> records.add(new String(record, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private static void flipByte(Path file, long offset) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[(int) offset] ^= 0x01;
+        Files.write(file, bytes);
+    }
+
+    @Test
+    public void replaysRecordsAfterReopen() throws IOException {
+        Path file = writeLog("one", "two", "three");
+
+        try(AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(List.of("one", "two", "three"), replay(log));
+            assertEquals(3, log.getRecordCount());
+        }
+    }
+
+    @Test
+    public void truncatesPartialRecordAtTheEnd() throws IOException {
+        Path file = writeLog("one", "two");
+        Files.write(file, new byte[]{0, 0, 0, 50, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        try(AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(List.of("one", "two"), replay(log));
+            log.append("three".getBytes(StandardCharsets.UTF_8));
+        }
+        try(AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(List.of("one", "two", "three"), replay(log));
+        }
+    }
+
+    @Test
+    public void truncatesCorruptLastRecord() throws IOException {
+        Path file = writeLog("one", "two");
+        flipByte(file, Files.size(file) - 1);
+
+        try(AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(List.of("one"), replay(log));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesCorruptRecordFollowedByValidOnes() throws IOException {
+        Path file = writeLog("one", "two", "three");
+        flipByte(file, 8); // First byte of the first payload
+
+        new AppendOnlyLog(file).close();
+    }
+
+    @Test
+    public void leavesRefusedLogUntouched() throws IOException {
+        Path file = writeLog("one", "two", "three");
+        flipByte(file, 8);
+        long size = Files.size(file);
+
+        try {
+            new AppendOnlyLog(file).close();
+            fail("Opened a log with a corrupt record in the middle");
+        } catch(IOException expected) {
+            assertEquals(size, Files.size(file));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.pr.dfs.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PathDictionaryTest {
+
+    private final PathDictionary paths = new PathDictionary(16);
+
+    private List<String> pathsUnder(String prefix) {
+        List<String> found = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        paths.forEachUnder(prefix, ids::add);
+        ids.forEach(id -> found.add(paths.path(id)));
+        found.sort(null);
+        return found;
+    }
+
+    @Test
+    public void internReturnsSameIdForEveryHolder() {
+        int first = paths.intern("users/alice/a.txt");
+        int second = paths.intern("users/alice/a.txt");
+
+        assertEquals(first, second);
+        assertEquals(first, paths.find("users/alice/a.txt"));
+        assertEquals("users/alice/a.txt", paths.path(first));
+    }
+
+    @Test
+    public void pathStaysUntilLastHolderReleases() {
+        int id = paths.intern("users/alice/a.txt");
+        paths.intern("users/alice/a.txt");
+
+        paths.release(id);
+        assertEquals(id, paths.find("users/alice/a.txt"));
+
+        paths.release(id);
+        assertEquals(PathDictionary.NO_ID, paths.find("users/alice/a.txt"));
+        assertEquals(PathDictionary.NO_ID, paths.find("users/alice"));
+        assertEquals(1, paths.size());
+    }
+
+    @Test
+    public void parentIsKeptWhileChildrenRemain() {
+        int dir = paths.intern("users/bob");
+        int file = paths.intern("users/bob/b.txt");
+
+        paths.release(dir);
+        assertEquals(dir, paths.find("users/bob"));
+        assertEquals(List.of("users/bob/b.txt"), pathsUnder("users/bob"));
+
+        paths.release(file);
+        assertEquals(PathDictionary.NO_ID, paths.find("users/bob"));
+    }
+
+    @Test
+    public void releasedIdsAreReusedForOtherPaths() {
+        int old = paths.intern("users/carol/old.txt");
+        int sibling = paths.intern("users/carol/keep.txt");
+        paths.release(old);
+
+        int reused = paths.intern("users/carol/new.txt");
+
+        assertEquals(old, reused);
+        assertEquals("users/carol/new.txt", paths.path(reused));
+        assertEquals(PathDictionary.NO_ID, paths.find("users/carol/old.txt"));
+        assertEquals("users/carol/keep.txt", paths.path(sibling));
+    }
+
+    @Test
+    public void manyPathsSurviveGrowthAndReuse() {
+        int[] ids = new int[2000];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = paths.intern("dir" + (i % 37) + "/file" + i);
+        }
+        for(int i = 0; i < ids.length; i += 2) {
+            paths.release(ids[i]);
+        }
+        for(int i = 0; i < ids.length; i += 2) {
+            ids[i] = paths.intern("other" + (i % 11) + "/file" + i);
+        }
+
+        for(int i = 0; i < ids.length; i++) {
+            String expected = (i % 2 == 0 ? "other" + (i % 11) : "dir" + (i % 37)) + "/file" + i;
+            assertEquals(expected, paths.path(ids[i]));
+            assertEquals(ids[i], paths.find(expected));
+        }
+    }
+
+    @Test
+    public void equivalentSpellingsShareOneNormalizedId() {
+        int id = paths.intern("/users//dave/d.txt/");
+
+        assertEquals(id, paths.find("users/dave/d.txt"));
+        assertEquals("users/dave/d.txt", paths.path(id));
+        assertEquals("users/dave/d.txt", PathDictionary.normalize("/users//dave/d.txt/"));
+        assertEquals("", PathDictionary.normalize("//"));
+    }
+
+    @Test
+    public void forEachUnderVisitsOnlyHeldPathsInSubtree() {
+        paths.intern("users/erin/a");
+        paths.intern("users/erin/sub/b");
+        paths.intern("users/erinx/c");
+        paths.intern("users/frank/d");
+
+        assertEquals(List.of("users/erin/a", "users/erin/sub/b"), pathsUnder("users/erin"));
+        assertTrue(pathsUnder("users/nobody").isEmpty());
+    }
+
+    @Test
+    public void rootIsNeverReleased() {
+        assertEquals(PathDictionary.ROOT, paths.intern(""));
+        paths.release(PathDictionary.ROOT);
+        assertEquals(PathDictionary.ROOT, paths.find("/"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingWithoutHolderFails() {
+        int dir = paths.intern("users/gina");
+        paths.intern("users/gina/h");
+        paths.release(dir);
+        paths.release(dir); // Still an entry, kept for its child, but no longer held
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void releasingRecycledIdFails() {
+        int id = paths.intern("users/hank/h");
+        paths.release(id);
+        paths.release(id);
+    }
+}
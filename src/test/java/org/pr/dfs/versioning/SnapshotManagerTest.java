@@ -0,0 +1,172 @@
+package org.pr.dfs.versioning;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pr.dfs.model.Snapshot;
+import org.pr.dfs.model.SnapshotEntry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SnapshotManagerTest {
+
+    private static final SnapshotManager.RestoreListener IGNORE = new SnapshotManager.RestoreListener() {
+        @Override
+        public void onFileRestored(String path) {
+        }
+
+        @Override
+        public void onFileRemoved(String path) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path storage;
+    private SnapshotManager snapshots;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = temp.newFolder("storage").toPath();
+        snapshots = new SnapshotManager(storage.toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        snapshots.close();
+    }
+
+    private Path write(String path, String content) throws IOException {
+        Path file = storage.resolve(path);
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, content);
+    }
+
+    private String read(String path) throws IOException {
+        return Files.readString(storage.resolve(path), StandardCharsets.UTF_8);
+    }
+
+    private List<Path> blocks() throws IOException {
+        try(Stream<Path> walk = Files.walk(storage.resolve(".snapshots/blocks"))) {
+            return walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private List<String> listFiles(Snapshot snapshot) throws IOException {
+        try(Stream<SnapshotEntry> entries = snapshots.listSnapshot("users/a", snapshot.getSnapshotId())) {
+            return entries.filter(entry -> !entry.isDirectory())
+                    .map(SnapshotEntry::getPath)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void movedTreeIsLinkedIntoTheStoreNotCopied() throws IOException {
+        write("users/a/docs/one.txt", "first");
+        write("users/a/docs/sub/two.txt", "second");
+        Snapshot snapshot = snapshots.createSnapshot("users/a", "before-move");
+
+        snapshots.beforeReplace("users/a/docs");
+        snapshots.beforeReplace("users/a/moved");
+        Files.move(storage.resolve("users/a/docs"), storage.resolve("users/a/moved"));
+
+        List<Path> blocks = blocks();
+        assertEquals(2, blocks.size());
+        Path moved = storage.resolve("users/a/moved/one.txt");
+        assertTrue(blocks.stream().anyMatch(block -> isSameFile(block, moved)));
+        assertEquals(List.of("users/a/docs/one.txt", "users/a/docs/sub/two.txt"), listFiles(snapshot));
+
+        snapshots.restoreSnapshot("users/a", snapshot.getSnapshotId(), IGNORE);
+
+        assertEquals("first", read("users/a/docs/one.txt"));
+        assertEquals("second", read("users/a/docs/sub/two.txt"));
+        assertFalse(Files.exists(storage.resolve("users/a/moved")));
+    }
+
+    @Test
+    public void deletedFileComesBackOnRestore() throws IOException {
+        write("users/a/report.txt", "v1");
+        Snapshot snapshot = snapshots.createSnapshot("users/a", "s1");
+
+        snapshots.beforeReplace("users/a/report.txt");
+        Files.delete(storage.resolve("users/a/report.txt"));
+
+        assertEquals(List.of("users/a/report.txt"), listFiles(snapshot));
+        assertEquals(1, snapshots.restoreSnapshot("users/a", snapshot.getSnapshotId(), IGNORE));
+        assertEquals("v1", read("users/a/report.txt"));
+    }
+
+    @Test
+    public void replacedFileKeepsItsPreImage() throws IOException {
+        write("users/a/report.txt", "v1");
+        Snapshot snapshot = snapshots.createSnapshot("users/a", "s1");
+
+        snapshots.beforeReplace("users/a/report.txt");
+        Path next = write("users/a/report.txt.new", "v2");
+        Files.move(next, storage.resolve("users/a/report.txt"), StandardCopyOption.REPLACE_EXISTING);
+
+        snapshots.restoreSnapshot("users/a", snapshot.getSnapshotId(), IGNORE);
+
+        assertEquals("v1", read("users/a/report.txt"));
+    }
+
+    @Test
+    public void inPlaceRewriteIsCopied() throws IOException {
+        write("users/a/report.txt", "v1");
+        Snapshot snapshot = snapshots.createSnapshot("users/a", "s1");
+
+        snapshots.beforeChange("users/a/report.txt");
+        write("users/a/report.txt", "v2");
+
+        assertFalse(blocks().stream().anyMatch(block -> isSameFile(block, storage.resolve("users/a/report.txt"))));
+        snapshots.restoreSnapshot("users/a", snapshot.getSnapshotId(), IGNORE);
+        assertEquals("v1", read("users/a/report.txt"));
+    }
+
+    @Test
+    public void restoreSkipsFilesStillLinkedToTheirBlock() throws IOException {
+        write("users/a/docs/one.txt", "first");
+        Snapshot snapshot = snapshots.createSnapshot("users/a", "s1");
+        snapshots.beforeReplace("users/a/docs/one.txt");
+        snapshots.beforeReplace("users/a/other.txt");
+        write("users/a/other.txt", "new");
+
+        List<String> removed = new ArrayList<>();
+        int changed = snapshots.restoreSnapshot("users/a", snapshot.getSnapshotId(), new SnapshotManager.RestoreListener() {
+            @Override
+            public void onFileRestored(String path) {
+                fail("Restored an unchanged file: " + path);
+            }
+
+            @Override
+            public void onFileRemoved(String path) {
+                removed.add(path);
+            }
+        });
+
+        assertEquals(1, changed);
+        assertEquals(List.of("users/a/other.txt"), removed);
+    }
+
+    private static boolean isSameFile(Path a, Path b) {
+        try {
+            return Files.isSameFile(a, b);
+        } catch(IOException e) {
+            return false;
+        }
+    }
+}
@@ -1,4 +1,4 @@
 @echo off
 echo Starting Node 1...
-java -Dnode.id=node1 -Dserver.port=8091 -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
+java -Dnode.id=node1 -Dserver.port=8091 -Dcluster.secret=%DFS_CLUSTER_SECRET% -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
 pause
@@ -1,4 +1,4 @@
 @echo off
 echo Starting Node 2...
-java -Dnode.id=node2 -Dserver.port=8092 -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
+java -Dnode.id=node2 -Dserver.port=8092 -Dcluster.secret=%DFS_CLUSTER_SECRET% -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
 pause
@@ -1,4 +1,4 @@
 @echo off
 echo Starting Node 3...
-java -Dnode.id=node3 -Dserver.port=8093 -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
+java -Dnode.id=node3 -Dserver.port=8093 -Dcluster.secret=%DFS_CLUSTER_SECRET% -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
 pause
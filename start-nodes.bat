@@ -0,0 +1,13 @@
+@echo off
+rem Starts N storage nodes (default 10) on ports 8091, 8092, ... with gossip on 9091, 9092, ...
+rem They join through the coordinator's gossip port 7946; node 1 is a second seed.
+rem DFS_CLUSTER_SECRET must hold the coordinator's dfs.cluster.secret, which signs their reports
+setlocal enabledelayedexpansion
+set COUNT=%1
+if "%COUNT%"=="" set COUNT=10
+for /L %%i in (1,1,%COUNT%) do (
+    set /a PORT=8090+%%i
+    echo Starting node%%i on port !PORT!...
+    start "Node %%i" java -Dnode.id=node%%i -Dserver.port=!PORT! -Dcluster.secret=%DFS_CLUSTER_SECRET% -Dgossip.enabled=true -Dgossip.seeds=localhost:7946,localhost:9091 -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer
+)
+endlocal
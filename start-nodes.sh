@@ -0,0 +1,12 @@
+#!/bin/sh
+# Starts N storage nodes (default 10) on ports 8091, 8092, ... with gossip on 9091, 9092, ...
+# They join through the coordinator's gossip port 7946; node 1 is a second seed. Stop them with: pkill -f SimpleHTTPNodeServer
+# DFS_CLUSTER_SECRET must hold the coordinator's dfs.cluster.secret, which signs their reports
+COUNT=${1:-10}
+mkdir -p logs
+for i in $(seq 1 "$COUNT"); do
+    PORT=$((8090 + i))
+    echo "Starting node$i on port $PORT..."
+    java -Dnode.id=node$i -Dserver.port=$PORT -Dcluster.secret="$DFS_CLUSTER_SECRET" -Dgossip.enabled=true -Dgossip.seeds=localhost:7946,localhost:9091 \
+        -cp "target/classes" org.pr.dfs.node.SimpleHTTPNodeServer < /dev/null > logs/node$i.log 2>&1 &
+done